@@ -61,7 +61,9 @@ public class LinkedProcess {
      */
     public enum JobStatus {
         // TODO: how about a "queued" status for jobs?
-        IN_PROGRESS("in_progress");
+        IN_PROGRESS("in_progress"),
+        // The job has finished, and its result has been sent, but it is still remembered by the farm.
+        COMPLETED("completed");
 
         private final String name;
 
@@ -72,6 +74,15 @@ public class LinkedProcess {
         public String toString() {
             return name;
         }
+
+        public static JobStatus getJobStatus(final String name) {
+            for (JobStatus s : JobStatus.values()) {
+                if (s.name.equals(name)) {
+                    return s;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -97,6 +108,7 @@ public class LinkedProcess {
     public enum LopErrorType {
         EVALUATION_ERROR("evaluation_error"),
         FARM_IS_BUSY("farm_is_busy"), // VMSchedulerIsFullException
+        DEPENDENCY_FAILED("dependency_failed"), // when a job of a submit_job_batch depends on a job which has failed
         INTERNAL_ERROR("internal_error"), // VMAlreadyExistsException, VMWorkerNotFoundException
         INVALID_VALUE("invalid_value"), // InvalidValueException
         JOB_ABORTED("job_aborted"),
@@ -104,6 +116,7 @@ public class LinkedProcess {
         JOB_NOT_FOUND("job_not_found"), // JobNotFoundException
         JOB_TIMED_OUT("job_timed_out"),
         MALFORMED_PACKET("malformed_packet"), // when a received packet is not as expected
+        MEMORY_QUOTA_EXCEEDED("memory_quota_exceeded"), // MemoryQuotaExceededException
         PERMISSION_DENIED("permission_denied"),
         SPECIES_NOT_SUPPORTED("species_not_supported"), // UnsupportedScriptEngineException
         UNKNOWN_DATATYPE("unknown_datatype"),
@@ -163,6 +176,16 @@ public class LinkedProcess {
     private static final String LOP_NAMESPACE = "http://linkedprocess.org/2009/06/";
     public static final String LOP_FARM_NAMESPACE = LOP_NAMESPACE + "Farm#";
     public static final String LOP_REGISTRY_NAMESPACE = LOP_NAMESPACE + "Registry#";
+    // A farm with this feature accepts (and, when asked, replies with) binary-encoded bindings and results.
+    public static final String LOP_FARM_BINARY_FEATURE = LOP_FARM_NAMESPACE + "binary";
+    // A farm with this feature replies, when asked, with job results as typed XML.
+    public static final String LOP_FARM_TYPED_FEATURE = LOP_FARM_NAMESPACE + "typed";
+    // A farm with this feature versions the bindings of its virtual machines, and replies to a manage_bindings asking for those changed since a version.
+    public static final String LOP_FARM_VERSIONED_FEATURE = LOP_FARM_NAMESPACE + "versioned";
+    // A farm with this feature pushes the changes of watched bindings to the villein watching them.
+    public static final String LOP_FARM_WATCH_FEATURE = LOP_FARM_NAMESPACE + "watch";
+    // A farm with this feature streams, when asked, the output of a job and a long result in partial results.
+    public static final String LOP_FARM_STREAM_FEATURE = LOP_FARM_NAMESPACE + "stream";
     public static final String BLANK_NAMESPACE = "";
     public static final String DISCO_INFO_NAMESPACE = "http://jabber.org/protocol/disco#info";
     public static final String DISCO_ITEMS_NAMESPACE = "http://jabber.org/protocol/disco#items";
@@ -196,8 +219,10 @@ public class LinkedProcess {
     // Lop VM XMPP tag and attribute names
     // tag names
     public static final String SUBMIT_JOB_TAG = "submit_job";
+    public static final String SUBMIT_JOB_BATCH_TAG = "submit_job_batch";
     public static final String MANAGE_BINDINGS_TAG = "manage_bindings";
     public static final String PING_JOB_TAG = "ping_job";
+    public static final String FETCH_JOB_TAG = "fetch_job";
     public static final String ABORT_JOB_TAG = "abort_job";
     public static final String TERMINATE_VM_TAG = "terminate_vm";
     // attribute names
@@ -207,6 +232,20 @@ public class LinkedProcess {
     public static final String DATATYPE_ATTRIBUTE = "datatype";
     public static final String BINDING_TAG = "binding";
     public static final String NAME_ATTRIBUTE = "name";
+    public static final String SEQUENCE_ATTRIBUTE = "sequence";
+    public static final String PARTIAL_ATTRIBUTE = "partial";
+    public static final String STREAM_ATTRIBUTE = "stream";
+    public static final String JOB_TAG = "job";
+    public static final String DEPENDS_ON_ATTRIBUTE = "depends_on";
+    public static final String RESULT_BINDING_ATTRIBUTE = "result_binding";
+    public static final String ENCODING_ATTRIBUTE = "encoding";
+    public static final String BINARY_ENCODING = "binary";
+    public static final String TYPED_ENCODING = "typed";
+    public static final String LIST_TAG = "list";
+    public static final String MAP_TAG = "map";
+    public static final String SINCE_ATTRIBUTE = "since";
+    public static final String VERSION_ATTRIBUTE = "version";
+    public static final String WATCH_ATTRIBUTE = "watch";
     // IQ tags and attributes
     // tag names
     public static final String ERROR_TAG = "error";
@@ -247,7 +286,35 @@ public class LinkedProcess {
             JOB_QUEUE_CAPACITY_PROPERTY = "org.linkedprocess.farm.jobQueueCapacity",
             ROUND_ROBIN_QUANTUM_PROPERTY = "org.linkedprocess.farm.roundRobinQuantum",
             VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY = "org.linkedprocess.farm.virtualMachineTimeToLive",
-            SCHEDULER_CLEANUP_INTERVAL_PROPERTY = "org.linkedprocess.farm.schedulerCleanupInterval";
+            SCHEDULER_CLEANUP_INTERVAL_PROPERTY = "org.linkedprocess.farm.schedulerCleanupInterval",
+            SCHEDULING_MODE_PROPERTY = "org.linkedprocess.farm.schedulingMode",
+            EXECUTION_MODE_PROPERTY = "org.linkedprocess.farm.executionMode",
+            WORKER_THREAD_POOL_SIZE_PROPERTY = "org.linkedprocess.farm.workerThreadPoolSize",
+            SCRIPT_ENGINE_POOL_LOW_WATERMARK_PROPERTY = "org.linkedprocess.farm.scriptEnginePoolLowWatermark",
+            SCRIPT_ENGINE_POOL_HIGH_WATERMARK_PROPERTY = "org.linkedprocess.farm.scriptEnginePoolHighWatermark",
+            COMPILED_SCRIPT_CACHE_SIZE_PROPERTY = "org.linkedprocess.farm.compiledScriptCacheSize",
+            SCHEDULING_POLICY_PROPERTY = "org.linkedprocess.farm.schedulingPolicy",
+            VILLEIN_PRIORITY_PROPERTY = "org.linkedprocess.farm.villeinPriority",
+            ADAPTIVE_QUANTUM_PROPERTY = "org.linkedprocess.farm.adaptiveQuantum",
+            MIN_QUANTUM_PROPERTY = "org.linkedprocess.farm.minQuantum",
+            MAX_QUANTUM_PROPERTY = "org.linkedprocess.farm.maxQuantum",
+            SHUTDOWN_TIMEOUT_PROPERTY = "org.linkedprocess.farm.shutdownTimeout",
+            VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY = "org.linkedprocess.farm.virtualMachineHibernationTimeout",
+            MAX_HIBERNATED_VIRTUAL_MACHINES_PROPERTY = "org.linkedprocess.farm.maxHibernatedVirtualMachines",
+            HIBERNATION_DIRECTORY_PROPERTY = "org.linkedprocess.farm.hibernationDirectory",
+            RESOURCE_ACCOUNTING_PROPERTY = "org.linkedprocess.farm.resourceAccounting",
+            MAX_JOB_ALLOCATED_BYTES_PROPERTY = "org.linkedprocess.farm.maxJobAllocatedBytes",
+            MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY = "org.linkedprocess.farm.maxVirtualMachineFootprint",
+            MEMORY_CHECK_INTERVAL_PROPERTY = "org.linkedprocess.farm.memoryCheckInterval",
+            JOB_OUTPUT_CHUNK_SIZE_PROPERTY = "org.linkedprocess.farm.jobOutputChunkSize",
+            SUBMIT_JOB_BATCH_REPLY_SIZE_PROPERTY = "org.linkedprocess.farm.submitJobBatchReplySize",
+            RESULT_QUEUE_CAPACITY_PROPERTY = "org.linkedprocess.farm.resultQueueCapacity",
+            RESULT_COALESCING_WINDOW_PROPERTY = "org.linkedprocess.farm.resultCoalescingWindow",
+            COMPLETED_JOB_STORE_SIZE_PROPERTY = "org.linkedprocess.farm.completedJobStoreSize",
+            COMPLETED_JOB_STORE_MAX_BYTES_PROPERTY = "org.linkedprocess.farm.completedJobStoreMaxBytes",
+            COMPLETED_JOB_TIME_TO_LIVE_PROPERTY = "org.linkedprocess.farm.completedJobTimeToLive",
+            DUPLICATE_JOB_WINDOW_PROPERTY = "org.linkedprocess.farm.duplicateJobWindow",
+            MIN_BINDINGS_WATCH_INTERVAL_PROPERTY = "org.linkedprocess.farm.minBindingsWatchInterval";
 
     private static final Properties CONFIGURATION;
     private static final Logger LOGGER;
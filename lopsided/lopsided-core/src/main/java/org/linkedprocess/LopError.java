@@ -124,6 +124,15 @@ public class LopError extends XMPPError {
     }
 
     public String toXML() {
+        return LinkedProcess.xmlOut.outputString(this.toElement());
+    }
+
+    /**
+     * Get the error as an element, for it to be embedded in a packet which carries several results (e.g. a submit_job_batch).
+     *
+     * @return the error element
+     */
+    public Element toElement() {
         Element errorElement = new Element(LinkedProcess.ERROR_TAG);
         errorElement.setAttribute(LinkedProcess.CODE_ATTRIBUTE, "" + this.getCode());
         errorElement.setAttribute(LinkedProcess.TYPE_ATTRIBUTE, this.getType().toString().toLowerCase());
@@ -136,7 +145,7 @@ public class LopError extends XMPPError {
             textElement.setText(this.getMessage().replaceAll("<", "").replaceAll(">", "").replaceAll("&", ""));
             errorElement.addContent(textElement);
         }
-        return LinkedProcess.xmlOut.outputString(errorElement);
+        return errorElement;
     }
 
     public String toString() {
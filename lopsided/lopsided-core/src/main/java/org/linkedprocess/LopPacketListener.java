@@ -28,6 +28,23 @@ public abstract class LopPacketListener implements PacketListener {
         this.xmppClient = xmppClient;
     }
 
+    /**
+     * Discover the features of an XMPP client, without building a document of them.
+     * Use this rather than getDiscoInfoDocument wherever only the type of the client is wanted.
+     *
+     * @param jid the client to discover
+     * @return the disco#info of the client, or null if it could not be discovered
+     */
+    protected DiscoverInfo getDiscoInfo(Jid jid) {
+        ServiceDiscoveryManager discoManager = this.xmppClient.getDiscoManager();
+        try {
+            return discoManager.discoverInfo(jid.toString());
+        } catch (Exception e) {
+            XmppClient.LOGGER.warning(e.getMessage());
+            return null;
+        }
+    }
+
     protected Document getDiscoInfoDocument(Jid jid) {
         ServiceDiscoveryManager discoManager = this.xmppClient.getDiscoManager();
         try {
@@ -72,4 +89,12 @@ public abstract class LopPacketListener implements PacketListener {
     public static boolean isFarm(Document discoInfoDocument) {
         return LopPacketListener.getFeatures(discoInfoDocument).contains(LinkedProcess.LOP_FARM_NAMESPACE);
     }
+
+    public static boolean isRegistry(DiscoverInfo discoverInfo) {
+        return null != discoverInfo && discoverInfo.containsFeature(LinkedProcess.LOP_REGISTRY_NAMESPACE);
+    }
+
+    public static boolean isFarm(DiscoverInfo discoverInfo) {
+        return null != discoverInfo && discoverInfo.containsFeature(LinkedProcess.LOP_FARM_NAMESPACE);
+    }
 }
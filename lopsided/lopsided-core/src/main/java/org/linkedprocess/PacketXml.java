@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess;
+
+import org.jdom.IllegalDataException;
+import org.jdom.Verifier;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Helpers for reading and writing the XML of frequently exchanged packets without building a DOM.
+ * The readers work on the XmlPullParser which Smack hands to an IQProvider, and leave it on the end tag of the element they have read, as Smack expects.
+ * The writers produce exactly what JDOM's XMLOutputter produces for the same element, so that a packet reads the same whichever way it has been written.
+ *
+ * @version LoPSideD 0.1
+ */
+public class PacketXml {
+
+    /**
+     * Read the text body of the element on whose start tag the parser is positioned, up to its end tag.
+     * Text which the parser delivers in one piece (the usual case) is returned as it is, without being copied.
+     * The text of any child element is skipped.
+     *
+     * @param parser a parser positioned on a start tag
+     * @return the text body of the element, or null if it has none
+     * @throws IOException            if the XML cannot be read
+     * @throws XmlPullParserException if the XML is not well formed
+     */
+    public static String readText(XmlPullParser parser) throws IOException, XmlPullParserException {
+        int depth = parser.getDepth();
+        String text = null;
+        StringBuilder sb = null;
+
+        int v = parser.next();
+        while (!(v == XmlPullParser.END_TAG && parser.getDepth() == depth) && v != XmlPullParser.END_DOCUMENT) {
+            if (v == XmlPullParser.TEXT && parser.getDepth() == depth) {
+                if (null == text) {
+                    text = parser.getText();
+                } else {
+                    if (null == sb) {
+                        sb = new StringBuilder(text);
+                    }
+                    sb.append(parser.getText());
+                }
+            }
+            v = parser.next();
+        }
+
+        return null == sb ? text : sb.toString();
+    }
+
+    /**
+     * Move the parser to the start tag of the next child of an element, skipping any text and the contents of the previous child.
+     *
+     * @param parser      a parser positioned within the element
+     * @param parentDepth the depth of the element (its parser depth at its start tag)
+     * @return true if the parser is on the start tag of a child, or false if it is on the end tag of the element (or at the end of the document)
+     * @throws IOException            if the XML cannot be read
+     * @throws XmlPullParserException if the XML is not well formed
+     */
+    public static boolean nextChildElement(XmlPullParser parser, int parentDepth) throws IOException, XmlPullParserException {
+        if (parser.getEventType() == XmlPullParser.END_TAG && parser.getDepth() == parentDepth) {
+            return false;
+        }
+        while (true) {
+            int v = parser.next();
+            if (v == XmlPullParser.START_TAG && parser.getDepth() == parentDepth + 1) {
+                return true;
+            } else if ((v == XmlPullParser.END_TAG && parser.getDepth() == parentDepth) || v == XmlPullParser.END_DOCUMENT) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Move the parser past the contents of the element on whose start tag it is positioned, to its end tag.
+     *
+     * @param parser a parser positioned on a start tag
+     * @throws IOException            if the XML cannot be read
+     * @throws XmlPullParserException if the XML is not well formed
+     */
+    public static void skipElement(XmlPullParser parser) throws IOException, XmlPullParserException {
+        int depth = parser.getDepth();
+        int v = parser.next();
+        while (!(v == XmlPullParser.END_TAG && parser.getDepth() == depth) && v != XmlPullParser.END_DOCUMENT) {
+            v = parser.next();
+        }
+    }
+
+    /**
+     * Append an attribute to a start tag which is being written.
+     *
+     * @param sb    the XML being written
+     * @param name  the name of the attribute
+     * @param value the value of the attribute
+     */
+    public static void appendAttribute(StringBuilder sb, String name, String value) {
+        checkCharacterData(value);
+        sb.append(' ').append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\t':
+                    sb.append("&#x9;");
+                    break;
+                case '\n':
+                    sb.append("&#xA;");
+                    break;
+                case '\r':
+                    sb.append("&#xD;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Append the text body of an element which is being written.
+     *
+     * @param sb   the XML being written
+     * @param text the text body
+     */
+    public static void appendText(StringBuilder sb, String text) {
+        checkCharacterData(text);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '\r':
+                    sb.append("&#xD;");
+                    break;
+                case '\n':
+                    // As XMLOutputter writes a line break.
+                    sb.append("\r\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static void checkCharacterData(String data) {
+        String reason = Verifier.checkCharacterData(data);
+        if (null != reason) {
+            throw new IllegalDataException("The data \"" + data + "\" is not legal for a JDOM character content: " + reason + ".");
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
+
+/**
+ * A fetch_job packet is modeled by this class.
+ * A fetch_job asks a farm for the result of a job which has already finished, e.g. because the villein has missed the submit_job which carried it.
+ *
+ * @version LoPSideD 0.1
+ */
+public class FetchJob extends FarmIq {
+
+    protected String jobId;
+    protected LinkedProcess.JobStatus status;
+    protected String expression;
+    protected Integer sequence;
+    protected String encoding;
+    protected Object value;
+
+    /**
+     * Set the job_id attribute of this packet.
+     *
+     * @param jobId the job_id attribute of this packet
+     */
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * Get the job_id attribute of this packet.
+     *
+     * @return the job_id attribute of this packet
+     */
+    public String getJobId() {
+        return this.jobId;
+    }
+
+    /**
+     * Set the status attribute of this packet.
+     *
+     * @param status the status attribute of this packet
+     */
+    public void setStatus(LinkedProcess.JobStatus status) {
+        this.status = status;
+    }
+
+    /**
+     * Get the status attribute of this packet.
+     *
+     * @return the status attribute of this packet
+     */
+    public LinkedProcess.JobStatus getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Set the text body expression of the packet: the result of the job.
+     *
+     * @param expression the text body expression of the packet
+     */
+    public void setExpression(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Get the text body expression of the packet: the result of the job.
+     *
+     * @return the text body expression of the packet
+     */
+    public String getExpression() {
+        return this.expression;
+    }
+
+    /**
+     * Set the number of partial results which have been sent ahead of the result of the job.
+     * Only the last piece of such a result is fetched.
+     *
+     * @param sequence the number of partial results sent ahead of the result
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the number of partial results which have been sent ahead of the result of the job.
+     *
+     * @return the number of partial results sent ahead of the result, or null if the result has been sent whole
+     */
+    public Integer getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set the encoding of the fetched result, which is the encoding the job's result was sent in: binary (see BinaryEncoding), typed (see TypedXml), or null for text.
+     *
+     * @param encoding the encoding of the fetched result
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Get the encoding of the fetched result.
+     *
+     * @return the encoding of the fetched result, or null for text
+     */
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Get whether the fetched result is binary-encoded, as the job's result was when it was sent.
+     *
+     * @return whether the expression is the base64 text of a binary-encoded value
+     */
+    public boolean isBinary() {
+        return LinkedProcess.BINARY_ENCODING.equals(this.encoding);
+    }
+
+    /**
+     * Get whether the fetched result is typed XML, as the job's result was when it was sent.
+     * The expression of a typed result which is being sent is its typed XML, and the value of one which has been received is returned by getValue().
+     *
+     * @return whether the fetched result is typed XML
+     */
+    public boolean isTyped() {
+        return LinkedProcess.TYPED_ENCODING.equals(this.encoding);
+    }
+
+    /**
+     * Set the value of a typed result.
+     *
+     * @param value the value of the result
+     */
+    public void setValue(Object value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the value of a typed result, as it has been read from its typed XML.
+     *
+     * @return the value of the result
+     */
+    public Object getValue() {
+        return this.value;
+    }
+
+    /**
+     * Get the fetch_job component of this IQ packet.
+     *
+     * @return the fetch_job component of this IQ packet
+     */
+    public String getChildElementXML() {
+        // Written directly rather than through JDOM, so that a typed result can be written as the XML it already is.
+        StringBuilder sb = new StringBuilder(64 + (null == this.expression ? 0 : this.expression.length()));
+        sb.append('<').append(LinkedProcess.FETCH_JOB_TAG);
+        PacketXml.appendAttribute(sb, "xmlns", LinkedProcess.LOP_FARM_NAMESPACE);
+        if (this.vmId != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.VM_ID_ATTRIBUTE, this.vmId);
+        }
+        if (this.jobId != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.JOB_ID_ATTRIBUTE, this.jobId);
+        }
+        if (this.status != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.STATUS_ATTRIBUTE, this.status.toString());
+        }
+        if (this.sequence != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.SEQUENCE_ATTRIBUTE, this.sequence.toString());
+        }
+        if (this.encoding != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.ENCODING_ATTRIBUTE, this.encoding);
+        }
+        if (this.expression != null) {
+            sb.append('>');
+            if (this.isTyped()) {
+                sb.append(this.expression);
+            } else {
+                PacketXml.appendText(sb, this.expression);
+            }
+            sb.append("</").append(LinkedProcess.FETCH_JOB_TAG).append('>');
+        } else {
+            sb.append(" />");
+        }
+        return sb.toString();
+    }
+}
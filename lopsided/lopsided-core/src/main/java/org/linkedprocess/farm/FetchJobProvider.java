@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
+import org.linkedprocess.farm.os.TypedXml;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A fetch_job parser that creates a FetchJob object.
+ *
+ * @version LoPSideD 0.1
+ */
+public class FetchJobProvider implements IQProvider {
+
+    public IQ parseIQ(XmlPullParser parser) throws Exception {
+        FetchJob fetchJob = new FetchJob();
+        String jobId = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.JOB_ID_ATTRIBUTE);
+        if (null != jobId) {
+            fetchJob.setJobId(jobId);
+        }
+        String vmId = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.VM_ID_ATTRIBUTE);
+        if (null != vmId) {
+            fetchJob.setVmId(vmId);
+        }
+        String status = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.STATUS_ATTRIBUTE);
+        if (null != status) {
+            fetchJob.setStatus(LinkedProcess.JobStatus.getJobStatus(status));
+        }
+        String sequence = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.SEQUENCE_ATTRIBUTE);
+        if (null != sequence) {
+            fetchJob.setSequence(new Integer(sequence));
+        }
+        String encoding = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.ENCODING_ATTRIBUTE);
+        fetchJob.setEncoding(encoding);
+
+        if (fetchJob.isTyped()) {
+            int depth = parser.getDepth();
+            if (PacketXml.nextChildElement(parser, depth)) {
+                fetchJob.setValue(TypedXml.read(parser));
+                while (PacketXml.nextChildElement(parser, depth)) {
+                    PacketXml.skipElement(parser);
+                }
+            }
+            return fetchJob;
+        }
+
+        int v = parser.next();
+        if (v == XmlPullParser.TEXT) {
+            String textBody = parser.getText();
+            if (textBody != null) {
+                fetchJob.setExpression(textBody);
+            }
+            parser.next();
+        }
+        return fetchJob;
+    }
+}
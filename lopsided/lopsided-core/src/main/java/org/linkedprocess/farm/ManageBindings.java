@@ -10,6 +10,7 @@ package org.linkedprocess.farm;
 import org.jdom.Element;
 import org.jivesoftware.smack.packet.IQ;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.BinaryEncoding;
 import org.linkedprocess.farm.os.TypedValue;
 import org.linkedprocess.farm.os.VmBindings;
 import org.linkedprocess.farm.os.errors.InvalidValueException;
@@ -25,6 +26,11 @@ public class ManageBindings extends FarmIq {
     protected VmBindings bindings = new VmBindings();
     protected String badDatatypeMessage;
     protected String invalidValueMessage;
+    protected boolean binary = false;
+    protected Long since;
+    protected Long version;
+    protected Long watch;
+    protected boolean partial = false;
 
     public String getInvalidValueMessage() {
         return invalidValueMessage;
@@ -59,6 +65,117 @@ public class ManageBindings extends FarmIq {
         }
     }
 
+    /**
+     * Add a binding whose value is binary-encoded (see BinaryEncoding) to this packet.
+     *
+     * @param name  the variable name of this binding
+     * @param value the base64 text of the binary-encoded value of this binding
+     * @throws InvalidValueException thrown if the value is not a binary-encoded value
+     */
+    public void addBinaryBinding(final String name, final String value) throws InvalidValueException {
+        this.bindings.put(name, BinaryEncoding.decodeBase64(value));
+    }
+
+    /**
+     * Set whether the values of the bindings of this packet are binary-encoded (see BinaryEncoding) rather than typed text.
+     * In a manage_bindings of type get, this asks the farm for the values in their binary encoding.
+     * Binary encoding is only understood by a farm with the LinkedProcess.LOP_FARM_BINARY_FEATURE disco#info feature.
+     *
+     * @param binary whether the values of the bindings are binary-encoded
+     */
+    public void setBinary(final boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Get whether the values of the bindings of this packet are binary-encoded (see BinaryEncoding) rather than typed text.
+     *
+     * @return whether the values of the bindings are binary-encoded
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * Set the version since which changed bindings are asked for.
+     * In a manage_bindings of type get, this asks the farm for only those of the named bindings (or, if none are named, of all bindings)
+     * which have changed since the version, including any which have since been unbound.
+     * Versions are only understood by a farm with the LinkedProcess.LOP_FARM_VERSIONED_FEATURE disco#info feature.
+     *
+     * @param since a version returned by an earlier manage_bindings, or 0 for all bindings which have ever been bound
+     */
+    public void setSince(final Long since) {
+        this.since = since;
+    }
+
+    /**
+     * Get the version since which changed bindings are asked for.
+     *
+     * @return the version since which changed bindings are asked for, or null if all named bindings are asked for
+     */
+    public Long getSince() {
+        return this.since;
+    }
+
+    /**
+     * Set the version of the bindings of this packet.
+     * In a manage_bindings of type result, this is the version to ask for changes since, the next time.
+     *
+     * @param version the version of the bindings of this packet
+     */
+    public void setVersion(final Long version) {
+        this.version = version;
+    }
+
+    /**
+     * Get the version of the bindings of this packet.
+     *
+     * @return the version of the bindings of this packet, or null if the packet did not ask for changed bindings
+     */
+    public Long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Set the interval at which the changes of the bindings are to be pushed to the villein.
+     * In a manage_bindings of type get, a positive interval asks the farm to watch the named bindings (or, if none are named, all bindings):
+     * the farm replies with those changed since the since version, and then sends further results with the same packet ID, each with the bindings changed since the last, at most once per interval.
+     * An interval of 0 asks the farm to stop watching the bindings of the virtual machine for the villein.
+     * Watching is only understood by a farm with the LinkedProcess.LOP_FARM_WATCH_FEATURE disco#info feature.
+     *
+     * @param watch the least number of milliseconds between two results, or 0 to stop watching
+     */
+    public void setWatch(final Long watch) {
+        this.watch = watch;
+    }
+
+    /**
+     * Get the interval at which the changes of the bindings are to be pushed to the villein.
+     *
+     * @return the least number of milliseconds between two results, 0 to stop watching, or null if the bindings are not to be watched
+     */
+    public Long getWatch() {
+        return this.watch;
+    }
+
+    /**
+     * Set whether this packet is one of the results of watched bindings, which is to be followed by more.
+     *
+     * @param partial whether this packet is to be followed by more results
+     */
+    public void setPartial(final boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Get whether this packet is one of the results of watched bindings, which is to be followed by more.
+     *
+     * @return whether this packet is to be followed by more results
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
     /**
      * Get a particular binding in this packets bindings.
      *
@@ -100,6 +217,26 @@ public class ManageBindings extends FarmIq {
             manageBindingsElement.setAttribute(LinkedProcess.VM_ID_ATTRIBUTE, this.vmId);
         }
 
+        if (this.binary) {
+            manageBindingsElement.setAttribute(LinkedProcess.ENCODING_ATTRIBUTE, LinkedProcess.BINARY_ENCODING);
+        }
+
+        if (this.getType() == IQ.Type.GET) {
+            if (null != this.since) {
+                manageBindingsElement.setAttribute(LinkedProcess.SINCE_ATTRIBUTE, this.since.toString());
+            }
+            if (null != this.watch) {
+                manageBindingsElement.setAttribute(LinkedProcess.WATCH_ATTRIBUTE, this.watch.toString());
+            }
+        } else if (this.getType() == IQ.Type.RESULT) {
+            if (null != this.version) {
+                manageBindingsElement.setAttribute(LinkedProcess.VERSION_ATTRIBUTE, this.version.toString());
+            }
+            if (this.partial) {
+                manageBindingsElement.setAttribute(LinkedProcess.PARTIAL_ATTRIBUTE, "true");
+            }
+        }
+
         if (this.getType() == IQ.Type.GET) {
             for (String key : this.bindings.keySet()) {
                 Element b = new Element(LinkedProcess.BINDING_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
@@ -110,6 +247,14 @@ public class ManageBindings extends FarmIq {
             for (String key : this.bindings.keySet()) {
                 Element b = new Element(LinkedProcess.BINDING_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
                 b.setAttribute(LinkedProcess.NAME_ATTRIBUTE, key);
+                if (this.binary) {
+                    Object value = this.bindings.get(key);
+                    if (null != value) {
+                        b.setAttribute(LinkedProcess.VALUE_ATTRIBUTE, BinaryEncoding.encodeBase64(value));
+                    }
+                    manageBindingsElement.addContent(b);
+                    continue;
+                }
                 TypedValue value = this.bindings.getTyped(key);
                 if (null != value) {
                     b.setAttribute(LinkedProcess.VALUE_ATTRIBUTE, value.getValue());
@@ -10,6 +10,7 @@ package org.linkedprocess.farm;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
 import org.linkedprocess.farm.os.errors.InvalidValueException;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -18,6 +19,9 @@ import java.io.IOException;
 
 /**
  * A manage_binding parser that creates a ManageBindings object.
+ * Whitespace between the bindings (e.g. in pretty-printed XML) is skipped.
+ * In a manage_bindings with encoding="binary", a binding value without a datatype is decoded with BinaryEncoding.
+ * The version of a manage_bindings result is also given to its VmBindings, as that of the bindings as a whole.
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
@@ -31,16 +35,45 @@ public class ManageBindingsProvider implements IQProvider {
         if (null != vmId) {
             manageBindings.setVmId(vmId);
         }
+        String encoding = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.ENCODING_ATTRIBUTE);
+        manageBindings.setBinary(LinkedProcess.BINARY_ENCODING.equals(encoding));
+        String since = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.SINCE_ATTRIBUTE);
+        if (null != since) {
+            manageBindings.setSince(new Long(since));
+        }
+        String version = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.VERSION_ATTRIBUTE);
+        if (null != version) {
+            manageBindings.setVersion(new Long(version));
+        }
+        String watch = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.WATCH_ATTRIBUTE);
+        if (null != watch) {
+            manageBindings.setWatch(new Long(watch));
+        }
+        String partial = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.PARTIAL_ATTRIBUTE);
+        if (null != partial) {
+            manageBindings.setPartial(Boolean.valueOf(partial));
+        }
 
-        while (parser.next() == XmlPullParser.START_TAG && parser.getName().equals(LinkedProcess.BINDING_TAG)) {
+        int depth = parser.getDepth();
+        while (PacketXml.nextChildElement(parser, depth)) {
+            if (!parser.getName().equals(LinkedProcess.BINDING_TAG)) {
+                continue;
+            }
             String name = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.NAME_ATTRIBUTE);
             String value = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.VALUE_ATTRIBUTE);
             String datatype = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.DATATYPE_ATTRIBUTE);
 
             try {
-                manageBindings.addBinding(name, value, datatype);
+                // In a binary manage_bindings, a value without a datatype is binary-encoded.
+                if (manageBindings.isBinary() && null != value && null == datatype) {
+                    manageBindings.addBinaryBinding(name, value);
+                } else {
+                    manageBindings.addBinding(name, value, datatype);
+                }
             } catch (InvalidValueException e) {
-                String msg = "Invalid value for datatype " + datatype + ": " + value;
+                String msg = null == datatype
+                        ? "Invalid binary-encoded value for " + name + ": " + e.getMessage()
+                        : "Invalid value for datatype " + datatype + ": " + value;
                 if (null == manageBindings.getInvalidValueMessage()) {
                     manageBindings.setInvalidValueMessage(msg);
                 } else {
@@ -53,10 +86,11 @@ public class ManageBindingsProvider implements IQProvider {
                     manageBindings.setBadDatatypeMessage(manageBindings.getBadDatatypeMessage() + "\nNo such datatype " + datatype);
                 }
             }
-            parser.next();
         }
 
-        //parser.next();
+        if (null != manageBindings.getVersion()) {
+            manageBindings.getBindings().setVersion(manageBindings.getVersion());
+        }
         return manageBindings;
     }
 }
\ No newline at end of file
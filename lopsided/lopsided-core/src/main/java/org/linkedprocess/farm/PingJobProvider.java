@@ -10,6 +10,7 @@ package org.linkedprocess.farm;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
 import org.xmlpull.v1.XmlPullParser;
 
 /**
@@ -30,7 +31,11 @@ public class PingJobProvider implements IQProvider {
         if (null != vmId) {
             pingJob.setVmId(vmId);
         }
-        parser.next();
+        String status = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.STATUS_ATTRIBUTE);
+        if (null != status) {
+            pingJob.setStatus(LinkedProcess.JobStatus.getJobStatus(status));
+        }
+        PacketXml.skipElement(parser);
         return pingJob;
     }
 }
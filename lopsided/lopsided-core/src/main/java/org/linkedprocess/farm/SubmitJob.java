@@ -7,8 +7,8 @@
 
 package org.linkedprocess.farm;
 
-import org.jdom.Element;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
 
 /**
  * A submit_job packet is modeled by this class.
@@ -19,6 +19,11 @@ import org.linkedprocess.LinkedProcess;
 public class SubmitJob extends FarmIq {
 
     protected String expression;
+    protected Integer sequence;
+    protected boolean partial = false;
+    protected boolean stream = false;
+    protected String encoding;
+    protected Object value;
 
     /**
      * Set the text body expression of the packet
@@ -38,23 +43,176 @@ public class SubmitJob extends FarmIq {
         return this.expression;
     }
 
+    /**
+     * Set the position of this packet among the packets which carry the result of a job.
+     * Only the packets of a result which is sent in pieces are numbered.
+     *
+     * @param sequence the position of this packet, counting from zero
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the position of this packet among the packets which carry the result of a job.
+     * The final packet of a result which is sent in pieces is numbered with the number of partial results before it.
+     *
+     * @return the position of this packet, or null if the result is not sent in pieces
+     */
+    public Integer getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set whether this packet carries a partial result, which is to be followed by the rest of the result.
+     *
+     * @param partial whether this packet carries a partial result
+     */
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Get whether this packet carries a partial result, which is to be followed by the rest of the result.
+     *
+     * @return whether this packet carries a partial result
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
+    /**
+     * Set whether the output of the job, and a long result, are to be streamed in partial results.
+     * In a submit_job of type get, this asks the farm to stream them: otherwise the result of the job is sent whole, in a single packet.
+     * Streaming is only understood by a farm with the LinkedProcess.LOP_FARM_STREAM_FEATURE disco#info feature.
+     *
+     * @param stream whether the output of the job is to be streamed
+     */
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Get whether the output of the job, and a long result, are to be streamed in partial results.
+     *
+     * @return whether the output of the job is to be streamed
+     */
+    public boolean isStream() {
+        return this.stream;
+    }
+
+    /**
+     * Set the encoding of the result of the job: binary (see BinaryEncoding), typed (see TypedXml), or null for text.
+     * In a submit_job of type get, this asks the farm for the result of the job in that encoding.
+     *
+     * @param encoding the encoding of the result of the job
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Get the encoding of the result of the job.
+     *
+     * @return the encoding of the result of the job, or null for text
+     */
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Set whether the result of the job is binary-encoded (see BinaryEncoding).
+     * In a submit_job of type get, this asks the farm for the result of the job in its binary encoding.
+     * In a result, the expression is the base64 text of the binary-encoded value.
+     *
+     * @param binary whether the result of the job is binary-encoded
+     */
+    public void setBinary(boolean binary) {
+        this.encoding = binary ? LinkedProcess.BINARY_ENCODING : null;
+    }
+
+    /**
+     * Get whether the result of the job is binary-encoded (see BinaryEncoding).
+     *
+     * @return whether the result of the job is binary-encoded
+     */
+    public boolean isBinary() {
+        return LinkedProcess.BINARY_ENCODING.equals(this.encoding);
+    }
+
+    /**
+     * Get whether the result of the job is typed XML (see TypedXml).
+     * In a result which is being sent, the expression is the typed XML of the value, which is written as it is.
+     * In a result which has been received, the value has been read from its typed XML, and is returned by getValue().
+     *
+     * @return whether the result of the job is typed XML
+     */
+    public boolean isTyped() {
+        return LinkedProcess.TYPED_ENCODING.equals(this.encoding);
+    }
+
+    /**
+     * Set the value of a typed result.
+     *
+     * @param value the value of the result
+     */
+    public void setValue(Object value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the value of a typed result, as it has been read from its typed XML.
+     *
+     * @return the value of the result
+     */
+    public Object getValue() {
+        return this.value;
+    }
+
     /**
      * Get the submit_job component of this IQ packet.
      *
      * @return the submit_job component of this IQ packet
      */
     public String getChildElementXML() {
-
-        Element submitJobElement = new Element(LinkedProcess.SUBMIT_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
+        // Written directly rather than through JDOM, as every result of every job is sent as a submit_job.
+        StringBuilder sb = new StringBuilder(64 + (null == this.expression ? 0 : this.expression.length()));
+        sb.append('<').append(LinkedProcess.SUBMIT_JOB_TAG);
+        PacketXml.appendAttribute(sb, "xmlns", LinkedProcess.LOP_FARM_NAMESPACE);
 
         if (this.getVmId() != null) {
-            submitJobElement.setAttribute(LinkedProcess.VM_ID_ATTRIBUTE, this.getVmId());
+            PacketXml.appendAttribute(sb, LinkedProcess.VM_ID_ATTRIBUTE, this.getVmId());
+        }
+
+        if (this.sequence != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.SEQUENCE_ATTRIBUTE, this.sequence.toString());
+        }
+
+        if (this.partial) {
+            PacketXml.appendAttribute(sb, LinkedProcess.PARTIAL_ATTRIBUTE, "true");
+        }
+
+        if (this.stream) {
+            PacketXml.appendAttribute(sb, LinkedProcess.STREAM_ATTRIBUTE, "true");
+        }
+
+        if (this.encoding != null) {
+            PacketXml.appendAttribute(sb, LinkedProcess.ENCODING_ATTRIBUTE, this.encoding);
         }
 
         if (this.expression != null) {
-            submitJobElement.setText(this.expression);
+            sb.append('>');
+            if (this.isTyped() && this.getType() == Type.RESULT) {
+                // Already XML, written by TypedXml.
+                sb.append(this.expression);
+            } else {
+                PacketXml.appendText(sb, this.expression);
+            }
+            sb.append("</").append(LinkedProcess.SUBMIT_JOB_TAG).append('>');
+        } else {
+            sb.append(" />");
         }
 
-        return LinkedProcess.xmlOut.outputString(submitJobElement);
+        return sb.toString();
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.jdom.Element;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A submit_job_batch packet is modeled by this class.
+ * A submit_job_batch carries many jobs for the same virtual machine, each with its own job_id.
+ * The results of the jobs are returned in one or more submit_job_batch replies, each carrying the results of several jobs.
+ * A reply which is to be followed by further replies is partial, and the replies to a batch are numbered when there is more than one.
+ * The jobs of a batch may also form a graph: a job may depend on other jobs of the batch, which are then to finish before it is run, and may run on a virtual machine of its own.
+ * The result of a job may be bound, in the virtual machines of the jobs which depend on it, before they are run.
+ *
+ * @version LoPSideD 0.1
+ */
+public class SubmitJobBatch extends FarmIq {
+
+    protected final List<BatchJob> jobs = new ArrayList<BatchJob>();
+    protected Integer sequence;
+    protected boolean partial = false;
+
+    /**
+     * Add a job to the packet: an expression to evaluate or, in a reply, the result of the job.
+     *
+     * @param jobId      the job_id of the job
+     * @param expression the expression or result of the job
+     */
+    public void addJob(String jobId, String expression) {
+        this.jobs.add(new BatchJob(jobId, expression, null));
+    }
+
+    /**
+     * Add a job which has failed to the packet.
+     *
+     * @param jobId the job_id of the job
+     * @param error the error of the job
+     */
+    public void addJob(String jobId, LopError error) {
+        this.jobs.add(new BatchJob(jobId, null, error));
+    }
+
+    /**
+     * Add a job to the packet.
+     *
+     * @param job the job to add
+     */
+    public void addJob(BatchJob job) {
+        this.jobs.add(job);
+    }
+
+    /**
+     * Get the jobs of the packet, in the order in which they appear.
+     *
+     * @return the jobs of the packet
+     */
+    public List<BatchJob> getJobs() {
+        return this.jobs;
+    }
+
+    /**
+     * Determine whether the jobs of the packet form a graph, rather than simply being run in order on the virtual machine of the packet.
+     *
+     * @return whether any job of the packet depends on another job, or is to run on a virtual machine of its own
+     */
+    public boolean isGraph() {
+        for (BatchJob job : this.jobs) {
+            if (!job.getDependencies().isEmpty() || null != job.getVmId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the position of this reply among the replies to a batch.
+     *
+     * @param sequence the position of this reply, counting from zero
+     */
+    public void setSequence(Integer sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the position of this reply among the replies to a batch.
+     *
+     * @return the position of this reply, or null if it is the only reply to the batch
+     */
+    public Integer getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set whether this reply is to be followed by further replies to the same batch.
+     *
+     * @param partial whether this reply is partial
+     */
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Get whether this reply is to be followed by further replies to the same batch.
+     *
+     * @return whether this reply is partial
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
+    /**
+     * Get the submit_job_batch component of this IQ packet.
+     *
+     * @return the submit_job_batch component of this IQ packet
+     */
+    public String getChildElementXML() {
+
+        Element submitJobBatchElement = new Element(LinkedProcess.SUBMIT_JOB_BATCH_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
+
+        if (this.getVmId() != null) {
+            submitJobBatchElement.setAttribute(LinkedProcess.VM_ID_ATTRIBUTE, this.getVmId());
+        }
+
+        if (this.sequence != null) {
+            submitJobBatchElement.setAttribute(LinkedProcess.SEQUENCE_ATTRIBUTE, this.sequence.toString());
+        }
+
+        if (this.partial) {
+            submitJobBatchElement.setAttribute(LinkedProcess.PARTIAL_ATTRIBUTE, "true");
+        }
+
+        for (BatchJob job : this.jobs) {
+            Element jobElement = new Element(LinkedProcess.JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
+            if (job.getJobId() != null) {
+                jobElement.setAttribute(LinkedProcess.JOB_ID_ATTRIBUTE, job.getJobId());
+            }
+            if (job.getVmId() != null) {
+                jobElement.setAttribute(LinkedProcess.VM_ID_ATTRIBUTE, job.getVmId());
+            }
+            if (!job.getDependencies().isEmpty()) {
+                StringBuilder dependencies = new StringBuilder();
+                for (String dependency : job.getDependencies()) {
+                    if (dependencies.length() > 0) {
+                        dependencies.append(' ');
+                    }
+                    dependencies.append(dependency);
+                }
+                jobElement.setAttribute(LinkedProcess.DEPENDS_ON_ATTRIBUTE, dependencies.toString());
+            }
+            if (job.getResultBinding() != null) {
+                jobElement.setAttribute(LinkedProcess.RESULT_BINDING_ATTRIBUTE, job.getResultBinding());
+            }
+            if (job.getLopError() != null) {
+                jobElement.addContent(job.getLopError().toElement());
+            } else if (job.getExpression() != null) {
+                jobElement.setText(job.getExpression());
+            }
+            submitJobBatchElement.addContent(jobElement);
+        }
+
+        return LinkedProcess.xmlOut.outputString(submitJobBatchElement);
+    }
+
+    /**
+     * A job of a submit_job_batch packet.
+     */
+    public static class BatchJob {
+        protected final String jobId;
+        protected final String expression;
+        protected final LopError error;
+        protected final String vmId;
+        protected final List<String> dependencies;
+        protected final String resultBinding;
+
+        public BatchJob(String jobId, String expression, LopError error) {
+            this(jobId, expression, error, null, Collections.<String>emptyList(), null);
+        }
+
+        /**
+         * @param jobId         the job_id of the job
+         * @param expression    the expression or result of the job
+         * @param error         the error of the job (null if the job has not failed)
+         * @param vmId          the virtual machine to run the job on (null for the virtual machine of the packet)
+         * @param dependencies  the job_ids of the jobs of the packet which are to finish before the job is run
+         * @param resultBinding the name under which the result of the job is bound for the jobs which depend on it (null if it is not bound)
+         */
+        public BatchJob(String jobId, String expression, LopError error, String vmId, List<String> dependencies, String resultBinding) {
+            this.jobId = jobId;
+            this.expression = expression;
+            this.error = error;
+            this.vmId = vmId;
+            this.dependencies = dependencies;
+            this.resultBinding = resultBinding;
+        }
+
+        public String getJobId() {
+            return this.jobId;
+        }
+
+        /**
+         * Get the expression of the job or, in a reply, its result.
+         *
+         * @return the expression or result of the job (null if the job has failed)
+         */
+        public String getExpression() {
+            return this.expression;
+        }
+
+        /**
+         * Get the error of a job which has failed.
+         *
+         * @return the error of the job (null if the job has not failed)
+         */
+        public LopError getLopError() {
+            return this.error;
+        }
+
+        /**
+         * Get the virtual machine which the job is to run on, if it is not the virtual machine of the packet.
+         *
+         * @return the vm_id of the job's virtual machine (null for the virtual machine of the packet)
+         */
+        public String getVmId() {
+            return this.vmId;
+        }
+
+        /**
+         * Get the jobs of the packet which are to finish before this job is run.
+         *
+         * @return the job_ids of the jobs which this job depends on
+         */
+        public List<String> getDependencies() {
+            return this.dependencies;
+        }
+
+        /**
+         * Get the name under which the result of the job is bound, in the virtual machines of the jobs which depend on it, before they are run.
+         *
+         * @return the name of the binding (null if the result is not bound)
+         */
+        public String getResultBinding() {
+            return this.resultBinding;
+        }
+    }
+}
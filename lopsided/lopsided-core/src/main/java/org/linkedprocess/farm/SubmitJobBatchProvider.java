@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A submit_job_batch parser that creates a SubmitJobBatch object.
+ *
+ * @version LoPSideD 0.1
+ */
+public class SubmitJobBatchProvider implements IQProvider {
+
+    public IQ parseIQ(XmlPullParser parser) throws IOException, XmlPullParserException {
+        SubmitJobBatch submitJobBatch = new SubmitJobBatch();
+
+        String vmId = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.VM_ID_ATTRIBUTE);
+        if (null != vmId) {
+            submitJobBatch.setVmId(vmId);
+        }
+
+        String sequence = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.SEQUENCE_ATTRIBUTE);
+        if (null != sequence) {
+            submitJobBatch.setSequence(new Integer(sequence));
+        }
+
+        String partial = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.PARTIAL_ATTRIBUTE);
+        if (null != partial) {
+            submitJobBatch.setPartial(Boolean.valueOf(partial));
+        }
+
+        int v = parser.next();
+        while (!(v == XmlPullParser.END_TAG && parser.getName().equals(LinkedProcess.SUBMIT_JOB_BATCH_TAG))) {
+            if (v == XmlPullParser.START_TAG && parser.getName().equals(LinkedProcess.JOB_TAG)) {
+                this.parseJob(parser, submitJobBatch);
+            } else if (v == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+            v = parser.next();
+        }
+
+        return submitJobBatch;
+    }
+
+    private void parseJob(XmlPullParser parser, SubmitJobBatch submitJobBatch) throws IOException, XmlPullParserException {
+        String jobId = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.JOB_ID_ATTRIBUTE);
+        String vmId = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.VM_ID_ATTRIBUTE);
+        String dependsOn = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.DEPENDS_ON_ATTRIBUTE);
+        String resultBinding = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.RESULT_BINDING_ATTRIBUTE);
+        StringBuilder expression = null;
+        LopError error = null;
+
+        int v = parser.next();
+        while (!(v == XmlPullParser.END_TAG && parser.getName().equals(LinkedProcess.JOB_TAG))) {
+            if (v == XmlPullParser.TEXT) {
+                if (null == expression) {
+                    expression = new StringBuilder();
+                }
+                expression.append(parser.getText());
+            } else if (v == XmlPullParser.START_TAG && parser.getName().equals(LinkedProcess.ERROR_TAG)) {
+                error = this.parseError(parser, jobId);
+            } else if (v == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+            v = parser.next();
+        }
+
+        List<String> dependencies = new ArrayList<String>();
+        if (null != dependsOn) {
+            for (String dependency : dependsOn.trim().split("\\s+")) {
+                if (dependency.length() > 0) {
+                    dependencies.add(dependency);
+                }
+            }
+        }
+
+        submitJobBatch.addJob(new SubmitJobBatch.BatchJob(jobId, null != error || null == expression ? null : expression.toString(), error, vmId, dependencies, resultBinding));
+    }
+
+    private LopError parseError(XmlPullParser parser, String jobId) throws IOException, XmlPullParserException {
+        XMPPError.Condition condition = null;
+        LinkedProcess.LopErrorType errorType = null;
+        String message = null;
+
+        int v = parser.next();
+        while (!(v == XmlPullParser.END_TAG && parser.getName().equals(LinkedProcess.ERROR_TAG))) {
+            if (v == XmlPullParser.START_TAG) {
+                if (parser.getName().equals(LinkedProcess.TEXT_TAG)) {
+                    message = parser.nextText();
+                } else if (LinkedProcess.XMPP_STANZAS_NAMESPACE.equals(parser.getNamespace())) {
+                    condition = LopError.stringConditionMap.get(parser.getName());
+                } else if (LinkedProcess.LOP_FARM_NAMESPACE.equals(parser.getNamespace())) {
+                    errorType = LinkedProcess.LopErrorType.getErrorType(parser.getName());
+                }
+            } else if (v == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+            v = parser.next();
+        }
+
+        if (null == condition) {
+            condition = XMPPError.Condition.undefined_condition;
+        }
+        return new LopError(condition, errorType, message, jobId);
+    }
+}
@@ -10,10 +10,14 @@ package org.linkedprocess.farm;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
+import org.linkedprocess.farm.os.TypedXml;
 import org.xmlpull.v1.XmlPullParser;
 
 /**
  * A submit_job parser that creates a SubmitJob object.
+ * The expression is read whole, however the parser splits it up (e.g. around CDATA sections or comments).
+ * The value of a typed result is read from its typed XML (see TypedXml).
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
@@ -28,13 +32,52 @@ public class SubmitJobProvider implements IQProvider {
             submitJob.setVmId(vmId);
         }
 
+        String sequence = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.SEQUENCE_ATTRIBUTE);
+        if (null != sequence) {
+            submitJob.setSequence(new Integer(sequence));
+        }
+
+        String partial = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.PARTIAL_ATTRIBUTE);
+        if (null != partial) {
+            submitJob.setPartial(Boolean.valueOf(partial));
+        }
+
+        String stream = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.STREAM_ATTRIBUTE);
+        if (null != stream) {
+            submitJob.setStream(Boolean.valueOf(stream));
+        }
+
+        String encoding = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.ENCODING_ATTRIBUTE);
+        submitJob.setEncoding(encoding);
+
+        if (submitJob.isTyped()) {
+            return readTyped(parser, submitJob);
+        }
+
+        String expression = PacketXml.readText(parser);
+        if (null != expression) {
+            submitJob.setExpression(expression);
+        }
+        return submitJob;
+    }
+
+    // The type of the IQ is not known until it has been parsed: a typed result carries its value as a child element, where a request carries its expression as text.
+    private static SubmitJob readTyped(XmlPullParser parser, SubmitJob submitJob) throws Exception {
+        int depth = parser.getDepth();
+        StringBuilder text = new StringBuilder();
+        boolean typedValue = false;
         int v = parser.next();
-        if (v == XmlPullParser.TEXT) {
-            String textBody = parser.getText();
-            if (textBody != null) {
-                submitJob.setExpression(textBody);
+        while (!(v == XmlPullParser.END_TAG && parser.getDepth() == depth) && v != XmlPullParser.END_DOCUMENT) {
+            if (v == XmlPullParser.START_TAG && parser.getDepth() == depth + 1 && !typedValue) {
+                submitJob.setValue(TypedXml.read(parser));
+                typedValue = true;
+            } else if (v == XmlPullParser.TEXT && parser.getDepth() == depth) {
+                text.append(parser.getText());
             }
-            parser.next();
+            v = parser.next();
+        }
+        if (!typedValue && text.length() > 0) {
+            submitJob.setExpression(text.toString());
         }
         return submitJob;
     }
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of binding values and job results, which (in
+ * base64) may be sent in place of their xsd-typed text.  Besides the types of
+ * VmBindings.XMLSchemaDatatype, it carries arrays of bytes, ints, longs and
+ * doubles, lists and maps with string keys, nested to any depth, each value
+ * with its own type.  Large values need no XML escaping, and numbers are read
+ * without being parsed from text.
+ * <p/>
+ * Values decode as Boolean, Integer, Long, Double, String, byte[], int[],
+ * long[], double[], List (for any collection or object array) and Map.  Any
+ * other value (including a Float, a Short or a Byte, which are widened) is
+ * encoded as its toString(), as TypedValue does.
+ */
+public class BinaryEncoding {
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+    private static final byte INTS = 8;
+    private static final byte LONGS = 9;
+    private static final byte DOUBLES = 10;
+    private static final byte LIST = 11;
+    private static final byte MAP = 12;
+
+    // Guards against a value which refers (directly or not) to itself.
+    private static final int MAX_DEPTH = 64;
+
+    private BinaryEncoding() {
+    }
+
+    /**
+     * @param value a value
+     * @return the base64 text of the value's binary encoding
+     */
+    public static String encodeBase64(final Object value) {
+        return StringUtils.encodeBase64(encode(value), false);
+    }
+
+    /**
+     * @param base64 the base64 text of a value's binary encoding
+     * @return the value
+     * @throws InvalidValueException if the text is not a binary-encoded value
+     */
+    public static Object decodeBase64(final String base64) throws InvalidValueException {
+        byte[] bytes = null == base64 ? null : StringUtils.decodeBase64(base64);
+        if (null == bytes) {
+            throw new InvalidValueException("bad base64 value: " + base64);
+        }
+        return decode(bytes);
+    }
+
+    /**
+     * @param value a value
+     * @return the binary encoding of the value
+     */
+    public static byte[] encode(final Object value) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeByte(VERSION);
+            write(value, out, 0);
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @param bytes the binary encoding of a value
+     * @return the value
+     * @throws InvalidValueException if the bytes are not a binary-encoded value
+     */
+    public static Object decode(final byte[] bytes) throws InvalidValueException {
+        Reader in = new Reader(bytes);
+        if (VERSION != in.readByte()) {
+            throw new InvalidValueException("unknown version of binary-encoded value: " + bytes[0]);
+        }
+        Object value = in.readValue(0);
+        if (in.position != bytes.length) {
+            throw new InvalidValueException("trailing bytes after binary-encoded value");
+        }
+        return value;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static void write(final Object value,
+                              final DataOutputStream out,
+                              final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("value is nested more than " + MAX_DEPTH + " deep");
+        }
+
+        if (null == value) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INTEGER);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof byte[]) {
+            byte[] a = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(a.length);
+            out.write(a);
+        } else if (value instanceof int[]) {
+            int[] a = (int[]) value;
+            out.writeByte(INTS);
+            out.writeInt(a.length);
+            for (int i : a) {
+                out.writeInt(i);
+            }
+        } else if (value instanceof long[]) {
+            long[] a = (long[]) value;
+            out.writeByte(LONGS);
+            out.writeInt(a.length);
+            for (long l : a) {
+                out.writeLong(l);
+            }
+        } else if (value instanceof double[]) {
+            double[] a = (double[]) value;
+            out.writeByte(DOUBLES);
+            out.writeInt(a.length);
+            for (double d : a) {
+                out.writeDouble(d);
+            }
+        } else if (value instanceof Object[]) {
+            Object[] a = (Object[]) value;
+            out.writeByte(LIST);
+            out.writeInt(a.length);
+            for (Object o : a) {
+                write(o, out, depth + 1);
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> c = (Collection<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(c.size());
+            for (Object o : c) {
+                write(o, out, depth + 1);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                writeString(String.valueOf(e.getKey()), out);
+                write(e.getValue(), out, depth + 1);
+            }
+        } else {
+            // Note: toString() is assumed to be an appropriate serializer for all other types.
+            out.writeByte(STRING);
+            writeString(value.toString(), out);
+        }
+    }
+
+    private static void writeString(final String s,
+                                    final DataOutputStream out) throws IOException {
+        // Not writeUTF, which is limited to 64K.
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Reader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private Object readValue(final int depth) throws InvalidValueException {
+            if (depth > MAX_DEPTH) {
+                throw new InvalidValueException("binary-encoded value is nested more than " + MAX_DEPTH + " deep");
+            }
+
+            byte type = readByte();
+            int length;
+            switch (type) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case DOUBLE:
+                    return Double.longBitsToDouble(readLong());
+                case STRING:
+                    return readString();
+                case BYTES:
+                    length = readLength(1);
+                    byte[] b = new byte[length];
+                    System.arraycopy(bytes, position, b, 0, length);
+                    position += length;
+                    return b;
+                case INTS:
+                    length = readLength(4);
+                    int[] ints = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        ints[i] = readInt();
+                    }
+                    return ints;
+                case LONGS:
+                    length = readLength(8);
+                    long[] longs = new long[length];
+                    for (int i = 0; i < length; i++) {
+                        longs[i] = readLong();
+                    }
+                    return longs;
+                case DOUBLES:
+                    length = readLength(8);
+                    double[] doubles = new double[length];
+                    for (int i = 0; i < length; i++) {
+                        doubles[i] = Double.longBitsToDouble(readLong());
+                    }
+                    return doubles;
+                case LIST:
+                    length = readLength(1);
+                    List<Object> list = new ArrayList<Object>(length);
+                    for (int i = 0; i < length; i++) {
+                        list.add(readValue(depth + 1));
+                    }
+                    return list;
+                case MAP:
+                    // Each entry takes at least 5 bytes: the length of its key and the type of its value.
+                    length = readLength(5);
+                    Map<String, Object> map = new LinkedHashMap<String, Object>();
+                    for (int i = 0; i < length; i++) {
+                        String key = readString();
+                        map.put(key, readValue(depth + 1));
+                    }
+                    return map;
+                default:
+                    throw new InvalidValueException("unknown type of binary-encoded value: " + type);
+            }
+        }
+
+        private byte readByte() throws InvalidValueException {
+            require(1);
+            return bytes[position++];
+        }
+
+        private int readInt() throws InvalidValueException {
+            require(4);
+            int i = ((bytes[position] & 0xff) << 24)
+                    | ((bytes[position + 1] & 0xff) << 16)
+                    | ((bytes[position + 2] & 0xff) << 8)
+                    | (bytes[position + 3] & 0xff);
+            position += 4;
+            return i;
+        }
+
+        private long readLong() throws InvalidValueException {
+            long high = readInt();
+            long low = readInt();
+            return (high << 32) | (low & 0xffffffffL);
+        }
+
+        private String readString() throws InvalidValueException {
+            int length = readLength(1);
+            try {
+                String s = new String(bytes, position, length, "UTF-8");
+                position += length;
+                return s;
+            } catch (UnsupportedEncodingException e) {
+                // Every JVM supports UTF-8.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Reads the number of elements of an array, making sure (before
+        // anything is allocated for them) that there are bytes enough for them.
+        private int readLength(final int bytesPerElement) throws InvalidValueException {
+            int length = readInt();
+            if (length < 0 || (long) length * bytesPerElement > bytes.length - position) {
+                throw new InvalidValueException("bad length of binary-encoded value: " + length);
+            }
+            return length;
+        }
+
+        private void require(final int count) throws InvalidValueException {
+            if (bytes.length - position < count) {
+                throw new InvalidValueException("binary-encoded value is cut short");
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@
 
 package org.linkedprocess.farm.os;
 
+import org.linkedprocess.LinkedProcess;
+
 /**
  * Author: josh
  * Date: Jun 24, 2009
@@ -17,13 +19,24 @@ public class Job {
     private final String vmId;
     private final String villeinJid;
     private final String expression;
+    private final long timeCreated;
     private long timeSpent;
+    private long runTime;
+    private long cpuTime;
+    private long allocatedBytes;
+    // The number of partial results sent so far.
+    private volatile int partialResults = 0;
+    // The encoding the villein has asked for the result in (null for text).
+    private String resultEncoding = null;
+    // Whether the villein has asked for the job's output to be streamed.
+    private boolean streamed = false;
 
     public Job(final String vmId, final String villeinJid, final String jobId, final String expression) {
         this.vmId = vmId;
         this.villeinJid = villeinJid;
         this.jobId = jobId;
         this.expression = expression;
+        timeCreated = System.currentTimeMillis();
         timeSpent = 0l;
     }
 
@@ -43,6 +56,14 @@ public class Job {
         return expression;
     }
 
+    /**
+     * @return the time at which the job was received, in milliseconds since
+     *         the epoch
+     */
+    public long getTimeCreated() {
+        return timeCreated;
+    }
+
     public void increaseTimeSpent(final long time) {
         timeSpent += time;
     }
@@ -51,6 +72,105 @@ public class Job {
         return timeSpent;
     }
 
+    /**
+     * Called at the end of each time slice in which the job has run.
+     *
+     * @param runTime        the length of the time slice, in nanoseconds
+     * @param cpuTime        the processor time used by the job, in nanoseconds
+     * @param allocatedBytes the memory allocated by the job, in bytes
+     */
+    public void chargeTimeSlice(final long runTime,
+                                final long cpuTime,
+                                final long allocatedBytes) {
+        this.runTime += runTime;
+        this.cpuTime += cpuTime;
+        this.allocatedBytes += allocatedBytes;
+    }
+
+    /**
+     * @return the total length of the time slices in which the job has run, in
+     *         nanoseconds
+     */
+    public long getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * @return the processor time used by the job, in nanoseconds
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return the memory allocated by the job, in bytes
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Called as each partial result of the job is sent.
+     *
+     * @return the sequence number of the partial result, counting from zero
+     */
+    public int nextPartialResult() {
+        return partialResults++;
+    }
+
+    /**
+     * @return the number of partial results which have been sent for the job
+     */
+    public int getPartialResults() {
+        return partialResults;
+    }
+
+    /**
+     * @param resultEncoding the encoding in which the result of the job is to
+     *                       be sent: LinkedProcess.BINARY_ENCODING (see
+     *                       BinaryEncoding), LinkedProcess.TYPED_ENCODING (see
+     *                       TypedXml), or null for text.  Set before the job
+     *                       is scheduled.
+     */
+    public void setResultEncoding(final String resultEncoding) {
+        this.resultEncoding = resultEncoding;
+    }
+
+    public String getResultEncoding() {
+        return resultEncoding;
+    }
+
+    /**
+     * @param binaryResult whether the result of the job is to be sent in its
+     *                     binary encoding (see BinaryEncoding) rather than as
+     *                     text.  Set before the job is scheduled.
+     */
+    public void setBinaryResult(final boolean binaryResult) {
+        this.resultEncoding = binaryResult ? LinkedProcess.BINARY_ENCODING : null;
+    }
+
+    public boolean isBinaryResult() {
+        return LinkedProcess.BINARY_ENCODING.equals(resultEncoding);
+    }
+
+    public boolean isTypedResult() {
+        return LinkedProcess.TYPED_ENCODING.equals(resultEncoding);
+    }
+
+    /**
+     * @param streamed whether the output of the job, and a long result, are
+     *                 to be sent as they come, in sequenced partial results
+     *                 (see JobOutput), rather than the result alone, whole.
+     *                 Set before the job is scheduled.
+     */
+    public void setStreamed(final boolean streamed) {
+        this.streamed = streamed;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
     public String toString() {
         return "Job("
                 + "id:'" + jobId + "'"
@@ -12,6 +12,7 @@ import org.jivesoftware.smack.packet.XMPPError;
 import org.linkedprocess.LopError;
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.os.errors.MemoryQuotaExceededException;
 
 import java.util.logging.Logger;
 
@@ -23,8 +24,12 @@ import java.util.logging.Logger;
 public class JobResult {
     private static final Logger LOGGER = LinkedProcess.getLogger(JobResult.class);
 
+    // Note: results are created by VM worker threads, which may be suspended
+    // at any moment.  Messages are logged at a level which is normally
+    // filtered out before any handler (and its lock) is involved.
+
     public enum ResultType {
-        NORMAL_RESULT, ERROR, PERMISSION_DENIED, ABORTED, TIMED_OUT
+        NORMAL_RESULT, PARTIAL_RESULT, ERROR, PERMISSION_DENIED, ABORTED, TIMED_OUT
     }
 
     private final Job job;
@@ -32,6 +37,7 @@ public class JobResult {
     private final String expression;
     private final Throwable exception;
     private final long timeout;
+    private final int sequence;
 
     public JobResult(final Job job,
                      final String expression) {
@@ -39,8 +45,30 @@ public class JobResult {
         this.expression = expression;
         this.exception = null;
         this.timeout = 0;
+        this.sequence = -1;
         type = ResultType.NORMAL_RESULT;
-        LOGGER.info("normal job result");
+        LOGGER.fine("normal job result");
+    }
+
+    /**
+     * Creates a partial result: a piece of the result of a job which is sent
+     * ahead of the rest.
+     *
+     * @param job        the job
+     * @param expression the piece of the result
+     * @param sequence   the position of the piece among the job's partial
+     *                   results, counting from zero
+     */
+    public JobResult(final Job job,
+                     final String expression,
+                     final int sequence) {
+        this.job = job;
+        this.expression = expression;
+        this.exception = null;
+        this.timeout = 0;
+        this.sequence = sequence;
+        type = ResultType.PARTIAL_RESULT;
+        LOGGER.fine("partial job result");
     }
 
     public JobResult(final Job job,
@@ -50,8 +78,9 @@ public class JobResult {
         //this.expression = exception.getMessage();
         this.exception = exception;
         this.timeout = 0;
+        this.sequence = -1;
         this.type = ResultType.ERROR;
-        LOGGER.info("error job result");
+        LOGGER.fine("error job result");
     }
 
     public JobResult(final Job job) {
@@ -59,8 +88,9 @@ public class JobResult {
         this.expression = null;
         this.exception = null;
         this.timeout = 0;
+        this.sequence = -1;
         this.type = ResultType.ABORTED;
-        LOGGER.info("aborted job result");
+        LOGGER.fine("aborted job result");
     }
 
     public JobResult(final Job job,
@@ -69,8 +99,9 @@ public class JobResult {
         this.timeout = timeout;
         this.expression = null;
         this.exception = null;
+        this.sequence = -1;
         this.type = ResultType.TIMED_OUT;
-        LOGGER.info("timed-out job result");
+        LOGGER.fine("timed-out job result");
     }
 
     public Job getJob() {
@@ -89,6 +120,14 @@ public class JobResult {
         return exception;
     }
 
+    /**
+     * @return the position of a partial result among the job's partial
+     *         results, or -1 if this is not a partial result
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
     public SubmitJob generateReturnSubmitJob() {
 
         SubmitJob returnSubmitJob = new SubmitJob();
@@ -97,35 +136,52 @@ public class JobResult {
         returnSubmitJob.setPacketID(job.getJobId());
         returnSubmitJob.setVmId(job.getVmId());
 
-        if (this.type == ResultType.ABORTED) {
+        if (this.type == ResultType.NORMAL_RESULT) {
+            returnSubmitJob.setType(IQ.Type.RESULT);
+            returnSubmitJob.setExpression(expression);
+            returnSubmitJob.setEncoding(job.getResultEncoding());
+            // The final piece of a result which has been sent in pieces
+            // follows all of the partial results.
+            if (job.getPartialResults() > 0) {
+                returnSubmitJob.setSequence(job.getPartialResults());
+            }
+        } else if (this.type == ResultType.PARTIAL_RESULT) {
+            returnSubmitJob.setType(IQ.Type.RESULT);
+            returnSubmitJob.setExpression(expression);
+            returnSubmitJob.setSequence(sequence);
+            returnSubmitJob.setPartial(true);
+        } else {
             returnSubmitJob.setType(IQ.Type.ERROR);
-            returnSubmitJob.setLopError(new LopError(XMPPError.Condition.not_allowed, LinkedProcess.LopErrorType.JOB_ABORTED, null, this.job.getJobId()));
-            return returnSubmitJob;
+            returnSubmitJob.setLopError(this.generateLopError());
+        }
+        return returnSubmitJob;
+
+    }
+
+    /**
+     * @return the error which a job with this result has failed with, or null
+     *         if the job has succeeded
+     */
+    public LopError generateLopError() {
+        if (this.type == ResultType.ABORTED) {
+            return new LopError(XMPPError.Condition.not_allowed, LinkedProcess.LopErrorType.JOB_ABORTED, null, this.job.getJobId());
         } else if (this.type == ResultType.ERROR) {
-            returnSubmitJob.setType(IQ.Type.ERROR);
             if (this.exception instanceof SecurityException) {
                 // SecurityException is a special case
-                returnSubmitJob.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.PERMISSION_DENIED, exception.getMessage(), this.job.getJobId()));
+                return new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.PERMISSION_DENIED, exception.getMessage(), this.job.getJobId());
+            } else if (this.exception instanceof MemoryQuotaExceededException) {
+                return new LopError(XMPPError.Condition.resource_constraint, LinkedProcess.LopErrorType.MEMORY_QUOTA_EXCEEDED, exception.getMessage(), this.job.getJobId());
             } else if (this.exception instanceof IllegalStateException) {
                 // IllegalStateException is a special case
-                returnSubmitJob.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.INTERNAL_ERROR, exception.getMessage(), this.job.getJobId()));
+                return new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.INTERNAL_ERROR, exception.getMessage(), this.job.getJobId());
             } else {
-                returnSubmitJob.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.EVALUATION_ERROR, exception.getMessage(), this.job.getJobId()));
+                return new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.EVALUATION_ERROR, exception.getMessage(), this.job.getJobId());
             }
-            return returnSubmitJob;
         } else if (this.type == ResultType.PERMISSION_DENIED) {
-            returnSubmitJob.setType(IQ.Type.ERROR);
-            returnSubmitJob.setLopError(new LopError(XMPPError.Condition.forbidden, LinkedProcess.LopErrorType.PERMISSION_DENIED, exception.getMessage(), this.job.getJobId()));
-            return returnSubmitJob;
-        } else if (this.type == ResultType.NORMAL_RESULT) {
-            returnSubmitJob.setType(IQ.Type.RESULT);
-            returnSubmitJob.setExpression(expression);
-            return returnSubmitJob;
+            return new LopError(XMPPError.Condition.forbidden, LinkedProcess.LopErrorType.PERMISSION_DENIED, exception.getMessage(), this.job.getJobId());
         } else if (this.type == ResultType.TIMED_OUT) {
-            returnSubmitJob.setType(IQ.Type.ERROR);
-            returnSubmitJob.setLopError(new LopError(XMPPError.Condition.request_timeout, LinkedProcess.LopErrorType.JOB_TIMED_OUT, "execution of job timed out after " + job.getTimeSpent() + "ms of execution", this.job.getJobId()));
+            return new LopError(XMPPError.Condition.request_timeout, LinkedProcess.LopErrorType.JOB_TIMED_OUT, "execution of job timed out after " + job.getTimeSpent() + "ms of execution", this.job.getJobId());
         }
-        return returnSubmitJob;
-
+        return null;
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.PacketXml;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The typed XML of a job result: a value which keeps its structure and the
+ * types of its parts, rather than being flattened into its toString().  A
+ * scalar is written with the datatypes of VmBindings.XMLSchemaDatatype, as a
+ * binding is, and lists and maps nest to any depth:
+ * <pre>
+ * &lt;list&gt;
+ *   &lt;value datatype="xsd:integer"&gt;2&lt;/value&gt;
+ *   &lt;value /&gt;
+ *   &lt;map&gt;
+ *     &lt;value name="done" datatype="xsd:boolean"&gt;true&lt;/value&gt;
+ *   &lt;/map&gt;
+ * &lt;/list&gt;
+ * </pre>
+ * A value without a datatype is null, and each member of a map is named.  A
+ * list of numbers, or of booleans, all of the same datatype is written as an
+ * XML Schema list: &lt;list datatype="xsd:integer"&gt;2 3 5 7&lt;/list&gt;.
+ * Values decode as Boolean, Integer, Long, Double, String, List and Map.
+ * Arrays are written as lists, and any other value as the string of its
+ * toString(), as TypedValue does.
+ */
+public class TypedXml {
+    // Guards against a value which refers (directly or not) to itself.
+    private static final int MAX_DEPTH = 64;
+
+    private TypedXml() {
+    }
+
+    /**
+     * @param value a value
+     * @return the typed XML of the value
+     */
+    public static String toXml(final Object value) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * @param sb    the XML being written
+     * @param value a value, whose typed XML is to be appended
+     */
+    public static void append(final StringBuilder sb,
+                              final Object value) {
+        write(sb, null, value, 0);
+    }
+
+    /**
+     * Read a value from its typed XML, leaving the parser on the end tag of
+     * the value's element.
+     *
+     * @param parser a parser positioned on the start tag of a value, list or map element
+     * @return the value
+     * @throws InvalidValueException  if the element is not the typed XML of a value
+     * @throws IOException            if the XML cannot be read
+     * @throws XmlPullParserException if the XML is not well formed
+     */
+    public static Object read(final XmlPullParser parser) throws InvalidValueException, IOException, XmlPullParserException {
+        return read(parser, 0);
+    }
+
+    /**
+     * @param value a scalar value
+     * @return the datatype with which the value is written, or null if the
+     *         value is not a scalar (or is null)
+     */
+    public static VmBindings.XMLSchemaDatatype getDatatype(final Object value) {
+        if (value instanceof Boolean) {
+            return VmBindings.XMLSchemaDatatype.BOOLEAN;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return VmBindings.XMLSchemaDatatype.INTEGER;
+        } else if (value instanceof Long
+                || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64)) {
+            return VmBindings.XMLSchemaDatatype.LONG;
+        } else if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            return VmBindings.XMLSchemaDatatype.DOUBLE;
+        } else if (value instanceof String || value instanceof Character) {
+            return VmBindings.XMLSchemaDatatype.STRING;
+        } else {
+            return null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static void write(final StringBuilder sb,
+                              final String name,
+                              final Object value,
+                              final int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("value is nested more than " + MAX_DEPTH + " deep");
+        }
+
+        if (null == value) {
+            startElement(sb, LinkedProcess.VALUE_TAG, name);
+            sb.append(" />");
+        } else if (value instanceof Object[]) {
+            writeList(sb, name, Arrays.asList((Object[]) value), depth);
+        } else if (value.getClass().isArray()) {
+            // An array of primitives.
+            int length = Array.getLength(value);
+            List<Object> list = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                list.add(Array.get(value, i));
+            }
+            writeList(sb, name, list, depth);
+        } else if (value instanceof Collection) {
+            writeList(sb, name, (Collection<?>) value, depth);
+        } else if (value instanceof Map) {
+            startElement(sb, LinkedProcess.MAP_TAG, name);
+            sb.append('>');
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                write(sb, String.valueOf(e.getKey()), e.getValue(), depth + 1);
+            }
+            endElement(sb, LinkedProcess.MAP_TAG);
+        } else {
+            VmBindings.XMLSchemaDatatype datatype = getDatatype(value);
+            // Note: toString() is assumed to be an appropriate serializer for all other types.
+            if (null == datatype) {
+                datatype = VmBindings.XMLSchemaDatatype.STRING;
+            }
+            startElement(sb, LinkedProcess.VALUE_TAG, name);
+            PacketXml.appendAttribute(sb, LinkedProcess.DATATYPE_ATTRIBUTE, datatype.abbreviate());
+            sb.append('>');
+            PacketXml.appendText(sb, value.toString());
+            endElement(sb, LinkedProcess.VALUE_TAG);
+        }
+    }
+
+    private static void writeList(final StringBuilder sb,
+                                  final String name,
+                                  final Collection<?> list,
+                                  final int depth) {
+        startElement(sb, LinkedProcess.LIST_TAG, name);
+        VmBindings.XMLSchemaDatatype datatype = getListDatatype(list);
+        if (null != datatype) {
+            // A list of numbers or booleans, as an XML Schema list: their text, separated by spaces.
+            PacketXml.appendAttribute(sb, LinkedProcess.DATATYPE_ATTRIBUTE, datatype.abbreviate());
+            sb.append('>');
+            boolean first = true;
+            for (Object o : list) {
+                if (!first) {
+                    sb.append(' ');
+                }
+                sb.append(o);
+                first = false;
+            }
+        } else {
+            sb.append('>');
+            for (Object o : list) {
+                write(sb, null, o, depth + 1);
+            }
+        }
+        endElement(sb, LinkedProcess.LIST_TAG);
+    }
+
+    // The datatype shared by all the members of a list, if they are all numbers, or all booleans, of the same type.
+    private static VmBindings.XMLSchemaDatatype getListDatatype(final Collection<?> list) {
+        if (list.isEmpty()) {
+            return null;
+        }
+        Class<?> c = null;
+        for (Object o : list) {
+            if (null == o || (null != c && o.getClass() != c)) {
+                return null;
+            }
+            c = o.getClass();
+        }
+        if (Integer.class == c) {
+            return VmBindings.XMLSchemaDatatype.INTEGER;
+        } else if (Long.class == c) {
+            return VmBindings.XMLSchemaDatatype.LONG;
+        } else if (Double.class == c) {
+            return VmBindings.XMLSchemaDatatype.DOUBLE;
+        } else if (Boolean.class == c) {
+            return VmBindings.XMLSchemaDatatype.BOOLEAN;
+        } else {
+            return null;
+        }
+    }
+
+    private static void startElement(final StringBuilder sb,
+                                     final String tag,
+                                     final String name) {
+        sb.append('<').append(tag);
+        if (null != name) {
+            PacketXml.appendAttribute(sb, LinkedProcess.NAME_ATTRIBUTE, name);
+        }
+    }
+
+    private static void endElement(final StringBuilder sb,
+                                   final String tag) {
+        sb.append("</").append(tag).append('>');
+    }
+
+    private static Object read(final XmlPullParser parser,
+                               final int depth) throws InvalidValueException, IOException, XmlPullParserException {
+        if (depth > MAX_DEPTH) {
+            throw new InvalidValueException("typed value is nested more than " + MAX_DEPTH + " deep");
+        }
+
+        String tag = parser.getName();
+        int parentDepth = parser.getDepth();
+        if (LinkedProcess.VALUE_TAG.equals(tag)) {
+            String datatype = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.DATATYPE_ATTRIBUTE);
+            String text = PacketXml.readText(parser);
+            if (null == datatype) {
+                return null;
+            }
+            return createValue(datatype, null == text ? "" : text);
+        } else if (LinkedProcess.LIST_TAG.equals(tag)) {
+            List<Object> list = new ArrayList<Object>();
+            String datatype = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.DATATYPE_ATTRIBUTE);
+            if (null != datatype) {
+                String text = PacketXml.readText(parser);
+                if (null != text) {
+                    for (String item : text.trim().split("\\s+")) {
+                        if (item.length() > 0) {
+                            list.add(createValue(datatype, item));
+                        }
+                    }
+                }
+                return list;
+            }
+            while (PacketXml.nextChildElement(parser, parentDepth)) {
+                list.add(read(parser, depth + 1));
+            }
+            return list;
+        } else if (LinkedProcess.MAP_TAG.equals(tag)) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            while (PacketXml.nextChildElement(parser, parentDepth)) {
+                String name = parser.getAttributeValue(LinkedProcess.BLANK_NAMESPACE, LinkedProcess.NAME_ATTRIBUTE);
+                if (null == name) {
+                    throw new InvalidValueException("member of typed map has no name");
+                }
+                map.put(name, read(parser, depth + 1));
+            }
+            return map;
+        } else {
+            throw new InvalidValueException("not a typed value: <" + tag + ">");
+        }
+    }
+
+    private static Object createValue(final String datatype,
+                                      final String text) throws InvalidValueException {
+        VmBindings.XMLSchemaDatatype d;
+        try {
+            d = VmBindings.XMLSchemaDatatype.valueByURI(datatype.startsWith("xsd:")
+                    ? VmBindings.XMLSchemaDatatype.expandDatatypeAbbreviation(datatype)
+                    : datatype);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidValueException("unknown datatype of typed value: " + datatype);
+        }
+        try {
+            return d.createValue(text);
+        } catch (NumberFormatException e) {
+            throw new InvalidValueException("bad value for datatype <" + d.getURI() + ">: " + text);
+        }
+    }
+}
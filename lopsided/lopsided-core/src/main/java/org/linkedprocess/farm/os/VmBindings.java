@@ -10,9 +10,21 @@ package org.linkedprocess.farm.os;
 import org.linkedprocess.farm.os.errors.InvalidValueException;
 import org.linkedprocess.farm.os.errors.NoSuchDatatypeException;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Each binding carries a version: the modification counter of the put (or
+ * remove) which last changed its value.  Putting a value equal to the one
+ * already bound leaves the version as it is.  The counter is shared by all
+ * bindings of the farm, so that a version is never reused, even by a
+ * virtual machine which is hibernated and restored.  A villein which has seen
+ * the bindings as of some version need only be sent those changed since.
+ * <p/>
  * Author: josh
  * Date: Jul 21, 2009
  * Time: 12:47:54 PM
@@ -20,6 +32,12 @@ import java.util.HashMap;
 public class VmBindings extends HashMap<String, Object> {
     private static final String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema#";
 
+    private static final AtomicLong modificationCounter = new AtomicLong(0);
+
+    // The version of each name which has been bound, including those since removed.
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+    private long version = 0;
+
     public enum XMLSchemaDatatype {
 
         BOOLEAN(XSD_NAMESPACE + "boolean", Boolean.class),
@@ -91,6 +109,87 @@ public class VmBindings extends HashMap<String, Object> {
         super();
     }
 
+    public Object put(final String key,
+                      final Object value) {
+        boolean changed = !containsKey(key) || !equal(get(key), value);
+        Object previous = super.put(key, value);
+        if (changed) {
+            touch(key);
+        }
+        return previous;
+    }
+
+    public void putAll(final Map<? extends String, ?> m) {
+        // Not HashMap's, which does not go through put().
+        for (Map.Entry<? extends String, ?> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    public Object remove(final Object key) {
+        boolean changed = containsKey(key);
+        Object previous = super.remove(key);
+        if (changed) {
+            touch((String) key);
+        }
+        return previous;
+    }
+
+    /**
+     * @return the version of the most recently changed binding, or 0 if no binding has been changed
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of these bindings as a whole, until a binding is next
+     * changed: e.g. that of a set of bindings received from a farm, whose
+     * versions are the farm's rather than those of this set.
+     *
+     * @param version the version of these bindings
+     */
+    public void setVersion(final long version) {
+        this.version = version;
+    }
+
+    /**
+     * @param key the name of a binding
+     * @return the version of the binding, or 0 if it has never been bound
+     */
+    public long getVersion(final String key) {
+        Long v = versions.get(key);
+        return null == v ? 0 : v;
+    }
+
+    /**
+     * @param version a version of these bindings
+     * @return the names of the bindings changed since that version, including
+     *         those which have since been removed
+     */
+    public Set<String> getNamesChangedSince(final long version) {
+        Set<String> names = new HashSet<String>();
+        if (version < this.version) {
+            for (Map.Entry<String, Long> e : versions.entrySet()) {
+                if (e.getValue() > version) {
+                    names.add(e.getKey());
+                }
+            }
+        }
+        return names;
+    }
+
+    private void touch(final String key) {
+        version = modificationCounter.incrementAndGet();
+        versions.put(key, version);
+    }
+
+    private static boolean equal(final Object a,
+                                 final Object b) {
+        // Compares arrays (e.g. a double[] binding) by their contents.
+        return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+    }
+
     public TypedValue getTyped(final String key) {
         Object v = get(key);
         return null == v ? null : new TypedValue(v);
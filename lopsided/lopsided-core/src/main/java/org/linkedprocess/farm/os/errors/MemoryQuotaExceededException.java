@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os.errors;
+
+public class MemoryQuotaExceededException extends SchedulerException {
+    private static final long serialVersionUID = 1L;
+
+    public MemoryQuotaExceededException(final String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.linkedprocess.farm.os.VmBindings;
+import org.linkedprocess.farm.os.errors.VmNotFoundException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes the changes of watched bindings to the villeins watching them, so that a villein which follows the progress of a job need not poll with manage_bindings.
+ * A villein watches some bindings of a virtual machine (or all of them), and is sent the bindings which have changed, at most once per interval of its own.
+ * The changes made in between are sent together, in the next notification, and a binding which has changed and changed back in between is not sent.
+ * The watcher has a thread of its own, which looks at the bindings of a virtual machine at most once per interval, and only when its bindings stamp shows that they may have changed,
+ * so watching the bindings of a virtual machine which is idle, or hibernated, costs nothing but the reading of a stamp.
+ * When the virtual machine is gone, the villein is told so, and the watch ends.
+ *
+ * @version LoPSideD 0.1
+ */
+public class BindingsWatcher {
+
+    private static final long TICK = 10;
+
+    public interface BindingsSource {
+        /**
+         * @param vmId the id of a virtual machine
+         * @return a stamp which changes whenever the bindings of the virtual machine may have changed, or 0 if they can not change for now
+         * @throws VmNotFoundException if the virtual machine does not exist
+         */
+        long getBindingsStamp(String vmId) throws VmNotFoundException;
+
+        /**
+         * @param vmId    the id of a virtual machine
+         * @param names   the names of the bindings of interest, or an empty set for all bindings
+         * @param version the version since which changes are of interest
+         * @return the bindings of interest which have changed since the version, with their latest version
+         * @throws VmNotFoundException if the virtual machine does not exist
+         */
+        VmBindings getBindingsChangedSince(String vmId, Set<String> names, long version) throws VmNotFoundException;
+    }
+
+    public interface NotificationSender {
+        /**
+         * Send the bindings which have changed to the villein watching them.
+         *
+         * @param watch   the watch
+         * @param changed the bindings which have changed, with their version
+         */
+        void sendChanges(Watch watch, VmBindings changed);
+
+        /**
+         * Tell the villein watching the bindings of a virtual machine which is gone that the watch has ended.
+         *
+         * @param watch the watch
+         * @param e     the reason
+         */
+        void sendEnd(Watch watch, VmNotFoundException e);
+    }
+
+    /**
+     * The bindings of a virtual machine watched by a villein.
+     */
+    public static class Watch {
+        private final String villeinJid;
+        private final String vmId;
+        private final String packetId;
+        private final Set<String> names;
+        private final long interval;
+        private final boolean binary;
+        // Only used by the watcher's thread, once the watch has begun.
+        private long version;
+        private long stamp = -1;
+        private long timeLastChecked;
+
+        /**
+         * @param villeinJid the villein watching the bindings
+         * @param vmId       the virtual machine whose bindings are watched
+         * @param packetId   the id of the manage_bindings which asked for the watch, with which the changes are sent
+         * @param names      the names of the bindings watched, or an empty set for all bindings
+         * @param interval   the least number of milliseconds between two notifications
+         * @param binary     whether the values of the bindings are sent binary-encoded
+         * @param version    the version of the bindings which the villein has already been sent
+         */
+        public Watch(final String villeinJid, final String vmId, final String packetId, final Set<String> names, final long interval, final boolean binary, final long version) {
+            this.villeinJid = villeinJid;
+            this.vmId = vmId;
+            this.packetId = packetId;
+            this.names = names;
+            this.interval = interval;
+            this.binary = binary;
+            this.version = version;
+            this.timeLastChecked = System.currentTimeMillis();
+        }
+
+        public String getVilleinJid() {
+            return this.villeinJid;
+        }
+
+        public String getVmId() {
+            return this.vmId;
+        }
+
+        public String getPacketId() {
+            return this.packetId;
+        }
+
+        public Set<String> getNames() {
+            return this.names;
+        }
+
+        public long getInterval() {
+            return this.interval;
+        }
+
+        public boolean isBinary() {
+            return this.binary;
+        }
+    }
+
+    private final BindingsSource source;
+    private final NotificationSender sender;
+    private final long minInterval;
+    // The watches, by villein and virtual machine.
+    private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    private long checks = 0;
+    private long notificationsSent = 0;
+
+    /**
+     * @param source      the source of the bindings and their stamps
+     * @param sender      the sender of the notifications, called on the watcher's own thread
+     * @param minInterval the least number of milliseconds between two notifications to the same watch, whatever the villein asks for
+     */
+    public BindingsWatcher(final BindingsSource source, final NotificationSender sender, final long minInterval) {
+        this.source = source;
+        this.sender = sender;
+        this.minInterval = minInterval;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "lop-bindings-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param interval the interval asked for by a villein
+     * @return the interval which is actually used
+     */
+    public long getInterval(final long interval) {
+        return Math.max(interval, this.minInterval);
+    }
+
+    /**
+     * Begin a watch, in place of any other watch of the same villein on the same virtual machine.
+     * The villein is to have been sent the bindings as of the version of the watch beforehand.
+     *
+     * @param watch the watch to begin
+     */
+    public void addWatch(final Watch watch) {
+        if (this.stopped) {
+            throw new IllegalStateException("bindings watcher has been shut down");
+        }
+        this.watches.put(key(watch.villeinJid, watch.vmId), watch);
+    }
+
+    /**
+     * End the watch of a villein on a virtual machine, if any.
+     *
+     * @param villeinJid the villein watching the bindings
+     * @param vmId       the virtual machine whose bindings are watched
+     * @return the watch which has ended, or null if there was none
+     */
+    public Watch removeWatch(final String villeinJid, final String vmId) {
+        return this.watches.remove(key(villeinJid, vmId));
+    }
+
+    public int getWatchCount() {
+        return this.watches.size();
+    }
+
+    public synchronized long getChecks() {
+        return this.checks;
+    }
+
+    public synchronized long getNotificationsSent() {
+        return this.notificationsSent;
+    }
+
+    /**
+     * Stop the watcher's thread.  The watches end without the villeins being told.
+     *
+     * @param timeout how long (in milliseconds) to wait for the thread to stop
+     * @return whether the thread has stopped in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout) throws InterruptedException {
+        this.stopped = true;
+        this.thread.join(timeout);
+        this.watches.clear();
+        return !this.thread.isAlive();
+    }
+
+    private void watch() {
+        List<Watch> due = new ArrayList<Watch>();
+        while (!this.stopped) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                Farm.LOGGER.warning("bindings watcher interrupted: " + e.getMessage());
+            }
+
+            long now = System.currentTimeMillis();
+            for (Watch watch : this.watches.values()) {
+                if (now - watch.timeLastChecked >= watch.interval) {
+                    due.add(watch);
+                }
+            }
+            for (Watch watch : due) {
+                try {
+                    this.check(watch, now);
+                } catch (RuntimeException e) {
+                    Farm.LOGGER.severe("failed to check the bindings of " + watch.vmId + ": " + e);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    private void check(final Watch watch, final long now) {
+        try {
+            long stamp = this.source.getBindingsStamp(watch.vmId);
+            if (0 == stamp || stamp == watch.stamp) {
+                return;
+            }
+            watch.stamp = stamp;
+
+            VmBindings changed = this.source.getBindingsChangedSince(watch.vmId, watch.names, watch.version);
+            watch.timeLastChecked = now;
+            synchronized (this) {
+                this.checks++;
+            }
+            watch.version = changed.getVersion();
+            if (changed.isEmpty()) {
+                return;
+            }
+            // The watch may have been replaced or ended meanwhile.
+            if (this.watches.get(key(watch.villeinJid, watch.vmId)) == watch) {
+                this.sender.sendChanges(watch, changed);
+                synchronized (this) {
+                    this.notificationsSent++;
+                }
+            }
+        } catch (VmNotFoundException e) {
+            if (this.watches.remove(key(watch.villeinJid, watch.vmId)) == watch) {
+                this.sender.sendEnd(watch, e);
+            }
+        }
+    }
+
+    private static String key(final String villeinJid, final String vmId) {
+        return villeinJid + " " + vmId;
+    }
+}
@@ -4,6 +4,7 @@ import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smackx.Form;
 import org.jivesoftware.smackx.FormField;
@@ -13,7 +14,10 @@ import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.LopXmppException;
 import org.linkedprocess.XmppClient;
 import org.linkedprocess.Jid;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.ResourceAccountant;
 import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.VmBindings;
 import org.linkedprocess.farm.os.VmScheduler;
 import org.linkedprocess.farm.os.errors.UnsupportedScriptEngineException;
 import org.linkedprocess.farm.os.errors.VmAlreadyExistsException;
@@ -23,8 +27,12 @@ import org.linkedprocess.farm.security.ServiceDiscoveryConfiguration;
 import org.linkedprocess.farm.security.SystemInfo;
 import org.linkedprocess.farm.security.VmSecurityManager;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.script.ScriptEngineFactory;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -39,9 +47,14 @@ public class Farm extends XmppClient {
 
     protected String farmPassword;
 
+    // Written by the packet listeners, and read by the result dispatcher's thread as well, as jobs of a graph are released.
     protected final Map<String, Vm> machines;
     protected final VmScheduler vmScheduler;
+    protected final VmJobResultHandler resultHandler;
+    protected final BindingsWatcher bindingsWatcher;
     protected DataForm serviceExtension;
+    // Null unless the resource accountant is registered with JMX.
+    protected ObjectName accountantName;
 
     public Farm(final String server, final int port, final String username, final String password, final String farmPassword) throws LopXmppException {
         LOGGER.info("Starting " + STATUS_MESSAGE);
@@ -58,7 +71,9 @@ public class Farm extends XmppClient {
         ProviderManager pm = ProviderManager.getInstance();
         pm.addIQProvider(LinkedProcess.SPAWN_VM_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new SpawnVmProvider());
         pm.addIQProvider(LinkedProcess.SUBMIT_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new SubmitJobProvider());
+        pm.addIQProvider(LinkedProcess.SUBMIT_JOB_BATCH_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new SubmitJobBatchProvider());
         pm.addIQProvider(LinkedProcess.PING_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new PingJobProvider());
+        pm.addIQProvider(LinkedProcess.FETCH_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new FetchJobProvider());
         pm.addIQProvider(LinkedProcess.ABORT_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new AbortJobProvider());
         pm.addIQProvider(LinkedProcess.MANAGE_BINDINGS_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new ManageBindingsProvider());
         pm.addIQProvider(LinkedProcess.TERMINATE_VM_TAG, LinkedProcess.LOP_FARM_NAMESPACE, new TerminateVmProvider());
@@ -67,20 +82,27 @@ public class Farm extends XmppClient {
         this.initiateFeatures();
 
         this.roster.setSubscriptionMode(Roster.SubscriptionMode.manual);
-        this.vmScheduler = new VmScheduler(new VmJobResultHandler(this), new StatusEventHandler(this));
-        this.machines = new HashMap<String, Vm>();
+        this.resultHandler = new VmJobResultHandler(this);
+        this.vmScheduler = new VmScheduler(this.resultHandler, new StatusEventHandler(this));
+        this.initiateResourceAccounting();
+        this.machines = new ConcurrentHashMap<String, Vm>();
+        this.bindingsWatcher = this.createBindingsWatcher();
 
         PacketFilter spawnFilter = new AndFilter(new PacketTypeFilter(SpawnVm.class), new IQTypeFilter(IQ.Type.GET));
         PacketFilter subscribeFilter = new AndFilter(new PacketTypeFilter(Presence.class), new PresenceSubscriptionFilter());
         PacketFilter submitFilter = new AndFilter(new PacketTypeFilter(SubmitJob.class), new IQTypeFilter(IQ.Type.GET));
+        PacketFilter submitBatchFilter = new AndFilter(new PacketTypeFilter(SubmitJobBatch.class), new IQTypeFilter(IQ.Type.GET));
         PacketFilter statusFilter = new AndFilter(new PacketTypeFilter(PingJob.class), new IQTypeFilter(IQ.Type.GET));
+        PacketFilter fetchFilter = new AndFilter(new PacketTypeFilter(FetchJob.class), new IQTypeFilter(IQ.Type.GET));
         PacketFilter abandonFilter = new AndFilter(new PacketTypeFilter(AbortJob.class), new IQTypeFilter(IQ.Type.GET));
         PacketFilter terminateFilter = new AndFilter(new PacketTypeFilter(TerminateVm.class), new IQTypeFilter(IQ.Type.GET));
         PacketFilter bindingsFilter = new AndFilter(new PacketTypeFilter(ManageBindings.class), new OrFilter(new IQTypeFilter(IQ.Type.GET), new IQTypeFilter(IQ.Type.SET)));
 
         this.connection.addPacketListener(new SpawnVmPacketListener(this), spawnFilter);
         this.connection.addPacketListener(new SubmitJobPacketListener(this), submitFilter);
+        this.connection.addPacketListener(new SubmitJobBatchPacketListener(this), submitBatchFilter);
         this.connection.addPacketListener(new PingJobPacketListener(this), statusFilter);
+        this.connection.addPacketListener(new FetchJobPacketListener(this), fetchFilter);
         this.connection.addPacketListener(new AbortJobPacketListener(this), abandonFilter);
         this.connection.addPacketListener(new ManageBindingsPacketListener(this), bindingsFilter);
         this.connection.addPacketListener(new TerminateVmPacketListener(this), terminateFilter);
@@ -96,6 +118,14 @@ public class Farm extends XmppClient {
         return this.vmScheduler;
     }
 
+    public VmJobResultHandler getVmJobResultHandler() {
+        return this.resultHandler;
+    }
+
+    public BindingsWatcher getBindingsWatcher() {
+        return this.bindingsWatcher;
+    }
+
     public LinkedProcess.Status getStatus() {
         return this.vmScheduler.getSchedulerStatus();
     }
@@ -142,14 +172,73 @@ public class Farm extends XmppClient {
 
         this.vmScheduler.shutdown();
         try {
-            this.vmScheduler.waitUntilFinished();
+            long timeout = new Long(LinkedProcess.getConfiguration().getProperty(
+                    LinkedProcess.SHUTDOWN_TIMEOUT_PROPERTY, "10000"));
+            if (!this.bindingsWatcher.shutdown(timeout)) {
+                LOGGER.warning("bindings watcher did not stop within " + timeout + "ms");
+            }
+            if (!this.vmScheduler.awaitTermination(timeout)) {
+                LOGGER.warning("VM scheduler did not stop within " + timeout + "ms");
+            }
+            // The results of the last jobs may still be on their way out.
+            this.resultHandler.shutdown(timeout);
         } catch (InterruptedException e) {
             LOGGER.severe(e.getMessage());
         }
+        if (null != this.accountantName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.accountantName);
+            } catch (JMException e) {
+                LOGGER.warning("failed to unregister resource accountant: " + e);
+            }
+            this.accountantName = null;
+        }
         super.shutdown();
 
     }
 
+    private BindingsWatcher createBindingsWatcher() {
+        BindingsWatcher.BindingsSource source = new BindingsWatcher.BindingsSource() {
+            public long getBindingsStamp(final String vmId) throws VmNotFoundException {
+                return vmScheduler.getBindingsStamp(vmId);
+            }
+
+            public VmBindings getBindingsChangedSince(final String vmId, final Set<String> names, final long version) throws VmNotFoundException {
+                return vmScheduler.getBindingsChangedSince(vmId, names, version);
+            }
+        };
+        BindingsWatcher.NotificationSender sender = new BindingsWatcher.NotificationSender() {
+            public void sendChanges(final BindingsWatcher.Watch watch, final VmBindings changed) {
+                ManageBindings manageBindings = createWatchResult(watch);
+                manageBindings.setType(IQ.Type.RESULT);
+                manageBindings.setBindings(changed);
+                manageBindings.setVersion(changed.getVersion());
+                manageBindings.setPartial(true);
+                connection.sendPacket(manageBindings);
+            }
+
+            public void sendEnd(final BindingsWatcher.Watch watch, final VmNotFoundException e) {
+                ManageBindings manageBindings = createWatchResult(watch);
+                manageBindings.setType(IQ.Type.ERROR);
+                manageBindings.setLopError(new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, e.getMessage(), watch.getPacketId()));
+                connection.sendPacket(manageBindings);
+            }
+        };
+        long minInterval = new Long(LinkedProcess.getConfiguration().getProperty(
+                LinkedProcess.MIN_BINDINGS_WATCH_INTERVAL_PROPERTY, "100"));
+        return new BindingsWatcher(source, sender, minInterval);
+    }
+
+    private ManageBindings createWatchResult(final BindingsWatcher.Watch watch) {
+        ManageBindings manageBindings = new ManageBindings();
+        manageBindings.setTo(watch.getVilleinJid());
+        manageBindings.setFrom(this.getJid().toString());
+        manageBindings.setPacketID(watch.getPacketId());
+        manageBindings.setVmId(watch.getVmId());
+        manageBindings.setBinary(watch.isBinary());
+        return manageBindings;
+    }
+
     public DataForm getServiceExtension() {
         return this.serviceExtension;
     }
@@ -159,6 +248,14 @@ public class Farm extends XmppClient {
         ServiceDiscoveryManager.setIdentityName(Farm.RESOURCE_PREFIX);
         ServiceDiscoveryManager.setIdentityType(LinkedProcess.DISCO_BOT);
         this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_NAMESPACE);
+        this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_BINARY_FEATURE);
+        this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_TYPED_FEATURE);
+        this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_VERSIONED_FEATURE);
+        this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_WATCH_FEATURE);
+        // Only output which is cut into chunks can be streamed.
+        if (new Integer(LinkedProcess.getConfiguration().getProperty(LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY, "-1")) > 0) {
+            this.getDiscoManager().addFeature(LinkedProcess.LOP_FARM_STREAM_FEATURE);
+        }
 
         this.serviceExtension = new DataForm(Form.TYPE_RESULT);
 
@@ -200,6 +297,31 @@ public class Farm extends XmppClient {
         this.getDiscoManager().setExtendedInfo(this.serviceExtension);
     }
 
+    /**
+     * Advertises the farm's resource usage, which is only known once the
+     * scheduler exists, and makes the accounts of all VMs and villeins
+     * available through JMX.
+     */
+    private void initiateResourceAccounting() {
+        ResourceAccountant accountant = this.vmScheduler.getResourceAccountant();
+        if (null == accountant) {
+            return;
+        }
+
+        // Note: the form is serialized whenever it is requested, so fields
+        // may still be added.
+        accountant.addFields(this.serviceExtension);
+
+        try {
+            ObjectName name = new ObjectName("org.linkedprocess.farm:type=ResourceAccountant,jid="
+                    + ObjectName.quote(this.getJid().toString()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(accountant, name);
+            this.accountantName = name;
+        } catch (JMException e) {
+            LOGGER.warning("failed to register resource accountant: " + e);
+        }
+    }
+
     // TODO: move this
     private void addConfigurationBasedFields(final DataForm serviceExtension) {
         serviceExtension.addField(
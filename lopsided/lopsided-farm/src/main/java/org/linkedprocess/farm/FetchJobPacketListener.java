@@ -0,0 +1,86 @@
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.CompletedJobStore;
+import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.errors.JobNotFoundException;
+import org.linkedprocess.farm.os.errors.VmNotFoundException;
+
+/**
+ * Answers a fetch_job with the result of a job which has finished, as long as the farm still remembers it.
+ * A job which has failed is answered with its error, as its submit_job was.
+ *
+ * @version 0.1
+ */
+public class FetchJobPacketListener extends FarmPacketListener {
+
+    public FetchJobPacketListener(Farm farm) {
+        super(farm);
+    }
+
+    public void processPacket(Packet packet) {
+        try {
+            processFetchJobPacket((FetchJob) packet);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processFetchJobPacket(FetchJob fetchJob) {
+
+        Farm.LOGGER.fine("Arrived " + FetchJobPacketListener.class.getName());
+        Farm.LOGGER.fine(fetchJob.toXML());
+
+        FetchJob returnFetchJob = new FetchJob();
+        returnFetchJob.setTo(fetchJob.getFrom());
+        returnFetchJob.setFrom(this.getFarm().getJid().toString());
+        returnFetchJob.setPacketID(fetchJob.getPacketID());
+        returnFetchJob.setVmId(fetchJob.getVmId());
+        returnFetchJob.setJobId(fetchJob.getJobId());
+
+        String jobId = fetchJob.getJobId();
+        String vmId = fetchJob.getVmId();
+
+        if (null == vmId || null == jobId) {
+            String errorMessage = null == vmId
+                    ? "fetch_job XML packet is missing the vm_id attribute"
+                    : "fetch_job XML packet is missing the job_id attribute";
+            returnFetchJob.setType(IQ.Type.ERROR);
+            returnFetchJob.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.MALFORMED_PACKET, errorMessage, fetchJob.getPacketID()));
+        } else {
+            try {
+                Vm vm = this.getFarm().getVm(vmId);
+                CompletedJobStore.CompletedJob completedJob = vm.getCompletedJob(jobId);
+                if (null == completedJob) {
+                    returnFetchJob.setStatus(LinkedProcess.JobStatus.IN_PROGRESS);
+                    returnFetchJob.setType(IQ.Type.RESULT);
+                } else if (null != completedJob.getLopError()) {
+                    returnFetchJob.setType(IQ.Type.ERROR);
+                    returnFetchJob.setLopError(completedJob.getLopError());
+                } else {
+                    returnFetchJob.setStatus(LinkedProcess.JobStatus.COMPLETED);
+                    returnFetchJob.setExpression(completedJob.getExpression());
+                    returnFetchJob.setEncoding(completedJob.getEncoding());
+                    if (completedJob.getPartialResults() > 0) {
+                        returnFetchJob.setSequence(completedJob.getPartialResults());
+                    }
+                    returnFetchJob.setType(IQ.Type.RESULT);
+                }
+            } catch (VmNotFoundException e) {
+                returnFetchJob.setType(IQ.Type.ERROR);
+                returnFetchJob.setLopError(new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, e.getMessage(), fetchJob.getPacketID()));
+            } catch (JobNotFoundException e) {
+                returnFetchJob.setType(IQ.Type.ERROR);
+                returnFetchJob.setLopError(new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.JOB_NOT_FOUND, e.getMessage(), fetchJob.getPacketID()));
+            }
+        }
+
+        Farm.LOGGER.fine("Sent " + FetchJobPacketListener.class.getName());
+        Farm.LOGGER.fine(returnFetchJob.toXML());
+        this.getFarm().getConnection().sendPacket(returnFetchJob);
+    }
+}
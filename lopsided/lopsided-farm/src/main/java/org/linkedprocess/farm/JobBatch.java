@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.CompletedJobStore;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gathers the results of the jobs of a submit_job_batch into coalesced replies.
+ * A reply is sent once the last job of the batch has finished, or sooner, as a partial reply, once enough results are waiting to be sent.
+ * A result which the virtual machine streams in pieces is put back together before it is added to a reply.
+ * The results of a batch may arrive on several threads at once.
+ *
+ * @version LoPSideD 0.1
+ */
+public class JobBatch {
+
+    protected final String packetId;
+    protected final String villeinJid;
+    protected final String vmId;
+    protected final int replySize;
+
+    protected int remaining;
+    protected int replies = 0;
+    protected final List<SubmitJobBatch.BatchJob> ready = new ArrayList<SubmitJobBatch.BatchJob>();
+    // The pieces of the results which are being streamed, by job.
+    protected final Map<Job, StringBuilder> pieces = new HashMap<Job, StringBuilder>();
+
+    /**
+     * @param submitJobBatch the submit_job_batch which carries the jobs
+     * @param size           the number of jobs in the batch
+     * @param replySize      the maximum number of results in a reply
+     */
+    public JobBatch(SubmitJobBatch submitJobBatch, int size, int replySize) {
+        this.packetId = submitJobBatch.getPacketID();
+        this.villeinJid = submitJobBatch.getFrom();
+        this.vmId = submitJobBatch.getVmId();
+        this.remaining = size;
+        this.replySize = Math.max(1, replySize);
+    }
+
+    public String getPacketId() {
+        return this.packetId;
+    }
+
+    /**
+     * Add a piece of a result which is being streamed.
+     *
+     * @param result the partial result
+     */
+    public synchronized void addPartialResult(JobResult result) {
+        StringBuilder sb = this.pieces.get(result.getJob());
+        if (null == sb) {
+            sb = new StringBuilder();
+            this.pieces.put(result.getJob(), sb);
+        }
+        sb.append(result.getExpression());
+    }
+
+    /**
+     * Add the result of a job of the batch.
+     *
+     * @param result the result of the job
+     * @return the reply to send, or null if the result is to wait for others
+     */
+    public synchronized SubmitJobBatch addResult(JobResult result) {
+        this.ready.add(this.completeJob(result));
+        return this.jobDone();
+    }
+
+    /**
+     * Put the result of a job back together from the pieces which have been streamed.
+     *
+     * @param result the result of the job
+     * @return the job, as it is to appear in a reply
+     */
+    protected SubmitJobBatch.BatchJob completeJob(JobResult result) {
+        String jobId = result.getJob().getJobId();
+        SubmitJob submitJob = result.generateReturnSubmitJob();
+        StringBuilder sb = this.pieces.remove(result.getJob());
+
+        if (IQ.Type.ERROR == submitJob.getType()) {
+            return new SubmitJobBatch.BatchJob(jobId, null, (LopError) submitJob.getError());
+        } else if (null == sb) {
+            return new SubmitJobBatch.BatchJob(jobId, submitJob.getExpression(), null);
+        } else {
+            if (null != submitJob.getExpression()) {
+                sb.append(submitJob.getExpression());
+            }
+            return new SubmitJobBatch.BatchJob(jobId, sb.toString(), null);
+        }
+    }
+
+    /**
+     * Add a job of the batch which has been turned down by the virtual machine.
+     *
+     * @param jobId the job_id of the job
+     * @param error the reason the job has been turned down
+     * @return the reply to send, or null if the error is to wait for other results
+     */
+    public synchronized SubmitJobBatch addError(String jobId, LopError error) {
+        this.ready.add(new SubmitJobBatch.BatchJob(jobId, null, error));
+        return this.jobDone();
+    }
+
+    /**
+     * Add a job of the batch which has been submitted again after it has finished, and which is answered with its outcome rather than run twice.
+     *
+     * @param jobId        the job_id of the job
+     * @param completedJob the outcome of the job
+     * @return the reply to send, or null if the outcome is to wait for other results
+     */
+    public synchronized SubmitJobBatch addCompletedJob(String jobId, CompletedJobStore.CompletedJob completedJob) {
+        this.ready.add(new SubmitJobBatch.BatchJob(jobId, completedJob.getExpression(), completedJob.getLopError()));
+        return this.jobDone();
+    }
+
+    protected SubmitJobBatch jobDone() {
+        this.remaining--;
+        if (this.remaining > 0 && this.ready.size() < this.replySize) {
+            return null;
+        }
+
+        SubmitJobBatch reply = new SubmitJobBatch();
+        reply.setType(IQ.Type.RESULT);
+        reply.setPacketID(this.packetId);
+        reply.setTo(this.villeinJid);
+        reply.setVmId(this.vmId);
+        if (this.remaining > 0) {
+            reply.setPartial(true);
+        }
+        if (this.remaining > 0 || this.replies > 0) {
+            reply.setSequence(this.replies);
+        }
+        this.replies++;
+
+        reply.getJobs().addAll(this.ready);
+        this.ready.clear();
+        return reply;
+    }
+}
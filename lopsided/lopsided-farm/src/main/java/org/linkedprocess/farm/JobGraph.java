@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.XMPPError;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+import org.linkedprocess.farm.os.VmBindings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the jobs of a submit_job_batch which form a graph, in which a job is only run once the jobs it depends on have finished.
+ * A job is released as soon as the last of its dependencies has succeeded, along with the results of its dependencies, to be bound in its virtual machine before it is run.
+ * A job which depends (directly or not) on a job which has failed is never run, and fails in turn with a dependency_failed error.
+ * The results of all the jobs are gathered into the replies to the batch, as for any other batch.
+ *
+ * @version LoPSideD 0.1
+ */
+public class JobGraph extends JobBatch {
+
+    protected final List<Node> nodes = new ArrayList<Node>();
+    protected final Map<Job, Node> nodesByJob = new IdentityHashMap<Job, Node>();
+
+    /**
+     * @param submitJobBatch the submit_job_batch which carries the jobs, which is to have been checked with findError
+     * @param replySize      the maximum number of results in a reply
+     */
+    public JobGraph(SubmitJobBatch submitJobBatch, int replySize) {
+        super(submitJobBatch, submitJobBatch.getJobs().size(), replySize);
+
+        Map<String, Node> nodesById = new HashMap<String, Node>();
+        for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+            String vmId = null == batchJob.getVmId() ? this.vmId : batchJob.getVmId();
+            Node node = new Node(new Job(vmId, this.villeinJid, batchJob.getJobId(), batchJob.getExpression()), batchJob.getResultBinding());
+            this.nodes.add(node);
+            this.nodesByJob.put(node.job, node);
+            nodesById.put(batchJob.getJobId(), node);
+        }
+        for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+            Node node = nodesById.get(batchJob.getJobId());
+            for (String dependency : batchJob.getDependencies()) {
+                Node d = nodesById.get(dependency);
+                node.dependencies.add(d);
+                d.dependents.add(node);
+            }
+            node.waitingFor = node.dependencies.size();
+        }
+    }
+
+    /**
+     * Determine whether the jobs of a submit_job_batch form a graph which can be run.
+     *
+     * @param submitJobBatch the submit_job_batch which carries the jobs
+     * @return a description of what is wrong with the graph, or null if nothing is
+     */
+    public static String findError(SubmitJobBatch submitJobBatch) {
+        Map<String, SubmitJobBatch.BatchJob> jobsById = new LinkedHashMap<String, SubmitJobBatch.BatchJob>();
+        for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+            if (null != jobsById.put(batchJob.getJobId(), batchJob)) {
+                return "job_id " + batchJob.getJobId() + " appears more than once in the submit_job_batch";
+            }
+        }
+        for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+            for (String dependency : batchJob.getDependencies()) {
+                if (!jobsById.containsKey(dependency)) {
+                    return "job " + batchJob.getJobId() + " depends on " + dependency + ", which is not a job of the submit_job_batch";
+                }
+            }
+        }
+
+        // Remove the jobs whose dependencies have all been removed, until none are left: any job which remains is in a cycle.
+        Set<String> removed = new HashSet<String>();
+        boolean progress = true;
+        while (progress && removed.size() < jobsById.size()) {
+            progress = false;
+            for (SubmitJobBatch.BatchJob batchJob : jobsById.values()) {
+                if (!removed.contains(batchJob.getJobId()) && removed.containsAll(batchJob.getDependencies())) {
+                    removed.add(batchJob.getJobId());
+                    progress = true;
+                }
+            }
+        }
+        for (String jobId : jobsById.keySet()) {
+            if (!removed.contains(jobId)) {
+                return "job " + jobId + " depends on itself, directly or through other jobs";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the jobs which depend on no other job, and so may be run at once.
+     *
+     * @return the jobs which are ready to run
+     */
+    public synchronized List<Job> getRoots() {
+        List<Job> roots = new ArrayList<Job>();
+        for (Node node : this.nodes) {
+            if (node.dependencies.isEmpty()) {
+                roots.add(node.job);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Get the results of the dependencies of a job, which are to be bound in its virtual machine before it is run.
+     *
+     * @param job a job which has been released
+     * @return the results of the job's dependencies, by the name under which each is bound
+     */
+    public synchronized VmBindings getInputs(Job job) {
+        VmBindings inputs = new VmBindings();
+        for (Node d : this.nodesByJob.get(job).dependencies) {
+            if (null != d.resultBinding) {
+                inputs.put(d.resultBinding, d.result);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Add the result of a job of the graph.
+     *
+     * @param result the result of the job
+     * @return the replies to send, and the jobs which the result releases
+     */
+    public synchronized Progress jobFinished(JobResult result) {
+        Progress progress = new Progress();
+        SubmitJobBatch.BatchJob batchJob = this.completeJob(result);
+        this.ready.add(batchJob);
+        progress.addReply(this.jobDone());
+
+        Node node = this.nodesByJob.get(result.getJob());
+        if (null != batchJob.getLopError()) {
+            this.cancelDependents(node, progress);
+            return progress;
+        }
+
+        if (null != node.resultBinding) {
+            node.result = batchJob.getExpression();
+        }
+        for (Node d : node.dependents) {
+            if (0 == --d.waitingFor && !d.cancelled) {
+                progress.released.add(d.job);
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Add a job of the graph which has been turned down by its virtual machine.
+     *
+     * @param job   the job which has been turned down
+     * @param error the reason the job has been turned down
+     * @return the replies to send
+     */
+    public synchronized Progress jobRejected(Job job, LopError error) {
+        Progress progress = new Progress();
+        this.ready.add(new SubmitJobBatch.BatchJob(job.getJobId(), null, error));
+        progress.addReply(this.jobDone());
+        this.cancelDependents(this.nodesByJob.get(job), progress);
+        return progress;
+    }
+
+    private void cancelDependents(Node failed, Progress progress) {
+        LinkedList<Node> cancelled = new LinkedList<Node>();
+        cancelled.add(failed);
+        while (!cancelled.isEmpty()) {
+            Node node = cancelled.removeFirst();
+            for (Node d : node.dependents) {
+                if (!d.cancelled) {
+                    d.cancelled = true;
+                    String message = "job " + d.job.getJobId() + " depends on job " + node.job.getJobId() + ", which has "
+                            + (node == failed ? "failed" : "not been run");
+                    this.ready.add(new SubmitJobBatch.BatchJob(d.job.getJobId(), null,
+                            new LopError(XMPPError.Condition.not_allowed, LinkedProcess.LopErrorType.DEPENDENCY_FAILED, message, d.job.getJobId())));
+                    progress.addReply(this.jobDone());
+                    cancelled.add(d);
+                }
+            }
+        }
+    }
+
+    /**
+     * What has come of a job of the graph finishing.
+     */
+    public static class Progress {
+        protected final List<SubmitJobBatch> replies = new ArrayList<SubmitJobBatch>();
+        protected final List<Job> released = new ArrayList<Job>();
+
+        private void addReply(SubmitJobBatch reply) {
+            if (null != reply) {
+                this.replies.add(reply);
+            }
+        }
+
+        /**
+         * @return the replies to the batch which are ready to send
+         */
+        public List<SubmitJobBatch> getReplies() {
+            return this.replies;
+        }
+
+        /**
+         * @return the jobs whose dependencies have now all succeeded, and which may be run
+         */
+        public List<Job> getReleased() {
+            return this.released;
+        }
+    }
+
+    protected static class Node {
+        protected final Job job;
+        protected final String resultBinding;
+        protected final List<Node> dependencies = new ArrayList<Node>();
+        protected final List<Node> dependents = new ArrayList<Node>();
+        protected int waitingFor;
+        protected boolean cancelled = false;
+        // Only kept if it is to be bound.
+        protected String result;
+
+        protected Node(Job job, String resultBinding) {
+            this.job = job;
+            this.resultBinding = resultBinding;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.jivesoftware.smack.packet.XMPPError;
 import org.linkedprocess.LopError;
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.VmBindings;
 import org.linkedprocess.farm.os.errors.VmNotFoundException;
 
 /**
@@ -38,6 +39,7 @@ public class ManageBindingsPacketListener extends FarmPacketListener {
         returnManageBindings.setFrom(this.getFarm().getJid().toString());
         returnManageBindings.setPacketID(manageBindings.getPacketID());
         returnManageBindings.setVmId(manageBindings.getVmId());
+        returnManageBindings.setBinary(manageBindings.isBinary());
 
 
         String vmId = manageBindings.getVmId();
@@ -55,7 +57,14 @@ public class ManageBindingsPacketListener extends FarmPacketListener {
             try {
                 Vm vm = this.getFarm().getVm(vmId);
                 returnManageBindings.setType(IQ.Type.RESULT);
-                if (manageBindings.getType() == IQ.Type.GET) {
+                if (manageBindings.getType() == IQ.Type.GET && null != manageBindings.getWatch()) {
+                    this.processWatch(manageBindings, returnManageBindings, vm);
+                    return;
+                } else if (manageBindings.getType() == IQ.Type.GET && null != manageBindings.getSince()) {
+                    VmBindings changed = vm.getBindingsChangedSince(manageBindings.getBindings().keySet(), manageBindings.getSince());
+                    returnManageBindings.setBindings(changed);
+                    returnManageBindings.setVersion(changed.getVersion());
+                } else if (manageBindings.getType() == IQ.Type.GET) {
                     returnManageBindings.setBindings(vm.getBindings(manageBindings.getBindings().keySet()));
                 } else if (manageBindings.getType() == IQ.Type.SET) {
                     vm.setBindings(manageBindings.getBindings());
@@ -66,10 +75,35 @@ public class ManageBindingsPacketListener extends FarmPacketListener {
             }
         }
 
+        this.send(returnManageBindings);
+    }
+
+    private void processWatch(ManageBindings manageBindings, ManageBindings returnManageBindings, Vm vm) throws VmNotFoundException {
+        BindingsWatcher watcher = this.getFarm().getBindingsWatcher();
+        String villeinJid = manageBindings.getFrom();
+
+        if (manageBindings.getWatch() <= 0) {
+            watcher.removeWatch(villeinJid, vm.getVmId());
+            this.send(returnManageBindings);
+            return;
+        }
+
+        // The bindings as they are now, followed by their changes from the watcher; the watch begins only once they are sent, so that no change may overtake them.
+        long since = null == manageBindings.getSince() ? 0 : manageBindings.getSince();
+        VmBindings changed = vm.getBindingsChangedSince(manageBindings.getBindings().keySet(), since);
+        returnManageBindings.setBindings(changed);
+        returnManageBindings.setVersion(changed.getVersion());
+        returnManageBindings.setPartial(true);
+        this.send(returnManageBindings);
+
+        watcher.addWatch(new BindingsWatcher.Watch(villeinJid, vm.getVmId(), manageBindings.getPacketID(),
+                manageBindings.getBindings().keySet(), watcher.getInterval(manageBindings.getWatch()),
+                manageBindings.isBinary(), changed.getVersion()));
+    }
+
+    private void send(ManageBindings returnManageBindings) {
         Vm.LOGGER.info("Sent " + ManageBindingsPacketListener.class.getName());
         Vm.LOGGER.info(returnManageBindings.toXML());
         this.getFarm().getConnection().sendPacket(returnManageBindings);
-
-
     }
 }
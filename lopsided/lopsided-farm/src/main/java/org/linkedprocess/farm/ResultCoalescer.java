@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a round of job results into as few submit_job packets as possible.
+ * The pieces of a job's output which are in the same round are joined into one partial result, or into the job's final result if it is in the round too, as long as the joined piece is no longer than the chunk size.
+ * As pieces are joined, the partial results which are actually sent are numbered afresh, and the final result follows the last of them.
+ * The packets for the same villein are kept together, in the order in which the villein first appears in the round.
+ * This is not thread safe: it is meant to be used by a single sending thread.
+ *
+ * @version LoPSideD 0.1
+ */
+public class ResultCoalescer {
+
+    private final int chunkSize;
+    // The number of partial results sent so far for each unfinished job.  Jobs are compared by identity.
+    private final Map<Job, Integer> piecesSent = new HashMap<Job, Integer>();
+
+    /**
+     * @param chunkSize the maximum length of a joined piece of output.  If not positive, pieces are not joined.
+     */
+    public ResultCoalescer(final int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public List<SubmitJob> coalesce(final List<JobResult> results) {
+        Map<String, List<JobResult>> resultsByVillein = new LinkedHashMap<String, List<JobResult>>();
+        for (JobResult result : results) {
+            String villeinJid = result.getJob().getVilleinJid();
+            List<JobResult> villeinResults = resultsByVillein.get(villeinJid);
+            if (null == villeinResults) {
+                villeinResults = new ArrayList<JobResult>();
+                resultsByVillein.put(villeinJid, villeinResults);
+            }
+            villeinResults.add(result);
+        }
+
+        List<SubmitJob> packets = new ArrayList<SubmitJob>();
+        for (List<JobResult> villeinResults : resultsByVillein.values()) {
+            this.coalesceVillein(villeinResults, packets);
+        }
+        return packets;
+    }
+
+    private void coalesceVillein(final List<JobResult> results, final List<SubmitJob> packets) {
+        // The output of each job which has yet to be sent.
+        Map<Job, StringBuilder> pending = new LinkedHashMap<Job, StringBuilder>();
+
+        for (JobResult result : results) {
+            Job job = result.getJob();
+            String expression = result.getExpression();
+
+            if (JobResult.ResultType.PARTIAL_RESULT == result.getType()) {
+                StringBuilder piece = pending.get(job);
+                if (null != piece && !this.fits(piece, expression)) {
+                    packets.add(this.createPartialResult(job, piece.toString()));
+                    piece = null;
+                }
+                if (null == piece) {
+                    piece = new StringBuilder();
+                    pending.put(job, piece);
+                }
+                piece.append(expression);
+                continue;
+            }
+
+            StringBuilder piece = pending.remove(job);
+            if (null != piece) {
+                if (JobResult.ResultType.NORMAL_RESULT == result.getType() && null != expression && null == job.getResultEncoding() && this.fits(piece, expression)) {
+                    result = new JobResult(job, piece.append(expression).toString());
+                } else {
+                    packets.add(this.createPartialResult(job, piece.toString()));
+                }
+            }
+
+            SubmitJob packet = result.generateReturnSubmitJob();
+            Integer sequence = this.piecesSent.remove(job);
+            if (JobResult.ResultType.NORMAL_RESULT == result.getType()) {
+                packet.setSequence(sequence);
+            }
+            packets.add(packet);
+        }
+
+        for (Map.Entry<Job, StringBuilder> entry : pending.entrySet()) {
+            packets.add(this.createPartialResult(entry.getKey(), entry.getValue().toString()));
+        }
+    }
+
+    private boolean fits(final StringBuilder piece, final String expression) {
+        return piece.length() + expression.length() <= this.chunkSize;
+    }
+
+    private SubmitJob createPartialResult(final Job job, final String expression) {
+        Integer sent = this.piecesSent.get(job);
+        int sequence = null == sent ? 0 : sent;
+        this.piecesSent.put(job, sequence + 1);
+        return new JobResult(job, expression, sequence).generateReturnSubmitJob();
+    }
+}
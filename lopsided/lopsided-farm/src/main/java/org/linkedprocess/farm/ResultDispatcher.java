@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm;
+
+import org.linkedprocess.farm.os.JobResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands job results over to a thread of their own, which sends them, so that the threads which run jobs never wait on the network.
+ * Results are taken from the queue in rounds: once a result has arrived, the results which arrive within a short window after it are sent along with it.
+ * The queue is not closed to new results when it is full, as no result may be lost; instead, it reports itself congested, and whoever produces the results is expected to hold back.
+ *
+ * @version LoPSideD 0.1
+ */
+public class ResultDispatcher {
+
+    /**
+     * The maximum number of results sent in one round.
+     */
+    public static final int MAX_ROUND_SIZE = 256;
+    private static final long POLL_INTERVAL = 100;
+
+    public interface ResultSender {
+        /**
+         * Send a round of results, in the order in which they have been produced.
+         *
+         * @param results the results to send
+         */
+        void sendResults(List<JobResult> results);
+    }
+
+    private final ResultSender sender;
+    private final int capacity;
+    private final long window;
+    private final BlockingQueue<JobResult> queue = new LinkedBlockingQueue<JobResult>();
+    private final Thread thread;
+    // Set, and checked before a result is queued, with the queue's lock held, so that every result which has been queued is sent before the thread stops.
+    private volatile boolean stopped = false;
+
+    private final AtomicLong resultsQueued = new AtomicLong(0);
+    private final AtomicLong resultsQueuedWhileCongested = new AtomicLong(0);
+    private final AtomicLong resultsDropped = new AtomicLong(0);
+    private long resultsSent = 0;
+    private long rounds = 0;
+
+    /**
+     * @param sender   the sender of each round of results, called on the dispatcher's own thread
+     * @param capacity the number of waiting results beyond which the dispatcher is congested
+     * @param window   how long (in milliseconds) to wait for more results to send along with the first of a round
+     */
+    public ResultDispatcher(final ResultSender sender, final int capacity, final long window) {
+        this.sender = sender;
+        this.capacity = capacity;
+        this.window = window;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "lop-result-dispatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a result to be sent.  This never blocks, nor fails: a result which arrives once the dispatcher has been shut down is dropped.
+     *
+     * @param result the result to send
+     */
+    public void dispatch(final JobResult result) {
+        synchronized (this.queue) {
+            if (!this.stopped) {
+                if (this.isCongested()) {
+                    this.resultsQueuedWhileCongested.incrementAndGet();
+                }
+                this.resultsQueued.incrementAndGet();
+                this.queue.offer(result);
+                return;
+            }
+        }
+
+        // Note: this is called by the threads which run jobs, which must not be brought down by a farm which is shutting down.
+        this.resultsDropped.incrementAndGet();
+        Farm.LOGGER.warning("dropped the result of job " + result.getJob().getJobId() + ": result dispatcher has been shut down");
+    }
+
+    /**
+     * @return whether more results are waiting to be sent than the dispatcher's capacity
+     */
+    public boolean isCongested() {
+        return this.queue.size() >= this.capacity;
+    }
+
+    public int getBacklog() {
+        return this.queue.size();
+    }
+
+    public long getResultsQueued() {
+        return this.resultsQueued.get();
+    }
+
+    public long getResultsQueuedWhileCongested() {
+        return this.resultsQueuedWhileCongested.get();
+    }
+
+    public long getResultsDropped() {
+        return this.resultsDropped.get();
+    }
+
+    public synchronized long getResultsSent() {
+        return this.resultsSent;
+    }
+
+    public synchronized long getRounds() {
+        return this.rounds;
+    }
+
+    /**
+     * Send the results which are still waiting, and stop the dispatcher's thread.
+     *
+     * @param timeout how long (in milliseconds) to wait for the waiting results to be sent
+     * @return whether all of the results have been sent in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout) throws InterruptedException {
+        synchronized (this.queue) {
+            this.stopped = true;
+        }
+        this.thread.join(timeout);
+        return !this.thread.isAlive();
+    }
+
+    private void dispatch() {
+        List<JobResult> round = new ArrayList<JobResult>();
+        while (!this.stopped || !this.queue.isEmpty()) {
+            try {
+                JobResult first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+                round.add(first);
+                this.gather(round);
+            } catch (InterruptedException e) {
+                Farm.LOGGER.warning("result dispatcher interrupted: " + e.getMessage());
+                if (round.isEmpty()) {
+                    continue;
+                }
+            }
+
+            try {
+                this.sender.sendResults(round);
+            } catch (RuntimeException e) {
+                Farm.LOGGER.severe("failed to send " + round.size() + " job results: " + e);
+            }
+            synchronized (this) {
+                this.resultsSent += round.size();
+                this.rounds++;
+            }
+            round.clear();
+        }
+    }
+
+    private void gather(final List<JobResult> round) throws InterruptedException {
+        this.queue.drainTo(round, MAX_ROUND_SIZE - round.size());
+        long deadline = System.currentTimeMillis() + this.window;
+        while (round.size() < MAX_ROUND_SIZE) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            JobResult next = this.queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (null == next) {
+                break;
+            }
+            round.add(next);
+            this.queue.drainTo(round, MAX_ROUND_SIZE - round.size());
+        }
+    }
+}
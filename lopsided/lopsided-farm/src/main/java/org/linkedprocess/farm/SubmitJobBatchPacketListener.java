@@ -0,0 +1,149 @@
+package org.linkedprocess.farm;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.CompletedJobStore;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.errors.DuplicateJobException;
+import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
+import org.linkedprocess.farm.os.errors.SchedulerException;
+import org.linkedprocess.farm.os.errors.VmIsFullException;
+import org.linkedprocess.farm.os.errors.VmNotFoundException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Submits all of the jobs of a submit_job_batch to their virtual machine at once.
+ * The results of the jobs are gathered into coalesced replies by a JobBatch.
+ * The jobs of a batch which form a graph are submitted as their dependencies finish, starting with those which depend on no other job, and their results are gathered by a JobGraph.
+ *
+ * @version 0.1
+ */
+public class SubmitJobBatchPacketListener extends FarmPacketListener {
+
+    protected final int replySize;
+
+    public SubmitJobBatchPacketListener(Farm farm) {
+        super(farm);
+        this.replySize = new Integer(LinkedProcess.getConfiguration().getProperty(
+                LinkedProcess.SUBMIT_JOB_BATCH_REPLY_SIZE_PROPERTY, "64"));
+    }
+
+    public void processPacket(Packet packet) {
+
+        try {
+            processSubmitJobBatchPacket((SubmitJobBatch) packet);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private void processSubmitJobBatchPacket(SubmitJobBatch submitJobBatch) {
+        Farm.LOGGER.info("Arrived " + SubmitJobBatchPacketListener.class.getName());
+        Farm.LOGGER.fine(submitJobBatch.toXML());
+
+        String villeinJid = submitJobBatch.getFrom();
+        String vmId = submitJobBatch.getVmId();
+
+        SubmitJobBatch returnSubmitJobBatch = new SubmitJobBatch();
+        returnSubmitJobBatch.setPacketID(submitJobBatch.getPacketID());
+        returnSubmitJobBatch.setFrom(this.getFarm().getJid().toString());
+        returnSubmitJobBatch.setTo(submitJobBatch.getFrom());
+        returnSubmitJobBatch.setVmId(vmId);
+        returnSubmitJobBatch.setType(IQ.Type.ERROR);
+
+        String errorMessage = null;
+        if (null == vmId) {
+            errorMessage = "submit_job_batch XML packet is missing the vm_id attribute";
+        } else if (submitJobBatch.getJobs().isEmpty()) {
+            errorMessage = "submit_job_batch XML packet has no jobs";
+        } else {
+            for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+                if (null == batchJob.getJobId() || null == batchJob.getExpression()) {
+                    errorMessage = "each job of a submit_job_batch XML packet must have a job_id attribute and an expression text body";
+                    break;
+                }
+            }
+            if (null == errorMessage && submitJobBatch.isGraph()) {
+                errorMessage = JobGraph.findError(submitJobBatch);
+            }
+        }
+
+        if (null != errorMessage) {
+            returnSubmitJobBatch.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.MALFORMED_PACKET, errorMessage, submitJobBatch.getPacketID()));
+            this.getFarm().getConnection().sendPacket(returnSubmitJobBatch);
+            return;
+        }
+
+        VmJobResultHandler resultHandler = this.getFarm().getVmJobResultHandler();
+
+        if (submitJobBatch.isGraph()) {
+            try {
+                this.getFarm().getVm(vmId);
+            } catch (VmNotFoundException e) {
+                returnSubmitJobBatch.setLopError(new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, e.getMessage(), submitJobBatch.getPacketID()));
+                this.getFarm().getConnection().sendPacket(returnSubmitJobBatch);
+                return;
+            }
+            JobGraph graph = new JobGraph(submitJobBatch, this.replySize);
+            resultHandler.scheduleGraphJobs(graph, graph.getRoots());
+            return;
+        }
+
+        List<Job> jobs = new ArrayList<Job>();
+        for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+            jobs.add(new Job(vmId, villeinJid, batchJob.getJobId(), batchJob.getExpression()));
+        }
+
+        JobBatch batch = new JobBatch(submitJobBatch, jobs.size(), this.replySize);
+        resultHandler.addBatch(batch, jobs);
+
+        Map<Job, SchedulerException> rejected;
+        try {
+            Vm vm = this.getFarm().getVm(vmId);
+            rejected = vm.scheduleJobs(jobs);
+        } catch (VmNotFoundException e) {
+            for (Job job : jobs) {
+                resultHandler.removeBatchJob(job);
+            }
+            returnSubmitJobBatch.setLopError(new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, e.getMessage(), submitJobBatch.getPacketID()));
+            this.getFarm().getConnection().sendPacket(returnSubmitJobBatch);
+            return;
+        }
+
+        for (Map.Entry<Job, SchedulerException> entry : rejected.entrySet()) {
+            Job job = entry.getKey();
+            resultHandler.removeBatchJob(job);
+            // A job submitted again after it has finished is answered with its outcome.  One which is still in progress is turned down,
+            // as its result goes to the submission which started it: the villein may fetch it with fetch_job.
+            CompletedJobStore.CompletedJob completedJob = entry.getValue() instanceof DuplicateJobException
+                    ? ((DuplicateJobException) entry.getValue()).getCompletedJob()
+                    : null;
+            if (null != completedJob) {
+                Farm.LOGGER.info("job " + job.getJobId() + " of a batch submitted again after finishing: sending its outcome");
+                resultHandler.sendBatchReply(batch.addCompletedJob(job.getJobId(), completedJob));
+            } else {
+                resultHandler.sendBatchReply(batch.addError(job.getJobId(), createLopError(entry.getValue(), job.getJobId())));
+            }
+        }
+    }
+
+    static LopError createLopError(SchedulerException e, String jobId) {
+        if (e instanceof VmIsFullException) {
+            return new LopError(XMPPError.Condition.service_unavailable, LinkedProcess.LopErrorType.VM_IS_BUSY, e.getMessage(), jobId);
+        } else if (e instanceof JobAlreadyExistsException) {
+            return new LopError(XMPPError.Condition.conflict, LinkedProcess.LopErrorType.JOB_ALREADY_EXISTS, e.getMessage(), jobId);
+        } else if (e instanceof VmNotFoundException) {
+            return new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, e.getMessage(), jobId);
+        } else {
+            return new LopError(XMPPError.Condition.interna_server_error, LinkedProcess.LopErrorType.INTERNAL_ERROR, e.getMessage(), jobId);
+        }
+    }
+}
@@ -5,13 +5,19 @@ import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.linkedprocess.LopError;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.CompletedJobStore;
 import org.linkedprocess.farm.os.Job;
 import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.errors.DuplicateJobException;
 import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.VmIsFullException;
 import org.linkedprocess.farm.os.errors.VmNotFoundException;
 
 /**
+ * A submit_job which repeats a job that is still in progress (e.g. because the villein has given up waiting for its result) is not answered, as the result of the job answers it.
+ * One which repeats a job that has recently finished is answered with the remembered result of that job.
+ * In neither case is the job run a second time.
+ *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version 0.1
  */
@@ -64,6 +70,11 @@ public class SubmitJobPacketListener extends FarmPacketListener {
             returnSubmitJob.setLopError(new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.MALFORMED_PACKET, errorMessage, submitJob.getPacketID()));
         } else {
             Job job = new Job(vmId, villeinJid, iqId, expression);
+            // An encoding this farm does not know of is ignored, and the result is sent as text.
+            if (submitJob.isBinary() || submitJob.isTyped()) {
+                job.setResultEncoding(submitJob.getEncoding());
+            }
+            job.setStreamed(submitJob.isStream());
             try {
                 Vm vm = this.getFarm().getVm(vmId);
                 vm.scheduleJob(job);
@@ -74,6 +85,21 @@ public class SubmitJobPacketListener extends FarmPacketListener {
             } catch (VmIsFullException e) {
                 returnSubmitJob.setType(IQ.Type.ERROR);
                 returnSubmitJob.setLopError(new LopError(XMPPError.Condition.service_unavailable, LinkedProcess.LopErrorType.VM_IS_BUSY, e.getMessage(), submitJob.getPacketID()));
+            } catch (DuplicateJobException e) {
+                CompletedJobStore.CompletedJob completedJob = e.getCompletedJob();
+                if (null == completedJob) {
+                    Farm.LOGGER.info("job " + iqId + " submitted again while in progress: not run twice");
+                    submitJob = null;
+                } else if (null != completedJob.getLopError()) {
+                    Farm.LOGGER.info("job " + iqId + " submitted again after failing: sending its error");
+                    returnSubmitJob.setType(IQ.Type.ERROR);
+                    returnSubmitJob.setLopError(completedJob.getLopError());
+                } else {
+                    Farm.LOGGER.info("job " + iqId + " submitted again after finishing: sending its result");
+                    returnSubmitJob.setType(IQ.Type.RESULT);
+                    returnSubmitJob.setExpression(completedJob.getExpression());
+                    returnSubmitJob.setEncoding(completedJob.getEncoding());
+                }
             } catch (JobAlreadyExistsException e) {
                 returnSubmitJob.setType(IQ.Type.ERROR);
                 returnSubmitJob.setLopError(new LopError(XMPPError.Condition.conflict, LinkedProcess.LopErrorType.JOB_ALREADY_EXISTS, e.getMessage(), submitJob.getPacketID()));
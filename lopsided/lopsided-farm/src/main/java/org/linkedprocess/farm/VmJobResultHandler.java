@@ -7,28 +7,182 @@
 
 package org.linkedprocess.farm;
 
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.Job;
 import org.linkedprocess.farm.os.JobResult;
+import org.linkedprocess.farm.os.Vm;
+import org.linkedprocess.farm.os.VmBindings;
 import org.linkedprocess.farm.os.VmScheduler;
+import org.linkedprocess.farm.os.errors.SchedulerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Sends the results of jobs to their villeins.
+ * The results are handed over to a ResultDispatcher, and sent on its thread, so that the threads which run jobs never wait on the network.
+ * While results are backing up, the scheduler is told to hold back.
+ * The jobs of a graph which a result releases are submitted here too, on the dispatcher's thread, so that a multi-stage job graph needs no round trip to the villein between stages.
+ *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
  */
-public class VmJobResultHandler implements VmScheduler.VmResultHandler {
+public class VmJobResultHandler implements VmScheduler.VmResultHandler, VmScheduler.VmPartialResultHandler, VmScheduler.VmResultBackpressure, ResultDispatcher.ResultSender {
 
     protected Farm farm;
+    // The batches of the jobs which have been submitted in a submit_job_batch.
+    protected final Map<Job, JobBatch> batches = new ConcurrentHashMap<Job, JobBatch>();
+    protected final ResultDispatcher dispatcher;
+    // Only used by the dispatcher's thread.
+    private final ResultCoalescer coalescer;
 
     public VmJobResultHandler(Farm farm) {
         this.farm = farm;
+        Properties conf = LinkedProcess.getConfiguration();
+        this.coalescer = new ResultCoalescer(new Integer(conf.getProperty(
+                LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY, "-1")));
+        this.dispatcher = new ResultDispatcher(this,
+                new Integer(conf.getProperty(LinkedProcess.RESULT_QUEUE_CAPACITY_PROPERTY, "10000")),
+                new Long(conf.getProperty(LinkedProcess.RESULT_COALESCING_WINDOW_PROPERTY, "2")));
+    }
+
+    /**
+     * Have the results of the given jobs gathered into the replies of a batch, rather than sent one by one.
+     * This is to be done before the jobs are submitted, for no result to be missed.
+     *
+     * @param batch the batch which the jobs belong to
+     * @param jobs  the jobs of the batch
+     */
+    public void addBatch(JobBatch batch, List<Job> jobs) {
+        for (Job job : jobs) {
+            this.batches.put(job, batch);
+        }
+    }
+
+    /**
+     * Forget a job of a batch which has not been accepted, and so will have no result.
+     *
+     * @param job the job to forget
+     */
+    public void removeBatchJob(Job job) {
+        this.batches.remove(job);
+    }
+
+    /**
+     * Submit jobs of a graph which are ready to run, each to its own virtual machine, once the results of its dependencies have been bound there.
+     * A job which is turned down fails, along with the jobs which depend on it.
+     *
+     * @param graph the graph which the jobs belong to
+     * @param jobs  the jobs to submit
+     */
+    public void scheduleGraphJobs(JobGraph graph, List<Job> jobs) {
+        this.scheduleGraphJobs(graph, jobs, false);
+    }
+
+    // Jobs released by the results of others are not turned away while results are backing up: they belong to a graph which has been accepted, and are scheduled by the dispatcher's thread.
+    private void scheduleGraphJobs(JobGraph graph, List<Job> jobs, boolean released) {
+        for (Job job : jobs) {
+            this.batches.put(job, graph);
+            try {
+                Vm vm = this.farm.getVm(job.getVmId());
+                VmBindings inputs = graph.getInputs(job);
+                if (!inputs.isEmpty()) {
+                    vm.setBindings(inputs);
+                }
+                if (released) {
+                    vm.scheduleReleasedJob(job);
+                } else {
+                    vm.scheduleJob(job);
+                }
+            } catch (SchedulerException e) {
+                this.batches.remove(job);
+                this.sendBatchReplies(graph.jobRejected(job, SubmitJobBatchPacketListener.createLopError(e, job.getJobId())));
+            }
+        }
+    }
+
+    private void sendBatchReplies(JobGraph.Progress progress) {
+        for (SubmitJobBatch reply : progress.getReplies()) {
+            this.sendBatchReply(reply);
+        }
+    }
+
+    public void sendBatchReply(SubmitJobBatch reply) {
+        if (null != reply) {
+            reply.setFrom(farm.getJid().toString());
+            farm.getConnection().sendPacket(reply);
+
+            Farm.LOGGER.info("Sent " + VmJobResultHandler.class.getName());
+            Farm.LOGGER.fine(reply.toXML());
+        }
     }
 
     public void handleResult(JobResult result) {
+        this.dispatcher.dispatch(result);
+    }
+
+    public void handlePartialResult(JobResult result) {
+        this.dispatcher.dispatch(result);
+    }
+
+    public boolean isCongested() {
+        return this.dispatcher.isCongested();
+    }
+
+    public ResultDispatcher getDispatcher() {
+        return this.dispatcher;
+    }
 
-        SubmitJob returnSubmitJob = result.generateReturnSubmitJob();
-        returnSubmitJob.setFrom(farm.getJid().toString());
-        farm.getConnection().sendPacket(returnSubmitJob);
+    public void sendResults(List<JobResult> results) {
+        List<JobResult> singleResults = new ArrayList<JobResult>(results.size());
+        for (JobResult result : results) {
+            if (JobResult.ResultType.PARTIAL_RESULT == result.getType()) {
+                JobBatch batch = this.batches.get(result.getJob());
+                if (null != batch) {
+                    batch.addPartialResult(result);
+                    continue;
+                }
+            } else {
+                JobBatch batch = this.batches.remove(result.getJob());
+                if (batch instanceof JobGraph) {
+                    JobGraph graph = (JobGraph) batch;
+                    JobGraph.Progress progress = graph.jobFinished(result);
+                    this.sendBatchReplies(progress);
+                    this.scheduleGraphJobs(graph, progress.getReleased(), true);
+                    continue;
+                } else if (null != batch) {
+                    this.sendBatchReply(batch.addResult(result));
+                    continue;
+                }
+            }
+            singleResults.add(result);
+        }
+
+        for (SubmitJob returnSubmitJob : this.coalescer.coalesce(singleResults)) {
+            returnSubmitJob.setFrom(farm.getJid().toString());
+            farm.getConnection().sendPacket(returnSubmitJob);
+
+            if (returnSubmitJob.isPartial()) {
+                Farm.LOGGER.fine("Sent partial result " + returnSubmitJob.getSequence() + " of job " + returnSubmitJob.getPacketID());
+            } else {
+                Farm.LOGGER.info("Sent " + VmJobResultHandler.class.getName());
+                Farm.LOGGER.info(returnSubmitJob.toXML());
+            }
+        }
+    }
 
-        Farm.LOGGER.info("Sent " + VmJobResultHandler.class.getName());
-        Farm.LOGGER.info(returnSubmitJob.toXML());
+    /**
+     * Send the results which have yet to be sent.  This is to be done once the scheduler has stopped producing results.
+     *
+     * @param timeout how long (in milliseconds) to wait for the results to be sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout) throws InterruptedException {
+        if (!this.dispatcher.shutdown(timeout)) {
+            Farm.LOGGER.warning(this.dispatcher.getBacklog() + " job results were not sent within " + timeout + "ms");
+        }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A farm-wide, least-recently-used cache of compiled job expressions, so that
+ * an expression which is submitted again and again is parsed only once.
+ * Only engines which implement Compilable benefit from the cache.
+ * <p/>
+ * Entries are keyed on species (language), expression and engine: a compiled
+ * script is never shared between VMs.  Most engines keep their built-in
+ * objects with the engine which compiled a script rather than in the context
+ * in which it is evaluated, so a shared script would let one VM tamper with
+ * the built-in objects seen by another.
+ * <p/>
+ * The cache is never used by VM worker threads, which may be suspended at any
+ * time: scripts are compiled by the sequencer thread which starts the job.
+ */
+public class CompiledScriptCache {
+    private final int capacity;
+    private final Map<Key, CompiledScript> scripts;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param capacity the maximum number of compiled scripts to keep
+     */
+    public CompiledScriptCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        scripts = new LinkedHashMap<Key, CompiledScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CompiledScript> eldest) {
+                if (size() > CompiledScriptCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Finds or creates the compiled form of an expression.
+     *
+     * @param expression the expression to compile
+     * @param engine     the engine which is to evaluate the expression
+     * @return the compiled expression, or null if the engine cannot compile
+     *         expressions
+     * @throws ScriptException if the expression cannot be compiled
+     */
+    public CompiledScript getCompiledScript(final String expression,
+                                            final ScriptEngine engine) throws ScriptException {
+        if (!(engine instanceof Compilable)) {
+            return null;
+        }
+
+        Key key = new Key(engine, expression);
+        CompiledScript script;
+        synchronized (scripts) {
+            script = scripts.get(key);
+        }
+
+        if (null != script) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            script = ((Compilable) engine).compile(expression);
+            synchronized (scripts) {
+                scripts.put(key, script);
+            }
+        }
+
+        return script;
+    }
+
+    /**
+     * Removes all scripts compiled for a given engine (e.g. that of a VM
+     * which has been terminated).
+     *
+     * @param engine the engine whose scripts are no longer needed
+     */
+    public void removeAll(final ScriptEngine engine) {
+        synchronized (scripts) {
+            Iterator<Key> iter = scripts.keySet().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().engine == engine) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of compiled scripts in the cache
+     */
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the proportion of lookups which have found a compiled script,
+     *         or 0 if there have been no lookups
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return 0 == total ? 0 : h / (double) total;
+    }
+
+    public String toString() {
+        return "compiled script cache: " + size() + "/" + capacity + " scripts, "
+                + hits.get() + " hits, " + misses.get() + " misses (hit rate " + getHitRate() + "), "
+                + evictions.get() + " evictions";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static class Key {
+        private final ScriptEngine engine;
+        private final String species;
+        private final String expression;
+        private final int hashCode;
+
+        public Key(final ScriptEngine engine,
+                   final String expression) {
+            this.engine = engine;
+            this.species = engine.getFactory().getLanguageName();
+            this.expression = expression;
+            hashCode = System.identityHashCode(engine) * 31 + expression.hashCode();
+        }
+
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) other;
+            return engine == k.engine
+                    && hashCode == k.hashCode
+                    && species.equals(k.species)
+                    && expression.equals(k.expression);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LopError;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of finished jobs for a while, so that a villein which
+ * has missed the result of a job may still ask for it (or submit the job
+ * again, without having it run twice).  Jobs are forgotten in
+ * the order in which they have finished: once they have been remembered for
+ * longer than their time to live, or as soon as there are too many of them,
+ * or they take up too much memory.
+ * <p/>
+ * Only the outcome of a job is kept (its result or its error), not the job
+ * itself.  For a job whose output has been streamed, this is the last piece of
+ * its result.
+ * <p/>
+ * Results are added by the threads which run jobs, so no lock is taken.  The
+ * limits may be overshot for a moment while several threads add results at
+ * once.
+ */
+public class CompletedJobStore {
+    // A rough estimate of the bytes taken up by a remembered job, besides its strings.
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final int capacity;
+    private final long maxBytes;
+    private final long timeToLive;
+
+    private final ConcurrentMap<String, CompletedJob> jobsByKey = new ConcurrentHashMap<String, CompletedJob>();
+    // Every remembered job, in the order in which it has finished.  A job which
+    // has been superseded by another job with the same ID lingers here (and is
+    // counted) until its turn comes to be forgotten.
+    private final Queue<CompletedJob> jobsInOrder = new ConcurrentLinkedQueue<CompletedJob>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    private final AtomicLong jobsStored = new AtomicLong(0);
+    private final AtomicLong jobsTooLarge = new AtomicLong(0);
+    private final AtomicLong jobsEvicted = new AtomicLong(0);
+    private final AtomicLong jobsExpired = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param capacity   the maximum number of jobs to remember
+     * @param maxBytes   the maximum number of bytes taken up by remembered jobs
+     * @param timeToLive how long (in milliseconds) to remember a job
+     */
+    public CompletedJobStore(final int capacity,
+                             final long maxBytes,
+                             final long timeToLive) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Remembers the outcome of a job which has finished.
+     *
+     * @param result the final result of the job
+     */
+    public void jobFinished(final JobResult result) {
+        long now = System.currentTimeMillis();
+        CompletedJob c = new CompletedJob(result, now);
+        if (c.bytes > maxBytes) {
+            jobsTooLarge.incrementAndGet();
+            // Any earlier job with the same ID is out of date.
+            jobsByKey.remove(c.key);
+        } else {
+            jobsByKey.put(c.key, c);
+            jobsInOrder.offer(c);
+            size.incrementAndGet();
+            bytes.addAndGet(c.bytes);
+            jobsStored.incrementAndGet();
+        }
+
+        evict(now);
+    }
+
+    /**
+     * @param vmId  the ID of the job's VM
+     * @param jobId the ID of the job
+     * @return the job, if it has finished and is still remembered, or null
+     */
+    public CompletedJob getCompletedJob(final String vmId,
+                                        final String jobId) {
+        long now = System.currentTimeMillis();
+        evict(now);
+
+        CompletedJob c = jobsByKey.get(createKey(vmId, jobId));
+        if (null == c || isExpired(c, now)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * @return the number of jobs remembered
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of bytes (roughly) taken up by remembered jobs
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of jobs forgotten to make room for others
+     */
+    public long getJobsEvicted() {
+        return jobsEvicted.get();
+    }
+
+    /**
+     * @return the number of jobs forgotten because their time to live has expired
+     */
+    public long getJobsExpired() {
+        return jobsExpired.get();
+    }
+
+    /**
+     * @return the number of jobs which have not been remembered at all, as
+     *         their results were too large
+     */
+    public long getJobsTooLarge() {
+        return jobsTooLarge.get();
+    }
+
+    public String toString() {
+        return "completed job store: " + size.get() + " jobs in " + bytes.get() + " bytes, "
+                + jobsStored.get() + " stored, "
+                + jobsEvicted.get() + " evicted, "
+                + jobsExpired.get() + " expired, "
+                + jobsTooLarge.get() + " too large, "
+                + hits.get() + " hits, "
+                + misses.get() + " misses";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void evict(final long now) {
+        CompletedJob oldest;
+        while (null != (oldest = jobsInOrder.peek())) {
+            boolean expired = isExpired(oldest, now);
+            if (!expired && size.get() <= capacity && bytes.get() <= maxBytes) {
+                break;
+            }
+
+            // Another thread may have got there first.
+            if (jobsInOrder.remove(oldest)) {
+                size.decrementAndGet();
+                bytes.addAndGet(-oldest.bytes);
+                // Note: a job which has been superseded is not counted.
+                if (jobsByKey.remove(oldest.key, oldest)) {
+                    if (expired) {
+                        jobsExpired.incrementAndGet();
+                    } else {
+                        jobsEvicted.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(final CompletedJob c,
+                              final long now) {
+        return now - c.timeCompleted > timeToLive;
+    }
+
+    private static String createKey(final String vmId,
+                                    final String jobId) {
+        // The length of the VM ID keeps the key unambiguous, whatever the IDs contain.
+        return vmId.length() + ":" + vmId + jobId;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The outcome of a finished job.
+     */
+    public static class CompletedJob {
+        private final String key;
+        private final String jobId;
+        private final String villeinJid;
+        // Identifies the expression of the job without keeping it.
+        private final byte[] expressionDigest;
+        private final String expression;
+        private final String encoding;
+        private final LopError lopError;
+        private final int partialResults;
+        private final long timeCompleted;
+        private final int bytes;
+
+        private CompletedJob(final JobResult result,
+                             final long timeCompleted) {
+            Job job = result.getJob();
+            this.key = createKey(job.getVmId(), job.getJobId());
+            this.jobId = job.getJobId();
+            this.villeinJid = job.getVilleinJid();
+            this.expressionDigest = digest(job.getExpression());
+            this.expression = result.getExpression();
+            this.encoding = job.getResultEncoding();
+            this.lopError = result.generateLopError();
+            this.partialResults = job.getPartialResults();
+            this.timeCompleted = timeCompleted;
+
+            // Note: the digest is counted in the overhead.
+            int chars = key.length() + jobId.length() + (null == villeinJid ? 0 : villeinJid.length())
+                    + (null == expression ? 0 : expression.length())
+                    + (null == lopError || null == lopError.getMessage() ? 0 : lopError.getMessage().length());
+            this.bytes = ENTRY_OVERHEAD + 2 * chars;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        /**
+         * @return the result of the job, or null if it has failed
+         */
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * @return the encoding of the result, as the villein has asked for it
+         *         (null for text)
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * @return the error the job has failed with, or null if it has succeeded
+         */
+        public LopError getLopError() {
+            return lopError;
+        }
+
+        /**
+         * @return the number of partial results sent ahead of the job's
+         *         result, which is therefore only the last piece of it
+         */
+        public int getPartialResults() {
+            return partialResults;
+        }
+
+        public long getTimeCompleted() {
+            return timeCompleted;
+        }
+
+        /**
+         * @param job a job with the same ID
+         * @return whether the given job is (as far as can be told) this job
+         *         submitted again by the same villein
+         */
+        public boolean isSubmittedAgainAs(final Job job) {
+            return (null == villeinJid ? null == job.getVilleinJid() : villeinJid.equals(job.getVilleinJid()))
+                    && MessageDigest.isEqual(expressionDigest, digest(job.getExpression()));
+        }
+
+        // A SHA-1 digest, so that a different expression is never taken for
+        // the same one, as it could be with a mere hash code.
+        private static byte[] digest(final String expression) {
+            if (null == expression) {
+                return new byte[0];
+            }
+
+            try {
+                return MessageDigest.getInstance("SHA-1").digest(expression.getBytes("UTF-8"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
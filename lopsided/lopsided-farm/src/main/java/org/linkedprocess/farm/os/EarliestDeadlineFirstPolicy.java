@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+/**
+ * Runs first the VM whose next job has the least time remaining before its
+ * deadline.  A job's deadline is the job timeout after it was received: as
+ * a job can spend no more than the job timeout working, a job which is
+ * started no later than its deadline finishes (or times out) no later than
+ * one job timeout after that, however busy the farm.  Time slices which have
+ * been given to a job do not move its deadline.  If jobs never time out,
+ * the oldest job is simply run first.
+ */
+public class EarliestDeadlineFirstPolicy implements SchedulingPolicy {
+    private final long jobTimeout;
+
+    /**
+     * @param jobTimeout the maximum time a job may spend working, in
+     *                   milliseconds
+     */
+    public EarliestDeadlineFirstPolicy(final long jobTimeout) {
+        this.jobTimeout = jobTimeout;
+    }
+
+    public long rank(final Job next) {
+        // A worker whose job is no longer known is run last, and finds
+        // nothing to do.
+        return null == next ? Long.MAX_VALUE : next.getTimeCreated() + jobTimeout;
+    }
+
+    public void charge(final Job job,
+                       final long time) {
+        // Do nothing.  Deadlines are fixed.
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A weighted fair share of processor time for each villein, however many VMs
+ * it keeps busy.  Each villein has a priority, from
+ * LinkedProcess.LOWEST_PRIORITY to LinkedProcess.HIGHEST_PRIORITY (0 unless
+ * configured otherwise), and is given processor time in proportion to its
+ * priority minus LOWEST_PRIORITY, plus one.  A villein with the highest
+ * priority therefore receives twice the share of a villein with the default
+ * priority and 256 times that of a villein with the lowest priority, which
+ * is left only with the time that no one else wants.
+ * <p/>
+ * This is start-time fair queueing: each villein has a virtual time, which
+ * advances by the time its jobs are given divided by its weight, and VMs are
+ * run in order of the virtual time of their villeins.  A villein which has
+ * been idle is brought forward to the virtual time of the job most recently
+ * run, so it cannot claim processor time which it did not use.
+ * <p/>
+ * Priorities are configured with one property per villein, whose name begins
+ * with LinkedProcess.VILLEIN_PRIORITY_PROPERTY and whose value is the bare
+ * JID of the villein followed by its priority.
+ */
+public class FairSharePolicy implements SchedulingPolicy {
+    private static final Logger LOGGER = LinkedProcess.getLogger(FairSharePolicy.class);
+
+    private static final int DEFAULT_PRIORITY = 0;
+    private static final long MAX_WEIGHT = weightOf(LinkedProcess.HIGHEST_PRIORITY);
+
+    // The number of villeins with a virtual time above which the virtual
+    // times of idle villeins are forgotten.
+    private static final int MAX_VILLEINS = 1000;
+
+    private final Map<String, Long> weightsByVillein;
+    private final Map<String, Long> virtualTimesByVillein;
+    private long virtualClock = 0;
+
+    /**
+     * @param conf a configuration which may assign priorities to villeins
+     */
+    public FairSharePolicy(final Properties conf) {
+        weightsByVillein = new HashMap<String, Long>();
+        virtualTimesByVillein = new HashMap<String, Long>();
+
+        for (Object key : conf.keySet()) {
+            if (key instanceof String
+                    && ((String) key).startsWith(LinkedProcess.VILLEIN_PRIORITY_PROPERTY)) {
+                String value = conf.get(key).toString().trim();
+                String[] jidAndPriority = value.split("\\s+");
+                try {
+                    if (2 != jidAndPriority.length) {
+                        throw new NumberFormatException();
+                    }
+
+                    int priority = Math.max(LinkedProcess.LOWEST_PRIORITY,
+                            Math.min(LinkedProcess.HIGHEST_PRIORITY, new Integer(jidAndPriority[1])));
+                    weightsByVillein.put(bareJid(jidAndPriority[0]), weightOf(priority));
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("bad villein priority (expected a JID and a number): " + key + " = " + value);
+                }
+            }
+        }
+    }
+
+    public synchronized long rank(final Job next) {
+        return Math.max(virtualTimeOf(villeinOf(next)), virtualClock);
+    }
+
+    public synchronized void charge(final Job job,
+                                    final long time) {
+        String villein = villeinOf(job);
+        long start = Math.max(virtualTimeOf(villein), virtualClock);
+
+        // The virtual clock follows the start time of the job in service.
+        virtualClock = start;
+        virtualTimesByVillein.put(villein, start + time * MAX_WEIGHT / weightOf(villein));
+
+        if (virtualTimesByVillein.size() > MAX_VILLEINS) {
+            forgetIdleVilleins();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static long weightOf(final int priority) {
+        return priority - LinkedProcess.LOWEST_PRIORITY + 1;
+    }
+
+    private static String bareJid(final String jid) {
+        int i = jid.indexOf('/');
+        return i < 0 ? jid : jid.substring(0, i);
+    }
+
+    private static String villeinOf(final Job job) {
+        return null == job || null == job.getVilleinJid() ? "" : bareJid(job.getVilleinJid());
+    }
+
+    private long weightOf(final String villein) {
+        Long weight = weightsByVillein.get(villein);
+        return null == weight ? weightOf(DEFAULT_PRIORITY) : weight;
+    }
+
+    private long virtualTimeOf(final String villein) {
+        Long time = virtualTimesByVillein.get(villein);
+        return null == time ? 0 : time;
+    }
+
+    private void forgetIdleVilleins() {
+        // A villein which has fallen behind the virtual clock would be brought
+        // forward to it anyway.
+        Iterator<Long> iter = virtualTimesByVillein.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next() <= virtualClock) {
+                iter.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams the output of a VM's jobs to the villein as they run.  Whatever a
+ * job writes to the standard output of its script engine (e.g. with print) is
+ * cut into chunks, which are sent at the end of each time slice as sequenced
+ * partial results.  The result of the job follows its output, and a result
+ * too long for a single chunk is itself sent in pieces, so that no packet
+ * carries more than one chunk.
+ * <p/>
+ * Only the jobs whose villein has asked for it (see Job.isStreamed()) are
+ * streamed.  The output of any other job goes where it would have gone
+ * otherwise, and its result is sent whole.
+ * <p/>
+ * A job's output is written by the thread which runs the job, and sent by the
+ * sequencer thread which holds the worker.  They share nothing but a
+ * lock-free queue, so that a thread which is suspended while writing can't
+ * hold up the sequencer.
+ */
+public class JobOutput {
+    private final int chunkSize;
+    private final Queue<String> chunks = new ConcurrentLinkedQueue<String>();
+    private final Writer writer = new ChunkWriter();
+    // The writer of the output which is not streamed.
+    private final Writer otherOutput;
+
+    // Accessed only by the thread running the current job.
+    private final StringBuilder buffer = new StringBuilder();
+    // The thread running the current job, if it is streamed.  Output from any
+    // other thread (for instance, that of a cancelled job which has yet to
+    // stop) is not streamed.
+    private volatile Thread jobThread = null;
+
+    /**
+     * @param chunkSize   the maximum number of characters in a partial result
+     * @param otherOutput the writer of the output which is not streamed: the
+     *                    standard output the script engine had before
+     */
+    public JobOutput(final int chunkSize,
+                     final Writer otherOutput) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+
+        this.chunkSize = chunkSize;
+        this.otherOutput = otherOutput;
+    }
+
+    /**
+     * @return a writer to be used as the standard output of the script engine
+     */
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Called by the thread which runs a job, before the job begins.
+     *
+     * @param job the job
+     */
+    public void begin(final Job job) {
+        buffer.setLength(0);
+        jobThread = job.isStreamed() ? Thread.currentThread() : null;
+    }
+
+    /**
+     * Called by the thread which runs a job, after the job has finished.  The
+     * job's remaining output is made ready to be sent.
+     */
+    public void end() {
+        if (Thread.currentThread() == jobThread) {
+            flushBuffer();
+            jobThread = null;
+        }
+    }
+
+    /**
+     * Called by a sequencer thread, to send the output a job has written so
+     * far.  Small pieces of output are gathered into chunks.
+     *
+     * @param job     the job which has written the output
+     * @param handler a handler for the partial results
+     */
+    public void send(final Job job,
+                     final VmScheduler.VmPartialResultHandler handler) {
+        StringBuilder sb = new StringBuilder();
+        String s;
+        while (null != (s = chunks.poll())) {
+            if (sb.length() > 0 && sb.length() + s.length() > chunkSize) {
+                sendChunk(job, sb.toString(), handler);
+                sb.setLength(0);
+            }
+            sb.append(s);
+        }
+
+        if (sb.length() > 0) {
+            sendChunk(job, sb.toString(), handler);
+        }
+    }
+
+    /**
+     * Called by a sequencer thread when a job has finished.  The job's
+     * remaining output is sent (or, if the job has failed, discarded), and a
+     * long result is sent in pieces.
+     *
+     * @param result  the result of the job
+     * @param handler a handler for the partial results
+     * @return the result to be sent after all partial results: either the
+     *         given result or, if it has been sent in pieces, its final piece
+     */
+    public JobResult finish(final JobResult result,
+                            final VmScheduler.VmPartialResultHandler handler) {
+        if (JobResult.ResultType.NORMAL_RESULT != result.getType()) {
+            chunks.clear();
+            return result;
+        }
+
+        Job job = result.getJob();
+        if (!job.isStreamed()) {
+            return result;
+        }
+        send(job, handler);
+
+        // A binary-encoded or typed result only makes sense whole, so it is not split.
+        String expression = result.getExpression();
+        if (null == expression || expression.length() <= chunkSize || null != job.getResultEncoding()) {
+            return result;
+        }
+
+        int start = 0;
+        while (expression.length() - start > chunkSize) {
+            sendChunk(job, expression.substring(start, start + chunkSize), handler);
+            start += chunkSize;
+        }
+
+        return new JobResult(job, expression.substring(start));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void sendChunk(final Job job,
+                           final String chunk,
+                           final VmScheduler.VmPartialResultHandler handler) {
+        handler.handlePartialResult(new JobResult(job, chunk, job.nextPartialResult()));
+    }
+
+    private void flushBuffer() {
+        if (buffer.length() > 0) {
+            chunks.add(buffer.toString());
+            buffer.setLength(0);
+        }
+    }
+
+    private class ChunkWriter extends Writer {
+        public void write(final char[] cbuf,
+                          final int off,
+                          final int len) throws IOException {
+            if (Thread.currentThread() != jobThread) {
+                otherOutput.write(cbuf, off, len);
+                return;
+            }
+
+            int start = off;
+            int end = off + len;
+            while (start < end) {
+                int n = Math.min(end - start, chunkSize - buffer.length());
+                buffer.append(cbuf, start, n);
+                start += n;
+                if (buffer.length() >= chunkSize) {
+                    flushBuffer();
+                }
+            }
+        }
+
+        public void flush() throws IOException {
+            // Note: a flush makes the output ready to be sent at the end of
+            // the time slice, rather than once a full chunk has been written.
+            if (Thread.currentThread() == jobThread) {
+                flushBuffer();
+            } else {
+                otherOutput.flush();
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
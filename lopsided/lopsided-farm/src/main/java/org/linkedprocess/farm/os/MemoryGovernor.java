@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.farm.os.errors.MemoryQuotaExceededException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Wrapper;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps each VM within its memory quotas, so that a single VM cannot exhaust
+ * the heap shared by all of the farm's VMs.  There are two quotas:
+ * <ul>
+ * <li>the memory a job may allocate over its lifetime, garbage included.  A
+ * job which goes over it is aborted</li>
+ * <li>the size of a VM's bindings, which live on from job to job.  A VM whose
+ * bindings grow beyond it is terminated</li>
+ * </ul>
+ * Allocation is measured by the resource accountant, and checked whenever the
+ * accounts are brought up to date: at the end of each time slice, and at
+ * regular intervals within a time slice.  The size of a VM's bindings is
+ * estimated by walking them, which is done only when a job has finished (the
+ * state of a paused job is not all in the bindings), and only when the
+ * bindings may have outgrown the quota: they cannot have grown by more than
+ * the memory allocated since they were last measured.
+ * <p/>
+ * The governor is used only by sequencer threads.  A worker is never in the
+ * hands of more than one sequencer at a time, so its footprint needs no lock.
+ */
+public class MemoryGovernor {
+    // Rough sizes, in bytes, of the objects found in bindings, for a 64-bit JVM.
+    private static final int
+            OBJECT_SIZE = 16,
+            STRING_SIZE = 40,
+            REFERENCE_SIZE = 8,
+            SCRIPTABLE_SIZE = 64,
+            PROPERTY_SIZE = 32;
+
+    private final long maxJobAllocatedBytes;
+    private final long maxFootprint;
+    private final long checkInterval;
+
+    private final AtomicLong jobsAborted = new AtomicLong(0);
+    private final AtomicLong vmsTerminated = new AtomicLong(0);
+    private final AtomicLong footprintMeasurements = new AtomicLong(0);
+
+    /**
+     * @param maxJobAllocatedBytes the memory a job may allocate, in bytes.  If
+     *                             negative, there is no limit
+     * @param maxFootprint         the estimated size a VM's bindings may
+     *                             reach, in bytes.  If negative, there is no
+     *                             limit
+     * @param checkInterval        the time between checks within a time
+     *                             slice, in milliseconds
+     */
+    public MemoryGovernor(final long maxJobAllocatedBytes,
+                          final long maxFootprint,
+                          final long checkInterval) {
+        if (checkInterval < 1) {
+            throw new IllegalArgumentException("check interval must be positive");
+        }
+
+        this.maxJobAllocatedBytes = maxJobAllocatedBytes;
+        this.maxFootprint = maxFootprint;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return the time between checks within a time slice, in milliseconds
+     */
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Called within a time slice, while the job is running.
+     *
+     * @param job                   the job
+     * @param unaccountedAllocation the memory allocated by the job since its
+     *                              account was last brought up to date, in
+     *                              bytes
+     * @return whether the time slice should be ended early, so that the job's
+     *         quota can be enforced
+     */
+    public boolean isOverQuota(final Job job,
+                               final long unaccountedAllocation) {
+        return maxJobAllocatedBytes >= 0
+                && job.getAllocatedBytes() + unaccountedAllocation > maxJobAllocatedBytes;
+    }
+
+    /**
+     * Called at the end of each time slice, once the job's account is up to
+     * date.
+     *
+     * @param w              the worker which has run the job
+     * @param job            the job
+     * @param allocatedBytes the memory allocated during the time slice, in bytes
+     * @param finished       whether the job has finished, in which case the
+     *                       VM's bindings may be measured
+     * @param bindings       the VM's bindings
+     * @return an error if the job is to be stopped, otherwise null.  If the
+     *         VM has gone over its quota, it is marked for termination
+     */
+    public MemoryQuotaExceededException check(final VmWorker w,
+                                              final Job job,
+                                              final long allocatedBytes,
+                                              final boolean finished,
+                                              final Map<String, Object> bindings) {
+        Footprint f = w.memoryFootprint;
+        f.bound += allocatedBytes;
+
+        // Note: if allocation can't be measured, neither can the bound.
+        if (maxFootprint >= 0 && finished
+                && (f.bound > maxFootprint || !ResourceAccountant.isAllocationSupported())) {
+            footprintMeasurements.incrementAndGet();
+            long size = estimateSize(bindings, maxFootprint);
+            f.bound = size;
+            if (size > maxFootprint) {
+                vmsTerminated.incrementAndGet();
+                f.exceeded = true;
+                return new MemoryQuotaExceededException("the bindings of virtual machine "
+                        + job.getVmId() + " have outgrown the quota of " + maxFootprint + " bytes");
+            }
+        }
+
+        if (maxJobAllocatedBytes >= 0 && job.getAllocatedBytes() > maxJobAllocatedBytes) {
+            jobsAborted.incrementAndGet();
+            return new MemoryQuotaExceededException("job " + job.getJobId() + " has allocated "
+                    + job.getAllocatedBytes() + " bytes, over the quota of " + maxJobAllocatedBytes + " bytes");
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of jobs which have been aborted for allocating too much
+     */
+    public long getJobsAborted() {
+        return jobsAborted.get();
+    }
+
+    /**
+     * @return the number of VMs which have been terminated for holding too much
+     */
+    public long getVmsTerminated() {
+        return vmsTerminated.get();
+    }
+
+    /**
+     * @return the number of times the bindings of a VM have been measured
+     */
+    public long getFootprintMeasurements() {
+        return footprintMeasurements.get();
+    }
+
+    public String toString() {
+        return "memory governor: " + jobsAborted.get() + " jobs aborted, "
+                + vmsTerminated.get() + " VMs terminated, "
+                + footprintMeasurements.get() + " footprint measurements";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Estimates the memory held by a set of bindings.  Objects shared by more
+     * than one binding are counted once.
+     *
+     * @param bindings the bindings to measure
+     * @param limit    a size beyond which the walk may stop, in bytes.  If
+     *                 negative, the bindings are measured in full
+     * @return the estimated size of the bindings, in bytes
+     */
+    static long estimateSize(final Map<String, Object> bindings,
+                             final long limit) {
+        Map<Object, Object> visited = new IdentityHashMap<Object, Object>();
+        // Note: an explicit stack, rather than recursion, so that deeply
+        // nested objects can't overflow the sequencer's stack.
+        LinkedList<Object> pending = new LinkedList<Object>();
+        long size = 0;
+
+        for (Map.Entry<String, Object> e : bindings.entrySet()) {
+            size += PROPERTY_SIZE + stringSize(e.getKey());
+            if (null != e.getValue()) {
+                pending.add(e.getValue());
+            }
+        }
+
+        while (!pending.isEmpty() && (limit < 0 || size <= limit)) {
+            Object value = pending.removeFirst();
+            if (null != visited.put(value, value)) {
+                continue;
+            }
+
+            if (value instanceof String) {
+                size += stringSize((String) value);
+            } else if (value instanceof Scriptable && !(value instanceof Wrapper)) {
+                Scriptable s = (Scriptable) value;
+                Object[] ids = s.getIds();
+                size += SCRIPTABLE_SIZE + ids.length * PROPERTY_SIZE;
+                for (Object id : ids) {
+                    Object child = id instanceof Integer
+                            ? s.get((Integer) id, s)
+                            : s.get(id.toString(), s);
+                    if (null != child && Scriptable.NOT_FOUND != child) {
+                        pending.add(child);
+                    }
+                }
+            } else if (value instanceof Object[]) {
+                Object[] array = (Object[]) value;
+                size += OBJECT_SIZE + array.length * REFERENCE_SIZE;
+                for (Object child : array) {
+                    if (null != child) {
+                        pending.add(child);
+                    }
+                }
+            } else {
+                // Numbers, booleans and wrapped Java objects.
+                size += OBJECT_SIZE;
+            }
+        }
+
+        return size;
+    }
+
+    private static long stringSize(final String s) {
+        return STRING_SIZE + 2 * s.length();
+    }
+
+    /**
+     * What is known of the size of a VM's bindings.
+     */
+    static class Footprint {
+        // An upper bound on the size of the bindings, in bytes: their size
+        // when last measured, plus all memory allocated since.
+        private long bound = 0;
+        // Whether the VM has gone over its quota.
+        private volatile boolean exceeded = false;
+
+        public boolean isExceeded() {
+            return exceeded;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of workers which are ready to execute jobs, ordered by a
+ * scheduling policy.  Workers are ranked as they are added to the queue, so a
+ * worker's place in the queue does not change while it waits.  Like
+ * VmRunQueue, the queue is shared by all sequencers, and uses each worker's
+ * flag for the check for a worker which is already present.
+ */
+public class PriorityRunQueue implements VmWorkerQueue {
+    private final SchedulingPolicy policy;
+    private final BlockingQueue<Entry> queue;
+    // Breaks ties between equally ranked workers, in favor of the first queued.
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * @param policy the policy which ranks workers
+     */
+    public PriorityRunQueue(final SchedulingPolicy policy) {
+        this.policy = policy;
+        queue = new PriorityBlockingQueue<Entry>();
+    }
+
+    public SchedulingPolicy getPolicy() {
+        return policy;
+    }
+
+    public VmWorker take(final int sequencerIndex) throws InterruptedException {
+        VmWorker w = queue.take().worker;
+        w.queued.set(false);
+        return w;
+    }
+
+    public void offer(final VmWorker w) {
+        queue.offer(createEntry(w));
+    }
+
+    public boolean offerDistinct(final VmWorker w,
+                                 final int sequencerIndex) {
+        if (!w.queued.compareAndSet(false, true)) {
+            return false;
+        }
+
+        queue.offer(createEntry(w));
+        return true;
+    }
+
+    public boolean remove(final VmWorker w) {
+        // Note: a linear operation, but workers are only removed when they are terminated.
+        for (Entry e : queue) {
+            if (e.worker == w && queue.remove(e)) {
+                w.queued.set(false);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public void clear() {
+        Entry e;
+        while (null != (e = queue.poll())) {
+            e.worker.queued.set(false);
+        }
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private Entry createEntry(final VmWorker w) {
+        // The sentinel has no jobs, and is taken before any worker.
+        long rank = VmWorker.SCHEDULER_TERMINATED_SENTINEL == w
+                ? Long.MIN_VALUE
+                : policy.rank(w.getNextJob());
+        return new Entry(w, rank, sequence.getAndIncrement());
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final VmWorker worker;
+        private final long rank;
+        private final long sequenceNumber;
+
+        public Entry(final VmWorker worker,
+                     final long rank,
+                     final long sequenceNumber) {
+            this.worker = worker;
+            this.rank = rank;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        public int compareTo(final Entry other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+
+            return sequenceNumber < other.sequenceNumber
+                    ? -1
+                    : sequenceNumber == other.sequenceNumber ? 0 : 1;
+        }
+    }
+}
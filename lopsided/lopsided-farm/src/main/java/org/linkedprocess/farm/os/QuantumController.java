@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long each time slice lasts, and keeps count of time slices and
+ * context switches.
+ * <p/>
+ * With a fixed quantum, every slice lasts the same.  With an adaptive
+ * quantum, slices are sized in the manner of a multilevel feedback queue: at
+ * level n, a slice lasts the minimum quantum times 2^n (but no longer than
+ * the maximum quantum), and a job which uses up its slice without finishing
+ * moves down a level, so that long jobs are interrupted less and less often.
+ * Rather than at the top level, each new job starts at the level at which
+ * nine in ten of the recent jobs of the same VM would have finished within a
+ * single slice, so that a VM whose jobs all take a little longer than the
+ * minimum quantum is not paused and resumed for every one of them.
+ * <p/>
+ * The controller is used only by sequencer threads.  A worker is never in the
+ * hands of more than one sequencer at a time, so its history needs no lock.
+ */
+public class QuantumController {
+    // The proportion of a VM's recent jobs which should fit in its first slice.
+    private static final double TARGET_FRACTION = 0.9;
+    // The number of jobs at which a VM's history is halved, so that its
+    // runtime distribution follows recent jobs.
+    private static final int HISTORY_SIZE = 64;
+
+    private final boolean adaptive;
+    private final long[] quanta;
+
+    private final AtomicLong timeSlices = new AtomicLong(0);
+    private final AtomicLong contextSwitches = new AtomicLong(0);
+    private final AtomicLong jobsFinished = new AtomicLong(0);
+    private final AtomicLong sliceTime = new AtomicLong(0);
+    private final AtomicLong overheadTime = new AtomicLong(0);
+
+    /**
+     * Creates a controller with a fixed quantum.
+     *
+     * @param quantum the length of every time slice, in milliseconds
+     */
+    public QuantumController(final long quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum must be positive");
+        }
+
+        adaptive = false;
+        quanta = new long[]{quantum};
+    }
+
+    /**
+     * Creates a controller with an adaptive quantum.
+     *
+     * @param minQuantum the length of a time slice at the top level, in
+     *                   milliseconds
+     * @param maxQuantum the maximum length of a time slice, in milliseconds
+     */
+    public QuantumController(final long minQuantum,
+                             final long maxQuantum) {
+        if (minQuantum < 1 || maxQuantum < minQuantum) {
+            throw new IllegalArgumentException("bad quantum bounds: " + minQuantum + ", " + maxQuantum);
+        }
+
+        adaptive = true;
+        int levels = 1;
+        while ((minQuantum << (levels - 1)) < maxQuantum) {
+            levels++;
+        }
+        quanta = new long[levels];
+        for (int i = 0; i < levels; i++) {
+            quanta[i] = Math.min(minQuantum << i, maxQuantum);
+        }
+    }
+
+    /**
+     * @param w   a worker which is about to be given a time slice
+     * @param job the job it will work on, if known
+     * @return the length of the time slice, in milliseconds
+     */
+    public long getQuantum(final VmWorker w,
+                           final Job job) {
+        return getQuantum(w.quantumHistory, job);
+    }
+
+    /**
+     * Called by a sequencer at the end of each time slice.
+     *
+     * @param w       the worker which has been given the time slice
+     * @param job     the job it has worked on, if known
+     * @param quantum the length of the time slice, in milliseconds
+     * @param time    the time the slice has actually taken, in nanoseconds
+     */
+    public void timeSliceFinished(final VmWorker w,
+                                  final Job job,
+                                  final long quantum,
+                                  final long time) {
+        // If the worker has moved on, the job has produced a result.
+        boolean finished = null != job && w.getNextJob() != job;
+        timeSliceFinished(w.quantumHistory, job, quantum, time, finished);
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the number of time slices which have been given
+     */
+    public long getTimeSlices() {
+        return timeSlices.get();
+    }
+
+    /**
+     * @return the number of time slices at the end of which a job has had to
+     *         be paused
+     */
+    public long getContextSwitches() {
+        return contextSwitches.get();
+    }
+
+    /**
+     * @return the number of jobs which have finished
+     */
+    public long getJobsFinished() {
+        return jobsFinished.get();
+    }
+
+    /**
+     * @return the total time taken by time slices, in nanoseconds
+     */
+    public long getSliceTime() {
+        return sliceTime.get();
+    }
+
+    /**
+     * @return the time by which time slices have overrun their quanta, in
+     *         nanoseconds.  This is the cost of pausing and resuming jobs
+     */
+    public long getOverheadTime() {
+        return overheadTime.get();
+    }
+
+    public String toString() {
+        long slices = timeSlices.get();
+        return "time slices: " + slices + " slices, "
+                + contextSwitches.get() + " context switches, "
+                + jobsFinished.get() + " jobs finished, "
+                + (overheadTime.get() / 1000000.0) + " ms of overhead ("
+                + (0 == slices ? 0 : overheadTime.get() / 1000.0 / slices) + " us per slice)";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    long getQuantum(final History history,
+                    final Job job) {
+        if (!adaptive) {
+            return quanta[0];
+        }
+
+        if (null != job && job != history.job) {
+            history.job = job;
+            history.level = getStartingLevel(history);
+        }
+
+        return quanta[history.level];
+    }
+
+    void timeSliceFinished(final History history,
+                           final Job job,
+                           final long quantum,
+                           final long time,
+                           final boolean finished) {
+        timeSlices.incrementAndGet();
+        sliceTime.addAndGet(time);
+        long overrun = time - quantum * 1000000;
+        if (overrun > 0) {
+            overheadTime.addAndGet(overrun);
+        }
+
+        if (null == job) {
+            return;
+        }
+
+        if (finished) {
+            jobsFinished.incrementAndGet();
+            if (adaptive) {
+                // Note: time spent is counted only for slices which the job has
+                // used up, so the last slice is added.
+                addToHistory(history, job.getTimeSpent() + time / 1000000);
+                history.job = null;
+            }
+        } else {
+            contextSwitches.incrementAndGet();
+            if (adaptive && job == history.job && history.level < quanta.length - 1) {
+                history.level++;
+            }
+        }
+    }
+
+    private int getStartingLevel(final History history) {
+        if (0 == history.jobs) {
+            return 0;
+        }
+
+        int target = (int) Math.ceil(history.jobs * TARGET_FRACTION);
+        int count = 0;
+        for (int i = 0; i < quanta.length; i++) {
+            count += history.jobsByLevel[i];
+            if (count >= target) {
+                return i;
+            }
+        }
+
+        return quanta.length - 1;
+    }
+
+    private void addToHistory(final History history,
+                              final long runtime) {
+        if (null == history.jobsByLevel) {
+            history.jobsByLevel = new int[quanta.length];
+        }
+
+        int level = 0;
+        while (level < quanta.length - 1 && quanta[level] < runtime) {
+            level++;
+        }
+        history.jobsByLevel[level]++;
+        history.jobs++;
+
+        if (history.jobs >= HISTORY_SIZE) {
+            history.jobs = 0;
+            for (int i = 0; i < quanta.length; i++) {
+                history.jobsByLevel[i] /= 2;
+                history.jobs += history.jobsByLevel[i];
+            }
+        }
+    }
+
+    /**
+     * The runtimes of a VM's recent jobs, and the level of its current job.
+     */
+    static class History {
+        private Job job;
+        private int level;
+        // Recent jobs, by the level at which they would have finished in a
+        // single slice.
+        private int[] jobsByLevel;
+        private int jobs;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.jivesoftware.smackx.FormField;
+import org.jivesoftware.smackx.packet.DataForm;
+import org.linkedprocess.LinkedProcess;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps account of the resources used by jobs: the processor time and memory
+ * used by the threads which run them, the time for which they have run, and
+ * the time for which they have waited.  Each job keeps its own account, and
+ * the totals are kept for each VM, for each villein (by bare JID) and for the
+ * farm as a whole.  The accounts of a VM are kept for as long as the VM
+ * exists, and those of a villein for as long as the farm runs.
+ * <p/>
+ * Usage is sampled by sequencer threads at the end of each time slice, so the
+ * accounts of a VM whose job never finishes are still up to date.  The usage
+ * of a thread since it was last sampled is charged to the job it is running,
+ * so a carrier thread's overhead between jobs is charged to its next job.
+ * <p/>
+ * The farm totals are published in the farm's service discovery information.
+ * All accounts are available through JMX.
+ */
+public class ResourceAccountant implements ResourceAccountantMBean {
+    private static final Logger LOGGER = LinkedProcess.getLogger(ResourceAccountant.class);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED;
+    private static final boolean ALLOCATION_SUPPORTED;
+
+    // Whether measurement has been switched on, by the first accountant.
+    private static boolean measuring = false;
+
+    // Note: measurement is only switched on (for the whole JVM) once an
+    // accountant is created, and not merely when its support is looked up.
+    static {
+        CPU_TIME_SUPPORTED = THREADS.isThreadCpuTimeSupported();
+
+        boolean allocationSupported;
+        try {
+            allocationSupported = THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+        } catch (NoClassDefFoundError e) {
+            // Not a Sun JVM, or one older than 1.6.0_25.
+            allocationSupported = false;
+        } catch (NoSuchMethodError e) {
+            // Ditto.
+            allocationSupported = false;
+        }
+        ALLOCATION_SUPPORTED = allocationSupported;
+    }
+
+    private final Usage total = new Usage();
+    private final ConcurrentMap<String, Usage> usageByVm = new ConcurrentHashMap<String, Usage>();
+    private final ConcurrentMap<String, Usage> usageByVillein = new ConcurrentHashMap<String, Usage>();
+
+    // The usage of each thread as of the last time it was sampled.  Dead
+    // threads are forgotten.
+    private final Map<Thread, long[]> samplesByThread = new WeakHashMap<Thread, long[]>();
+
+    public ResourceAccountant() {
+        startMeasuring();
+    }
+
+    private static synchronized void startMeasuring() {
+        if (measuring) {
+            return;
+        }
+        measuring = true;
+
+        if (CPU_TIME_SUPPORTED && !THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        if (ALLOCATION_SUPPORTED) {
+            ((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(true);
+        }
+
+        if (!CPU_TIME_SUPPORTED || !ALLOCATION_SUPPORTED) {
+            LOGGER.warning("thread CPU time supported: " + CPU_TIME_SUPPORTED
+                    + ", thread memory allocation supported: " + ALLOCATION_SUPPORTED);
+        }
+    }
+
+    /**
+     * Called by a sequencer at the end of each time slice.
+     *
+     * @param job     the job which has run during the time slice
+     * @param thread  the thread which has run the job, if known
+     * @param runTime the length of the time slice, in nanoseconds
+     */
+    public void chargeTimeSlice(final Job job,
+                                final Thread thread,
+                                final long runTime) {
+        long cpuTime = 0;
+        long allocatedBytes = 0;
+        if (null != thread) {
+            long[] usage = sample(thread);
+            cpuTime = usage[0];
+            allocatedBytes = usage[1];
+        }
+
+        job.chargeTimeSlice(runTime, cpuTime, allocatedBytes);
+        for (Usage u : accountsOf(job)) {
+            u.charge(runTime, cpuTime, allocatedBytes);
+        }
+    }
+
+    /**
+     * @param thread a thread which runs jobs
+     * @return the memory allocated by the thread since it was last sampled, in
+     *         bytes.  The sample is left as it is
+     */
+    public long peekAllocatedBytes(final Thread thread) {
+        if (!ALLOCATION_SUPPORTED) {
+            return 0;
+        }
+
+        long allocatedBytes = ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(thread.getId());
+        if (allocatedBytes < 0) {
+            return 0;
+        }
+
+        synchronized (samplesByThread) {
+            long[] last = samplesByThread.get(thread);
+            return Math.max(0, allocatedBytes - (null == last ? 0 : last[1]));
+        }
+    }
+
+    /**
+     * @return whether the memory allocated by each thread can be measured
+     */
+    public static boolean isAllocationSupported() {
+        return ALLOCATION_SUPPORTED;
+    }
+
+    /**
+     * Called as each job produces its result, whether it has run or not.
+     *
+     * @param job the job which has finished
+     */
+    public void jobFinished(final Job job) {
+        long queueWaitTime = Math.max(0,
+                (System.currentTimeMillis() - job.getTimeCreated()) * 1000000 - job.getRunTime());
+        for (Usage u : accountsOf(job)) {
+            u.finish(queueWaitTime);
+        }
+    }
+
+    /**
+     * Forgets the accounts of a VM which no longer exists.
+     *
+     * @param vmId the JID of the VM
+     */
+    public void vmTerminated(final String vmId) {
+        usageByVm.remove(vmId);
+    }
+
+    /**
+     * @return the resources used by all jobs
+     */
+    public Usage getTotalUsage() {
+        return total;
+    }
+
+    /**
+     * @param vmId the JID of a VM
+     * @return the resources used by the VM's jobs, or null if the VM has not
+     *         run any job
+     */
+    public Usage getUsageByVm(final String vmId) {
+        return usageByVm.get(vmId);
+    }
+
+    /**
+     * @param villeinJid the JID of a villein
+     * @return the resources used by the villein's jobs, or null if the
+     *         villein has not submitted any job
+     */
+    public Usage getUsageByVillein(final String villeinJid) {
+        return usageByVillein.get(bareJid(villeinJid));
+    }
+
+    /**
+     * Adds the farm totals to a service discovery form.  The values are those
+     * at the time the form is sent.
+     *
+     * @param serviceExtension the form
+     */
+    public void addFields(final DataForm serviceExtension) {
+        for (final Statistic s : Statistic.values()) {
+            FormField field = new FormField(s.specName) {
+                public Iterator<String> getValues() {
+                    return Collections.singletonList("" + s.valueOf(total)).iterator();
+                }
+            };
+            field.setLabel(s.label);
+            field.setType(FormField.TYPE_TEXT_SINGLE);
+            serviceExtension.addField(field);
+        }
+    }
+
+    public String toString() {
+        return "resource usage: " + total;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // ResourceAccountantMBean
+
+    public long getJobsCompleted() {
+        return total.getJobsCompleted();
+    }
+
+    public long getCpuTime() {
+        return total.getCpuTime() / 1000000;
+    }
+
+    public long getAllocatedBytes() {
+        return total.getAllocatedBytes();
+    }
+
+    public long getRunTime() {
+        return total.getRunTime() / 1000000;
+    }
+
+    public long getQueueWaitTime() {
+        return total.getQueueWaitTime() / 1000000;
+    }
+
+    public String getVmUsage(final String vmId) {
+        Usage u = getUsageByVm(vmId);
+        return null == u ? null : u.toString();
+    }
+
+    public String getVilleinUsage(final String villeinJid) {
+        Usage u = getUsageByVillein(villeinJid);
+        return null == u ? null : u.toString();
+    }
+
+    public String[] getTopVmsByCpuTime(final int count) {
+        List<Map.Entry<String, Usage>> entries = new ArrayList<Map.Entry<String, Usage>>(usageByVm.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Usage>>() {
+            public int compare(final Map.Entry<String, Usage> a,
+                               final Map.Entry<String, Usage> b) {
+                long d = b.getValue().getCpuTime() - a.getValue().getCpuTime();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+
+        String[] top = new String[Math.min(count, entries.size())];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue();
+        }
+
+        return top;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the processor time and memory used by the thread since it was
+     *         last sampled
+     */
+    private long[] sample(final Thread thread) {
+        long id = thread.getId();
+        long cpuTime = CPU_TIME_SUPPORTED ? THREADS.getThreadCpuTime(id) : -1;
+        long allocatedBytes = ALLOCATION_SUPPORTED
+                ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(id)
+                : -1;
+
+        synchronized (samplesByThread) {
+            long[] last = samplesByThread.get(thread);
+            if (null == last) {
+                // All of a new thread's usage so far is charged to its first job.
+                last = new long[]{0, 0};
+                samplesByThread.put(thread, last);
+            }
+
+            // Note: -1 means that the thread has died, or is not measured.
+            long[] usage = new long[]{
+                    cpuTime < 0 ? 0 : Math.max(0, cpuTime - last[0]),
+                    allocatedBytes < 0 ? 0 : Math.max(0, allocatedBytes - last[1])};
+            if (cpuTime >= 0) {
+                last[0] = cpuTime;
+            }
+            if (allocatedBytes >= 0) {
+                last[1] = allocatedBytes;
+            }
+
+            return usage;
+        }
+    }
+
+    private List<Usage> accountsOf(final Job job) {
+        List<Usage> accounts = new ArrayList<Usage>(3);
+        accounts.add(total);
+        if (null != job.getVmId()) {
+            accounts.add(accountOf(usageByVm, job.getVmId()));
+        }
+        if (null != job.getVilleinJid()) {
+            accounts.add(accountOf(usageByVillein, bareJid(job.getVilleinJid())));
+        }
+
+        return accounts;
+    }
+
+    private static Usage accountOf(final ConcurrentMap<String, Usage> accounts,
+                                   final String key) {
+        Usage u = accounts.get(key);
+        if (null == u) {
+            Usage newUsage = new Usage();
+            u = accounts.putIfAbsent(key, newUsage);
+            if (null == u) {
+                u = newUsage;
+            }
+        }
+
+        return u;
+    }
+
+    private static String bareJid(final String jid) {
+        int i = jid.indexOf('/');
+        return i < 0 ? jid : jid.substring(0, i);
+    }
+
+    /**
+     * The resources used by a set of jobs.  Times are in nanoseconds.
+     */
+    public static class Usage {
+        private final AtomicLong jobsCompleted = new AtomicLong(0);
+        private final AtomicLong runTime = new AtomicLong(0);
+        private final AtomicLong cpuTime = new AtomicLong(0);
+        private final AtomicLong allocatedBytes = new AtomicLong(0);
+        private final AtomicLong queueWaitTime = new AtomicLong(0);
+
+        /**
+         * @return the number of jobs which have produced a result
+         */
+        public long getJobsCompleted() {
+            return jobsCompleted.get();
+        }
+
+        /**
+         * @return the total length of the time slices in which jobs have run
+         */
+        public long getRunTime() {
+            return runTime.get();
+        }
+
+        /**
+         * @return the processor time used by jobs
+         */
+        public long getCpuTime() {
+            return cpuTime.get();
+        }
+
+        /**
+         * @return the memory allocated by jobs, in bytes
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes.get();
+        }
+
+        /**
+         * @return the time for which completed jobs have waited, from the time
+         *         they were received to the time they produced a result, apart
+         *         from the time for which they ran
+         */
+        public long getQueueWaitTime() {
+            return queueWaitTime.get();
+        }
+
+        public String toString() {
+            return jobsCompleted.get() + " jobs, "
+                    + (cpuTime.get() / 1000000) + " ms CPU, "
+                    + allocatedBytes.get() + " bytes allocated, "
+                    + (runTime.get() / 1000000) + " ms running, "
+                    + (queueWaitTime.get() / 1000000) + " ms waiting";
+        }
+
+        private void charge(final long runTime,
+                            final long cpuTime,
+                            final long allocatedBytes) {
+            this.runTime.addAndGet(runTime);
+            this.cpuTime.addAndGet(cpuTime);
+            this.allocatedBytes.addAndGet(allocatedBytes);
+        }
+
+        private void finish(final long queueWaitTime) {
+            jobsCompleted.incrementAndGet();
+            this.queueWaitTime.addAndGet(queueWaitTime);
+        }
+    }
+
+    /**
+     * The farm totals which are published through service discovery.
+     */
+    private enum Statistic {
+        JOBS_COMPLETED("jobs_completed", "the number of jobs which have been completed by this farm"),
+        JOB_CPU_TIME("job_cpu_time", "the number of milliseconds of processor time used by jobs on this farm"),
+        JOB_ALLOCATED_BYTES("job_allocated_bytes", "the number of bytes of memory allocated by jobs on this farm"),
+        JOB_RUN_TIME("job_run_time", "the number of milliseconds for which jobs have run on this farm"),
+        JOB_QUEUE_WAIT_TIME("job_queue_wait_time", "the number of milliseconds for which completed jobs have waited to run on this farm");
+
+        private final String specName;
+        private final String label;
+
+        private Statistic(final String specName,
+                          final String label) {
+            this.specName = specName;
+            this.label = label;
+        }
+
+        private long valueOf(final Usage u) {
+            switch (this) {
+                case JOBS_COMPLETED:
+                    return u.getJobsCompleted();
+                case JOB_CPU_TIME:
+                    return u.getCpuTime() / 1000000;
+                case JOB_ALLOCATED_BYTES:
+                    return u.getAllocatedBytes();
+                case JOB_RUN_TIME:
+                    return u.getRunTime() / 1000000;
+                case JOB_QUEUE_WAIT_TIME:
+                    return u.getQueueWaitTime() / 1000000;
+                default:
+                    throw new IllegalStateException("no value for statistic: " + this);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+/**
+ * The management interface of a ResourceAccountant.  Times are in
+ * milliseconds.
+ */
+public interface ResourceAccountantMBean {
+    long getJobsCompleted();
+
+    long getCpuTime();
+
+    long getAllocatedBytes();
+
+    long getRunTime();
+
+    long getQueueWaitTime();
+
+    /**
+     * @param vmId the JID of a VM
+     * @return the resources used by the VM, or null if it is not known
+     */
+    String getVmUsage(String vmId);
+
+    /**
+     * @param villeinJid the bare JID of a villein
+     * @return the resources used by the villein's jobs, or null if it is not known
+     */
+    String getVilleinUsage(String villeinJid);
+
+    /**
+     * @param count the maximum number of VMs to list
+     * @return the VMs which have used the most processor time, and their usage
+     */
+    String[] getTopVmsByCpuTime(int count);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the value of a script into plain Java values (Boolean, numbers,
+ * String, List and Map, nested to any depth), so that it may be sent as a
+ * typed or binary-encoded result rather than as its toString().
+ * <p/>
+ * Groovy, and JRuby's engine, already return Java lists and maps (a RubyArray
+ * is a List and a RubyHash a Map), whose members are converted in turn.
+ * JavaScript arrays and objects are Rhino Scriptables, and Python lists,
+ * tuples and dictionaries are Jython PyObjects, which are read through
+ * reflection so that Jython need not be present.  Any other value is left as
+ * it is, to be written as its toString().
+ */
+public class ResultMarshaller {
+    // Guards against a value which refers (directly or not) to itself.
+    private static final int MAX_DEPTH = 64;
+
+    private static final String JYTHON_PACKAGE = "org.python.core.";
+
+    private ResultMarshaller() {
+    }
+
+    /**
+     * @param value the value of a script
+     * @return the value, with any lists and maps of the script engine turned
+     *         into Java lists and maps
+     * @throws IllegalArgumentException if the value is nested too deeply
+     *                                  (e.g. because it contains itself)
+     */
+    public static Object toJava(final Object value) {
+        return toJava(value, 0);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static Object toJava(final Object value,
+                                 final int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("result is nested more than " + MAX_DEPTH + " deep");
+        }
+
+        if (null == value || value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Scriptable || value instanceof Undefined || value == Scriptable.NOT_FOUND) {
+            return fromRhino(value, depth);
+        } else if (value.getClass().getName().startsWith(JYTHON_PACKAGE)) {
+            return fromJython(value, depth);
+        } else if (value instanceof Collection) {
+            List<Object> list = new ArrayList<Object>(((Collection<?>) value).size());
+            for (Object o : (Collection<?>) value) {
+                list.add(toJava(o, depth + 1));
+            }
+            return list;
+        } else if (value instanceof Object[]) {
+            Object[] a = (Object[]) value;
+            List<Object> list = new ArrayList<Object>(a.length);
+            for (Object o : a) {
+                list.add(toJava(o, depth + 1));
+            }
+            return list;
+        } else if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(toJava(e.getKey(), depth + 1)), toJava(e.getValue(), depth + 1));
+            }
+            return map;
+        } else {
+            // Including arrays of primitives, which are sent as they are.
+            return value;
+        }
+    }
+
+    private static Object fromRhino(final Object value,
+                                    final int depth) {
+        if (value instanceof Undefined || value == Scriptable.NOT_FOUND) {
+            return null;
+        } else if (value instanceof Wrapper) {
+            return toJava(((Wrapper) value).unwrap(), depth);
+        } else if (value instanceof NativeArray) {
+            NativeArray a = (NativeArray) value;
+            int length = (int) a.getLength();
+            List<Object> list = new ArrayList<Object>(length);
+            for (int i = 0; i < length; i++) {
+                list.add(toJava(a.get(i, a), depth + 1));
+            }
+            return list;
+        } else if (value instanceof NativeObject) {
+            NativeObject o = (NativeObject) value;
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (Object id : o.getIds()) {
+                Object v = id instanceof Integer
+                        ? o.get((Integer) id, o)
+                        : o.get(id.toString(), o);
+                map.put(id.toString(), toJava(v, depth + 1));
+            }
+            return map;
+        } else {
+            // E.g. a function or a date.
+            return value;
+        }
+    }
+
+    private static Object fromJython(final Object value,
+                                     final int depth) {
+        try {
+            if (isA(value, "PyNone")) {
+                return null;
+            } else if (isA(value, "PySequence") && !isA(value, "PyString")) {
+                // A list or a tuple.
+                int length = (Integer) invoke(value, "__len__");
+                Method item = value.getClass().getMethod("__finditem__", Integer.TYPE);
+                List<Object> list = new ArrayList<Object>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(toJava(item.invoke(value, i), depth + 1));
+                }
+                return list;
+            } else if (isA(value, "PyDictionary") || isA(value, "PyStringMap")) {
+                Object keys = invoke(value, "keys");
+                int length = (Integer) invoke(keys, "__len__");
+                Method key = keys.getClass().getMethod("__finditem__", Integer.TYPE);
+                Method item = null;
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < length; i++) {
+                    Object k = key.invoke(keys, i);
+                    if (null == item) {
+                        item = value.getClass().getMethod("__finditem__", Class.forName(JYTHON_PACKAGE + "PyObject", false, value.getClass().getClassLoader()));
+                    }
+                    map.put(String.valueOf(toJava(k, depth + 1)), toJava(item.invoke(value, k), depth + 1));
+                }
+                return map;
+            } else {
+                // A number, string or boolean converts itself; anything else is its own conversion.
+                Object java = value.getClass().getMethod("__tojava__", Class.class).invoke(value, Object.class);
+                return null == java || java == value || java.getClass().getName().startsWith(JYTHON_PACKAGE)
+                        ? value
+                        : toJava(java, depth + 1);
+            }
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            // Not a PyObject as expected: leave it to be written as its toString().
+            return value;
+        }
+    }
+
+    private static boolean isA(final Object value,
+                               final String jythonClass) {
+        for (Class<?> c = value.getClass(); null != c; c = c.getSuperclass()) {
+            if (c.getName().equals(JYTHON_PACKAGE + jythonClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object invoke(final Object target,
+                                 final String method) throws Exception {
+        return target.getClass().getMethod(method).invoke(target);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+import java.util.logging.Logger;
+
+/**
+ * A Rhino context factory which provides JavaScript jobs with safe points:
+ * every INSTRUCTION_THRESHOLD interpreted instructions, the executing thread
+ * polls its VmSafepoint (if it has one).  Instructions are only counted by
+ * the interpreter, so contexts are created with optimization disabled.
+ */
+public class RhinoSafepointContextFactory extends ContextFactory {
+    private static final Logger LOGGER
+            = LinkedProcess.getLogger(RhinoSafepointContextFactory.class);
+
+    private static final int INSTRUCTION_THRESHOLD = 10000;
+
+    private static boolean installed = false;
+
+    /**
+     * Installs this factory as Rhino's global context factory, unless another
+     * factory (e.g. that of the script engine) has already been installed.
+     *
+     * @return whether JavaScript jobs will poll for safe points
+     */
+    public static synchronized boolean install() {
+        if (!installed) {
+            try {
+                ContextFactory.initGlobal(new RhinoSafepointContextFactory());
+                installed = true;
+            } catch (IllegalStateException e) {
+                LOGGER.warning("another global Rhino context factory is already in place."
+                        + " JavaScript jobs will not yield at safe points");
+            }
+        }
+
+        return installed;
+    }
+
+    @Override
+    protected Context makeContext() {
+        Context cx = super.makeContext();
+        cx.setOptimizationLevel(-1);
+        cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(final Context cx,
+                                           final int instructionCount) {
+        VmSafepoint.poll();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+/**
+ * Decides the order in which VMs which are ready to run are given time
+ * slices.  Each worker is ranked, according to the job it will work on next,
+ * when it is put in the run queue; workers with lower ranks are run first,
+ * and workers with equal ranks are run in the order in which they were
+ * queued.
+ * <p/>
+ * Policies are called by sequencer threads and by the threads which submit
+ * jobs, never by VM worker threads, so they may safely synchronize.
+ */
+public interface SchedulingPolicy {
+    /**
+     * @param next the job which a worker will work on next, or null if it is
+     *             no longer known (e.g. because the job has been aborted)
+     * @return the rank of the worker
+     */
+    long rank(Job next);
+
+    /**
+     * Called by a sequencer each time it has given a time slice to a job.
+     *
+     * @param job  the job which has been given the time slice
+     * @param time the time which the slice has taken, in nanoseconds
+     */
+    void charge(Job job, long time);
+}
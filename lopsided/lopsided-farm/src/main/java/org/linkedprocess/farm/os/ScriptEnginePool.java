@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.errors.UnsupportedScriptEngineException;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A pool of pre-instantiated script engines for each supported language
+ * ("species" of VM), from which new VMs are given their engines.  Creating an
+ * engine may take hundreds of milliseconds (e.g. for JRuby or Groovy), so
+ * engines are created and warmed up ahead of time, in a background thread.
+ * Whenever the number of engines available for a language falls below the
+ * low watermark, the pool for that language is refilled up to the high
+ * watermark.  If the pool for a language is empty, an engine is created on
+ * the spot.
+ * <p/>
+ * Each engine is handed out only once, so VMs never share state.
+ */
+public class ScriptEnginePool {
+    private static final Logger LOGGER = LinkedProcess.getLogger(ScriptEnginePool.class);
+
+    // Evaluated by each new engine, so that any lazy initialization happens
+    // before the engine is handed out.  It defines nothing.
+    private static final String WARM_UP_EXPRESSION = "42";
+
+    private final Map<String, Species> speciesByLanguage;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<Species> refillRequests;
+    private final Thread refillThread;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param factories     the factories of the supported languages
+     * @param lowWatermark  the number of available engines below which the
+     *                      pool for a language is refilled
+     * @param highWatermark the number of engines to which the pool for a
+     *                      language is refilled.  If 0, no engines are
+     *                      created in advance
+     */
+    public ScriptEnginePool(final Collection<ScriptEngineFactory> factories,
+                            final int lowWatermark,
+                            final int highWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("bad watermarks: " + lowWatermark + ", " + highWatermark);
+        }
+
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+
+        // Note: language selection is case-insensitive.
+        speciesByLanguage = new HashMap<String, Species>();
+        for (ScriptEngineFactory f : factories) {
+            speciesByLanguage.put(f.getLanguageName().toLowerCase(), new Species(f));
+        }
+
+        refillRequests = new LinkedBlockingQueue<Species>();
+        if (highWatermark > 0) {
+            refillThread = new Thread(new RefillRunnable(), "LoP script engine pool thread");
+            refillThread.setDaemon(true);
+            // Engines are created in spare time.
+            refillThread.setPriority(Thread.MIN_PRIORITY);
+            refillThread.start();
+
+            for (Species s : speciesByLanguage.values()) {
+                requestRefill(s);
+            }
+        } else {
+            refillThread = null;
+        }
+    }
+
+    /**
+     * Takes an engine from the pool, or creates one if none is available.
+     *
+     * @param language the (case-insensitive) name of a supported language
+     * @return a new script engine for the language
+     * @throws UnsupportedScriptEngineException
+     *          if the language is not supported
+     */
+    public ScriptEngine take(final String language) throws UnsupportedScriptEngineException {
+        Species s = speciesByLanguage.get(language.toLowerCase());
+        if (null == s) {
+            throw new UnsupportedScriptEngineException(language);
+        }
+
+        ScriptEngine engine = s.engines.poll();
+        if (null == engine) {
+            misses.incrementAndGet();
+            engine = s.factory.getScriptEngine();
+        } else {
+            hits.incrementAndGet();
+            s.available.decrementAndGet();
+        }
+
+        if (s.available.get() < lowWatermark) {
+            requestRefill(s);
+        }
+
+        return engine;
+    }
+
+    /**
+     * Returns an engine which has been taken from the pool but not used.
+     *
+     * @param language the language of the engine
+     * @param engine   the unused engine
+     */
+    public void giveBack(final String language,
+                         final ScriptEngine engine) {
+        Species s = speciesByLanguage.get(language.toLowerCase());
+        if (null != s && s.available.get() < highWatermark) {
+            s.engines.offer(engine);
+            s.available.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param language the (case-insensitive) name of a supported language
+     * @return the number of engines which are ready to be taken
+     */
+    public int getAvailable(final String language) {
+        Species s = speciesByLanguage.get(language.toLowerCase());
+        return null == s ? 0 : s.available.get();
+    }
+
+    /**
+     * @return the number of engines which have been taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of engines which have had to be created on demand
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Stops refilling the pool.
+     */
+    public void shutdown() {
+        if (null != refillThread) {
+            refillThread.interrupt();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void requestRefill(final Species s) {
+        if (highWatermark > 0 && s.refillRequested.compareAndSet(false, true)) {
+            refillRequests.offer(s);
+        }
+    }
+
+    private ScriptEngine createWarmEngine(final ScriptEngineFactory factory) {
+        ScriptEngine engine = factory.getScriptEngine();
+        try {
+            engine.eval(WARM_UP_EXPRESSION);
+        } catch (Throwable e) {
+            // Do nothing.  The engine is usable regardless.
+        }
+
+        return engine;
+    }
+
+    private class RefillRunnable implements Runnable {
+        public void run() {
+            // Break out when the pool is shut down.
+            while (true) {
+                Species s;
+                try {
+                    s = refillRequests.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                s.refillRequested.set(false);
+                while (s.available.get() < highWatermark) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+
+                    try {
+                        s.engines.offer(createWarmEngine(s.factory));
+                        s.available.incrementAndGet();
+                    } catch (Throwable e) {
+                        LOGGER.warning("failed to create script engine for " + s.factory.getLanguageName() + ": " + e);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Species {
+        private final ScriptEngineFactory factory;
+        private final Queue<ScriptEngine> engines = new ConcurrentLinkedQueue<ScriptEngine>();
+        // Note: kept separately, as the size of the queue is not a constant-time operation.
+        private final AtomicInteger available = new AtomicInteger(0);
+        private final AtomicBoolean refillRequested = new AtomicBoolean(false);
+
+        public Species(final ScriptEngineFactory factory) {
+            this.factory = factory;
+        }
+    }
+}
@@ -4,9 +4,12 @@ import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.Farm;
 import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.JobNotFoundException;
+import org.linkedprocess.farm.os.errors.SchedulerException;
 import org.linkedprocess.farm.os.errors.VmIsFullException;
 import org.linkedprocess.farm.os.errors.VmNotFoundException;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -47,10 +50,22 @@ public class Vm {
         return this.farm.getVmScheduler().getJobStatus(this.vmId, jobId);
     }
 
+    public CompletedJobStore.CompletedJob getCompletedJob(String jobId) throws VmNotFoundException, JobNotFoundException {
+        return this.farm.getVmScheduler().getCompletedJob(this.vmId, jobId);
+    }
+
     public void scheduleJob(Job job) throws VmNotFoundException, VmIsFullException, JobAlreadyExistsException {
         this.farm.getVmScheduler().submitJob(this.vmId, job);
     }
 
+    public void scheduleReleasedJob(Job job) throws VmNotFoundException, VmIsFullException, JobAlreadyExistsException {
+        this.farm.getVmScheduler().submitReleasedJob(this.vmId, job);
+    }
+
+    public Map<Job, SchedulerException> scheduleJobs(List<Job> jobs) throws VmNotFoundException {
+        return this.farm.getVmScheduler().submitJobs(this.vmId, jobs);
+    }
+
     public void setBindings(VmBindings bindings) throws VmNotFoundException {
         this.farm.getVmScheduler().setBindings(this.vmId, bindings);
     }
@@ -59,6 +74,14 @@ public class Vm {
         return this.farm.getVmScheduler().getBindings(this.vmId, names);
     }
 
+    public VmBindings getBindingsChangedSince(Set<String> names, long version) throws VmNotFoundException {
+        return this.farm.getVmScheduler().getBindingsChangedSince(this.vmId, names, version);
+    }
+
+    public long getBindingsStamp() throws VmNotFoundException {
+        return this.farm.getVmScheduler().getBindingsStamp(this.vmId);
+    }
+
 
     public void terminateSelf() throws VmNotFoundException {
         this.farm.terminateVm(this.vmId);
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.farm.security.VmSandboxedThread;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of sandboxed "carrier" threads, shared by the workers of a
+ * scheduler in the cooperative execution mode.  A worker holds a carrier only
+ * from the moment one of its jobs is started to the moment the job finishes
+ * or has been unwound (a paused job keeps its carrier), so idle VMs occupy no
+ * thread at all.
+ * <p/>
+ * A carrier must be reserved before a job is handed to the pool.  Reservation
+ * never blocks indefinitely: a sequencer thread which waits for a carrier
+ * could otherwise wait for a job which only it can resume.
+ */
+public class VmCarrierPool {
+    // How long an unused carrier thread survives before exiting.
+    private static final long KEEP_ALIVE_TIME = 60000;
+
+    private final int size;
+    private final Semaphore carriers;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param size the maximum number of jobs which may be in progress at once
+     */
+    public VmCarrierPool(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be positive");
+        }
+
+        this.size = size;
+        carriers = new Semaphore(size);
+
+        // Note: the semaphore does the bounding.  A carrier which has just
+        // released its permit may still be busy for a moment, in which case a
+        // new thread is created rather than the job being rejected.
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new CarrierThreadFactory());
+    }
+
+    /**
+     * Reserves a carrier for a job.
+     *
+     * @param timeout the maximum time to wait for a carrier, in milliseconds.
+     *                If zero, the method does not wait at all
+     * @return whether a carrier has been reserved
+     */
+    public boolean reserve(final long timeout) {
+        try {
+            return carriers.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives back a reserved carrier which is not going to be used.
+     */
+    public void release() {
+        carriers.release();
+    }
+
+    /**
+     * Runs a job on a reserved carrier.  The reservation is given back when
+     * the job returns.
+     *
+     * @param job the job to run
+     */
+    public void execute(final Runnable job) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    job.run();
+                } finally {
+                    carriers.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the maximum number of jobs which may be in progress at once
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the largest number of carrier threads there have been at once
+     */
+    int getLargestThreadCount() {
+        return executor.getLargestPoolSize();
+    }
+
+    /**
+     * @return the number of carriers which are currently not reserved
+     */
+    public int getAvailable() {
+        return carriers.availablePermits();
+    }
+
+    /**
+     * Lets carrier threads exit once their current jobs have been unwound.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for all carrier threads to exit, after a call to shutdown.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return whether all carrier threads have exited
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout) throws InterruptedException {
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static class CarrierThreadFactory implements ThreadFactory {
+        private static final AtomicInteger THREAD_ID = new AtomicInteger(0);
+
+        private final int priority;
+
+        public CarrierThreadFactory() {
+            // Like dedicated worker threads, carriers have less priority than
+            // sequencer threads, which have less priority than the scheduler's
+            // thread.
+            priority = Math.max(Thread.MIN_PRIORITY, Thread.currentThread().getPriority() - 2);
+        }
+
+        public Thread newThread(final Runnable r) {
+            Thread t = new VmSandboxedThread(r, "LoP VM carrier thread #" + THREAD_ID.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Terminates VMs which have been idle for longer than their time to live, as
+ * soon as they expire, whether or not the farm is otherwise busy.  The
+ * scheduler tells the reaper whenever a worker runs out of work; the reaper
+ * then sleeps until the moment at which the worker would expire, and checks
+ * again.  At most one expiry is pending for each worker at a time.
+ * <p/>
+ * If hibernation is enabled, a worker which has been idle for the
+ * hibernation timeout is first hibernated, and its snapshot expires in turn
+ * at the end of the VM's time to live.
+ * <p/>
+ * The reaper also reports the scheduler's statistics at regular intervals.
+ */
+public class VmReaper {
+    private static final Logger LOGGER = LinkedProcess.getLogger(VmReaper.class);
+
+    private final long timeToLive;
+    private final long hibernationTimeout;
+    private final long reportInterval;
+    private final VmScheduler.VmReaperHelper reaperHelper;
+    private final BlockingQueue<Expiry> expiries;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    // Added to the queue to stop the reaper.
+    private final Expiry shutdownSentinel = new Expiry(null, null, 0);
+
+    /**
+     * @param reaperHelper   terminates the VMs which have expired
+     * @param timeToLive         the time for which a VM may be idle, in
+     *                           milliseconds.  If negative, VMs never expire
+     * @param hibernationTimeout the time for which a VM may be idle before it
+     *                           is hibernated, in milliseconds.  If negative,
+     *                           VMs are never hibernated
+     * @param reportInterval     the time between reports, in milliseconds.  If
+     *                           not positive, there are no reports
+     */
+    public VmReaper(final VmScheduler.VmReaperHelper reaperHelper,
+                    final long timeToLive,
+                    final long hibernationTimeout,
+                    final long reportInterval) {
+        this.reaperHelper = reaperHelper;
+        this.timeToLive = timeToLive;
+        this.hibernationTimeout = hibernationTimeout;
+        this.reportInterval = reportInterval;
+        expiries = new DelayQueue<Expiry>();
+
+        if (reportInterval > 0) {
+            expiries.offer(new Expiry(null, null, System.currentTimeMillis() + reportInterval));
+        }
+
+        Thread t = new Thread(new ReaperRunnable(), "LoP VM reaper thread");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Called whenever a worker may have run out of work.
+     *
+     * @param w a worker which may now be idle
+     */
+    public void workerIdle(final VmWorker w) {
+        if ((timeToLive >= 0 || hibernationTimeout >= 0) && w.reapScheduled.compareAndSet(false, true)) {
+            expiries.offer(new Expiry(w, null, nextDeadline(w.getTimeLastActive(), false)));
+        }
+    }
+
+    /**
+     * Called whenever a VM has been hibernated.
+     *
+     * @param vmId           the JID of the VM
+     * @param timeLastActive the time at which the VM was last active
+     */
+    public void vmHibernated(final String vmId,
+                             final long timeLastActive) {
+        if (timeToLive >= 0) {
+            expiries.offer(new Expiry(null, vmId, timeLastActive + timeToLive));
+        }
+    }
+
+    /**
+     * Stops the reaper.  Pending expiries are discarded.
+     */
+    public void shutdown() {
+        expiries.clear();
+        expiries.offer(shutdownSentinel);
+    }
+
+    /**
+     * Waits for the reaper to stop, after a call to shutdown.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return whether the reaper has stopped
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout) throws InterruptedException {
+        return finished.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void expire(final VmWorker w) {
+        if (VmWorker.Status.TERMINATED == w.status) {
+            return;
+        }
+
+        // Note: the flag is cleared before the worker is checked, so that a
+        // worker which becomes idle meanwhile is not forgotten.
+        w.reapScheduled.set(false);
+        if (w.canWork()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long lastActive = w.getTimeLastActive();
+        if (timeToLive >= 0 && lastActive + timeToLive <= now) {
+            LOGGER.info("terminating idle VM");
+            reaperHelper.reap(w);
+            return;
+        }
+
+        boolean hibernationDue = hibernationTimeout >= 0 && lastActive + hibernationTimeout <= now;
+        if (hibernationDue && reaperHelper.hibernate(w)) {
+            return;
+        }
+
+        // Either the worker has been active since the expiry was scheduled,
+        // or it could not be hibernated and will expire later.
+        long deadline = nextDeadline(lastActive, hibernationDue);
+        if (deadline >= 0 && w.reapScheduled.compareAndSet(false, true)) {
+            expiries.offer(new Expiry(w, null, deadline));
+        }
+    }
+
+    /**
+     * @param lastActive       the time at which a worker was last active
+     * @param hibernationTried whether the worker has already been considered
+     *                         for hibernation since then
+     * @return the time at which the worker is next due to be hibernated or to
+     *         expire, or -1 if never
+     */
+    private long nextDeadline(final long lastActive,
+                              final boolean hibernationTried) {
+        long deadline = timeToLive >= 0 ? lastActive + timeToLive : -1;
+        if (hibernationTimeout >= 0 && !hibernationTried
+                && (deadline < 0 || hibernationTimeout < timeToLive)) {
+            deadline = lastActive + hibernationTimeout;
+        }
+
+        return deadline;
+    }
+
+    private class ReaperRunnable implements Runnable {
+        public void run() {
+            try {
+                // Break out when the sentinel is received.
+                while (true) {
+                    Expiry e;
+                    try {
+                        e = expiries.take();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    if (shutdownSentinel == e) {
+                        return;
+                    }
+
+                    try {
+                        if (null != e.worker) {
+                            expire(e.worker);
+                        } else if (null != e.vmId) {
+                            reaperHelper.reapHibernated(e.vmId, e.deadline - timeToLive);
+                        } else {
+                            reaperHelper.report();
+                            expiries.offer(new Expiry(null, null, System.currentTimeMillis() + reportInterval));
+                        }
+                    } catch (Throwable t) {
+                        // Log the error, but carry on.
+                        LOGGER.severe("reaper failed: " + t);
+                    }
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    private static class Expiry implements Delayed {
+        // If both are null, the expiry of the report interval.
+        private final VmWorker worker;
+        private final String vmId;
+        private final long deadline;
+
+        public Expiry(final VmWorker worker,
+                      final String vmId,
+                      final long deadline) {
+            this.worker = worker;
+            this.vmId = vmId;
+            this.deadline = deadline;
+        }
+
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(final Delayed other) {
+            long d = deadline - ((Expiry) other).deadline;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+}
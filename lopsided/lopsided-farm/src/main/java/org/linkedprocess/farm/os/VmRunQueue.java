@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A queue of workers which are ready to execute jobs.  Unlike
+ * SimpleBlockingQueue, consumers are woken up precisely when a worker becomes
+ * available (there is no timed wait), any number of sequencer threads may
+ * take from the queue concurrently without contending for a common monitor,
+ * and the check for a worker which is already present in the queue is a
+ * constant-time flag test rather than a linear scan.
+ * <p/>
+ * The semaphore holds one permit for each worker in the queue.  A consumer
+ * which acquires a permit for a worker which has since been removed simply
+ * polls nothing and waits again.
+ */
+public class VmRunQueue implements VmWorkerQueue {
+    private final Queue<VmWorker> queue;
+    private final Semaphore available;
+
+    public VmRunQueue() {
+        queue = new ConcurrentLinkedQueue<VmWorker>();
+        available = new Semaphore(0);
+    }
+
+    /**
+     * Blocks until a worker is available, then removes it from the queue.
+     *
+     * @return the worker at the head of the queue
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public VmWorker take() throws InterruptedException {
+        // Break out when a permit is matched by a worker.
+        while (true) {
+            available.acquire();
+
+            VmWorker w = queue.poll();
+            if (null != w) {
+                w.queued.set(false);
+                return w;
+            }
+        }
+    }
+
+    public VmWorker take(final int sequencerIndex) throws InterruptedException {
+        // All sequencers share the same queue.
+        return take();
+    }
+
+    /**
+     * Adds a worker to the queue, regardless of whether it is already present.
+     *
+     * @param w the worker to add
+     */
+    public void offer(final VmWorker w) {
+        queue.offer(w);
+        available.release();
+    }
+
+    /**
+     * Adds a worker to the queue unless it is already present.
+     *
+     * @param w the worker to add
+     * @return whether the worker has been added
+     */
+    public boolean offerDistinct(final VmWorker w) {
+        if (!w.queued.compareAndSet(false, true)) {
+            return false;
+        }
+
+        queue.offer(w);
+        available.release();
+        return true;
+    }
+
+    public boolean offerDistinct(final VmWorker w,
+                                 final int sequencerIndex) {
+        return offerDistinct(w);
+    }
+
+    public void clear() {
+        VmWorker w;
+        while (null != (w = queue.poll())) {
+            w.queued.set(false);
+            // If no permit is left to reclaim, a consumer is already holding it
+            // and will find the queue empty.
+            available.tryAcquire();
+        }
+    }
+
+    public boolean contains(final VmWorker w) {
+        return w.queued.get();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public boolean remove(final VmWorker w) {
+        // Note: a linear operation, but workers are only removed when they are terminated.
+        if (queue.remove(w)) {
+            w.queued.set(false);
+            available.tryAcquire();
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+/**
+ * The point of contact between a VmWorker and its worker thread in the
+ * cooperative execution mode.  Rather than being suspended, resumed and
+ * stopped from outside, the worker thread polls for requests at safe points
+ * of the script engine's choosing (for JavaScript, every so many interpreted
+ * instructions; see RhinoSafepointContextFactory), where it waits while it
+ * is asked to yield, and unwinds the job if the job has been cancelled.
+ * <p/>
+ * A job whose script engine never polls cannot be paused.  It can only be
+ * cancelled through Thread.interrupt, if the engine responds to interrupts.
+ */
+public class VmSafepoint {
+    private static final ThreadLocal<VmSafepoint> CURRENT = new ThreadLocal<VmSafepoint>();
+
+    // Note: the error carries no information, so a single instance will do.
+    // It is created here, rather than when it is thrown, so that its class is
+    // never loaded by a sandboxed worker thread.
+    private static final CancelledJobError CANCELLED = new CancelledJobError();
+
+    // Checked by the worker thread at every safe point, without locking.
+    private volatile boolean requestPending = false;
+
+    private Thread thread;
+    // The job most recently handed to the worker thread, until it finishes or
+    // is cancelled.
+    private Job assigned;
+    // The job the worker thread is actually executing.  If this is not the
+    // assigned job, it has been cancelled and is being unwound.
+    private Job running;
+    private boolean yieldRequested = false;
+    private boolean parked = false;
+
+    /**
+     * Called by script engine hooks at safe points.  If the calling thread is
+     * a cooperative worker thread, it will wait here while it is asked to
+     * yield, and its job will be unwound here if it has been cancelled.
+     *
+     * @throws CancelledJobError if the current job has been cancelled
+     */
+    public static void poll() {
+        VmSafepoint s = CURRENT.get();
+        if (null != s && s.requestPending) {
+            s.check();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Called by the worker thread.
+
+    /**
+     * Binds this safepoint to the calling (worker) thread.
+     */
+    public synchronized void attach() {
+        CURRENT.set(this);
+        thread = Thread.currentThread();
+        running = null;
+        parked = false;
+    }
+
+    /**
+     * Unbinds this safepoint from the calling (carrier) thread.
+     */
+    public synchronized void detach() {
+        CURRENT.remove();
+        if (thread == Thread.currentThread()) {
+            thread = null;
+        }
+    }
+
+    /**
+     * @param job the job about to be executed
+     * @return whether to go ahead with the job (if not, it has already been cancelled)
+     */
+    public synchronized boolean enter(final Job job) {
+        running = job;
+
+        // Clear any interrupt meant for a previous job.
+        Thread.interrupted();
+
+        return assigned == job;
+    }
+
+    /**
+     * @param job          the job which has finished executing
+     * @param onCompletion to be run, while no other safepoint operations can
+     *                     take place, if the job has not been cancelled
+     * @return whether the job has completed without being cancelled
+     */
+    public synchronized boolean finish(final Job job,
+                                       final Runnable onCompletion) {
+        running = null;
+
+        boolean completed = assigned == job;
+        if (completed) {
+            onCompletion.run();
+            assigned = null;
+        }
+
+        updateRequestPending();
+        notifyAll();
+        return completed;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Called by the worker's controlling (sequencer) thread.
+
+    /**
+     * @return whether a thread is bound to this safepoint.  A carrier thread
+     *         remains bound while it unwinds a cancelled job
+     */
+    public synchronized boolean isAttached() {
+        return null != thread;
+    }
+
+    /**
+     * Hands a new job to the worker thread.
+     *
+     * @param job the job to execute
+     */
+    public synchronized void assign(final Job job) {
+        assigned = job;
+        yieldRequested = false;
+        updateRequestPending();
+        notifyAll();
+    }
+
+    /**
+     * Allows a paused job to continue.
+     */
+    public synchronized void resume() {
+        yieldRequested = false;
+        updateRequestPending();
+        notifyAll();
+    }
+
+    /**
+     * Asks the worker thread to yield, and waits for it to do so.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.  If zero, the
+     *                method does not wait at all
+     * @return whether the assigned job is now paused or finished (if not, it
+     *         is still running)
+     */
+    public synchronized boolean pause(final long timeout) {
+        yieldRequested = true;
+        updateRequestPending();
+
+        long endTime = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (null != assigned && !parked && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                break;
+            }
+            remaining = endTime - System.currentTimeMillis();
+        }
+
+        return null == assigned || parked;
+    }
+
+    /**
+     * Cancels a job, causing it to unwind at its next safe point (or to be
+     * interrupted, if it is running and has no safe points).
+     *
+     * @param job the job to cancel
+     * @return whether the job has been cancelled (if not, it has already finished)
+     */
+    public synchronized boolean cancel(final Job job) {
+        if (assigned != job && running != job) {
+            return false;
+        }
+
+        if (assigned == job) {
+            assigned = null;
+        }
+        updateRequestPending();
+        notifyAll();
+
+        if (running == job) {
+            thread.interrupt();
+        }
+
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private synchronized void check() {
+        // Break out when the job may continue.
+        while (true) {
+            if (running != assigned) {
+                throw CANCELLED;
+            }
+
+            if (!yieldRequested) {
+                return;
+            }
+
+            parked = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Check again.
+            } finally {
+                parked = false;
+            }
+        }
+    }
+
+    private void updateRequestPending() {
+        requestPending = yieldRequested || (null != running && running != assigned);
+    }
+
+    /**
+     * Unwinds a cancelled job.  It cannot be caught by scripts, which only
+     * catch exceptions.
+     */
+    public static class CancelledJobError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        private CancelledJobError() {
+            super("job cancelled");
+        }
+    }
+}
@@ -9,8 +9,10 @@ package org.linkedprocess.farm.os;
 
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.LinkedProcessFarm;
+import org.linkedprocess.farm.os.errors.DuplicateJobException;
 import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.JobNotFoundException;
+import org.linkedprocess.farm.os.errors.SchedulerException;
 import org.linkedprocess.farm.os.errors.UnsupportedScriptEngineException;
 import org.linkedprocess.farm.os.errors.VmAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.VmIsFullException;
@@ -18,18 +20,32 @@ import org.linkedprocess.farm.os.errors.VmNotFoundException;
 import org.linkedprocess.farm.os.errors.VmSchedulerIsFullException;
 
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
+import java.io.File;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
  * An object which functions as a miniature operating systems for the management of jobs and virtual machines.
  * <p/>
+ * Only the operations which create and destroy virtual machines (spawnVirtualMachine, terminateVm and shutdown)
+ * are synchronized on the scheduler.  Operations on a single virtual machine (submitting and aborting jobs, querying
+ * job status, getting and setting bindings) synchronize only on that machine's worker, so that a busy machine never
+ * holds up requests addressed to another.
+ * <p/>
+ * A VM which has been idle for a while may be hibernated: its worker is stopped, releasing its script engine
+ * and thread, and its bindings are kept in a VmSnapshotStore.  Hibernated VMs do not count towards the maximum
+ * number of VMs.  The VM is brought back with a fresh engine as soon as it is next used, and neither the VM's
+ * villein nor the farm can tell the difference.
+ * <p/>
  * Author: josh
  * Date: Jun 24, 2009
  * Time: 2:15:27 PM
@@ -39,36 +55,64 @@ public class VmScheduler {
             = LinkedProcess.getLogger(VmScheduler.class);
 
     public static final int MAX_VM;
-    private static final long VM_TIMEOUT;
-    private static final long SCHEDULER_CLEANUP_INTERVAL;
-    private static final long POLL_FOR_COMPLETION_INTERVAL = 100;
 
     static {
         Properties props = LinkedProcess.getConfiguration();
 
         MAX_VM = new Integer(props.getProperty(
                 LinkedProcess.MAX_CONCURRENT_VIRTUAL_MACHINES_PROPERTY));
-        VM_TIMEOUT = new Long(props.getProperty(
-                LinkedProcess.VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY));
-        SCHEDULER_CLEANUP_INTERVAL = new Long(props.getProperty(
-                LinkedProcess.SCHEDULER_CLEANUP_INTERVAL_PROPERTY));
     }
 
-    private final SimpleBlockingQueue<VmWorker> workerQueue;
+    private final VmWorkerQueue workerQueue;
+    private final QuantumController quantumController;
+    // Null if VMs are simply run in turn.
+    private final SchedulingPolicy schedulingPolicy;
+    private final VmWorker.ExecutionMode executionMode;
+    // Null unless VMs share a pool of threads.
+    private final VmCarrierPool carrierPool;
+    private final ScriptEnginePool enginePool;
+    // Null unless expressions are compiled.
+    private final CompiledScriptCache scriptCache;
+    // Null unless VMs are hibernated.
+    private final VmSnapshotStore snapshotStore;
+    // Null unless the resources used by jobs are accounted for.
+    private final ResourceAccountant accountant;
+    // Null unless there are memory quotas.
+    private final MemoryGovernor memoryGovernor;
+    // Not positive unless the output of jobs is streamed.
+    private final int outputChunkSize;
+    // Null unless finished jobs are remembered.
+    private final CompletedJobStore completedJobs;
+    // How long (in milliseconds) a finished job is answered from the store
+    // of completed jobs, rather than run again, when it is submitted again.
+    private final long duplicateJobWindow;
     private final Map<String, VmWorker> workersByJID;
     private final VmResultHandler resultHandler;
-    private LopStatusEventHandler eventHandler;
+    // Null unless the result handler reports a backlog of results.
+    private final VmResultBackpressure backpressure;
+    private volatile LopStatusEventHandler eventHandler;
     private final int numberOfSequencers;
-    private LinkedProcess.Status farmStatus;
-    private long lastCleanupTime = System.currentTimeMillis();
-
-    private long jobsReceived = 0;
-    private long jobsCompleted = 0;
+    private volatile LinkedProcess.Status farmStatus;
+    private final VmReaper reaper;
+    // Counted down by each sequencer as it stops.
+    private final CountDownLatch sequencersFinished;
+
+    private final AtomicLong jobsReceived = new AtomicLong(0);
+    private final AtomicLong jobsCompleted = new AtomicLong(0);
+    // Jobs submitted again, which have not been run a second time.
+    private final AtomicLong jobsDuplicated = new AtomicLong(0);
+    // Notified whenever the number of jobs completed catches up with the
+    // number of jobs received.
+    private final Object completionMonitor = new Object();
 
     /**
      * Creates a new virtual machine scheduler.
      *
-     * @param resultHandler a handler for results produced by the scheduler
+     * @param resultHandler a handler for results produced by the scheduler.  If
+     *                      it is also a VmPartialResultHandler, the output of
+     *                      jobs is streamed to it as they run.  If it is also
+     *                      a VmResultBackpressure, no job is accepted while
+     *                      it is congested
      * @param eventHandler  a handler for status events generated by the scheduler
      */
     public VmScheduler(final VmResultHandler resultHandler,
@@ -76,25 +120,120 @@ public class VmScheduler {
         LOGGER.info("instantiating scheduler");
 
         this.resultHandler = new ResultCounter(resultHandler);
+        this.backpressure = resultHandler instanceof VmResultBackpressure
+                ? (VmResultBackpressure) resultHandler
+                : null;
         this.eventHandler = eventHandler;
 
         Properties conf = LinkedProcess.getConfiguration();
 
-        long timeSlice = new Long(conf.getProperty(
-                LinkedProcess.ROUND_ROBIN_QUANTUM_PROPERTY));
-
-        workerQueue = new SimpleBlockingQueue<VmWorker>();
-        workersByJID = new HashMap<String, VmWorker>();
-
-        // A single source for workers.
-        VmSequencerHelper source = createSequencerHelper();
+        if (Boolean.valueOf(conf.getProperty(LinkedProcess.ADAPTIVE_QUANTUM_PROPERTY, "false"))) {
+            quantumController = new QuantumController(
+                    new Long(conf.getProperty(LinkedProcess.MIN_QUANTUM_PROPERTY)),
+                    new Long(conf.getProperty(LinkedProcess.MAX_QUANTUM_PROPERTY)));
+        } else {
+            quantumController = new QuantumController(new Long(conf.getProperty(
+                    LinkedProcess.ROUND_ROBIN_QUANTUM_PROPERTY)));
+        }
 
         numberOfSequencers = new Integer(conf.getProperty(
                 LinkedProcess.CONCURRENT_WORKER_THREADS_PROPERTY));
 
+        SchedulingMode mode = SchedulingMode.valueByName(conf.getProperty(
+                LinkedProcess.SCHEDULING_MODE_PROPERTY, SchedulingMode.SHARED.toString()));
+        schedulingPolicy = createSchedulingPolicy(conf.getProperty(
+                LinkedProcess.SCHEDULING_POLICY_PROPERTY, SchedulingPolicyType.ROUND_ROBIN.toString()), conf);
+        if (null == schedulingPolicy) {
+            LOGGER.info("using scheduling mode: " + mode);
+            workerQueue = mode.createQueue(numberOfSequencers);
+        } else {
+            LOGGER.info("using scheduling policy: " + schedulingPolicy.getClass().getName());
+            if (SchedulingMode.SHARED != mode) {
+                LOGGER.warning("scheduling mode " + mode + " is not used with a scheduling policy");
+            }
+            workerQueue = new PriorityRunQueue(schedulingPolicy);
+        }
+        workersByJID = new ConcurrentHashMap<String, VmWorker>();
+
+        enginePool = new ScriptEnginePool(LinkedProcessFarm.getSupportedScriptEngineFactories(),
+                new Integer(conf.getProperty(LinkedProcess.SCRIPT_ENGINE_POOL_LOW_WATERMARK_PROPERTY, "0")),
+                new Integer(conf.getProperty(LinkedProcess.SCRIPT_ENGINE_POOL_HIGH_WATERMARK_PROPERTY, "0")));
+
+        int cacheSize = new Integer(conf.getProperty(
+                LinkedProcess.COMPILED_SCRIPT_CACHE_SIZE_PROPERTY, "0"));
+        scriptCache = cacheSize > 0 ? new CompiledScriptCache(cacheSize) : null;
+
+        int poolSize = new Integer(conf.getProperty(
+                LinkedProcess.WORKER_THREAD_POOL_SIZE_PROPERTY, "0"));
+        executionMode = VmWorker.ExecutionMode.valueByName(conf.getProperty(
+                LinkedProcess.EXECUTION_MODE_PROPERTY, VmWorker.ExecutionMode.PREEMPTIVE.toString()));
+        if (poolSize > 0) {
+            if (VmWorker.ExecutionMode.COOPERATIVE == executionMode) {
+                LOGGER.info("running VMs on a pool of " + poolSize + " threads");
+                carrierPool = new VmCarrierPool(poolSize);
+            } else {
+                LOGGER.warning("a worker thread pool requires the "
+                        + VmWorker.ExecutionMode.COOPERATIVE + " execution mode. Each VM will have its own thread");
+                carrierPool = null;
+            }
+        } else {
+            carrierPool = null;
+        }
+
+        long hibernationTimeout = new Long(conf.getProperty(
+                LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, "-1"));
+        if (hibernationTimeout >= 0) {
+            String dir = conf.getProperty(LinkedProcess.HIBERNATION_DIRECTORY_PROPERTY);
+            snapshotStore = new VmSnapshotStore(null == dir ? null : new File(dir),
+                    new Integer(conf.getProperty(LinkedProcess.MAX_HIBERNATED_VIRTUAL_MACHINES_PROPERTY)));
+        } else {
+            snapshotStore = null;
+        }
+
+        accountant = Boolean.valueOf(conf.getProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY, "false"))
+                ? new ResourceAccountant()
+                : null;
+
+        long maxJobAllocatedBytes = new Long(conf.getProperty(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "-1"));
+        long maxFootprint = new Long(conf.getProperty(
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "-1"));
+        if (maxJobAllocatedBytes < 0 && maxFootprint < 0) {
+            memoryGovernor = null;
+        } else if (null == accountant) {
+            LOGGER.warning("memory quotas require resource accounting, and will not be enforced");
+            memoryGovernor = null;
+        } else {
+            memoryGovernor = new MemoryGovernor(maxJobAllocatedBytes, maxFootprint,
+                    new Long(conf.getProperty(LinkedProcess.MEMORY_CHECK_INTERVAL_PROPERTY, "10")));
+        }
+
+        if (resultHandler instanceof VmPartialResultHandler) {
+            outputChunkSize = new Integer(conf.getProperty(
+                    LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY, "-1"));
+        } else {
+            outputChunkSize = -1;
+        }
+
+        int completedJobStoreSize = new Integer(conf.getProperty(
+                LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "0"));
+        completedJobs = completedJobStoreSize > 0
+                ? new CompletedJobStore(completedJobStoreSize,
+                new Long(conf.getProperty(LinkedProcess.COMPLETED_JOB_STORE_MAX_BYTES_PROPERTY, "16777216")),
+                new Long(conf.getProperty(LinkedProcess.COMPLETED_JOB_TIME_TO_LIVE_PROPERTY, "600000")))
+                : null;
+        duplicateJobWindow = new Long(conf.getProperty(
+                LinkedProcess.DUPLICATE_JOB_WINDOW_PROPERTY, "0"));
+
+        reaper = new VmReaper(createReaperHelper(),
+                new Long(conf.getProperty(LinkedProcess.VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY)),
+                hibernationTimeout,
+                new Long(conf.getProperty(LinkedProcess.SCHEDULER_CLEANUP_INTERVAL_PROPERTY)));
+
         // Note: if numberOfSequencers is less than 1, strange things may happen.
+        sequencersFinished = new CountDownLatch(numberOfSequencers);
         for (int i = 0; i < numberOfSequencers; i++) {
-            new VmSequencer(source, timeSlice);
+            new VmSequencer(createSequencerHelper(i), quantumController);
         }
 
         setSchedulerStatus(LinkedProcess.Status.ACTIVE);
@@ -110,19 +249,23 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
      *          if no VM worker with the specified JID exists
      */
-    public synchronized void abortJob(final String machineJID,
-                                      final String jobID) throws VmNotFoundException, JobNotFoundException {
+    public void abortJob(final String machineJID,
+                         final String jobID) throws VmNotFoundException, JobNotFoundException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
 
-        VmWorker w = getWorkerByJID(machineJID);
+        VmWorker w = workersByJID.get(machineJID);
 
-        // FIXME: this call may block for as long as one timeslice.
-        //        This wait could probably be eliminated.
-        w.abortJob(jobID);
+        if (null == w || w.isHibernated()) {
+            // A hibernated VM has no jobs, and is not woken up for nothing.
+            if (isHibernated(machineJID)) {
+                throw new JobNotFoundException(jobID);
+            }
+            w = getWorkerByJID(machineJID);
+        }
 
-        cleanup();
+        w.abortJob(jobID);
     }
 
     /**
@@ -131,14 +274,22 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
      *          if no VM worker with the given JID exists
      */
-    public synchronized VmBindings getAllBindings(final String machineJID) throws VmNotFoundException {
+    public VmBindings getAllBindings(final String machineJID) throws VmNotFoundException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
 
         VmWorker w = getWorkerByJID(machineJID);
+        VmBindings bindings = w.getAllBindings();
+
+        // If the VM has been hibernated since it was looked up, the bindings
+        // may already be out of date.
+        while (w.isHibernated()) {
+            w = getWorkerByJID(machineJID);
+            bindings = w.getAllBindings();
+        }
 
-        return w.getAllBindings();
+        return bindings;
     }
 
     /**
@@ -148,15 +299,73 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
      *          if no VM worker with the given JID exists
      */
-    public synchronized VmBindings getBindings(final String machineJID,
-                                               final Set<String> bindingNames) throws VmNotFoundException {
+    public VmBindings getBindings(final String machineJID,
+                                  final Set<String> bindingNames) throws VmNotFoundException {
+        if (LinkedProcess.Status.INACTIVE == farmStatus) {
+            throw new IllegalStateException("scheduler has been terminated");
+        }
+
+        VmWorker w = getWorkerByJID(machineJID);
+        VmBindings bindings = w.getBindings(bindingNames);
+
+        // If the VM has been hibernated since it was looked up, the bindings
+        // may already be out of date.
+        while (w.isHibernated()) {
+            w = getWorkerByJID(machineJID);
+            bindings = w.getBindings(bindingNames);
+        }
+
+        return bindings;
+    }
+
+    /**
+     * @param machineJID   the JID of the virtual machine to query
+     * @param bindingNames the names of the bindings of interest, or an empty set for all bindings
+     * @param version      a version returned by an earlier query, or 0
+     * @return the bindings of interest which have changed since the given version, with their latest version
+     * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
+     *          if no VM worker with the given JID exists
+     */
+    public VmBindings getBindingsChangedSince(final String machineJID,
+                                              final Set<String> bindingNames,
+                                              final long version) throws VmNotFoundException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
 
         VmWorker w = getWorkerByJID(machineJID);
+        VmBindings bindings = w.getBindingsChangedSince(bindingNames, version);
+
+        // If the VM has been hibernated since it was looked up, the bindings
+        // may already be out of date.
+        while (w.isHibernated()) {
+            w = getWorkerByJID(machineJID);
+            bindings = w.getBindingsChangedSince(bindingNames, version);
+        }
 
-        return w.getBindings(bindingNames);
+        return bindings;
+    }
+
+    /**
+     * Unlike other queries, this does not bring back a hibernated virtual
+     * machine, whose bindings do not change while it is hibernated.
+     *
+     * @param machineJID the JID of the virtual machine to query
+     * @return a stamp which changes whenever the bindings of the given virtual
+     *         machine may have changed (see VmWorker.getBindingsStamp()), or 0
+     *         if the virtual machine is hibernated
+     * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
+     *          if no VM worker with the given JID exists
+     */
+    public long getBindingsStamp(final String machineJID) throws VmNotFoundException {
+        VmWorker w = workersByJID.get(machineJID);
+        if (null != w && !w.isHibernated()) {
+            return w.getBindingsStamp();
+        } else if (null != w || isHibernated(machineJID)) {
+            return 0;
+        } else {
+            throw new VmNotFoundException(machineJID);
+        }
     }
 
     /**
@@ -168,25 +377,107 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.JobNotFoundException
      *          if no job with the given ID exists
      */
-    public synchronized LinkedProcess.JobStatus getJobStatus(final String machineJID,
-                                                             final String jobID) throws VmNotFoundException, JobNotFoundException {
+    public LinkedProcess.JobStatus getJobStatus(final String machineJID,
+                                                final String jobID) throws VmNotFoundException, JobNotFoundException {
         VmWorker w = workersByJID.get(machineJID);
 
-        if (null == w) {
+        if (null == w && !isHibernated(machineJID)) {
             throw new VmNotFoundException(machineJID);
         }
 
-        if (w.jobExists(jobID)) {
+        // Note: a hibernated VM has no jobs.
+        if (null != w && w.jobExists(jobID)) {
             return LinkedProcess.JobStatus.IN_PROGRESS;
+        } else if (null != completedJobs && null != completedJobs.getCompletedJob(machineJID, jobID)) {
+            return LinkedProcess.JobStatus.COMPLETED;
         } else {
             throw new JobNotFoundException(jobID);
         }
     }
 
+    /**
+     * @param machineJID the JID of the virtual machine which has run the job
+     * @param jobID      the ID of the job
+     * @return the outcome of the job, or null if the job is still in progress
+     * @throws VmNotFoundException  if no such VM exists
+     * @throws JobNotFoundException if the job is neither in progress nor
+     *                              remembered as having finished
+     */
+    public CompletedJobStore.CompletedJob getCompletedJob(final String machineJID,
+                                                          final String jobID) throws VmNotFoundException, JobNotFoundException {
+        VmWorker w = workersByJID.get(machineJID);
+
+        if (null == w && !isHibernated(machineJID)) {
+            throw new VmNotFoundException(machineJID);
+        }
+
+        if (null != w && w.jobExists(jobID)) {
+            return null;
+        }
+        CompletedJobStore.CompletedJob c = null == completedJobs
+                ? null
+                : completedJobs.getCompletedJob(machineJID, jobID);
+        if (null == c) {
+            throw new JobNotFoundException(jobID);
+        }
+        return c;
+    }
+
+    /**
+     * @return the store of finished jobs, or null if they are not remembered
+     */
+    CompletedJobStore getCompletedJobStore() {
+        return completedJobs;
+    }
+
+    /**
+     * @return the pool of carrier threads shared by cooperative VMs, or null if each VM has a thread of its own
+     */
+    VmCarrierPool getCarrierPool() {
+        return carrierPool;
+    }
+
+    /**
+     * @return the workers of the VMs which are not hibernated
+     */
+    Collection<VmWorker> getWorkers() {
+        return workersByJID.values();
+    }
+
+    /**
+     * @return the controller of time slices, which keeps count of context switches
+     */
+    QuantumController getQuantumController() {
+        return quantumController;
+    }
+
+    /**
+     * @return the accountant for the resources used by jobs, or null if they
+     *         are not accounted for
+     */
+    public ResourceAccountant getResourceAccountant() {
+        return accountant;
+    }
+
+    /**
+     * @return the governor of the memory used by jobs, or null if there are
+     *         no memory quotas
+     */
+    MemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
+    /**
+     * @return the store of hibernated VMs, or null if VMs are not hibernated
+     */
+    VmSnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
     /**
      * @return the status of this scheduler
      */
-    public synchronized LinkedProcess.Status getSchedulerStatus() {
+    public LinkedProcess.Status getSchedulerStatus() {
         return farmStatus;
     }
 
@@ -194,9 +485,9 @@ public class VmScheduler {
      * @param machineJID the JID of the virtual machine of interest
      * @return the status of the given virtual machine
      */
-    public synchronized LinkedProcess.Status getVirtualMachineStatus(final String machineJID) {
+    public LinkedProcess.Status getVirtualMachineStatus(final String machineJID) {
         VmWorker w = workersByJID.get(machineJID);
-        return (null == w)
+        return (null == w && !isHibernated(machineJID))
                 ? LinkedProcess.Status.INACTIVE
                 : LinkedProcess.Status.ACTIVE;
     }
@@ -209,15 +500,21 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
      *          if no VM worker with the given JID exists
      */
-    public synchronized void setBindings(final String machineJID,
-                                         final VmBindings bindings) throws VmNotFoundException {
+    public void setBindings(final String machineJID,
+                            final VmBindings bindings) throws VmNotFoundException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
 
         VmWorker w = getWorkerByJID(machineJID);
-
         w.setBindings(bindings);
+
+        // If the VM has been hibernated since it was looked up, the bindings
+        // may have missed the snapshot.
+        while (w.isHibernated()) {
+            w = getWorkerByJID(machineJID);
+            w.setBindings(bindings);
+        }
     }
  
     /**
@@ -225,7 +522,7 @@ public class VmScheduler {
      *
      * @param statusHandler the new handler
      */
-    public synchronized void setStatusEventHandler(final LopStatusEventHandler statusHandler) {
+    public void setStatusEventHandler(final LopStatusEventHandler statusHandler) {
         this.eventHandler = statusHandler;
     }
 
@@ -252,6 +549,30 @@ public class VmScheduler {
         }
         workersByJID.clear();
 
+        if (null != snapshotStore) {
+            for (String vmId : snapshotStore.getVmIds()) {
+                setVirtualMachineStatus(vmId, LinkedProcess.Status.INACTIVE);
+            }
+            LOGGER.info(snapshotStore.toString());
+            snapshotStore.clear();
+        }
+
+        if (null != carrierPool) {
+            carrierPool.shutdown();
+        }
+        enginePool.shutdown();
+        reaper.shutdown();
+        if (null != scriptCache) {
+            LOGGER.info(scriptCache.toString());
+        }
+        if (null != accountant) {
+            LOGGER.info(accountant.toString());
+        }
+        if (null != memoryGovernor) {
+            LOGGER.info(memoryGovernor.toString());
+        }
+        LOGGER.info(quantumController.toString());
+
         setSchedulerStatus(LinkedProcess.Status.INACTIVE);
     }
 
@@ -267,8 +588,8 @@ public class VmScheduler {
      * @throws org.linkedprocess.farm.os.errors.VmSchedulerIsFullException
      *          if the scheduler cannot create additional virtual machines
      */
-    public synchronized void spawnVirtualMachine(final String vmId,
-                                                 final String language) throws VmAlreadyExistsException, UnsupportedScriptEngineException, VmSchedulerIsFullException {
+    public void spawnVirtualMachine(final String vmId,
+                                    final String language) throws VmAlreadyExistsException, UnsupportedScriptEngineException, VmSchedulerIsFullException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
@@ -287,34 +608,50 @@ public class VmScheduler {
             throw new IllegalArgumentException("non-null, non-empty language is required");
         }
 
-        if (null != workersByJID.get(vmId)) {
+        if (null != workersByJID.get(vmId) || isHibernated(vmId)) {
             throw new VmAlreadyExistsException(vmId);
         }
 
-        // Pick an engine based on language name, not engine name.
-        // Note: language selection is case-insensitive.
-        ScriptEngine engine = null;
-        String l = language.toLowerCase();
-        for (ScriptEngineFactory f : LinkedProcessFarm.getSupportedScriptEngineFactories()) {
-            if (f.getLanguageName().toLowerCase().equals(l)) {
-                engine = f.getScriptEngine();
-                break;
+        // Pick an engine based on language name, not engine name.  This may
+        // take a while if no engine is ready, so it is done without locking.
+        ScriptEngine engine = enginePool.take(language);
+
+        boolean added = false;
+        try {
+            addVirtualMachine(vmId, engine);
+            added = true;
+        } finally {
+            if (!added) {
+                enginePool.giveBack(language, engine);
             }
         }
-        if (null == engine) {
-            throw new UnsupportedScriptEngineException(language);
+    }
+
+    private synchronized void addVirtualMachine(final String vmId,
+                                                final ScriptEngine engine) throws VmAlreadyExistsException, VmSchedulerIsFullException {
+        // Check again, now that no other VM can be added.
+        if (LinkedProcess.Status.INACTIVE == farmStatus) {
+            throw new IllegalStateException("scheduler has been terminated");
+        }
+
+        if (LinkedProcess.Status.BUSY == farmStatus) {
+            throw new VmSchedulerIsFullException();
+        }
+
+        if (null != workersByJID.get(vmId) || isHibernated(vmId)) {
+            throw new VmAlreadyExistsException(vmId);
         }
 
-        VmWorker w = new VmWorker(engine, resultHandler);
+        VmWorker w = new VmWorker(engine, resultHandler, executionMode, carrierPool, scriptCache, accountant, memoryGovernor, outputChunkSize);
 
         workersByJID.put(vmId, w);
+        // A VM which is never given a job also expires.
+        reaper.workerIdle(w);
         if (MAX_VM == workersByJID.size()) {
             setSchedulerStatus(LinkedProcess.Status.BUSY);
         }
 
         setVirtualMachineStatus(vmId, LinkedProcess.Status.ACTIVE);
-
-        cleanup();
     }
 
     /**
@@ -323,31 +660,132 @@ public class VmScheduler {
      * @param machineJID the JID of the virtual machine to execute the job
      * @param job        the job to execute
      * @throws org.linkedprocess.farm.os.errors.VmIsFullException
+     *          if the VM in question has a full queue, or the results of
+     *          jobs are not being sent as fast as they are produced
+     * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
+     *          if no such VM exists
+     * @throws org.linkedprocess.farm.os.errors.JobAlreadyExistsException
+     *          if a job with the given ID already exists on the machine with the given ID.
+     *          If the job is the same job submitted again by the same villein, this is a
+     *          DuplicateJobException, and the job is not run a second time
+     */
+    public void submitJob(final String machineJID,
+                          final Job job) throws VmIsFullException, VmNotFoundException, JobAlreadyExistsException {
+        submitJob(machineJID, job, true);
+    }
+
+    /**
+     * Adds a job which the farm itself submits, on behalf of a villein whose
+     * request has already been accepted: for instance, a job of a graph which
+     * the result of a job it depends on has released.  Unlike submitJob,
+     * this does not turn the job away while results are backing up, as it
+     * may be called by the very thread which sends them.
+     *
+     * @param machineJID the JID of the virtual machine to execute the job
+     * @param job        the job to execute
+     * @throws org.linkedprocess.farm.os.errors.VmIsFullException
      *          if the VM in question has a full queue
      * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
      *          if no such VM exists
      * @throws org.linkedprocess.farm.os.errors.JobAlreadyExistsException
      *          if a job with the given ID already exists on the machine with the given ID
      */
-    public synchronized void submitJob(final String machineJID,
-                                       final Job job) throws VmIsFullException, VmNotFoundException, JobAlreadyExistsException {
+    public void submitReleasedJob(final String machineJID,
+                                  final Job job) throws VmIsFullException, VmNotFoundException, JobAlreadyExistsException {
+        submitJob(machineJID, job, false);
+    }
+
+    private void submitJob(final String machineJID,
+                           final Job job,
+                           final boolean heedBacklog) throws VmIsFullException, VmNotFoundException, JobAlreadyExistsException {
         if (LinkedProcess.Status.INACTIVE == farmStatus) {
             throw new IllegalStateException("scheduler has been terminated");
         }
 
-        jobsReceived++;
+        // Note: the job is counted before it is submitted, as it may be
+        // completed at any moment after that.
+        jobsReceived.incrementAndGet();
+        boolean accepted = false;
+        try {
+            VmWorker w = getWorkerByJID(machineJID);
+            checkForDuplicate(machineJID, w, job);
+            if (heedBacklog) {
+                checkResultBacklog(machineJID);
+            }
+            w = acceptJob(machineJID, w, job);
+            accepted = true;
+
+            enqueueWorker(w, VmWorkerQueue.NO_SEQUENCER);
+        } finally {
+            if (!accepted) {
+                // No result will be produced for the job.
+                jobsReceived.decrementAndGet();
+                notifyIfFinished();
+            }
+        }
+    }
 
+    /**
+     * Adds a batch of jobs to the queue of the given machine.  The machine is
+     * looked up, and queued for execution, once for the whole batch rather
+     * than once per job.  Each job is accepted or rejected on its own, as if
+     * it had been submitted alone, and a result will be produced for each job
+     * which is accepted.  A job of a batch which is submitted again is not
+     * run twice, any more than a job submitted alone: it is rejected with a
+     * DuplicateJobException.
+     *
+     * @param machineJID the JID of the virtual machine to execute the jobs
+     * @param jobs       the jobs to execute, in order
+     * @return the jobs which have been rejected (e.g. because the VM's queue
+     *         is full, or because they have been submitted again), in order,
+     *         each with the reason it has been rejected
+     * @throws org.linkedprocess.farm.os.errors.VmNotFoundException
+     *          if no such VM exists, in which case no job has been accepted
+     */
+    public Map<Job, SchedulerException> submitJobs(final String machineJID,
+                                                   final List<Job> jobs) throws VmNotFoundException {
+        if (LinkedProcess.Status.INACTIVE == farmStatus) {
+            throw new IllegalStateException("scheduler has been terminated");
+        }
+
+        Map<Job, SchedulerException> rejected = new LinkedHashMap<Job, SchedulerException>();
         VmWorker w = getWorkerByJID(machineJID);
+        // The worker which has accepted jobs, but has yet to be queued.
+        VmWorker unqueued = null;
 
-        // FIXME: this call may block for as long as one timeslice.
-        //        This wait could probably be eliminated.
-        if (!w.submitJob(job)) {
-            throw new VmIsFullException(machineJID);
+        for (Job job : jobs) {
+            jobsReceived.incrementAndGet();
+            boolean accepted = false;
+            try {
+                checkForDuplicate(machineJID, w, job);
+                checkResultBacklog(machineJID);
+                VmWorker v = acceptJob(machineJID, w, job);
+                accepted = true;
+
+                // The VM may have been hibernated and woken up again in
+                // the meantime, in which case there are two workers to queue.
+                if (v != w && null != unqueued) {
+                    enqueueWorker(unqueued, VmWorkerQueue.NO_SEQUENCER);
+                }
+                w = v;
+                unqueued = v;
+            } catch (SchedulerException e) {
+                rejected.put(job, e);
+            } finally {
+                if (!accepted) {
+                    jobsReceived.decrementAndGet();
+                }
+            }
         }
 
-        enqueueWorker(w);
+        if (null != unqueued) {
+            enqueueWorker(unqueued, VmWorkerQueue.NO_SEQUENCER);
+        }
+        if (!rejected.isEmpty()) {
+            notifyIfFinished();
+        }
 
-        cleanup();
+        return rejected;
     }
 
     /**
@@ -363,84 +801,190 @@ public class VmScheduler {
         }
 
         LOGGER.fine("removing vm with vm_id '" + vmId + "'");
+
+        // Note: a VM which is being hibernated is still in the map, as the
+        // scheduler is locked meanwhile.
+        if (null == workersByJID.get(vmId) && null != snapshotStore && snapshotStore.remove(vmId)) {
+            if (null != accountant) {
+                accountant.vmTerminated(vmId);
+            }
+            setVirtualMachineStatus(vmId, LinkedProcess.Status.INACTIVE);
+            return;
+        }
+
         VmWorker w = getWorkerByJID(vmId);
 
         workersByJID.remove(vmId);
         workerQueue.remove(w);
 
         w.terminate();
+        if (null != accountant) {
+            accountant.vmTerminated(vmId);
+        }
         setVirtualMachineStatus(vmId, LinkedProcess.Status.INACTIVE);
 
-
         if (MAX_VM > workersByJID.size() && this.farmStatus != LinkedProcess.Status.ACTIVE) {
             setSchedulerStatus(LinkedProcess.Status.ACTIVE);
         }
-
-        cleanup();
     }
 
     /**
      * Waits until all pending and currently executed jobs have finished.  This
      * is a convenience method (for unit tests and shutdown) which should be
-     * used with caution.  Because the method is synchronized, you could wait
-     * indefinitely on a job which never finishes, with no chance of terminating
-     * the job.
+     * used with caution: you could wait indefinitely on a job which never
+     * finishes.
      *
      * @throws InterruptedException if the Thread is interrupted while waiting
      */
-    public synchronized void waitUntilFinished() throws InterruptedException {
-        // Busy wait until the number of jobs completed catches up with the
-        // number of jobs received.  Even failed jobs, cancelled jobs, and jobs
-        // whose virtual machine has been terminated produce a result which is
-        // counted.
-        while (jobsCompleted < jobsReceived) {
-            Thread.sleep(POLL_FOR_COMPLETION_INTERVAL);
-        }
+    public void waitUntilFinished() throws InterruptedException {
+        waitUntilFinished(0);
     }
 
-    ////////////////////////////////////////////////////////////////////////////
+    /**
+     * Waits for the scheduler to come to a stop after a call to shutdown:
+     * for all sequencers to stop, for all cancelled jobs to produce their
+     * results and for all threads to be released.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return whether the scheduler has stopped before the deadline
+     * @throws InterruptedException if the Thread is interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
 
-    // Note: this method is currently called only each time the scheduler is
-    //       accessed to manipulate VMs and jobs.  An idle scheduler may
-    //       therefore not shut down idle VMs for some time after the timeout
-    //       value.
+        return sequencersFinished.await(timeout, TimeUnit.MILLISECONDS)
+                && reaper.awaitTermination(remainingTime(deadline))
+                && (null == carrierPool || carrierPool.awaitTermination(remainingTime(deadline)))
+                && waitUntilFinished(remainingTime(deadline));
+    }
 
-    private void cleanup() {
-        // A negative timeout indicates no timeout at all.
-        if (VM_TIMEOUT < 0) {
-            return;
-        }
+    /**
+     * @return the number of this scheduler's sequencers which have not yet stopped
+     */
+    long getRunningSequencerCount() {
+        return sequencersFinished.getCount();
+    }
 
-        long time = System.currentTimeMillis();
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param timeout the maximum time to wait, in milliseconds.  If 0, there is
+     *                no maximum
+     * @return whether all jobs have finished
+     */
+    private boolean waitUntilFinished(final long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
 
-        Collection<String> toShutDown = new LinkedList<String>();
-        if (time - lastCleanupTime >= SCHEDULER_CLEANUP_INTERVAL) {
-            for (String jid : workersByJID.keySet()) {
-                VmWorker w = workersByJID.get(jid);
-                if (!w.canWork()) {
-                    if (time - w.getTimeLastActive() >= VM_TIMEOUT) {
-                        toShutDown.add(jid);
+        // Wait until the number of jobs completed catches up with the number
+        // of jobs received.  Even failed jobs, cancelled jobs, and jobs whose
+        // virtual machine has been terminated produce a result which is
+        // counted.
+        synchronized (completionMonitor) {
+            while (jobsCompleted.get() < jobsReceived.get()) {
+                if (0 == timeout) {
+                    completionMonitor.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
                     }
+                    completionMonitor.wait(remaining);
                 }
             }
+        }
+
+        return true;
+    }
+
+    private void notifyIfFinished() {
+        if (jobsCompleted.get() >= jobsReceived.get()) {
+            synchronized (completionMonitor) {
+                completionMonitor.notifyAll();
+            }
+        }
+    }
 
-            for (String jid : toShutDown) {
+    private static long remainingTime(final long deadline) {
+        // Note: a wait of 0 would be a wait without a deadline.
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Terminates the VM of a worker, unless it has already been terminated.
+     */
+    private void terminateWorker(final VmWorker w) {
+        for (String jid : workersByJID.keySet()) {
+            // This is not efficient, but VMs are rarely terminated this way.
+            if (workersByJID.get(jid) == w) {
                 try {
                     terminateVm(jid);
                 } catch (VmNotFoundException e) {
                     // Ignore this error: it means the worker has already been explicitly terminated.
+                } catch (IllegalStateException e) {
+                    // Ignore this error: the scheduler has been shut down.
                 }
             }
-
-            lastCleanupTime = time;
         }
     }
 
-    private VmSequencerHelper createSequencerHelper() {
+    private VmReaperHelper createReaperHelper() {
+        return new VmReaperHelper() {
+            public void reap(final VmWorker w) {
+                terminateWorker(w);
+            }
+
+            public boolean hibernate(final VmWorker w) {
+                return hibernateVirtualMachine(w);
+            }
+
+            public void reapHibernated(final String vmId,
+                                       final long timeLastActive) {
+                synchronized (VmScheduler.this) {
+                    // The VM may have been woken up, and even hibernated again, since.
+                    VmSnapshotStore.Snapshot s = snapshotStore.get(vmId);
+                    if (null == s || s.getTimeLastActive() != timeLastActive
+                            || LinkedProcess.Status.INACTIVE == farmStatus) {
+                        return;
+                    }
+
+                    LOGGER.info("terminating hibernated VM");
+                    try {
+                        terminateVm(vmId);
+                    } catch (VmNotFoundException e) {
+                        // Ignore this error: it means the VM has already been explicitly terminated.
+                    }
+                }
+            }
+
+            public void report() {
+                if (null != scriptCache) {
+                    LOGGER.info(scriptCache.toString());
+                }
+                if (null != snapshotStore) {
+                    LOGGER.info(snapshotStore.toString());
+                }
+                if (null != accountant) {
+                    LOGGER.info(accountant.toString());
+                }
+                if (null != memoryGovernor) {
+                    LOGGER.info(memoryGovernor.toString());
+                }
+                if (null != completedJobs) {
+                    LOGGER.info(completedJobs.toString());
+                }
+                if (jobsDuplicated.get() > 0) {
+                    LOGGER.info(jobsDuplicated.get() + " jobs submitted again were not run twice");
+                }
+                LOGGER.info(quantumController.toString());
+            }
+        };
+    }
+
+    private VmSequencerHelper createSequencerHelper(final int sequencerIndex) {
         return new VmSequencerHelper() {
             public VmWorker getWorker() {
                 try {
-                    return workerQueue.take();
+                    return workerQueue.take(sequencerIndex);
                 } catch (InterruptedException e) {
                     LOGGER.severe("thread interrupted unexpectedly in queue");
                     System.exit(1);
@@ -448,6 +992,13 @@ public class VmScheduler {
                 }
             }
 
+            public void chargeTimeSlice(final Job job,
+                                        final long time) {
+                if (null != schedulingPolicy && null != job) {
+                    schedulingPolicy.charge(job, time);
+                }
+            }
+
             public void putBackWorker(final VmWorker w,
                                       final boolean idle) {
                 // If the worker thread died unexpectedly, terminate the worker.
@@ -469,14 +1020,101 @@ public class VmScheduler {
                     }
                 }*/
 
-                if (!idle) {
-                    enqueueWorker(w);
+                if (w.isOverMemoryQuota()) {
+                    LOGGER.info("terminating VM over its memory quota");
+                    terminateWorker(w);
+                } else if (idle) {
+                    reaper.workerIdle(w);
+                } else {
+                    enqueueWorker(w, sequencerIndex);
                 }
             }
+
+            public void sequencerFinished() {
+                sequencersFinished.countDown();
+            }
         };
     }
 
-    private void enqueueWorker(final VmWorker w) {
+    /**
+     * Hands a job to a VM's worker.
+     *
+     * @return the worker which has accepted the job: either the given worker
+     *         or, if the VM has been hibernated in the meantime, a new one
+     */
+    private VmWorker acceptJob(final String machineJID,
+                               VmWorker w,
+                               final Job job) throws VmIsFullException, VmNotFoundException, JobAlreadyExistsException {
+        while (!w.submitJob(job)) {
+            // The VM may have been hibernated since it was looked up, in
+            // which case it is woken up again.
+            if (w.isHibernated()) {
+                w = getWorkerByJID(machineJID);
+                continue;
+            }
+
+            // The worker may have been terminated since it was looked up.
+            if (null == workersByJID.get(machineJID)) {
+                throw new VmNotFoundException(machineJID);
+            }
+
+            throw new VmIsFullException(machineJID);
+        }
+
+        return w;
+    }
+
+    /**
+     * Recognizes a job which is submitted again by a villein which has given
+     * up waiting for its result, so that the job is not run a second time.
+     * A job with the same ID which is not the same job (e.g. whose ID has been
+     * re-used for another expression) is left to be accepted or turned away as
+     * usual.
+     */
+    private void checkForDuplicate(final String machineJID,
+                                   final VmWorker w,
+                                   final Job job) throws DuplicateJobException {
+        Job existing = w.getJob(job.getJobId());
+        if (null != existing) {
+            if (equal(existing.getExpression(), job.getExpression())
+                    && equal(existing.getVilleinJid(), job.getVilleinJid())) {
+                jobsDuplicated.incrementAndGet();
+                throw new DuplicateJobException(job, null);
+            }
+            return;
+        }
+
+        if (null != completedJobs && duplicateJobWindow > 0) {
+            CompletedJobStore.CompletedJob c = completedJobs.getCompletedJob(machineJID, job.getJobId());
+            // Note: a result which has been sent in pieces is not kept whole,
+            // so such a job is run again.
+            if (null != c
+                    && 0 == c.getPartialResults()
+                    && System.currentTimeMillis() - c.getTimeCompleted() <= duplicateJobWindow
+                    && c.isSubmittedAgainAs(job)) {
+                jobsDuplicated.incrementAndGet();
+                throw new DuplicateJobException(job, c);
+            }
+        }
+    }
+
+    private static boolean equal(final String a,
+                                 final String b) {
+        return null == a ? null == b : a.equals(b);
+    }
+
+    /**
+     * Turns jobs away while the results of earlier jobs are backing up, so
+     * that the backlog is not made any longer.
+     */
+    private void checkResultBacklog(final String machineJID) throws VmIsFullException {
+        if (null != backpressure && backpressure.isCongested()) {
+            throw new VmIsFullException(machineJID);
+        }
+    }
+
+    private void enqueueWorker(final VmWorker w,
+                               final int sequencerIndex) {
         //LOGGER.info("enqueueing worker: " + w);
 
         // Add the worker to the queue, unless it is already present.  This
@@ -484,21 +1122,179 @@ public class VmScheduler {
         // making very frequent requests to the same VM: the scheduler is fair
         // with respect to VMs.  Note, however, that the client may simply
         // spawn more VMs for greater throughput with respect to its competitors
-        // on the machine.
-        workerQueue.offerDistinct(w);
+        // on the machine.  The check itself is a constant-time flag test.
+        workerQueue.offerDistinct(w, sequencerIndex);
         //LOGGER.info("...done (workerQueue.size() = " + workerQueue.size() + ")");
     }
 
+    /**
+     * @param name the name of a SchedulingPolicyType, or of a class which
+     *             implements SchedulingPolicy
+     * @param conf the farm's configuration
+     * @return the policy, or null for round-robin scheduling, which is what
+     *         the queues of each scheduling mode already do
+     */
+    private static SchedulingPolicy createSchedulingPolicy(final String name,
+                                                           final Properties conf) {
+        for (SchedulingPolicyType t : SchedulingPolicyType.values()) {
+            if (t.toString().equals(name.trim())) {
+                switch (t) {
+                    case ROUND_ROBIN:
+                        return null;
+                    case FAIR_SHARE:
+                        return new FairSharePolicy(conf);
+                    case EARLIEST_DEADLINE_FIRST:
+                        return new EarliestDeadlineFirstPolicy(new Long(conf.getProperty(
+                                LinkedProcess.JOB_TIMEOUT_PROPERTY)));
+                    default:
+                        throw new IllegalStateException("no policy for scheduling policy type: " + t);
+                }
+            }
+        }
+
+        try {
+            return (SchedulingPolicy) Class.forName(name.trim()).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("no such scheduling policy: " + name);
+        }
+    }
+
+    /**
+     * @param machineJID the JID of a virtual machine
+     * @return the VM's worker.  If the VM is hibernated, it is woken up
+     * @throws VmNotFoundException if no such VM exists
+     */
     private VmWorker getWorkerByJID(final String machineJID) throws VmNotFoundException {
         VmWorker w = workersByJID.get(machineJID);
 
-        if (null == w) {
-            throw new VmNotFoundException(machineJID);
+        if (null == w || w.isHibernated()) {
+            if (null == snapshotStore) {
+                throw new VmNotFoundException(machineJID);
+            }
+
+            w = rehydrateVirtualMachine(machineJID);
         }
 
         return w;
     }
 
+    private boolean isHibernated(final String vmId) {
+        return null != snapshotStore && snapshotStore.contains(vmId);
+    }
+
+    /**
+     * Hibernates the VM of an idle worker, unless the worker is not idle after
+     * all, or the VM cannot be hibernated.
+     *
+     * @param w the worker of the VM
+     * @return whether the VM has been hibernated
+     */
+    private synchronized boolean hibernateVirtualMachine(final VmWorker w) {
+        if (LinkedProcess.Status.INACTIVE == farmStatus || snapshotStore.isFull()) {
+            return false;
+        }
+
+        String vmId = null;
+        for (String jid : workersByJID.keySet()) {
+            // This is not efficient, but VMs are hibernated rarely.
+            if (workersByJID.get(jid) == w) {
+                vmId = jid;
+                break;
+            }
+        }
+        if (null == vmId) {
+            return false;
+        }
+
+        long timeLastActive = w.getTimeLastActive();
+        VmBindings bindings = w.hibernate();
+        if (null == bindings) {
+            return false;
+        }
+
+        // The snapshot is stored before the worker is removed, so that the VM
+        // can always be found.
+        workerQueue.remove(w);
+        snapshotStore.put(vmId, w.getLanguage(), bindings, timeLastActive);
+        workersByJID.remove(vmId);
+        reaper.vmHibernated(vmId, timeLastActive);
+        LOGGER.fine("hibernated vm with vm_id '" + vmId + "'");
+
+        if (MAX_VM > workersByJID.size() && LinkedProcess.Status.BUSY == farmStatus) {
+            setSchedulerStatus(LinkedProcess.Status.ACTIVE);
+        }
+
+        return true;
+    }
+
+    /**
+     * Brings back a hibernated VM with a new worker.
+     *
+     * @param vmId the JID of the VM
+     * @return the VM's worker
+     * @throws VmNotFoundException if no such VM exists
+     */
+    private VmWorker rehydrateVirtualMachine(final String vmId) throws VmNotFoundException {
+        String language;
+        synchronized (this) {
+            // The VM may be woken up by another thread meanwhile.  Note: a
+            // worker which is being hibernated is never found here, as the
+            // scheduler is locked meanwhile.
+            VmWorker w = workersByJID.get(vmId);
+            if (null != w) {
+                return w;
+            }
+
+            VmSnapshotStore.Snapshot s = snapshotStore.get(vmId);
+            if (null == s) {
+                throw new VmNotFoundException(vmId);
+            }
+            language = s.getLanguage();
+        }
+
+        // As when a VM is spawned, an engine may take a while to create, so
+        // it is taken without locking.
+        ScriptEngine engine;
+        try {
+            engine = enginePool.take(language);
+        } catch (UnsupportedScriptEngineException e) {
+            throw new IllegalStateException("language of hibernated VM is not supported: " + language);
+        }
+
+        synchronized (this) {
+            VmWorker w = workersByJID.get(vmId);
+            if (null != w) {
+                enginePool.giveBack(language, engine);
+                return w;
+            }
+
+            if (LinkedProcess.Status.INACTIVE == farmStatus) {
+                throw new IllegalStateException("scheduler has been terminated");
+            }
+
+            VmBindings bindings = snapshotStore.restore(vmId);
+            if (null == bindings) {
+                enginePool.giveBack(language, engine);
+                throw new VmNotFoundException(vmId);
+            }
+
+            w = new VmWorker(engine, resultHandler, executionMode, carrierPool, scriptCache, accountant, memoryGovernor, outputChunkSize);
+            w.setBindings(bindings);
+
+            // Note: a VM which is in use is never turned away, even if the
+            // scheduler is full, but no new VMs will be spawned until there
+            // is room again.
+            workersByJID.put(vmId, w);
+            reaper.workerIdle(w);
+            if (MAX_VM <= workersByJID.size() && LinkedProcess.Status.ACTIVE == farmStatus) {
+                setSchedulerStatus(LinkedProcess.Status.BUSY);
+            }
+            LOGGER.fine("rehydrated vm with vm_id '" + vmId + "'");
+
+            return w;
+        }
+    }
+
     private void setSchedulerStatus(final LinkedProcess.Status newFarmStatus) {
         this.farmStatus = newFarmStatus;
         eventHandler.schedulerStatusChanged(farmStatus);
@@ -511,14 +1307,96 @@ public class VmScheduler {
 
     ////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * The ways in which sequencer threads may obtain workers to run.
+     */
+    public enum SchedulingMode {
+        SHARED("shared"), WORK_STEALING("work_stealing");
+
+        private final String name;
+
+        private SchedulingMode(final String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public static SchedulingMode valueByName(final String name) {
+            for (SchedulingMode m : values()) {
+                if (m.name.equals(name.trim())) {
+                    return m;
+                }
+            }
+
+            throw new IllegalArgumentException("no such scheduling mode: " + name);
+        }
+
+        private VmWorkerQueue createQueue(final int numberOfSequencers) {
+            switch (this) {
+                case SHARED:
+                    return new VmRunQueue();
+                case WORK_STEALING:
+                    return new WorkStealingRunQueue(numberOfSequencers);
+                default:
+                    throw new IllegalStateException("no queue for scheduling mode: " + this);
+            }
+        }
+    }
+
+    /**
+     * The built-in orders in which VMs with work to do are given time slices.
+     */
+    public enum SchedulingPolicyType {
+        ROUND_ROBIN("round_robin"), FAIR_SHARE("fair_share"), EARLIEST_DEADLINE_FIRST("earliest_deadline_first");
+
+        private final String name;
+
+        private SchedulingPolicyType(final String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
     public interface VmResultHandler {
         void handleResult(JobResult result);
     }
 
+    public interface VmPartialResultHandler {
+        void handlePartialResult(JobResult result);
+    }
+
+    /**
+     * A result handler which may fall behind the jobs which produce results,
+     * e.g. because it sends them over the network.  It is polled, and must
+     * answer without blocking.
+     */
+    public interface VmResultBackpressure {
+        boolean isCongested();
+    }
+
     public interface VmSequencerHelper {
         VmWorker getWorker();
 
+        void chargeTimeSlice(Job job, long time);
+
         void putBackWorker(VmWorker w, boolean idle);
+
+        void sequencerFinished();
+    }
+
+    public interface VmReaperHelper {
+        void reap(VmWorker w);
+
+        boolean hibernate(VmWorker w);
+
+        void reapHibernated(String vmId, long timeLastActive);
+
+        void report();
     }
 
     public interface LopStatusEventHandler {
@@ -527,7 +1405,7 @@ public class VmScheduler {
         void virtualMachineStatusChanged(String vmId, LinkedProcess.Status newVmStatus);
     }
 
-    private class ResultCounter implements VmResultHandler {
+    private class ResultCounter implements VmResultHandler, VmPartialResultHandler, VmResultBackpressure {
         private final VmResultHandler handler;
 
         public ResultCounter(final VmResultHandler handler) {
@@ -536,14 +1414,31 @@ public class VmScheduler {
 
         public void handleResult(final JobResult result) {
             try {
+                if (null != accountant) {
+                    accountant.jobFinished(result.getJob());
+                }
+                // Remember the job before its result goes out, so that it is
+                // found by a villein which asks about it as soon as it has
+                // missed the result.
+                if (null != completedJobs) {
+                    completedJobs.jobFinished(result);
+                }
                 handler.handleResult(result);
             } finally {
                 // For the sake of waitUntilFinished, count the job as completed
                 // AFTER the call to the inner handler has completed (or failed).
-                synchronized (this) {
-                    jobsCompleted++;
-                }
+                jobsCompleted.incrementAndGet();
+                notifyIfFinished();
             }
         }
+
+        public void handlePartialResult(final JobResult result) {
+            // Note: partial results are only produced for a handler which accepts them.
+            ((VmPartialResultHandler) handler).handlePartialResult(result);
+        }
+
+        public boolean isCongested() {
+            return null != backpressure && backpressure.isCongested();
+        }
     }
 }
@@ -25,7 +25,7 @@ class VmSequencer {
     }
 
     private Status status;
-    private final long timeSlice;
+    private final QuantumController quantumController;
     private final VmScheduler.VmSequencerHelper sequencerHelper;
 
     private static long threadID = 0;
@@ -39,14 +39,15 @@ class VmSequencer {
      *
      * @param sequencerHelper a source for workers ready to execute jobs.  When
      *                        this sequencer receives a null from this source, it terminates.
-     * @param timeSlice       the time slice in which to execute jobs
+     * @param quantumController decides the length of the time slice in which
+     *                          to execute jobs
      */
     public VmSequencer(final VmScheduler.VmSequencerHelper sequencerHelper,
-                       final long timeSlice) {
+                       final QuantumController quantumController) {
         //LOGGER.info("instantiating VMSequencer");
 
         this.sequencerHelper = sequencerHelper;
-        this.timeSlice = timeSlice;
+        this.quantumController = quantumController;
 
         // Must set status to ACTIVE before spawning the thread.
         status = Status.ACTIVE;
@@ -85,7 +86,14 @@ class VmSequencer {
             return;
         }
 
+        // Note: the job is looked up before the time slice, which may finish it.
+        Job job = w.getNextJob();
+        long timeSlice = quantumController.getQuantum(w, job);
+        long startTime = System.nanoTime();
         boolean idle = w.work(timeSlice);
+        long time = System.nanoTime() - startTime;
+        quantumController.timeSliceFinished(w, job, timeSlice, time);
+        sequencerHelper.chargeTimeSlice(job, time);
         //LOGGER.info("idle: " + idle);
         sequencerHelper.putBackWorker(w, idle);
     }
@@ -97,16 +105,20 @@ class VmSequencer {
 
         public void run() {
             //LOGGER.info("running SequencerRunnable");
-            // Break out when the sequencer is terminated.
-            while (Status.ACTIVE == status) {
-                try {
-                    executeForTimeSlice();
-                    //LOGGER.info("SequencerRunnable is terminating");
-                } catch (Throwable t) {
-                    // Log the error, but attempt to recover.
-                    LOGGER.severe("sequencer runnable died with error: " + t.toString());
-                    t.printStackTrace();
+            try {
+                // Break out when the sequencer is terminated.
+                while (Status.ACTIVE == status) {
+                    try {
+                        executeForTimeSlice();
+                        //LOGGER.info("SequencerRunnable is terminating");
+                    } catch (Throwable t) {
+                        // Log the error, but attempt to recover.
+                        LOGGER.severe("sequencer runnable died with error: " + t.toString());
+                        t.printStackTrace();
+                    }
                 }
+            } finally {
+                sequencerHelper.sequencerFinished();
             }
         }
     }
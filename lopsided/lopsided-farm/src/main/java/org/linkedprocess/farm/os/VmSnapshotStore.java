@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.errors.NoSuchDatatypeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Holds the bindings of hibernated VMs: VMs which have been idle for long
+ * enough that their script engines have been released.  A snapshot is kept in
+ * serialized form, either in memory or, if a directory is given, in a file of
+ * its own, so that a hibernated VM costs a few bytes of heap rather than a
+ * script engine and a thread.
+ * <p/>
+ * Only bindings with an XML Schema datatype (the values which can be read and
+ * written through manage_bindings) can be stored.  The bindings of a VM which
+ * holds anything else, such as a function or an object, cannot be restored
+ * faithfully, so such a VM is not hibernated.
+ */
+public class VmSnapshotStore {
+    private static final Logger LOGGER = LinkedProcess.getLogger(VmSnapshotStore.class);
+
+    private static final String FILE_SUFFIX = ".bindings";
+    // Stands for a null value in place of a datatype.
+    private static final int NULL_VALUE = -1;
+
+    private final File directory;
+    private final int capacity;
+    private final Map<String, Snapshot> snapshotsByJID;
+
+    private final AtomicLong hibernations = new AtomicLong(0);
+    private final AtomicLong rehydrations = new AtomicLong(0);
+
+    /**
+     * @param directory a directory in which to write snapshots, or null if
+     *                  snapshots are to be kept in memory
+     * @param capacity  the maximum number of snapshots
+     */
+    public VmSnapshotStore(final File directory,
+                           final int capacity) {
+        if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("not a directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.capacity = capacity;
+        snapshotsByJID = new ConcurrentHashMap<String, Snapshot>();
+    }
+
+    /**
+     * @param bindings the bindings of a VM
+     * @return whether the bindings can be stored without loss
+     */
+    public static boolean isStorable(final Map<String, Object> bindings) {
+        for (Object value : bindings.values()) {
+            if (null != value) {
+                try {
+                    VmBindings.XMLSchemaDatatype.valueByClass(value.getClass());
+                } catch (NoSuchDatatypeException e) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param vmId the JID of a VM
+     * @return whether the VM is hibernated
+     */
+    public boolean contains(final String vmId) {
+        return snapshotsByJID.containsKey(vmId);
+    }
+
+    /**
+     * @return whether no more snapshots can be stored
+     */
+    public boolean isFull() {
+        return snapshotsByJID.size() >= capacity;
+    }
+
+    /**
+     * @param vmId the JID of a VM
+     * @return the snapshot of the VM, or null if the VM is not hibernated
+     */
+    public Snapshot get(final String vmId) {
+        return snapshotsByJID.get(vmId);
+    }
+
+    /**
+     * Stores a snapshot of a VM.
+     *
+     * @param vmId           the JID of the VM
+     * @param language       the language of the VM
+     * @param bindings       the VM's bindings, which must be storable
+     * @param timeLastActive the time at which the VM was last active
+     * @return the snapshot
+     */
+    public Snapshot put(final String vmId,
+                        final String language,
+                        final VmBindings bindings,
+                        final long timeLastActive) {
+        byte[] data = encode(bindings);
+        File file = null;
+        if (null != directory) {
+            file = new File(directory, Integer.toHexString(vmId.hashCode()) + "-" + System.nanoTime() + FILE_SUFFIX);
+            try {
+                write(file, data);
+                data = null;
+            } catch (IOException e) {
+                // Keep the snapshot in memory instead.
+                LOGGER.warning("failed to write snapshot of VM " + vmId + ": " + e);
+                file.delete();
+                file = null;
+            }
+        }
+
+        Snapshot s = new Snapshot(language, timeLastActive, data, file);
+        Snapshot previous = snapshotsByJID.put(vmId, s);
+        if (null != previous) {
+            previous.discard();
+        }
+        hibernations.incrementAndGet();
+        return s;
+    }
+
+    /**
+     * Removes the snapshot of a VM which is to be brought back.
+     *
+     * @param vmId the JID of the VM
+     * @return the VM's bindings, or null if the VM is not hibernated
+     */
+    public VmBindings restore(final String vmId) {
+        Snapshot s = snapshotsByJID.remove(vmId);
+        if (null == s) {
+            return null;
+        }
+
+        try {
+            VmBindings bindings = decode(null == s.file ? s.data : read(s.file));
+            rehydrations.incrementAndGet();
+            return bindings;
+        } catch (IOException e) {
+            // The VM comes back empty rather than not at all.
+            LOGGER.severe("failed to read snapshot of VM " + vmId + ": " + e);
+            return new VmBindings();
+        } finally {
+            s.discard();
+        }
+    }
+
+    /**
+     * Discards the snapshot of a VM.
+     *
+     * @param vmId the JID of the VM
+     * @return whether the VM was hibernated
+     */
+    public boolean remove(final String vmId) {
+        Snapshot s = snapshotsByJID.remove(vmId);
+        if (null == s) {
+            return false;
+        }
+
+        s.discard();
+        return true;
+    }
+
+    /**
+     * @return the JIDs of all hibernated VMs
+     */
+    public Iterable<String> getVmIds() {
+        return snapshotsByJID.keySet();
+    }
+
+    /**
+     * Discards all snapshots.
+     */
+    public void clear() {
+        for (String vmId : snapshotsByJID.keySet()) {
+            remove(vmId);
+        }
+    }
+
+    /**
+     * @return the number of hibernated VMs
+     */
+    public int size() {
+        return snapshotsByJID.size();
+    }
+
+    /**
+     * @return the number of VMs which have been hibernated
+     */
+    public long getHibernations() {
+        return hibernations.get();
+    }
+
+    /**
+     * @return the number of VMs which have been brought back from hibernation
+     */
+    public long getRehydrations() {
+        return rehydrations.get();
+    }
+
+    public String toString() {
+        return "snapshot store: " + snapshotsByJID.size() + " hibernated VMs, "
+                + hibernations.get() + " hibernations, "
+                + rehydrations.get() + " rehydrations";
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    static byte[] encode(final VmBindings bindings) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(bindings.size());
+            for (String key : bindings.keySet()) {
+                writeString(out, key);
+                TypedValue v = bindings.getTyped(key);
+                if (null == v) {
+                    out.writeByte(NULL_VALUE);
+                } else {
+                    out.writeByte(v.getDatatype().ordinal());
+                    writeString(out, v.getValue());
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen with a byte array.
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static VmBindings decode(final byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        VmBindings bindings = new VmBindings();
+        VmBindings.XMLSchemaDatatype[] datatypes = VmBindings.XMLSchemaDatatype.values();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            int datatype = in.readByte();
+            if (NULL_VALUE == datatype) {
+                bindings.put(key, null);
+            } else if (datatype < 0 || datatype >= datatypes.length) {
+                throw new IOException("bad datatype: " + datatype);
+            } else {
+                bindings.put(key, datatypes[datatype].createValue(readString(in)));
+            }
+        }
+
+        return bindings;
+    }
+
+    private static void writeString(final DataOutputStream out,
+                                    final String s) throws IOException {
+        // Note: writeUTF is limited to 64K.
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static void write(final File file,
+                              final byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            new DataInputStream(in).readFully(data);
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    /**
+     * A hibernated VM.
+     */
+    public static class Snapshot {
+        private final String language;
+        private final long timeLastActive;
+        // Null if the snapshot has been written to a file.
+        private final byte[] data;
+        private final File file;
+
+        private Snapshot(final String language,
+                         final long timeLastActive,
+                         final byte[] data,
+                         final File file) {
+            this.language = language;
+            this.timeLastActive = timeLastActive;
+            this.data = data;
+            this.file = file;
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+
+        public long getTimeLastActive() {
+            return timeLastActive;
+        }
+
+        private void discard() {
+            if (null != file && !file.delete()) {
+                LOGGER.warning("failed to delete snapshot file: " + file);
+            }
+        }
+    }
+}
@@ -10,19 +10,29 @@ package org.linkedprocess.farm.os;
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.JobNotFoundException;
+import org.linkedprocess.farm.os.errors.MemoryQuotaExceededException;
 import org.linkedprocess.farm.security.VmSandboxedThread;
 import org.mozilla.javascript.WrappedException;
 
 import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -30,16 +40,41 @@ import java.util.logging.Logger;
  * (via ScriptEngine) within that thread, pausing them if they take longer
  * to execute than a given time slice, then resuming execution at a later
  * time.
- * Note: relies on the deprecated methods Thread.suspend and Thread.resume.
- * Deadlocks are avoided by preventing the internal thread from obtaining a
- * lock on any object apart from two special monitors, neither of which can
- * be locked at the time the thread is suspended.
+ * Note: in the (default) preemptive execution mode, relies on the deprecated
+ * methods Thread.suspend, Thread.resume and Thread.stop.  Deadlocks are
+ * avoided by preventing the internal thread from obtaining a lock on any
+ * object apart from two special monitors, neither of which can be locked at
+ * the time the thread is suspended.  In the cooperative execution mode, the
+ * internal thread instead pauses itself at safe points when asked to (see
+ * VmSafepoint), and aborted or timed-out jobs are unwound rather than stopped
+ * along with their thread, so no new thread is needed to replace it.
+ * <p/>
+ * In the cooperative mode, a worker may also be created without a thread of
+ * its own, in which case each job is run on a thread borrowed from a
+ * VmCarrierPool shared with other workers.  A worker with no job in progress
+ * then occupies no thread at all.
+ * <p/>
+ * The worker's own monitor is held only briefly, at the beginning and at the
+ * end of a time slice, and never while the worker thread is running.  Any
+ * request which would disturb a running job (setting bindings, aborting the
+ * job, or terminating the worker) is recorded and carried out at the end of
+ * the slice, and bindings are read from a snapshot taken at the beginning of
+ * the slice.  No caller therefore waits for a time slice to expire.
+ * <p/>
+ * Jobs are submitted without locking the worker at all: they are appended to
+ * a lock-free inbox, which the worker drains into its own job queue at the
+ * beginning of each time slice.  Every job held by the worker (in the inbox,
+ * in the queue, or in progress) is also indexed by ID, for constant-time
+ * duplicate detection and status queries.
  * <p/>
  * Author: josh
  * Date: Jun 24, 2009
  * Time: 2:15:41 PM
  */
 public class VmWorker {
+    // Declared ahead of the sentinel, whose construction takes a stamp.
+    private static final AtomicLong bindingsStamps = new AtomicLong(0);
+
     public static final VmWorker SCHEDULER_TERMINATED_SENTINEL = new VmWorker();
 
     // Public only for the sake of a security hack.
@@ -52,28 +87,134 @@ public class VmWorker {
         ABNORMAL_ERROR
     }
 
+    /**
+     * The ways in which jobs may be paused, resumed and stopped.
+     */
+    public enum ExecutionMode {
+        PREEMPTIVE("preemptive"), COOPERATIVE("cooperative");
+
+        private final String name;
+
+        private ExecutionMode(final String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public static ExecutionMode valueByName(final String name) {
+            for (ExecutionMode m : values()) {
+                if (m.name.equals(name.trim())) {
+                    return m;
+                }
+            }
+
+            throw new IllegalArgumentException("no such execution mode: " + name);
+        }
+    }
+
     private static final Logger LOGGER = LinkedProcess.getLogger(VmWorker.class);
 
-    private final BlockingQueue<Job> jobQueue;
+    // Written by any thread, read only by the worker.
+    private final Queue<Job> inbox;
+    // Modified only while holding the worker's monitor, but may be peeked at
+    // by any thread.
+    private final Queue<Job> jobQueue;
+    // All jobs which have been accepted but have not yet produced a result.
+    private final ConcurrentMap<String, Job> jobsById;
+    // The number of jobs in the inbox and in the job queue.
+    private final AtomicInteger pendingJobs;
+    private final int jobQueueCapacity;
     private final VmScheduler.VmResultHandler resultHandler;
     private final ScriptEngine scriptEngine;
     private Thread workerThread;
     private final long maxTimeSpentPerJob;
 
     // Accessible by VMScheduler
-    Status status;
+    volatile Status status;
+
+    private final ExecutionMode executionMode;
+    private final VmSafepoint safepoint;
+    // Whether jobs can be paused in the cooperative execution mode.
+    private final boolean yieldable;
+    // If not null, jobs are run on carrier threads from this pool rather than
+    // on the worker thread, which does not exist.
+    private final VmCarrierPool carrierPool;
+    // If not null, expressions are compiled (once) by the sequencer thread
+    // before being evaluated by the worker thread.
+    private final CompiledScriptCache scriptCache;
+    // If not null, the resources used by jobs are charged to their accounts
+    // at the end of each time slice.
+    private final ResourceAccountant accountant;
+    // The carrier thread which most recently ran a job of this worker, if any.
+    private volatile Thread carrierThread;
+    // If not null, jobs and bindings are kept within their memory quotas.
+    // Requires an accountant.
+    private final MemoryGovernor memoryGovernor;
+    // Null unless the output of jobs is streamed.
+    private final JobOutput output;
+
+    // Accessible by VmRunQueue: whether this worker is currently in the run queue.
+    final AtomicBoolean queued = new AtomicBoolean(false);
+
+    // Accessible by VmReaper: whether the worker is due to be checked for expiry.
+    final AtomicBoolean reapScheduled = new AtomicBoolean(false);
+
+    // Accessible by QuantumController: the runtimes of this worker's recent jobs.
+    final QuantumController.History quantumHistory = new QuantumController.History();
+
+    // Accessible by MemoryGovernor: what is known of the size of this worker's bindings.
+    final MemoryGovernor.Footprint memoryFootprint = new MemoryGovernor.Footprint();
 
     private long timeLastActive;
 
-    private Job latestJob;
+    private volatile Job latestJob;
     private JobResult latestResult;
-
+    // The compiled expression of the latest job, if any.
+    private volatile CompiledJob latestCompiledJob;
+
+    // Whether a time slice is in progress, in which case the worker thread may
+    // be running and must not be disturbed until the end of the slice.
+    private boolean inSlice = false;
+    // Requests received during the current time slice.
+    private String abortRequested = null;
+    private volatile boolean terminationRequested = false;
+    // Whether the current time slice is to end before it expires.
+    private volatile boolean sliceEndRequested = false;
+    // The reason the current job is to be stopped, if it has gone over a memory quota.
+    private MemoryQuotaExceededException memoryQuotaError = null;
+    // Whether the worker has been stopped so that its VM can be hibernated.
+    private volatile boolean hibernated = false;
+    private VmBindings pendingBindings = null;
+    // Engine-scope bindings as of the beginning of the current time slice.
+    // Not versioned, as it is copied at the beginning of every slice.
+    private Map<String, Object> bindingsSnapshot = null;
+    // Fingerprints of the engine-scope bindings, which carry their versions.
+    // They are only kept once changes to the bindings have been asked for,
+    // and are taken while the values are at rest: at the end of each time
+    // slice, by the thread which holds the worker, and as bindings are set.
+    private final VmBindings bindingFingerprints = new VmBindings();
+    private volatile boolean fingerprinting = false;
+    // Whether fingerprints have been taken since fingerprinting began.
+    private boolean fingerprinted = false;
+    // Changes whenever the bindings may have changed: at the end of each time
+    // slice, and when bindings are set.  Unique across all workers.
+    private volatile long bindingsStamp = nextBindingsStamp();
+
+    // Note: these must be distinct objects (not, for instance, interned
+    // string literals), or a notification meant for one worker thread may be
+    // consumed by another.
     private final Object
-            timeoutMonitor = "",
-            workerWaitMonitor = "";
+            timeoutMonitor = new Object(),
+            workerWaitMonitor = new Object();
 
     private static long threadID = 0;
 
+    private static long nextBindingsStamp() {
+        return bindingsStamps.incrementAndGet();
+    }
+
     private static synchronized String nextThreadName() {
         return "LoP VM worker thread #" + ++threadID;
     }
@@ -82,11 +223,23 @@ public class VmWorker {
      * Dummy constructor to create a sentinel value in VMScheduler.
      */
     private VmWorker() {
+        inbox = null;
         jobQueue = null;
+        jobsById = null;
+        pendingJobs = null;
+        jobQueueCapacity = 0;
         resultHandler = null;
         scriptEngine = null;
         workerThread = null;
         maxTimeSpentPerJob = 0;
+        executionMode = null;
+        safepoint = null;
+        yieldable = false;
+        carrierPool = null;
+        scriptCache = null;
+        accountant = null;
+        memoryGovernor = null;
+        output = null;
     }
 
     /**
@@ -97,6 +250,41 @@ public class VmWorker {
      */
     public VmWorker(final ScriptEngine scriptEngine,
                     final VmScheduler.VmResultHandler resultHandler) {
+        this(scriptEngine, resultHandler,
+                ExecutionMode.valueByName(LinkedProcess.getConfiguration().getProperty(
+                        LinkedProcess.EXECUTION_MODE_PROPERTY, ExecutionMode.PREEMPTIVE.toString())),
+                null, null, null, null, -1);
+    }
+
+    /**
+     * Creates a new virtual machine worker.
+     *
+     * @param scriptEngine  the ScriptEngine with which to evaluate expressions
+     * @param resultHandler a handler for job results
+     * @param executionMode the way in which jobs are to be paused and stopped
+     * @param carrierPool   a pool of threads on which to run jobs, or null if
+     *                      the worker is to have a thread of its own.  A pool
+     *                      may only be used in the cooperative execution mode
+     * @param scriptCache   a cache of compiled expressions, or null if
+     *                      expressions are not to be compiled
+     * @param accountant    an accountant for the resources used by jobs, or
+     *                      null if they are not to be accounted for
+     * @param memoryGovernor a governor of the memory used by jobs, or null if
+     *                      there are no memory quotas.  Requires an accountant
+     * @param outputChunkSize the maximum number of characters in a partial
+     *                      result.  If not positive, the output of jobs is
+     *                      not streamed.  Otherwise, the output of the jobs
+     *                      which ask for it is, and the result handler must
+     *                      also be a VmPartialResultHandler
+     */
+    public VmWorker(final ScriptEngine scriptEngine,
+                    final VmScheduler.VmResultHandler resultHandler,
+                    final ExecutionMode executionMode,
+                    final VmCarrierPool carrierPool,
+                    final CompiledScriptCache scriptCache,
+                    final ResourceAccountant accountant,
+                    final MemoryGovernor memoryGovernor,
+                    final int outputChunkSize) {
         LOGGER.info("instantiating VMWorker using engine type '"
                 + scriptEngine.getFactory().getEngineName() + "'");
 
@@ -106,15 +294,43 @@ public class VmWorker {
         maxTimeSpentPerJob = new Long(LinkedProcess.getConfiguration().getProperty(
                 LinkedProcess.JOB_TIMEOUT_PROPERTY));
 
-        int capacity = new Integer(LinkedProcess.getConfiguration().getProperty(
-                LinkedProcess.JOB_QUEUE_CAPACITY_PROPERTY));
         // A negative capacity is interpreted as infinite capacity.
         // A zero-valued capacity is just stupid.
-        jobQueue = capacity < 0
-                ? new LinkedBlockingQueue<Job>()
-                : new LinkedBlockingQueue<Job>(capacity);
+        jobQueueCapacity = new Integer(LinkedProcess.getConfiguration().getProperty(
+                LinkedProcess.JOB_QUEUE_CAPACITY_PROPERTY));
+        inbox = new ConcurrentLinkedQueue<Job>();
+        jobQueue = new ConcurrentLinkedQueue<Job>();
+        jobsById = new ConcurrentHashMap<String, Job>();
+        pendingJobs = new AtomicInteger(0);
+
+        this.executionMode = executionMode;
+        safepoint = new VmSafepoint();
+        // Of the supported languages, only JavaScript provides safe points.
+        yieldable = ExecutionMode.COOPERATIVE == executionMode
+                && scriptEngine.getFactory().getLanguageName().equalsIgnoreCase(LinkedProcess.JAVASCRIPT)
+                && RhinoSafepointContextFactory.install();
+
+        if (null != carrierPool && ExecutionMode.COOPERATIVE != executionMode) {
+            throw new IllegalArgumentException("a carrier pool requires the cooperative execution mode");
+        }
+        this.carrierPool = carrierPool;
+        this.scriptCache = scriptCache;
+        this.accountant = accountant;
+        if (null != memoryGovernor && null == accountant) {
+            throw new IllegalArgumentException("memory quotas require resource accounting");
+        }
+        this.memoryGovernor = memoryGovernor;
+        if (outputChunkSize > 0) {
+            if (!(resultHandler instanceof VmScheduler.VmPartialResultHandler)) {
+                throw new IllegalArgumentException("streamed output requires a handler for partial results");
+            }
+            output = new JobOutput(outputChunkSize, scriptEngine.getContext().getWriter());
+            scriptEngine.getContext().setWriter(output.getWriter());
+        } else {
+            output = null;
+        }
 
-        workerThread = createWorkerThread();
+        workerThread = null == carrierPool ? createWorkerThread() : null;
 
         status = Status.IDLE_WAITING;
         setTimeLastActive();
@@ -132,41 +348,51 @@ public class VmWorker {
         //System.out.println("0 ########## state = " + workerThread.getState() + "(alive: " + workerThread.isAlive()
         //        + ", interrupted: " + workerThread.isInterrupted() + ")");
 
-        switch (status) {
-            case ACTIVE_SUSPENDED:
-                if (latestJob.getJobId().equals(jobId)) {
-                    // Cause the worker thread to cease execution of the current
-                    // job and wait.
-                    status = Status.IDLE_WAITING;
-
-                    // Put the current job in the queue to be discovered and
-                    // aborted.
-                    jobQueue.offer(latestJob);
-                    latestJob = null;
-
-                    resetWorkerThread();
-                    //resumeWorkerThread();
-                    //System.out.println("1 ########## state = " + workerThread.getState() + "(alive: " + workerThread.isAlive()
-                    //        + ", interrupted: " + workerThread.isInterrupted() + ")");
-                    //interruptWorkerThread();
-                    //System.out.println("2 ########## state = " + workerThread.getState() + "(alive: " + workerThread.isAlive()
-                    //        + ", interrupted: " + workerThread.isInterrupted() + ")");
-                }
-                break;
-            case IDLE_WAITING:
-                // Nothing to do.
-                break;
-            default:
-                throw new IllegalStateException("can't abort job with status: " + status);
+        if (inSlice) {
+            if (latestJob.getJobId().equals(jobId)) {
+                // The job is running.  Abort it at the end of the time slice,
+                // which is brought forward.
+                abortRequested = jobId;
+                endTimeSliceEarly();
+                return;
+            }
+        } else {
+            switch (status) {
+                case ACTIVE_SUSPENDED:
+                    if (latestJob.getJobId().equals(jobId)) {
+                        // Cause the worker thread to cease execution of the current
+                        // job and wait.
+                        status = Status.IDLE_WAITING;
+
+                        stopJob();
+                        Job j = latestJob;
+                        latestJob = null;
+                        handleResult(new JobResult(j));
+                        //resumeWorkerThread();
+                        //System.out.println("1 ########## state = " + workerThread.getState() + "(alive: " + workerThread.isAlive()
+                        //        + ", interrupted: " + workerThread.isInterrupted() + ")");
+                        //interruptWorkerThread();
+                        //System.out.println("2 ########## state = " + workerThread.getState() + "(alive: " + workerThread.isAlive()
+                        //        + ", interrupted: " + workerThread.isInterrupted() + ")");
+                        return;
+                    }
+                    break;
+                case IDLE_WAITING:
+                case TERMINATED:
+                    // Nothing to do.
+                    break;
+                default:
+                    throw new IllegalStateException("can't abort job with status: " + status);
+            }
         }
 
         // Look for the job in the queue and remove it if present.
-        // FIXME: inefficient
-        for (Job j : jobQueue) {
-            if (j.getJobId().equals(jobId)) {
-                JobResult abortedJob = new JobResult(j);
-                resultHandler.handleResult(abortedJob);
-                jobQueue.remove(j);
+        Job j = jobsById.get(jobId);
+        if (null != j) {
+            drainInbox();
+            if (jobQueue.remove(j)) {
+                pendingJobs.decrementAndGet();
+                handleResult(new JobResult(j));
                 return;
             }
         }
@@ -175,28 +401,47 @@ public class VmWorker {
     }
 
     /**
-     * Adds a job to the queue.
+     * Adds a job to the queue.  This method never waits for the worker.
      * Note: this alone does not cause the worker to become active.
      *
      * @param job the job to add
      * @return whether the job has been added to the worker's queue (if not,
-     *         then the queue is full)
+     *         then the queue is full, or the worker has been terminated)
      * @throws org.linkedprocess.farm.os.errors.JobAlreadyExistsException
      *          if a job with the given ID is already active or in the queue
      */
-    public synchronized boolean submitJob(final Job job) throws JobAlreadyExistsException {
+    public boolean submitJob(final Job job) throws JobAlreadyExistsException {
         LOGGER.info("submitting job: " + job);
 
-        switch (status) {
-            case ACTIVE_SUSPENDED:
-            case IDLE_WAITING:
-                if (jobQueue.contains(job)) {
-                    throw new JobAlreadyExistsException(job);
-                }
-                return jobQueue.offer(job);
-            default:
-                throw new IllegalStateException("can't add jobs with status: " + status);
+        if (terminationRequested || Status.TERMINATED == status) {
+            return false;
+        }
+
+        // Note: the job may also be the one currently in progress.
+        if (null != jobsById.putIfAbsent(job.getJobId(), job)) {
+            throw new JobAlreadyExistsException(job);
+        }
+
+        if (pendingJobs.incrementAndGet() > jobQueueCapacity && jobQueueCapacity >= 0) {
+            pendingJobs.decrementAndGet();
+            jobsById.remove(job.getJobId());
+            return false;
         }
+
+        inbox.offer(job);
+
+        // If the worker was terminated in the meantime, the job may have
+        // missed the final draining of the inbox.
+        if (Status.TERMINATED == status) {
+            // A job which has missed the hibernation of the worker is not
+            // cancelled, but handed back, for the VM to be woken up.
+            if (hibernated && withdraw(job)) {
+                return false;
+            }
+            cancelInbox();
+        }
+
+        return true;
     }
 
     /**
@@ -204,25 +449,51 @@ public class VmWorker {
      *         job in progress, or pending jobs in the queue)
      */
     public synchronized boolean canWork() {
+        if (inSlice) {
+            return !terminationRequested;
+        }
+
         switch (status) {
             case ACTIVE_SUSPENDED:
                 // Still working on the last job.
                 return true;
             case IDLE_WAITING:
                 // Are there any pending jobs?
-                return 0 != jobQueue.size();
+                return 0 != pendingJobs.get();
+            case TERMINATED:
+                // A sequencer may occasionally come across a worker which is
+                // in the process of being terminated.
+                return false;
             default:
                 throw new IllegalArgumentException("can't check for new work with status: " + status);
         }
     }
 
+    /**
+     * Used by scheduling policies to rank workers.  No lock is taken, so the
+     * answer may be out of date by the time it is used.
+     *
+     * @return the job which this worker will work on when it is next given a
+     *         time slice, or null if it has nothing to do
+     */
+    Job getNextJob() {
+        Job j = latestJob;
+        if (null != j && (Status.ACTIVE_SUSPENDED == status || Status.ACTIVE_INPROGRESS == status)) {
+            return j;
+        }
+
+        j = jobQueue.peek();
+        return null == j ? inbox.peek() : j;
+    }
+
     /**
      * @return the set of all bindings in this worker's ScriptEngine, at ScriptContext.ENGINE_SCOPE
      */
     public synchronized VmBindings getAllBindings() {
         VmBindings bindings = new VmBindings();
-        Bindings b = this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
-        bindings.putAll(b);
+        bindings.putAll(inSlice
+                ? bindingsSnapshot
+                : this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE));
         return bindings;
     }
 
@@ -233,7 +504,9 @@ public class VmWorker {
      */
     public synchronized VmBindings getBindings(final Set<String> bindingNames) {
         VmBindings bindings = new VmBindings();
-        Bindings b = this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, Object> b = inSlice
+                ? bindingsSnapshot
+                : this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
         for (String key : bindingNames) {
             bindings.put(key, b.get(key));
         }
@@ -241,20 +514,190 @@ public class VmWorker {
         return bindings;
     }
 
+    /**
+     * Changes are found by comparing the bindings with their fingerprints as
+     * of the end of the previous time slice (or the last time bindings were
+     * set), so a binding changed and changed back within a slice is not
+     * reported, and a binding is given a new version when its change is first
+     * found rather than when it is made.  Either way, a villein which asks for
+     * the changes since the version it was last given misses none.
+     * <p/>
+     * Fingerprints are only kept once changes have been asked for.  The first
+     * query made in the middle of a time slice is answered with all bindings
+     * of interest, with version 0.
+     *
+     * @param bindingNames the names of the bindings of interest, or an empty set for all bindings
+     * @param version      a version returned by an earlier query, or 0
+     * @return the bindings of interest which have changed since the given
+     *         version (an unbound binding being null), with the version to
+     *         ask for changes since, the next time
+     */
+    public synchronized VmBindings getBindingsChangedSince(final Set<String> bindingNames,
+                                                           final long version) {
+        Map<String, Object> b = inSlice
+                ? bindingsSnapshot
+                : this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (!fingerprinting) {
+            fingerprinting = true;
+            if (!inSlice) {
+                // No job is running, so the values are at rest.
+                updateFingerprints(takeFingerprints(b), true);
+            }
+        }
+
+        VmBindings changed = new VmBindings();
+        if (!fingerprinted) {
+            for (String key : bindingNames.isEmpty() ? b.keySet() : bindingNames) {
+                if (b.containsKey(key)) {
+                    changed.put(key, b.get(key));
+                }
+            }
+            changed.setVersion(0);
+            return changed;
+        }
+
+        long latest = version;
+        for (String key : bindingNames.isEmpty() ? bindingFingerprints.getNamesChangedSince(version) : bindingNames) {
+            long v = bindingFingerprints.getVersion(key);
+            if (v > version) {
+                changed.put(key, b.get(key));
+                latest = Math.max(latest, v);
+            }
+        }
+        changed.setVersion(latest);
+        return changed;
+    }
+
+    // Called with the worker's lock held.
+    private void updateFingerprints(final Map<String, Object> fingerprints,
+                                    final boolean all) {
+        if (all) {
+            // Through remove(), so that an unbound name is versioned too.
+            for (String key : new HashSet<String>(bindingFingerprints.keySet())) {
+                if (!fingerprints.containsKey(key)) {
+                    bindingFingerprints.remove(key);
+                }
+            }
+        }
+        for (Map.Entry<String, Object> e : fingerprints.entrySet()) {
+            bindingFingerprints.put(e.getKey(), e.getValue());
+        }
+        fingerprinted = true;
+    }
+
+    // To be called only while the values are at rest: not while a job which
+    // may change them is running.
+    private static Map<String, Object> takeFingerprints(final Map<String, Object> bindings) {
+        Map<String, Object> fingerprints = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> e : bindings.entrySet()) {
+            fingerprints.put(e.getKey(), fingerprint(e.getValue()));
+        }
+        return fingerprints;
+    }
+
+    // What a value is compared by: scripts change their lists, maps and
+    // arrays in place, so those are compared by a copy of their contents.
+    private static Object fingerprint(final Object value) {
+        if (null == value || value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        try {
+            return BinaryEncoding.encode(ResultMarshaller.toJava(value));
+        } catch (IllegalArgumentException e) {
+            // E.g. a value which contains itself.
+            return value;
+        }
+    }
+
+    /**
+     * A stamp which is unchanged for as long as the bindings of this worker
+     * are, so that whoever watches them need only look again when it changes
+     * (the bindings may not have changed even so).  This never waits for the
+     * worker's lock.
+     *
+     * @return a stamp which changes whenever the bindings may have changed,
+     *         and which no other worker ever has
+     */
+    public long getBindingsStamp() {
+        return bindingsStamp;
+    }
+
+    /**
+     * Stops the worker, as terminate() does, provided that it is idle and that
+     * its bindings can be kept in a VmSnapshotStore, so that its VM can be
+     * hibernated and later brought back with a new worker.  A job submitted
+     * to a hibernated worker is not accepted.
+     *
+     * @return the worker's bindings, or null if the worker has work to do or
+     *         holds bindings which cannot be stored
+     */
+    synchronized VmBindings hibernate() {
+        if (inSlice || Status.IDLE_WAITING != status || 0 != pendingJobs.get()) {
+            return null;
+        }
+
+        VmBindings bindings = getAllBindings();
+        if (!VmSnapshotStore.isStorable(bindings)) {
+            return null;
+        }
+
+        hibernated = true;
+        status = Status.TERMINATED;
+        notifyWorkerThread();
+
+        if (null != scriptCache) {
+            scriptCache.removeAll(scriptEngine);
+        }
+
+        return bindings;
+    }
+
+    /**
+     * @return whether the worker has been stopped so that its VM can be
+     *         hibernated, in which case the VM has (or will soon have) another
+     *         worker
+     */
+    boolean isHibernated() {
+        return hibernated;
+    }
+
+    /**
+     * @return whether the worker has a thread of its own, rather than
+     *         borrowing carrier threads
+     */
+    synchronized boolean hasOwnThread() {
+        return null != workerThread;
+    }
+
+    /**
+     * @return whether the VM's bindings have outgrown their memory quota, in
+     *         which case the VM is to be terminated
+     */
+    boolean isOverMemoryQuota() {
+        return memoryFootprint.isExceeded();
+    }
+
+    /**
+     * @return the name of the language of this worker's ScriptEngine
+     */
+    public String getLanguage() {
+        return scriptEngine.getFactory().getLanguageName();
+    }
+
     public synchronized long getTimeLastActive() {
         return timeLastActive;
     }
 
-    public synchronized boolean jobExists(final String jobId) {
-        switch (status) {
-            case ACTIVE_SUSPENDED:
-                return jobId.equals(latestJob.getJobId())
-                        || jobQueueContains(jobId);
-            case IDLE_WAITING:
-                return jobQueueContains(jobId);
-            default:
-                throw new IllegalStateException("can't check job status with status: " + status);
-        }
+    public boolean jobExists(final String jobId) {
+        return jobsById.containsKey(jobId);
+    }
+
+    /**
+     * @param jobId the ID of a job
+     * @return the job with the given ID, if it is pending or in progress, or null
+     */
+    public Job getJob(final String jobId) {
+        return jobsById.get(jobId);
     }
 
     /**
@@ -263,11 +706,27 @@ public class VmWorker {
      * @param bindings the bindings to update
      */
     public synchronized void setBindings(final VmBindings bindings) {
+        if (inSlice) {
+            // Apply the bindings at the end of the time slice, but make them
+            // visible to readers right away.
+            if (null == pendingBindings) {
+                pendingBindings = new VmBindings();
+            }
+            pendingBindings.putAll(bindings);
+            bindingsSnapshot.putAll(bindings);
+            bindingsStamp = nextBindingsStamp();
+            return;
+        }
+
         Bindings b = this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE);
         b.putAll(bindings);
+        if (fingerprinting) {
+            updateFingerprints(takeFingerprints(bindings), false);
+        }
 
         // TODO: not sure if this is absolutely necessary
         this.scriptEngine.setBindings(b, ScriptContext.ENGINE_SCOPE);
+        bindingsStamp = nextBindingsStamp();
     }
 
     /**
@@ -276,72 +735,88 @@ public class VmWorker {
      * while a job is being executed, the job will continue executing for the
      * remainder of the window, but it will not complete normally unless it
      * does so within that window.  Nor will additional jobs be processed.
+     * The method does not wait for the end of the window.
      */
     public synchronized void terminate() {
         LOGGER.info("terminating VMWorker");
 
-        switch (status) {
-            case ACTIVE_SUSPENDED:
-                // Cause the worker thread to die.
-                status = Status.TERMINATED;
-                //interruptWorkerThread();
-                terminateWorkerThread();
-
-                // Put the current job back in the queue to be aborted along
-                // with the others.
-                jobQueue.offer(latestJob);
-                break;
-            case IDLE_WAITING:
-                status = Status.TERMINATED;
-                notifyWorkerThread();
-                break;
-            case TERMINATED:
-                // Been there, done that...
-                // ...unless we're here because the worker thread died unexpectedly,
-                // in which case we still need to flush out the queue.
-            default:
-                throw new IllegalStateException("cannot terminate with status: " + status);
+        if (inSlice) {
+            // Stop the worker thread at the end of the time slice, which is
+            // brought forward.
+            terminationRequested = true;
+            endTimeSliceEarly();
+        } else {
+            switch (status) {
+                case ACTIVE_SUSPENDED:
+                    // Cause the worker thread to die.
+                    status = Status.TERMINATED;
+                    //interruptWorkerThread();
+                    terminateWorkerThread();
+
+                    // Abort the current job along with the others.
+                    handleResult(new JobResult(latestJob));
+                    break;
+                case IDLE_WAITING:
+                    status = Status.TERMINATED;
+                    notifyWorkerThread();
+                    break;
+                case TERMINATED:
+                    // Been there, done that...
+                    // ...unless we're here because the worker thread died unexpectedly,
+                    // in which case we still need to flush out the queue.
+                default:
+                    throw new IllegalStateException("cannot terminate with status: " + status);
+            }
         }
 
         // Cancel all jobs in the queue.
-        for (Job j : jobQueue) {
-            JobResult abortedJob = new JobResult(j);
-            resultHandler.handleResult(abortedJob);
+        drainInbox();
+        Job j;
+        while (null != (j = jobQueue.poll())) {
+            pendingJobs.decrementAndGet();
+            handleResult(new JobResult(j));
         }
 
-        // It is conceivable that we do this twice.
-        jobQueue.clear();
+        if (null != scriptCache) {
+            scriptCache.removeAll(scriptEngine);
+        }
     }
 
     /**
      * Works on the current job for at most a given window of time.  If the job
      * is finished during this time, its result will be handled.  Otherwise, the
      * job will be suspended, to be resumed on a subsequent call to work().
+     * In the cooperative execution mode, a job which cannot be paused simply
+     * keeps running, and the next call to work() continues the same window.
      * Note: This method should only be called when the value of canWork() is true.
+     * Even so, a job counted by canWork() may not yet have reached the inbox, in
+     * which case there is nothing to do and the worker is considered idle (the
+     * job's submitter will put the worker back in the scheduler's queue).
      *
      * @param timeout the length of the time window
      * @return whether the worker is now idle (has no more work to do)
      */
-    public synchronized boolean work(final long timeout) {
+    public boolean work(final long timeout) {
         LOGGER.fine("working...");
 
-        switch (status) {
-            case ACTIVE_SUSPENDED:
-                status = Status.ACTIVE_INPROGRESS;
-                resumeWorkerThread();
-                break;
-            case IDLE_WAITING:
-                if (0 == jobQueue.size()) {
-                    throw new IllegalStateException("no jobs available. Call canWork() to avoid this condition.");
-                }
-                latestJob = jobQueue.poll();
+        // Wait for a carrier (if necessary) outside of the lock.
+        boolean reserved = false;
+        if (null != carrierPool && !inSlice
+                && Status.IDLE_WAITING == status && 0 != pendingJobs.get()) {
+            if (!carrierPool.reserve(timeout)) {
+                // Try again later.
+                return false;
+            }
+            reserved = true;
+        }
 
-                status = Status.ACTIVE_INPROGRESS;
-                notifyWorkerThread();
-                break;
-            default:
-                throw new IllegalStateException("can't begin new work with status: " + status);
+        synchronized (this) {
+            if (!inSlice && !beginTimeSlice(reserved)) {
+                return 0 == pendingJobs.get();
+            }
         }
+        Job sliceJob = latestJob;
+        long sliceStart = System.nanoTime();
 
         // Break out when the time slice has expired or the monitor has been notified.
         try {
@@ -352,7 +827,11 @@ public class VmWorker {
                 // and is then forced to wait.  The only consequence of this
                 // would be a wasted execution window.
                 if (Status.ACTIVE_INPROGRESS == status) {
-                    timeoutMonitor.wait(timeout);
+                    if (null == memoryGovernor) {
+                        timeoutMonitor.wait(timeout);
+                    } else {
+                        waitWatchingMemory(sliceJob, timeout);
+                    }
                 }
             }
         } catch (InterruptedException e) {
@@ -361,8 +840,221 @@ public class VmWorker {
         }
 
         // Suspend the thread immediately, regardless of what status we're in.
-        suspendWorkerThread();
+        boolean paused = suspendWorkerThread(timeout);
+
+        // While the job is at rest, and before the lock is taken, so that
+        // readers of the bindings are not held up.  Bindings set meanwhile
+        // are held back until the end of the slice.
+        Map<String, Object> fingerprints = fingerprinting && (paused || Status.ACTIVE_INPROGRESS != status)
+                ? takeFingerprints(scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE))
+                : null;
+
+        // Note: this is done before the job's result, if any, is handled.
+        long allocatedBefore = sliceJob.getAllocatedBytes();
+        if (null != accountant) {
+            accountant.chargeTimeSlice(sliceJob,
+                    null == carrierPool ? workerThread : carrierThread,
+                    System.nanoTime() - sliceStart);
+        }
+
+        synchronized (this) {
+            if (null != memoryGovernor) {
+                // Note: the state of a paused job is not all in the bindings.
+                boolean finished = Status.IDLE_FINISHED == status;
+                memoryQuotaError = memoryGovernor.check(this, sliceJob,
+                        sliceJob.getAllocatedBytes() - allocatedBefore, finished,
+                        finished ? scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE) : null);
+            }
+
+            // Send whatever the job has written during the time slice.  While
+            // results are backing up, the output is kept until a later slice.
+            if (null != output && !resultsCongested()) {
+                output.send(sliceJob, (VmScheduler.VmPartialResultHandler) resultHandler);
+            }
+
+            boolean idle;
+            if (paused || Status.ACTIVE_INPROGRESS != status) {
+                inSlice = false;
+                bindingsSnapshot = null;
+                if (null != fingerprints) {
+                    updateFingerprints(fingerprints, true);
+                }
+                bindingsStamp = nextBindingsStamp();
+
+                idle = finishTimeSlice(timeout);
+            } else {
+                // The job could not be paused, and is still running.
+                latestJob.increaseTimeSpent(timeout);
+                setTimeLastActive();
+
+                if (!isTimedOut(latestJob)
+                        && null == memoryQuotaError
+                        && !terminationRequested
+                        && !latestJob.getJobId().equals(abortRequested)) {
+                    // Carry on with the same time slice.
+                    sliceEndRequested = false;
+                    return false;
+                }
+
+                inSlice = false;
+                bindingsSnapshot = null;
+                bindingsStamp = nextBindingsStamp();
+
+                if (safepoint.cancel(latestJob)) {
+                    // The job will stop as soon as it responds to the
+                    // cancellation.  Meanwhile, treat it as suspended.
+                    status = Status.ACTIVE_SUSPENDED;
+                    if (null != memoryQuotaError) {
+                        handleResult(new JobResult(latestJob, memoryQuotaError));
+                        status = Status.IDLE_WAITING;
+                        idle = 0 == pendingJobs.get();
+                    } else if (isTimedOut(latestJob)) {
+                        // Note: the worker thread may yet overwrite latestResult.
+                        handleResult(new JobResult(latestJob, maxTimeSpentPerJob));
+                        status = Status.IDLE_WAITING;
+                        idle = 0 == pendingJobs.get();
+                    } else {
+                        idle = false;
+                    }
+                } else {
+                    // The job has just finished after all.
+                    idle = finishTimeSlice(0);
+                }
+            }
+
+            memoryQuotaError = null;
+            sliceEndRequested = false;
+
+            // Carry out any requests which arrived during the time slice.
+            if (terminationRequested) {
+                terminationRequested = false;
+                abortRequested = null;
+                pendingBindings = null;
+                terminate();
+                return true;
+            }
+
+            if (null != pendingBindings) {
+                setBindings(pendingBindings);
+                pendingBindings = null;
+            }
+
+            if (null != abortRequested) {
+                String jobId = abortRequested;
+                abortRequested = null;
+                try {
+                    abortJob(jobId);
+                    idle = 0 == pendingJobs.get();
+                } catch (JobNotFoundException e) {
+                    // The job finished before the end of the time slice.
+                }
+            }
+
+            return idle;
+        }
+    }
 
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param carrierReserved whether a carrier has been reserved for a new job.
+     *                        If it is not used, it is given back
+     * @return whether a time slice has begun (if not, there is either nothing
+     *         to do or, with a carrier pool, no carrier to do it on)
+     */
+    private boolean beginTimeSlice(final boolean carrierReserved) {
+        boolean reserved = carrierReserved;
+        try {
+            switch (status) {
+                case ACTIVE_SUSPENDED:
+                    break;
+                case IDLE_WAITING:
+                    drainInbox();
+                    if (jobQueue.isEmpty()) {
+                        return false;
+                    }
+                    if (null != carrierPool) {
+                        // Wait for the previous job to be unwound, if it
+                        // has been cancelled.
+                        if (safepoint.isAttached()) {
+                            return false;
+                        }
+                        if (!reserved && !carrierPool.reserve(0)) {
+                            return false;
+                        }
+                        reserved = true;
+                    }
+                    latestJob = jobQueue.poll();
+                    pendingJobs.decrementAndGet();
+                    break;
+                case TERMINATED:
+                    // The worker has been terminated since it was taken from
+                    // the run queue.
+                    return false;
+                default:
+                    throw new IllegalStateException("can't begin new work with status: " + status);
+            }
+
+            // Readers see the bindings as they are before the slice begins.
+            bindingsSnapshot = new HashMap<String, Object>(this.scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE));
+            inSlice = true;
+
+            if (Status.ACTIVE_SUSPENDED == status) {
+                status = Status.ACTIVE_INPROGRESS;
+                resumeWorkerThread();
+            } else {
+                latestCompiledJob = compile(latestJob);
+                if (ExecutionMode.COOPERATIVE == executionMode) {
+                    safepoint.assign(latestJob);
+                }
+                status = Status.ACTIVE_INPROGRESS;
+                if (null != carrierPool) {
+                    // The carrier is not known until the job has started.
+                    carrierThread = null;
+                    carrierPool.execute(new CarriedJobRunnable(latestJob));
+                    reserved = false;
+                } else {
+                    notifyWorkerThread();
+                }
+            }
+
+            return true;
+        } finally {
+            if (reserved) {
+                carrierPool.release();
+            }
+        }
+    }
+
+    private CompiledJob compile(final Job job) {
+        if (null == scriptCache || null == job.getExpression()) {
+            return null;
+        }
+
+        try {
+            CompiledScript script = scriptCache.getCompiledScript(job.getExpression(), scriptEngine);
+            return null == script ? null : new CompiledJob(job, script);
+        } catch (ScriptException e) {
+            // The error will be reported when the expression is evaluated.
+            return null;
+        } catch (RuntimeException e) {
+            // Ditto.
+            return null;
+        }
+    }
+
+    private boolean isTimedOut(final Job job) {
+        // If it's possible to time out (i.e. if maxTimeSpentPerJob is non-negative),
+        // check for timeout.
+        return maxTimeSpentPerJob >= 0 && job.getTimeSpent() >= maxTimeSpentPerJob;
+    }
+
+    private boolean resultsCongested() {
+        return resultHandler instanceof VmScheduler.VmResultBackpressure
+                && ((VmScheduler.VmResultBackpressure) resultHandler).isCongested();
+    }
+
+    private boolean finishTimeSlice(final long timeout) {
         //LOGGER.fine("...done working");
         setTimeLastActive();
 
@@ -372,40 +1064,47 @@ public class VmWorker {
                 //       the "time spent" value will never be used.
                 latestJob.increaseTimeSpent(timeout);
 
-                // If it's possible to time out (i.e. if maxTimeSpentPerJob is non-negative),
-                // check for timeout.
-                if (maxTimeSpentPerJob >= 0 && latestJob.getTimeSpent() >= maxTimeSpentPerJob) {
-                    yieldTimeoutResult(latestJob, maxTimeSpentPerJob);
-                    resultHandler.handleResult(latestResult);
+                if (null != memoryQuotaError || isTimedOut(latestJob)) {
+                    if (null != memoryQuotaError) {
+                        latestResult = new JobResult(latestJob, memoryQuotaError);
+                    } else {
+                        yieldTimeoutResult(latestJob, maxTimeSpentPerJob);
+                    }
+                    handleResult(latestResult);
                     status = Status.IDLE_WAITING;
-                    resetWorkerThread();
+                    stopJob();
                     //interruptWorkerThread();
                     //resumeWorkerThread();
-                    return 0 == jobQueue.size();
+                    return 0 == pendingJobs.get();
                 } else {
                     status = Status.ACTIVE_SUSPENDED;
                     return false;
                 }
             case IDLE_FINISHED:
-                resultHandler.handleResult(latestResult);
+                // A job which has gone over a memory quota fails, even if it has finished.
+                handleResult(null == memoryQuotaError
+                        ? latestResult
+                        : new JobResult(latestJob, memoryQuotaError));
 
                 // Advance to the wait()
                 status = Status.IDLE_WAITING;
                 resumeWorkerThread();
                 // The worker isn't really "idle" if there are jobs in its queue.
-                return 0 == jobQueue.size();
+                return 0 == pendingJobs.get();
             case ABNORMAL_ERROR:
                 // Attempt to recover in the event that the worker thread has terminated
                 // (i.e. through a call to System.shutdownFarm within the script engine code.
-                workerThread = createWorkerThread();
+                if (null == carrierPool) {
+                    workerThread = createWorkerThread();
+                }
                 status = Status.IDLE_WAITING;
                 Exception e = new IllegalStateException("Your VM's worker thread has encountered an abnormal error. " +
                         "For example, the current Groovy engine throws a GroovyBugError whenever it encounters a security exception. " +
                         "If you are using Groovy, please make sure that your code is not violating the permissions granted " +
                         "by this farm.");
                 JobResult result = new JobResult(latestJob, e);
-                resultHandler.handleResult(result);
-                return 0 == jobQueue.size();
+                handleResult(result);
+                return 0 == pendingJobs.get();
             default:
                 throw new IllegalStateException("status should not occur at the end of a work window: " + status);
         }
@@ -422,24 +1121,49 @@ public class VmWorker {
         }
     }
 
+    /**
+     * @param timeout how long to wait for a cooperative job to pause itself
+     * @return whether the current job (if any) is now paused or finished
+     */
     @SuppressWarnings({"deprecation"})
-    private void suspendWorkerThread() {
-        workerThread.suspend();
+    private boolean suspendWorkerThread(final long timeout) {
+        if (ExecutionMode.COOPERATIVE == executionMode) {
+            return safepoint.pause(yieldable ? timeout : 0);
+        } else {
+            workerThread.suspend();
+            return true;
+        }
     }
 
     @SuppressWarnings({"deprecation"})
     private void resumeWorkerThread() {
-        workerThread.resume();
+        if (ExecutionMode.COOPERATIVE == executionMode) {
+            safepoint.resume();
+        } else {
+            workerThread.resume();
+        }
     }
 
     @SuppressWarnings({"deprecation"})
     private void terminateWorkerThread() {
-        workerThread.stop();
+        if (ExecutionMode.COOPERATIVE == executionMode) {
+            // The worker thread will exit once the current job has unwound.
+            safepoint.cancel(latestJob);
+        } else {
+            workerThread.stop();
+        }
     }
 
-    private void resetWorkerThread() {
-        terminateWorkerThread();
-        workerThread = createWorkerThread();
+    /**
+     * Stops the current job, leaving the worker thread ready for another one.
+     */
+    private void stopJob() {
+        if (ExecutionMode.COOPERATIVE == executionMode) {
+            safepoint.cancel(latestJob);
+        } else {
+            terminateWorkerThread();
+            workerThread = createWorkerThread();
+        }
     }
 
     private Thread createWorkerThread() {
@@ -453,14 +1177,38 @@ public class VmWorker {
 
     ////////////////////////////////////////////////////////////////////////////
 
-    private boolean jobQueueContains(final String jobId) {
-        for (Job j : jobQueue) {
-            if (j.getJobId().equals(jobId)) {
-                return true;
-            }
+    private void drainInbox() {
+        Job j;
+        while (null != (j = inbox.poll())) {
+            jobQueue.offer(j);
         }
+    }
+
+    private void cancelInbox() {
+        Job j;
+        while (null != (j = inbox.poll())) {
+            pendingJobs.decrementAndGet();
+            handleResult(new JobResult(j));
+        }
+    }
+
+    private boolean withdraw(final Job job) {
+        if (!inbox.remove(job)) {
+            return false;
+        }
+
+        pendingJobs.decrementAndGet();
+        jobsById.remove(job.getJobId());
+        return true;
+    }
 
-        return false;
+    private void handleResult(final JobResult result) {
+        // Forget the job before its result goes out, so that the job ID may be
+        // re-used as soon as the result has been received.
+        jobsById.remove(result.getJob().getJobId());
+        resultHandler.handleResult(null == output
+                ? result
+                : output.finish(result, (VmScheduler.VmPartialResultHandler) resultHandler));
     }
 
     private void setTimeLastActive() {
@@ -468,16 +1216,36 @@ public class VmWorker {
     }
 
     private void evaluate(final Job job) {
+        if (null != output) {
+            output.begin(job);
+        }
         try {
             String expression = job.getExpression();
             LOGGER.fine(expression);
-            Object returnObject = scriptEngine.eval(expression);
+            CompiledJob c = latestCompiledJob;
+            Object returnObject = (null != c && c.job == job)
+                    ? c.script.eval()
+                    : scriptEngine.eval(expression);
 
             // Note: the return object is not necessarily a string.  It may,
             // for instance, be a Double which needs to be converted to a
             // String.
-            String returnvalue = (null == returnObject)
-                    ? "" : returnObject.toString();
+            String returnvalue;
+            if (null == job.getResultEncoding()) {
+                returnvalue = (null == returnObject)
+                        ? "" : returnObject.toString();
+            } else {
+                try {
+                    Object value = ResultMarshaller.toJava(returnObject);
+                    returnvalue = job.isBinaryResult()
+                            ? BinaryEncoding.encodeBase64(value)
+                            : TypedXml.toXml(value);
+                } catch (IllegalArgumentException e) {
+                    // E.g. a value which contains itself.
+                    yieldError(job, e);
+                    return;
+                }
+            }
 
             yieldResult(job, returnvalue);
         } catch (ScriptException e) {
@@ -499,6 +1267,10 @@ public class VmWorker {
                 // If the exception is something else (e.g. ThreadDeath), let it through unmolested.
                 throw e;
             }
+        } finally {
+            if (null != output) {
+                output.end();
+            }
         }// catch (Throwable t) { System.out.println("this is what we caught: " + t );  }
     }
 
@@ -536,24 +1308,154 @@ public class VmWorker {
         latestResult = new JobResult(job, timeout);
     }
 
-    private class WorkerRunnable implements Runnable {
+    private final Runnable normalCompletion = new Runnable() {
+        public void run() {
+            status = Status.IDLE_FINISHED;
+        }
+    };
+
+    private final Runnable abnormalCompletion = new Runnable() {
+        public void run() {
+            status = Status.ABNORMAL_ERROR;
+        }
+    };
+
+    /**
+     * Executes a job in the cooperative execution mode.
+     *
+     * @param job the job to execute
+     * @return whether the job has completed without being cancelled
+     */
+    private boolean executeCooperatively(final Job job) {
+        try {
+            if (safepoint.enter(job)) {
+                evaluate(job);
+            }
+        } catch (VmSafepoint.CancelledJobError e) {
+            // The job has been aborted, has timed out, or the worker has been
+            // terminated.
+        }
+
+        // The status of a cancelled job is no longer this thread's business.
+        return safepoint.finish(job, normalCompletion);
+    }
 
+    /**
+     * Causes the sequencer thread to stop waiting.
+     */
+    private void notifyResultAvailable() {
+        synchronized (timeoutMonitor) {
+            timeoutMonitor.notify();
+        }
+    }
+
+    /**
+     * Waits for the current time slice to expire, checking at intervals that
+     * the job is within its memory quotas.  Called by the sequencer, holding
+     * the timeout monitor.
+     *
+     * @param job     the job which is running
+     * @param timeout the length of the time slice
+     */
+    private void waitWatchingMemory(final Job job,
+                                    final long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        // Break out when the time slice has expired, the job has finished,
+        // the slice is to end early or the job has gone over a quota.
+        while (Status.ACTIVE_INPROGRESS == status && !sliceEndRequested) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            timeoutMonitor.wait(Math.min(remaining, memoryGovernor.getCheckInterval()));
+
+            Thread t = null == carrierPool ? workerThread : carrierThread;
+            if (null != t && memoryGovernor.isOverQuota(job, accountant.peekAllocatedBytes(t))) {
+                return;
+            }
+        }
+    }
+
+    private void endTimeSliceEarly() {
+        sliceEndRequested = true;
+        // Wakes up the sequencer, if it is waiting for the slice to expire.
+        synchronized (timeoutMonitor) {
+            timeoutMonitor.notify();
+        }
+    }
+
+    /**
+     * A job together with its compiled expression.
+     */
+    private static class CompiledJob {
+        private final Job job;
+        private final CompiledScript script;
+
+        public CompiledJob(final Job job,
+                           final CompiledScript script) {
+            this.job = job;
+            this.script = script;
+        }
+    }
+
+    private class CarriedJobRunnable implements Runnable {
+        private final Job job;
+
+        public CarriedJobRunnable(final Job job) {
+            this.job = job;
+        }
+
+        public void run() {
+            carrierThread = Thread.currentThread();
+            safepoint.attach();
+            try {
+                if (executeCooperatively(job)) {
+                    notifyResultAvailable();
+                }
+            } catch (Throwable e) {
+                LOGGER.severe("worker has encountered an abnormal error (" + e.getClass() + "):\n" + stackTraceToString(e));
+
+                // Indicate that this worker should be reset.
+                if (safepoint.finish(job, abnormalCompletion)) {
+                    notifyResultAvailable();
+                }
+            } finally {
+                safepoint.detach();
+            }
+        }
+    }
+
+    private class WorkerRunnable implements Runnable {
         public void run() {
+            if (ExecutionMode.COOPERATIVE == executionMode) {
+                safepoint.attach();
+            }
+
             // Break out when the worker is terminated.
             while (Status.TERMINATED != status) {
                 try {
                     if (Status.ACTIVE_INPROGRESS == status) {
-                        evaluate(latestJob);
-                        status = Status.IDLE_FINISHED;
-
-                        synchronized (timeoutMonitor) {
-                            // Notify the parent thread that a result is available.
-                            timeoutMonitor.notify();
+                        if (ExecutionMode.COOPERATIVE == executionMode) {
+                            if (!executeCooperatively(latestJob)) {
+                                continue;
+                            }
+                        } else {
+                            evaluate(latestJob);
+                            status = Status.IDLE_FINISHED;
                         }
+
+                        // Notify the parent thread that a result is available.
+                        notifyResultAvailable();
                     }
 
                     synchronized (workerWaitMonitor) {
-                        workerWaitMonitor.wait();
+                        // Only wait if there is no new job to start yet, so that a
+                        // notification which arrives early is not lost.
+                        if (Status.ACTIVE_INPROGRESS != status
+                                && Status.TERMINATED != status) {
+                            workerWaitMonitor.wait();
+                        }
                     }
                 } catch (InterruptedException e) {
                     // Ignore and continue.  The point was to break out of the
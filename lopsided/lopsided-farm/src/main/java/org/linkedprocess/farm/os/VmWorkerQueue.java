@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+/**
+ * A source of workers which are ready to execute jobs, shared by the
+ * sequencers of a scheduler.  Sequencers identify themselves by index, so
+ * that an implementation may keep workers local to a particular sequencer.
+ */
+public interface VmWorkerQueue {
+    /**
+     * The sequencer index used when a worker is offered from outside of any
+     * sequencer (e.g. when a job is submitted).
+     */
+    int NO_SEQUENCER = -1;
+
+    /**
+     * Blocks until a worker is available, then removes it from the queue.
+     *
+     * @param sequencerIndex the index of the sequencer taking the worker
+     * @return a worker
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    VmWorker take(int sequencerIndex) throws InterruptedException;
+
+    /**
+     * Adds a worker to the queue, regardless of whether it is already present.
+     *
+     * @param w the worker to add
+     */
+    void offer(VmWorker w);
+
+    /**
+     * Adds a worker to the queue unless it is already present.
+     *
+     * @param w              the worker to add
+     * @param sequencerIndex the index of the sequencer offering the worker, or
+     *                       NO_SEQUENCER
+     * @return whether the worker has been added
+     */
+    boolean offerDistinct(VmWorker w, int sequencerIndex);
+
+    boolean remove(VmWorker w);
+
+    void clear();
+
+    int size();
+}
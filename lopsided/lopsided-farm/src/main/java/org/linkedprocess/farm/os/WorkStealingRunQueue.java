@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.farm.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A run queue in which each sequencer owns a local deque of workers.  A
+ * sequencer serves its own deque in FIFO order, putting workers back at the
+ * tail, and when its deque is empty it steals from the tail of a peer's
+ * deque.  Workers offered from outside of any sequencer are distributed
+ * among the deques in round-robin order.
+ * <p/>
+ * As in VmRunQueue, a worker may be present at most once in the whole
+ * queue (not just in one deque), so the scheduler remains fair with respect
+ * to VMs.
+ * <p/>
+ * The semaphore holds one permit for each worker in the queue.  A sequencer
+ * which acquires a permit, but finds that the worker has since been removed
+ * or taken by another sequencer, waits again rather than spinning.
+ */
+public class WorkStealingRunQueue implements VmWorkerQueue {
+    private final List<BlockingDeque<VmWorker>> deques;
+    private final Semaphore available;
+    private final AtomicInteger size;
+    private final AtomicInteger nextDeque;
+
+    public WorkStealingRunQueue(final int numberOfSequencers) {
+        if (numberOfSequencers < 1) {
+            throw new IllegalArgumentException("at least one sequencer is required");
+        }
+
+        deques = new ArrayList<BlockingDeque<VmWorker>>(numberOfSequencers);
+        for (int i = 0; i < numberOfSequencers; i++) {
+            deques.add(new LinkedBlockingDeque<VmWorker>());
+        }
+
+        available = new Semaphore(0);
+        size = new AtomicInteger(0);
+        nextDeque = new AtomicInteger(0);
+    }
+
+    public VmWorker take(final int sequencerIndex) throws InterruptedException {
+        int home = toDequeIndex(sequencerIndex);
+
+        // Break out when a permit is matched by a worker.
+        while (true) {
+            available.acquire();
+
+            // Every worker is in its deque before its permit is released, so
+            // a sequencer which finds none here has been beaten to it, and
+            // another permit will come with the next worker.
+            VmWorker w = deques.get(home).pollFirst();
+            if (null == w) {
+                w = steal(home);
+            }
+
+            if (null != w) {
+                size.decrementAndGet();
+                w.queued.set(false);
+                return w;
+            }
+        }
+    }
+
+    public void offer(final VmWorker w) {
+        add(w, NO_SEQUENCER);
+    }
+
+    public boolean offerDistinct(final VmWorker w,
+                                 final int sequencerIndex) {
+        if (!w.queued.compareAndSet(false, true)) {
+            return false;
+        }
+
+        add(w, sequencerIndex);
+        return true;
+    }
+
+    public boolean remove(final VmWorker w) {
+        for (BlockingDeque<VmWorker> d : deques) {
+            if (d.remove(w)) {
+                size.decrementAndGet();
+                w.queued.set(false);
+                available.tryAcquire();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public void clear() {
+        for (BlockingDeque<VmWorker> d : deques) {
+            VmWorker w;
+            while (null != (w = d.pollFirst())) {
+                size.decrementAndGet();
+                w.queued.set(false);
+                // If no permit is left to reclaim, a sequencer is already
+                // holding it and will find the queue empty.
+                available.tryAcquire();
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void add(final VmWorker w,
+                     final int sequencerIndex) {
+        deques.get(toDequeIndex(sequencerIndex)).offerLast(w);
+        size.incrementAndGet();
+        available.release();
+    }
+
+    private VmWorker steal(final int home) {
+        for (int i = 1; i < deques.size(); i++) {
+            VmWorker w = deques.get((home + i) % deques.size()).pollLast();
+            if (null != w) {
+                return w;
+            }
+        }
+
+        return null;
+    }
+
+    private int toDequeIndex(final int sequencerIndex) {
+        return NO_SEQUENCER == sequencerIndex
+                ? (nextDeque.getAndIncrement() & Integer.MAX_VALUE) % deques.size()
+                : sequencerIndex % deques.size();
+    }
+}
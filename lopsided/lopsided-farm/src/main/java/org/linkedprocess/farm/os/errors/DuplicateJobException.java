@@ -0,0 +1,33 @@
+package org.linkedprocess.farm.os.errors;
+
+import org.linkedprocess.farm.os.CompletedJobStore;
+import org.linkedprocess.farm.os.Job;
+
+/**
+ * Thrown when a job is submitted again, e.g. by a villein which has given up
+ * waiting for its result, rather than being run a second time.
+ */
+public class DuplicateJobException extends JobAlreadyExistsException {
+    private static final long serialVersionUID = 1L;
+
+    private final CompletedJobStore.CompletedJob completedJob;
+
+    /**
+     * @param job          the job which has been submitted again
+     * @param completedJob the outcome of the job, or null if the job is still
+     *                     in progress
+     */
+    public DuplicateJobException(final Job job,
+                                 final CompletedJobStore.CompletedJob completedJob) {
+        super(job);
+        this.completedJob = completedJob;
+    }
+
+    /**
+     * @return the outcome of the job, or null if the job is still in progress
+     *         (in which case its result will answer both submissions)
+     */
+    public CompletedJobStore.CompletedJob getCompletedJob() {
+        return completedJob;
+    }
+}
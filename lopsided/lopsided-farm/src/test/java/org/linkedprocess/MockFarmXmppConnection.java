@@ -6,11 +6,13 @@ import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Presence;
 import org.linkedprocess.farm.AbortJobPacketListener;
+import org.linkedprocess.farm.FetchJobPacketListener;
 import org.linkedprocess.farm.ManageBindingsPacketListener;
 import org.linkedprocess.farm.PingJobPacketListener;
 import org.linkedprocess.farm.PresenceSubscriptionPacketListener;
 import org.linkedprocess.farm.SpawnVm;
 import org.linkedprocess.farm.SpawnVmPacketListener;
+import org.linkedprocess.farm.SubmitJobBatchPacketListener;
 import org.linkedprocess.farm.SubmitJobPacketListener;
 import org.linkedprocess.farm.TerminateVm;
 import org.linkedprocess.farm.TerminateVmPacketListener;
@@ -19,7 +21,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 public class MockFarmXmppConnection extends MockXmppConnection {
 
-    public PacketListener spawn, subscribe, pingJob, submitJob, terminateVm, manageBindings, abortJob;
+    public PacketListener spawn, subscribe, pingJob, submitJob, terminateVm, manageBindings, abortJob, submitJobBatch, fetchJob;
 
     public MockFarmXmppConnection(ConnectionConfiguration connConfig,
                                   String id, XMPPConnection connection) {
@@ -38,9 +40,15 @@ public class MockFarmXmppConnection extends MockXmppConnection {
         if (listener instanceof PingJobPacketListener) {
             pingJob = listener;
         }
+        if (listener instanceof FetchJobPacketListener) {
+            fetchJob = listener;
+        }
         if (listener instanceof SubmitJobPacketListener) {
             submitJob = listener;
         }
+        if (listener instanceof SubmitJobBatchPacketListener) {
+            submitJobBatch = listener;
+        }
         if (listener instanceof TerminateVmPacketListener) {
             terminateVm = listener;
         }
@@ -272,9 +272,10 @@ public class OfflineFarmTest extends OfflineTest {
 
         // now we should have 2 PacketListeners to the Farms XMPP connection
         ArrayList<PacketListener> packetListeners = connection.packetListeners;
-        assertEquals(7, packetListeners.size());
+        assertEquals(9, packetListeners.size());
         assertNotNull(connection.spawn);
         assertNotNull(connection.subscribe);
+        assertNotNull(connection.fetchJob);
 
         // now, shut down the farm
         connection.clearPackets();
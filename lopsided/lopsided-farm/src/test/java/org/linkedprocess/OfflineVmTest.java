@@ -7,7 +7,13 @@ import static org.junit.Assert.assertTrue;
 import static org.powermock.api.easymock.PowerMock.createMock;
 import static org.powermock.api.easymock.PowerMock.replayAll;
 
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.PacketListener;
@@ -15,16 +21,23 @@ import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.provider.IQProvider;
 import org.junit.Before;
 import org.junit.Test;
 import org.linkedprocess.farm.Farm;
+import org.linkedprocess.farm.FetchJob;
 import org.linkedprocess.farm.ManageBindings;
 import org.linkedprocess.farm.PingJob;
 import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.SubmitJobBatch;
+import org.linkedprocess.farm.SubmitJobBatchProvider;
+import org.linkedprocess.farm.SubmitJobProvider;
 import org.linkedprocess.farm.TerminateVm;
 import org.linkedprocess.farm.os.Vm;
 import org.linkedprocess.farm.os.VmBindings;
 import org.linkedprocess.testing.offline.OfflineTest;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
 
 public class OfflineVmTest extends OfflineTest {
 
@@ -111,6 +124,308 @@ public class OfflineVmTest extends OfflineTest {
 				LinkedProcess.LopErrorType.EVALUATION_ERROR.toString()));
 	}
 
+	@Test
+	public void theResultOfAFinishedJobCanBeFetched() throws Exception {
+		SubmitJob eval = new SubmitJob();
+		eval.setPacketID("finished");
+		eval.setExpression("20 + 52;");
+		eval.setFrom(CLIENT_JID);
+		eval.setVmId(vm.getVmId());
+		connection.clearPackets();
+		connection.submitJob.processPacket(eval);
+		connection.waitForResponse(1000);
+		assertEquals(1, sentPackets.size());
+
+		// the job is still known once its result has gone out
+		PingJob status = new PingJob();
+		status.setVmId(vm.getVmId());
+		status.setJobId("finished");
+		connection.clearPackets();
+		connection.pingJob.processPacket(status);
+		connection.waitForResponse(1000);
+		PingJob pingResult = (PingJob) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, pingResult.getType());
+		assertEquals(LinkedProcess.JobStatus.COMPLETED.toString(), pingResult.getStatus());
+
+		FetchJob fetch = new FetchJob();
+		fetch.setVmId(vm.getVmId());
+		fetch.setJobId("finished");
+		connection.clearPackets();
+		connection.fetchJob.processPacket(fetch);
+		connection.waitForResponse(1000);
+		FetchJob fetchResult = (FetchJob) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, fetchResult.getType());
+		assertEquals(LinkedProcess.JobStatus.COMPLETED, fetchResult.getStatus());
+		assertEquals("72", fetchResult.getExpression());
+		assertNull(fetchResult.getSequence());
+
+		// a job which has never been submitted cannot be fetched
+		fetch.setJobId("unknown");
+		connection.clearPackets();
+		connection.fetchJob.processPacket(fetch);
+		connection.waitForResponse(1000);
+		fetchResult = (FetchJob) sentPackets.get(0);
+		assertEquals(IQ.Type.ERROR, fetchResult.getType());
+		assertTrue(fetchResult.toXML().contains(
+				LinkedProcess.LopErrorType.JOB_NOT_FOUND.toString()));
+	}
+
+	@Test
+	public void fetchingWithoutAJobIdOrFromANonExistingVmShouldReturnError()
+			throws Exception {
+		// without job id
+		FetchJob fetch = new FetchJob();
+		fetch.setPacketID(IQ_PACKET_ID);
+		fetch.setFrom(CLIENT_JID);
+		fetch.setVmId(vm.getVmId());
+		connection.clearPackets();
+		connection.fetchJob.processPacket(fetch);
+
+		assertEquals(1, sentPackets.size());
+		FetchJob result = (FetchJob) sentPackets.get(0);
+		assertEquals(IQ_PACKET_ID, result.getPacketID());
+		assertEquals(IQ.Type.ERROR, result.getType());
+		assertTrue(result.toXML().contains(
+				LinkedProcess.LopErrorType.MALFORMED_PACKET.toString()));
+
+		// non-existent vm
+		fetch.setJobId("test");
+		fetch.setVmId("no such vm");
+		connection.clearPackets();
+		connection.fetchJob.processPacket(fetch);
+
+		assertEquals(1, sentPackets.size());
+		result = (FetchJob) sentPackets.get(0);
+		assertEquals(IQ.Type.ERROR, result.getType());
+		assertTrue(result.toXML().contains(
+				LinkedProcess.LopErrorType.VM_NOT_FOUND.toString()));
+	}
+
+	@Test
+	public void aJobSubmittedAgainShouldNotBeRunTwice() throws Exception {
+		SubmitJob eval = new SubmitJob();
+		eval.setPacketID("retried");
+		eval.setExpression("var n = 0; for (i = 0; i < 1000000; i++) { n++; } n;");
+		eval.setFrom(CLIENT_JID);
+		eval.setVmId(vm.getVmId());
+
+		// the retry arrives while the job is in progress: one reply answers both
+		connection.clearPackets();
+		connection.submitJob.processPacket(eval);
+		connection.submitJob.processPacket(eval);
+		connection.waitForResponse(10000);
+		connection.waitForResponse(1000);
+		assertEquals(1, sentPackets.size());
+		SubmitJob result = (SubmitJob) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, result.getType());
+		assertEquals("retried", result.getPacketID());
+		String expression = result.getExpression();
+
+		// the retry arrives after the job has finished: it is answered from memory
+		connection.clearPackets();
+		connection.submitJob.processPacket(eval);
+		connection.waitForResponse(1000);
+		assertEquals(1, sentPackets.size());
+		result = (SubmitJob) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, result.getType());
+		assertEquals("retried", result.getPacketID());
+		assertEquals(expression, result.getExpression());
+
+		// a different job re-using the ID of the job in progress is turned away
+		SubmitJob infinite = new SubmitJob();
+		infinite.setPacketID("reused");
+		infinite.setExpression("while (true) { }");
+		infinite.setFrom(CLIENT_JID);
+		infinite.setVmId(vm.getVmId());
+		connection.submitJob.processPacket(infinite);
+		eval.setPacketID("reused");
+		connection.clearPackets();
+		connection.submitJob.processPacket(eval);
+		connection.waitForResponse(1000);
+		result = (SubmitJob) sentPackets.get(0);
+		assertEquals(IQ.Type.ERROR, result.getType());
+		assertTrue(result.toXML().contains(
+				LinkedProcess.LopErrorType.JOB_ALREADY_EXISTS.toString()));
+	}
+
+	@Test
+	public void submittingABatchShouldReturnAllResultsInOneReply()
+			throws Exception {
+		SubmitJobBatch batch = new SubmitJobBatch();
+		batch.setPacketID(IQ_PACKET_ID);
+		batch.setFrom(CLIENT_JID);
+		batch.setVmId(vm.getVmId());
+		batch.setType(IQ.Type.GET);
+		batch.addJob("a", "20 + 52;");
+		batch.addJob("b", "buh+2sdf;==");
+		batch.addJob("c", "'x' + 'y';");
+		connection.clearPackets();
+		connection.submitJobBatch.processPacket(batch);
+		connection.waitForResponse(2000);
+
+		assertEquals(1, sentPackets.size());
+		SubmitJobBatch result = (SubmitJobBatch) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, result.getType());
+		assertEquals(IQ_PACKET_ID, result.getPacketID());
+		assertNull(result.getSequence());
+		assertEquals(3, result.getJobs().size());
+
+		Map<String, SubmitJobBatch.BatchJob> jobs = new HashMap<String, SubmitJobBatch.BatchJob>();
+		for (SubmitJobBatch.BatchJob job : result.getJobs()) {
+			jobs.put(job.getJobId(), job);
+		}
+		assertEquals("72", jobs.get("a").getExpression());
+		assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, jobs.get("b").getLopError().getErrorType());
+		assertEquals("xy", jobs.get("c").getExpression());
+	}
+
+	@Test
+	public void aGraphOfJobsShouldRunInOneRoundTrip() throws Exception {
+		Vm other = farm.spawnVm(CLIENT_JID, JAVASCRIPT);
+		SubmitJobBatch batch = new SubmitJobBatch();
+		batch.setPacketID(IQ_PACKET_ID);
+		batch.setFrom(CLIENT_JID);
+		batch.setVmId(vm.getVmId());
+		batch.setType(IQ.Type.GET);
+		List<String> none = Collections.emptyList();
+		batch.addJob(new SubmitJobBatch.BatchJob("a", "20 + 52;", null, null, none, "x"));
+		batch.addJob(new SubmitJobBatch.BatchJob("b", "parseInt(x) + 1;", null, other.getVmId(), Arrays.asList("a"), "y"));
+		batch.addJob(new SubmitJobBatch.BatchJob("c", "y * 2;", null, null, Arrays.asList("b"), null));
+		batch.addJob(new SubmitJobBatch.BatchJob("d", "buh+2sdf;==", null, null, none, null));
+		batch.addJob(new SubmitJobBatch.BatchJob("e", "1;", null, null, Arrays.asList("d", "a"), null));
+		connection.clearPackets();
+		connection.submitJobBatch.processPacket(batch);
+		connection.waitForResponse(5000);
+
+		assertEquals(1, sentPackets.size());
+		SubmitJobBatch result = (SubmitJobBatch) sentPackets.get(0);
+		assertEquals(IQ.Type.RESULT, result.getType());
+		assertEquals(5, result.getJobs().size());
+		Map<String, SubmitJobBatch.BatchJob> jobs = new HashMap<String, SubmitJobBatch.BatchJob>();
+		for (SubmitJobBatch.BatchJob job : result.getJobs()) {
+			jobs.put(job.getJobId(), job);
+		}
+		assertEquals("72", jobs.get("a").getExpression());
+		assertEquals("73", jobs.get("b").getExpression());
+		assertEquals("146", jobs.get("c").getExpression());
+		assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, jobs.get("d").getLopError().getErrorType());
+		assertEquals(LinkedProcess.LopErrorType.DEPENDENCY_FAILED, jobs.get("e").getLopError().getErrorType());
+
+		// a graph which cannot be run is turned down as a whole
+		batch = new SubmitJobBatch();
+		batch.setPacketID(IQ_PACKET_ID);
+		batch.setFrom(CLIENT_JID);
+		batch.setVmId(vm.getVmId());
+		batch.addJob(new SubmitJobBatch.BatchJob("a", "1;", null, null, Arrays.asList("b"), null));
+		batch.addJob(new SubmitJobBatch.BatchJob("b", "2;", null, null, Arrays.asList("a"), null));
+		connection.clearPackets();
+		connection.submitJobBatch.processPacket(batch);
+		connection.waitForResponse(1000);
+		result = (SubmitJobBatch) sentPackets.get(0);
+		assertEquals(IQ.Type.ERROR, result.getType());
+		assertTrue(result.toXML().contains(
+				LinkedProcess.LopErrorType.MALFORMED_PACKET.toString()));
+	}
+
+	@Test
+	public void submittingABatchToANonExistingVmShouldReturnError()
+			throws Exception {
+		SubmitJobBatch batch = new SubmitJobBatch();
+		batch.setPacketID(IQ_PACKET_ID);
+		batch.setFrom(CLIENT_JID);
+		batch.setVmId("no such vm");
+		batch.setType(IQ.Type.GET);
+		batch.addJob("a", "1;");
+		connection.clearPackets();
+		connection.submitJobBatch.processPacket(batch);
+
+		assertEquals(1, sentPackets.size());
+		SubmitJobBatch result = (SubmitJobBatch) sentPackets.get(0);
+		assertEquals(IQ.Type.ERROR, result.getType());
+		assertTrue(result.toXML().contains(
+				LinkedProcess.LopErrorType.VM_NOT_FOUND.toString()));
+	}
+
+	/**
+	 * Compares the number of jobs per second which the farm gets through
+	 * when they are submitted one by one with that when they are submitted
+	 * in batches.  Each packet is parsed from XML, and each reply serialized
+	 * to XML, as it would be on a real connection.
+	 */
+	public void compareSingleAndBatchedSubmits() throws Exception {
+		int jobs = 5000;
+		int window = 50;
+
+		// Warm up.
+		measureSingleSubmits(jobs / 10, window);
+		measureBatchedSubmits(jobs / 10, window);
+
+		System.out.println("jobs per second (" + jobs + " jobs, " + window + " at a time):");
+		System.out.println("\tsubmit_job:       " + measureSingleSubmits(jobs, window));
+		System.out.println("\tsubmit_job_batch: " + measureBatchedSubmits(jobs, window));
+	}
+
+	private double measureSingleSubmits(int jobs, int window) throws Exception {
+		SubmitJobProvider provider = new SubmitJobProvider();
+		long before = System.currentTimeMillis();
+		int count = 0;
+		while (count < jobs) {
+			connection.clearPackets();
+			for (int i = 0; i < window; i++) {
+				SubmitJob submitJob = new SubmitJob();
+				submitJob.setVmId(vm.getVmId());
+				submitJob.setExpression(count + " + 1;");
+				SubmitJob parsed = (SubmitJob) parse(provider, submitJob.getChildElementXML());
+				parsed.setPacketID("job" + count++);
+				parsed.setFrom(CLIENT_JID);
+				parsed.setType(IQ.Type.GET);
+				connection.submitJob.processPacket(parsed);
+			}
+			waitForPackets(window);
+		}
+		return jobs * 1000.0 / (System.currentTimeMillis() - before);
+	}
+
+	private double measureBatchedSubmits(int jobs, int window) throws Exception {
+		SubmitJobBatchProvider provider = new SubmitJobBatchProvider();
+		long before = System.currentTimeMillis();
+		int count = 0;
+		while (count < jobs) {
+			connection.clearPackets();
+			SubmitJobBatch batch = new SubmitJobBatch();
+			batch.setVmId(vm.getVmId());
+			for (int i = 0; i < window; i++) {
+				batch.addJob("job" + count++, count + " + 1;");
+			}
+			SubmitJobBatch parsed = (SubmitJobBatch) parse(provider, batch.getChildElementXML());
+			parsed.setPacketID("batch" + count);
+			parsed.setFrom(CLIENT_JID);
+			parsed.setType(IQ.Type.GET);
+			connection.submitJobBatch.processPacket(parsed);
+			waitForPackets(1);
+		}
+		return jobs * 1000.0 / (System.currentTimeMillis() - before);
+	}
+
+	private IQ parse(IQProvider provider, String xml) throws Exception {
+		XmlPullParser parser = new MXParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		parser.next();
+		return provider.parseIQ(parser);
+	}
+
+	private void waitForPackets(int count) throws InterruptedException {
+		while (true) {
+			synchronized (sentPackets) {
+				if (sentPackets.size() >= count) {
+					return;
+				}
+			}
+			Thread.sleep(1);
+		}
+	}
+
 	@Test
 	public void sendingATerminatePacketShouldCloseTheVM() throws Exception {
 		connection.clearPackets();
@@ -180,8 +495,10 @@ public class OfflineVmTest extends OfflineTest {
 		assertEquals(Presence.Type.available, result.getType());
 		// now we should have 5 PacketListeners for the VM
 		ArrayList<PacketListener> packetListeners = connection.packetListeners;
-		assertEquals(7, packetListeners.size());
+		assertEquals(9, packetListeners.size());
 		assertNotNull(connection.submitJob);
+		assertNotNull(connection.submitJobBatch);
+		assertNotNull(connection.fetchJob);
 		assertNotNull(connection.terminateVm);
 		assertNotNull(connection.pingJob);
 		assertNotNull(connection.manageBindings);
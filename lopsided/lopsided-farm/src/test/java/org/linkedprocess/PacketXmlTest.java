@@ -0,0 +1,262 @@
+package org.linkedprocess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedprocess.farm.ManageBindings;
+import org.linkedprocess.farm.ManageBindingsProvider;
+import org.linkedprocess.farm.PingJob;
+import org.linkedprocess.farm.PingJobProvider;
+import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.SubmitJobProvider;
+import org.linkedprocess.farm.os.VmBindings;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+public class PacketXmlTest {
+
+    private static final String SUBMIT_JOB = "<submit_job xmlns=\"" + LinkedProcess.LOP_FARM_NAMESPACE + "\" vm_id=\"62F4E464\">"
+            + "for (var i = 0; i &lt; 10; i++) { s += &quot;a&quot;; }<![CDATA[ if (x < y && y > z) ]]><!-- a comment -->s;</submit_job>";
+    private static final String MANAGE_BINDINGS = "<manage_bindings xmlns=\"" + LinkedProcess.LOP_FARM_NAMESPACE + "\" vm_id=\"62F4E464\">\n"
+            + "  <binding name=\"a\" value=\"1\" datatype=\"" + VmBindings.XMLSchemaDatatype.INTEGER.getURI() + "\"/>\n"
+            + "  <binding name=\"b\" value=\"a &amp; b\" datatype=\"" + VmBindings.XMLSchemaDatatype.STRING.getURI() + "\"></binding>\n"
+            + "  <binding name=\"c\" value=\"true\" datatype=\"" + VmBindings.XMLSchemaDatatype.BOOLEAN.getURI() + "\" />\n"
+            + "</manage_bindings>";
+    private static final String PING_JOB = "<ping_job xmlns=\"" + LinkedProcess.LOP_FARM_NAMESPACE + "\" vm_id=\"62F4E464\" job_id=\"wxyz-1\">\n</ping_job>";
+
+    private XmlPullParser parser;
+
+    @Before
+    public void setup() throws Exception {
+        parser = createParser();
+    }
+
+    @Test
+    public void anExpressionSplitUpByTheParserIsReadWhole() throws Exception {
+        SubmitJob submitJob = (SubmitJob) new SubmitJobProvider().parseIQ(startParsing(SUBMIT_JOB));
+        assertEquals("62F4E464", submitJob.getVmId());
+        assertEquals("for (var i = 0; i < 10; i++) { s += \"a\"; } if (x < y && y > z) s;", submitJob.getExpression());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.SUBMIT_JOB_TAG, parser.getName());
+    }
+
+    @Test
+    public void anEmptySubmitJobHasNoExpression() throws Exception {
+        SubmitJob submitJob = (SubmitJob) new SubmitJobProvider().parseIQ(startParsing("<submit_job xmlns=\"" + LinkedProcess.LOP_FARM_NAMESPACE + "\" vm_id=\"62F4E464\"/>"));
+        assertNull(submitJob.getExpression());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+    }
+
+    @Test
+    public void prettyPrintedBindingsAreAllRead() throws Exception {
+        ManageBindings manageBindings = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(MANAGE_BINDINGS));
+        assertEquals("62F4E464", manageBindings.getVmId());
+        assertEquals(3, manageBindings.getBindings().size());
+        assertEquals("1", manageBindings.getBinding("a").getValue());
+        assertEquals("a & b", manageBindings.getBinding("b").getValue());
+        assertEquals(VmBindings.XMLSchemaDatatype.BOOLEAN, manageBindings.getBinding("c").getDatatype());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.MANAGE_BINDINGS_TAG, parser.getName());
+    }
+
+    @Test
+    public void changedBindingsAreAskedForAndReturnedWithTheirVersion() throws Exception {
+        ManageBindings get = new ManageBindings();
+        get.setVmId("62F4E464");
+        get.setType(IQ.Type.GET);
+        get.setSince(42L);
+        ManageBindings result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(get.getChildElementXML()));
+        assertEquals(Long.valueOf(42), result.getSince());
+        assertTrue(result.getBindings().isEmpty());
+
+        ManageBindings reply = new ManageBindings();
+        reply.setVmId("62F4E464");
+        reply.setType(IQ.Type.RESULT);
+        reply.setVersion(57L);
+        result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(reply.getChildElementXML()));
+        assertEquals(Long.valueOf(57), result.getVersion());
+        assertEquals(57, result.getBindings().getVersion());
+
+        reply.setBindings(new VmBindings());
+        reply.getBindings().put("a", 1);
+        result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(reply.getChildElementXML()));
+        assertEquals(57, result.getBindings().getVersion());
+        assertEquals(1, result.getBindings().get("a"));
+
+        // Without a version, a manage_bindings is as it was.
+        assertNull(((ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(MANAGE_BINDINGS))).getVersion());
+    }
+
+    @Test
+    public void watchedBindingsAreAskedForAndReturnedInPartialResults() throws Exception {
+        ManageBindings get = new ManageBindings();
+        get.setVmId("62F4E464");
+        get.setType(IQ.Type.GET);
+        get.setSince(0L);
+        get.setWatch(250L);
+        ManageBindings result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(get.getChildElementXML()));
+        assertEquals(Long.valueOf(250), result.getWatch());
+        assertEquals(Long.valueOf(0), result.getSince());
+
+        get.setWatch(0L);
+        result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(get.getChildElementXML()));
+        assertEquals(Long.valueOf(0), result.getWatch());
+
+        ManageBindings reply = new ManageBindings();
+        reply.setVmId("62F4E464");
+        reply.setType(IQ.Type.RESULT);
+        reply.setVersion(57L);
+        reply.setPartial(true);
+        reply.setBindings(new VmBindings());
+        reply.getBindings().put("progress", 0.5);
+        result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(reply.getChildElementXML()));
+        assertTrue(result.isPartial());
+        assertEquals(57, result.getBindings().getVersion());
+        assertEquals(0.5, result.getBindings().get("progress"));
+
+        // Without a watch, a manage_bindings is as it was.
+        result = (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(MANAGE_BINDINGS));
+        assertNull(result.getWatch());
+        assertFalse(result.isPartial());
+    }
+
+    @Test
+    public void aPingJobWithWhitespaceIsReadToItsEnd() throws Exception {
+        PingJob pingJob = (PingJob) new PingJobProvider().parseIQ(startParsing(PING_JOB));
+        assertEquals("wxyz-1", pingJob.getJobId());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.PING_JOB_TAG, parser.getName());
+    }
+
+    @Test
+    public void aSubmitJobIsWrittenAsJdomWouldWriteIt() throws Exception {
+        String[] expressions = {null, "", "1 + 1;", "x < 2 && y > 3;", "var s = \"it's\";\r\nvar t = 'a\tb';\n", "caf\u00e9 \ud834\udd1e"};
+        for (String expression : expressions) {
+            for (int i = 0; i < 4; i++) {
+                SubmitJob submitJob = new SubmitJob();
+                submitJob.setVmId("62F4E464");
+                submitJob.setExpression(expression);
+                if (i > 0) {
+                    submitJob.setSequence(i);
+                }
+                submitJob.setPartial(i > 1);
+                assertEquals(writeWithJdom(submitJob), submitJob.getChildElementXML());
+            }
+        }
+
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("a \"quoted\"\tid & <more>\n");
+        assertEquals(writeWithJdom(submitJob), submitJob.getChildElementXML());
+    }
+
+    @Test
+    public void aWrittenSubmitJobIsReadBackUnchanged() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setExpression("var s = \"<a href='x'>&amp;</a>\";\nvar t = 'a\tb';\n");
+        SubmitJob result = (SubmitJob) new SubmitJobProvider().parseIQ(startParsing(submitJob.getChildElementXML()));
+        assertEquals(submitJob.getExpression(), result.getExpression());
+    }
+
+    private XmlPullParser startParsing(String xml) throws Exception {
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    private static XmlPullParser createParser() throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    private static String writeWithJdom(SubmitJob submitJob) {
+        Element submitJobElement = new Element(LinkedProcess.SUBMIT_JOB_TAG, LinkedProcess.LOP_FARM_NAMESPACE);
+        if (submitJob.getVmId() != null) {
+            submitJobElement.setAttribute(LinkedProcess.VM_ID_ATTRIBUTE, submitJob.getVmId());
+        }
+        if (submitJob.getSequence() != null) {
+            submitJobElement.setAttribute(LinkedProcess.SEQUENCE_ATTRIBUTE, submitJob.getSequence().toString());
+        }
+        if (submitJob.isPartial()) {
+            submitJobElement.setAttribute(LinkedProcess.PARTIAL_ATTRIBUTE, "true");
+        }
+        if (submitJob.getExpression() != null) {
+            submitJobElement.setText(submitJob.getExpression());
+        }
+        return LinkedProcess.xmlOut.outputString(submitJobElement);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    // Compares reading and writing packets through the pull parser with doing so through JDOM.
+    public static void main(final String[] args) throws Exception {
+        int iterations = 200000;
+        measureParsing("submit_job", SUBMIT_JOB, new SubmitJobProvider(), iterations);
+        measureParsing("manage_bindings", MANAGE_BINDINGS, new ManageBindingsProvider(), iterations);
+        measureParsing("ping_job", PING_JOB, new PingJobProvider(), iterations);
+        measureWriting(iterations);
+    }
+
+    private static void measureParsing(final String name,
+                                       final String xml,
+                                       final IQProvider provider,
+                                       final int iterations) throws Exception {
+        XmlPullParser parser = createParser();
+        SAXBuilder builder = new SAXBuilder();
+        for (int round = 0; round < 2; round++) {
+            long before = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                parser.setInput(new StringReader(xml));
+                parser.next();
+                provider.parseIQ(parser);
+            }
+            long pull = System.nanoTime() - before;
+
+            before = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                builder.build(new StringReader(xml));
+            }
+            long dom = System.nanoTime() - before;
+
+            if (round > 0) {
+                System.out.println(name + ": " + (pull / iterations) + " ns per packet with a reused pull parser, "
+                        + (dom / iterations) + " ns per packet with a JDOM document");
+            }
+        }
+    }
+
+    private static void measureWriting(final int iterations) {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setSequence(3);
+        submitJob.setExpression("{\"a\": [1, 2, 3], \"b\": \"x < y && y > z\"}\nline 2\n");
+        for (int round = 0; round < 2; round++) {
+            long before = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                submitJob.getChildElementXML();
+            }
+            long direct = System.nanoTime() - before;
+
+            before = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                writeWithJdom(submitJob);
+            }
+            long dom = System.nanoTime() - before;
+
+            if (round > 0) {
+                System.out.println("submit_job result: " + (direct / iterations) + " ns per packet written directly, "
+                        + (dom / iterations) + " ns per packet written through JDOM");
+            }
+        }
+    }
+}
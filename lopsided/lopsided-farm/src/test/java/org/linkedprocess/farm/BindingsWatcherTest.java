@@ -0,0 +1,205 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+import org.linkedprocess.farm.os.VmBindings;
+import org.linkedprocess.farm.os.errors.VmNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BindingsWatcherTest {
+
+    private static final String VILLEIN = "villein@example.org/LoPVillein";
+    private static final String VM = "62F4E464";
+
+    // The bindings of the virtual machine, and its stamp; 0 while hibernated, and -1 once it is gone.
+    private final VmBindings bindings = new VmBindings();
+    private volatile long stamp = 1;
+    private long lastStamp = 1;
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private final List<VmBindings> notifications = Collections.synchronizedList(new ArrayList<VmBindings>());
+    private final List<VmNotFoundException> ends = Collections.synchronizedList(new ArrayList<VmNotFoundException>());
+
+    private BindingsWatcher watcher;
+
+    @After
+    public void shutdown() throws Exception {
+        if (null != watcher) {
+            assertTrue(watcher.shutdown(5000));
+        }
+    }
+
+    @Test
+    public void changesAreSentWithTheirVersion() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names(), 20, false, currentVersion()));
+
+        change("progress", 1);
+        awaitNotifications(1);
+        assertEquals(1, notifications.get(0).get("progress"));
+        assertEquals(currentVersion(), notifications.get(0).getVersion());
+
+        change("progress", 2);
+        awaitNotifications(2);
+        assertEquals(2, notifications.get(1).get("progress"));
+        assertEquals(1, notifications.get(1).size());
+    }
+
+    @Test
+    public void onlyTheWatchedBindingsAreSent() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names("progress"), 20, false, currentVersion()));
+
+        change("other", 1);
+        Thread.sleep(200);
+        assertEquals(0, notifications.size());
+
+        change("progress", 1);
+        awaitNotifications(1);
+        assertEquals(1, notifications.get(0).size());
+        assertEquals(1, notifications.get(0).get("progress"));
+    }
+
+    @Test
+    public void changesAreSentAtMostOncePerInterval() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names(), 400, false, currentVersion()));
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            change("progress", i);
+            Thread.sleep(25);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        awaitNotifications(1);
+
+        // Forty changes over a second or so, which are sent in a few notifications, the last of them with the latest value.
+        assertTrue(notifications.size() <= elapsed / 400 + 1);
+        while (!Integer.valueOf(39).equals(notifications.get(notifications.size() - 1).get("progress"))) {
+            awaitNotifications(notifications.size() + 1);
+        }
+    }
+
+    @Test
+    public void theFarmMinimumIntervalIsEnforced() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 100);
+        assertEquals(100, watcher.getInterval(1));
+        assertEquals(500, watcher.getInterval(500));
+    }
+
+    @Test
+    public void bindingsAreNotQueriedUnlessTheirStampChanges() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names(), 20, false, currentVersion()));
+
+        Thread.sleep(200);
+        // Once, for the first stamp seen.
+        assertEquals(1, queries.get());
+
+        // Hibernated: the bindings are left alone.
+        stamp = 0;
+        Thread.sleep(200);
+        assertEquals(1, queries.get());
+
+        change("progress", 1);
+        awaitNotifications(1);
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void theWatchEndsWhenTheVmIsGone() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names(), 20, false, currentVersion()));
+        assertEquals(1, watcher.getWatchCount());
+
+        stamp = -1;
+        long timeout = System.currentTimeMillis() + 5000;
+        while (ends.isEmpty() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, ends.size());
+        assertEquals(0, watcher.getWatchCount());
+    }
+
+    @Test
+    public void aRemovedWatchIsSentNothing() throws Exception {
+        watcher = new BindingsWatcher(createSource(), createSender(), 0);
+        watcher.addWatch(new BindingsWatcher.Watch(VILLEIN, VM, "abc", names(), 20, false, currentVersion()));
+        assertEquals("abc", watcher.removeWatch(VILLEIN, VM).getPacketId());
+
+        change("progress", 1);
+        Thread.sleep(200);
+        assertEquals(0, notifications.size());
+        assertEquals(0, watcher.getWatchCount());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private synchronized void change(final String name, final Object value) {
+        bindings.put(name, value);
+        stamp = ++lastStamp;
+    }
+
+    private synchronized long currentVersion() {
+        return bindings.getVersion();
+    }
+
+    private void awaitNotifications(final int count) throws Exception {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (notifications.size() < count) {
+            assertTrue("timed out waiting for notification " + count, System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<String> names(final String... names) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, names);
+        return set;
+    }
+
+    private BindingsWatcher.BindingsSource createSource() {
+        return new BindingsWatcher.BindingsSource() {
+            public long getBindingsStamp(final String vmId) throws VmNotFoundException {
+                if (stamp < 0) {
+                    throw new VmNotFoundException(vmId);
+                }
+                return stamp;
+            }
+
+            public VmBindings getBindingsChangedSince(final String vmId, final Set<String> names, final long version) throws VmNotFoundException {
+                queries.incrementAndGet();
+                synchronized (BindingsWatcherTest.this) {
+                    VmBindings changed = new VmBindings();
+                    for (String name : bindings.getNamesChangedSince(version)) {
+                        if (names.isEmpty() || names.contains(name)) {
+                            changed.put(name, bindings.get(name));
+                        }
+                    }
+                    changed.setVersion(bindings.getVersion());
+                    return changed;
+                }
+            }
+        };
+    }
+
+    private BindingsWatcher.NotificationSender createSender() {
+        return new BindingsWatcher.NotificationSender() {
+            public void sendChanges(final BindingsWatcher.Watch watch, final VmBindings changed) {
+                notifications.add(changed);
+            }
+
+            public void sendEnd(final BindingsWatcher.Watch watch, final VmNotFoundException e) {
+                ends.add(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedprocess.LinkedProcess;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+public class FetchJobProviderTest {
+
+    private FetchJobProvider fp;
+    private XmlPullParser parser;
+
+    @Before
+    public void setup() throws Exception {
+        fp = new FetchJobProvider();
+        parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    }
+
+    @Test
+    public void aRequestHasNoStatusOrResult() throws Exception {
+        FetchJob fetchJob = new FetchJob();
+        fetchJob.setVmId("62F4E464");
+        fetchJob.setJobId("yyyy");
+
+        FetchJob result = parse(fetchJob.getChildElementXML());
+        assertEquals("62F4E464", result.getVmId());
+        assertEquals("yyyy", result.getJobId());
+        assertNull(result.getStatus());
+        assertNull(result.getExpression());
+        assertNull(result.getSequence());
+    }
+
+    @Test
+    public void theResultOfAFinishedJobIsRead() throws Exception {
+        FetchJob fetchJob = new FetchJob();
+        fetchJob.setVmId("62F4E464");
+        fetchJob.setJobId("yyyy");
+        fetchJob.setStatus(LinkedProcess.JobStatus.COMPLETED);
+        fetchJob.setSequence(3);
+        fetchJob.setExpression("x < 2 && y > 3");
+
+        FetchJob result = parse(fetchJob.getChildElementXML());
+        assertEquals(LinkedProcess.JobStatus.COMPLETED, result.getStatus());
+        assertEquals(new Integer(3), result.getSequence());
+        assertEquals("x < 2 && y > 3", result.getExpression());
+    }
+
+    private FetchJob parse(String fetchJob) throws Exception {
+        parser.setInput(new StringReader(fetchJob));
+        parser.next();
+
+        FetchJob result = (FetchJob) fp.parseIQ(parser);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.FETCH_JOB_TAG, parser.getName());
+        return result;
+    }
+}
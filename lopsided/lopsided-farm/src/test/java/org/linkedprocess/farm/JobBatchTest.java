@@ -0,0 +1,108 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.CompletedJobStore;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+
+public class JobBatchTest {
+
+    private SubmitJobBatch submitJobBatch;
+
+    @Before
+    public void setup() {
+        submitJobBatch = new SubmitJobBatch();
+        submitJobBatch.setPacketID("batch1");
+        submitJobBatch.setFrom("villein@example.org");
+        submitJobBatch.setVmId("62F4E464");
+    }
+
+    @Test
+    public void resultsAreSentTogetherOnceTheLastJobHasFinished() throws Exception {
+        JobBatch batch = new JobBatch(submitJobBatch, 3, 10);
+
+        assertNull(batch.addResult(new JobResult(createJob("a"), "1")));
+        assertNull(batch.addError("b", new LopError(XMPPError.Condition.conflict, LinkedProcess.LopErrorType.JOB_ALREADY_EXISTS, null, "b")));
+        SubmitJobBatch reply = batch.addResult(new JobResult(createJob("c"), new IllegalArgumentException("failed")));
+
+        assertEquals(IQ.Type.RESULT, reply.getType());
+        assertEquals("batch1", reply.getPacketID());
+        assertEquals("villein@example.org", reply.getTo());
+        assertEquals("62F4E464", reply.getVmId());
+        assertNull(reply.getSequence());
+        assertFalse(reply.isPartial());
+
+        assertEquals(3, reply.getJobs().size());
+        assertEquals("1", reply.getJobs().get(0).getExpression());
+        assertEquals(LinkedProcess.LopErrorType.JOB_ALREADY_EXISTS, reply.getJobs().get(1).getLopError().getErrorType());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, reply.getJobs().get(2).getLopError().getErrorType());
+    }
+
+    @Test
+    public void jobsSubmittedAgainAreAnsweredWithTheirOutcome() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(10, 1000000, 60000);
+        store.jobFinished(new JobResult(createJob("a"), "1"));
+        store.jobFinished(new JobResult(createJob("b"), new IllegalArgumentException("failed")));
+        JobBatch batch = new JobBatch(submitJobBatch, 2, 10);
+
+        assertNull(batch.addCompletedJob("a", store.getCompletedJob("62F4E464", "a")));
+        SubmitJobBatch reply = batch.addCompletedJob("b", store.getCompletedJob("62F4E464", "b"));
+
+        assertEquals(2, reply.getJobs().size());
+        assertEquals("1", reply.getJobs().get(0).getExpression());
+        assertNull(reply.getJobs().get(0).getLopError());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, reply.getJobs().get(1).getLopError().getErrorType());
+    }
+
+    @Test
+    public void aLargeBatchIsAnsweredInSeveralReplies() throws Exception {
+        JobBatch batch = new JobBatch(submitJobBatch, 5, 2);
+
+        assertNull(batch.addResult(new JobResult(createJob("a"), "1")));
+        SubmitJobBatch reply = batch.addResult(new JobResult(createJob("b"), "2"));
+        assertEquals(2, reply.getJobs().size());
+        assertTrue(reply.isPartial());
+        assertEquals(new Integer(0), reply.getSequence());
+
+        assertNull(batch.addResult(new JobResult(createJob("c"), "3")));
+        reply = batch.addResult(new JobResult(createJob("d"), "4"));
+        assertTrue(reply.isPartial());
+        assertEquals(new Integer(1), reply.getSequence());
+
+        reply = batch.addResult(new JobResult(createJob("e"), "5"));
+        assertEquals(1, reply.getJobs().size());
+        assertEquals("e", reply.getJobs().get(0).getJobId());
+        assertFalse(reply.isPartial());
+        assertEquals(new Integer(2), reply.getSequence());
+    }
+
+    @Test
+    public void streamedResultsArePutBackTogether() throws Exception {
+        JobBatch batch = new JobBatch(submitJobBatch, 2, 10);
+        Job a = createJob("a");
+        Job b = createJob("b");
+
+        batch.addPartialResult(new JobResult(a, "hello ", a.nextPartialResult()));
+        batch.addPartialResult(new JobResult(b, "discarded", b.nextPartialResult()));
+        batch.addPartialResult(new JobResult(a, "wor", a.nextPartialResult()));
+        assertNull(batch.addResult(new JobResult(a, "ld")));
+        SubmitJobBatch reply = batch.addResult(new JobResult(b, new IllegalArgumentException("failed")));
+
+        assertEquals("hello world", reply.getJobs().get(0).getExpression());
+        assertNull(reply.getJobs().get(1).getExpression());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, reply.getJobs().get(1).getLopError().getErrorType());
+    }
+
+    private Job createJob(final String jobId) {
+        return new Job("62F4E464", "villein@example.org", jobId, "1;");
+    }
+}
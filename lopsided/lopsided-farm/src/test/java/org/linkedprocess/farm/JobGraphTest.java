@@ -0,0 +1,159 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+import org.linkedprocess.farm.os.VmBindings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class JobGraphTest {
+
+    private SubmitJobBatch submitJobBatch;
+
+    @Before
+    public void setup() {
+        submitJobBatch = new SubmitJobBatch();
+        submitJobBatch.setPacketID("graph1");
+        submitJobBatch.setFrom("villein@example.org");
+        submitJobBatch.setVmId("62F4E464");
+    }
+
+    @Test
+    public void aBatchWithoutDependenciesIsNotAGraph() throws Exception {
+        submitJobBatch.addJob("a", "1;");
+        submitJobBatch.addJob("b", "2;");
+        assertFalse(submitJobBatch.isGraph());
+
+        addJob("c", null, null, "a");
+        assertTrue(submitJobBatch.isGraph());
+    }
+
+    @Test
+    public void graphsWhichCannotBeRunAreFound() throws Exception {
+        addJob("a", null, null);
+        addJob("b", null, null, "a");
+        assertNull(JobGraph.findError(submitJobBatch));
+
+        addJob("c", null, null, "nosuchjob");
+        assertNotNull(JobGraph.findError(submitJobBatch));
+
+        setup();
+        addJob("a", null, null, "c");
+        addJob("b", null, null, "a");
+        addJob("c", null, null, "b");
+        addJob("d", null, null);
+        assertTrue(JobGraph.findError(submitJobBatch).contains("depends on itself"));
+
+        setup();
+        addJob("a", null, null, "a");
+        assertNotNull(JobGraph.findError(submitJobBatch));
+
+        setup();
+        addJob("a", null, null);
+        addJob("a", null, null);
+        assertNotNull(JobGraph.findError(submitJobBatch));
+    }
+
+    @Test
+    public void jobsAreReleasedOnceTheirDependenciesHaveSucceeded() throws Exception {
+        addJob("a", null, "x");
+        addJob("b", "other", "y");
+        addJob("c", null, null, "a", "b");
+        addJob("d", null, null, "c");
+        JobGraph graph = new JobGraph(submitJobBatch, 10);
+
+        List<Job> roots = graph.getRoots();
+        assertEquals(2, roots.size());
+        Job a = roots.get(0);
+        Job b = roots.get(1);
+        assertEquals("62F4E464", a.getVmId());
+        assertEquals("other", b.getVmId());
+        assertEquals("villein@example.org", b.getVilleinJid());
+
+        JobGraph.Progress progress = graph.jobFinished(new JobResult(a, "2"));
+        assertTrue(progress.getReleased().isEmpty());
+        assertTrue(progress.getReplies().isEmpty());
+
+        progress = graph.jobFinished(new JobResult(b, "3"));
+        assertEquals(1, progress.getReleased().size());
+        Job c = progress.getReleased().get(0);
+        assertEquals("c", c.getJobId());
+        VmBindings inputs = graph.getInputs(c);
+        assertEquals(2, inputs.size());
+        assertEquals("2", inputs.get("x"));
+        assertEquals("3", inputs.get("y"));
+
+        progress = graph.jobFinished(new JobResult(c, "5"));
+        Job d = progress.getReleased().get(0);
+        assertTrue(graph.getInputs(d).isEmpty());
+
+        progress = graph.jobFinished(new JobResult(d, "done"));
+        assertTrue(progress.getReleased().isEmpty());
+        assertEquals(1, progress.getReplies().size());
+        SubmitJobBatch reply = progress.getReplies().get(0);
+        assertEquals("graph1", reply.getPacketID());
+        assertEquals(4, reply.getJobs().size());
+        assertEquals("done", reply.getJobs().get(3).getExpression());
+    }
+
+    @Test
+    public void theDependentsOfAFailedJobAreNotRun() throws Exception {
+        addJob("a", null, "x");
+        addJob("b", null, null);
+        addJob("c", null, null, "a");
+        addJob("d", null, null, "b", "c");
+        addJob("e", null, null, "b");
+        JobGraph graph = new JobGraph(submitJobBatch, 10);
+        List<Job> roots = graph.getRoots();
+
+        JobGraph.Progress progress = graph.jobFinished(new JobResult(roots.get(0), new IllegalArgumentException("failed")));
+        assertTrue(progress.getReleased().isEmpty());
+
+        // d is still waiting for b, but will never run.
+        progress = graph.jobFinished(new JobResult(roots.get(1), "1"));
+        assertEquals(1, progress.getReleased().size());
+        Job e = progress.getReleased().get(0);
+        assertEquals("e", e.getJobId());
+
+        progress = graph.jobFinished(new JobResult(e, "2"));
+        SubmitJobBatch reply = progress.getReplies().get(0);
+        assertEquals(5, reply.getJobs().size());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, reply.getJobs().get(0).getLopError().getErrorType());
+        assertEquals("c", reply.getJobs().get(1).getJobId());
+        assertEquals(LinkedProcess.LopErrorType.DEPENDENCY_FAILED, reply.getJobs().get(1).getLopError().getErrorType());
+        assertEquals("d", reply.getJobs().get(2).getJobId());
+        assertEquals(LinkedProcess.LopErrorType.DEPENDENCY_FAILED, reply.getJobs().get(2).getLopError().getErrorType());
+    }
+
+    @Test
+    public void theDependentsOfARejectedJobAreNotRun() throws Exception {
+        addJob("a", "nosuchvm", null);
+        addJob("b", null, null, "a");
+        JobGraph graph = new JobGraph(submitJobBatch, 10);
+        Job a = graph.getRoots().get(0);
+
+        JobGraph.Progress progress = graph.jobRejected(a, new LopError(XMPPError.Condition.item_not_found, LinkedProcess.LopErrorType.VM_NOT_FOUND, null, "a"));
+        assertTrue(progress.getReleased().isEmpty());
+        SubmitJobBatch reply = progress.getReplies().get(0);
+        assertEquals(2, reply.getJobs().size());
+        assertEquals(LinkedProcess.LopErrorType.VM_NOT_FOUND, reply.getJobs().get(0).getLopError().getErrorType());
+        assertEquals(LinkedProcess.LopErrorType.DEPENDENCY_FAILED, reply.getJobs().get(1).getLopError().getErrorType());
+    }
+
+    private void addJob(final String jobId, final String vmId, final String resultBinding, final String... dependencies) {
+        List<String> d = 0 == dependencies.length ? Collections.<String>emptyList() : Arrays.asList(dependencies);
+        submitJobBatch.addJob(new SubmitJobBatch.BatchJob(jobId, "1;", null, vmId, d, resultBinding));
+    }
+}
@@ -0,0 +1,116 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.jivesoftware.smack.packet.IQ;
+import org.junit.Test;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ResultCoalescerTest {
+
+    @Test
+    public void theOutputOfAJobIsFoldedIntoItsResult() throws Exception {
+        ResultCoalescer coalescer = new ResultCoalescer(100);
+        Job a = createJob("villein@example.org", "a");
+
+        List<SubmitJob> packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "hello ", a.nextPartialResult()),
+                new JobResult(a, "wor", a.nextPartialResult()),
+                new JobResult(a, "ld")));
+
+        assertEquals(1, packets.size());
+        assertEquals("hello world", packets.get(0).getExpression());
+        assertFalse(packets.get(0).isPartial());
+        assertNull(packets.get(0).getSequence());
+    }
+
+    @Test
+    public void theOutputOfAJobIsNotFoldedIntoABinaryResult() throws Exception {
+        ResultCoalescer coalescer = new ResultCoalescer(100);
+        Job a = createJob("villein@example.org", "a");
+        a.setBinaryResult(true);
+
+        List<SubmitJob> packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "hello", a.nextPartialResult()),
+                new JobResult(a, "AQMAAAAq")));
+
+        assertEquals(2, packets.size());
+        assertEquals("hello", packets.get(0).getExpression());
+        assertTrue(packets.get(0).isPartial());
+        assertFalse(packets.get(0).isBinary());
+        assertEquals("AQMAAAAq", packets.get(1).getExpression());
+        assertTrue(packets.get(1).isBinary());
+        assertEquals(new Integer(1), packets.get(1).getSequence());
+    }
+
+    @Test
+    public void joinedPiecesAreRenumbered() throws Exception {
+        ResultCoalescer coalescer = new ResultCoalescer(4);
+        Job a = createJob("villein@example.org", "a");
+
+        // The first round sends "ab" and "cd" as pieces 0 and 1.
+        List<SubmitJob> packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "a", a.nextPartialResult()),
+                new JobResult(a, "b", a.nextPartialResult()),
+                new JobResult(a, "cd", a.nextPartialResult())));
+        assertEquals(1, packets.size());
+        assertEquals("abcd", packets.get(0).getExpression());
+        assertTrue(packets.get(0).isPartial());
+        assertEquals(new Integer(0), packets.get(0).getSequence());
+
+        packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "efg", a.nextPartialResult()),
+                new JobResult(a, "hi")));
+        assertEquals(2, packets.size());
+        assertEquals("efg", packets.get(0).getExpression());
+        assertEquals(new Integer(1), packets.get(0).getSequence());
+        assertEquals("hi", packets.get(1).getExpression());
+        assertFalse(packets.get(1).isPartial());
+        assertEquals(new Integer(2), packets.get(1).getSequence());
+    }
+
+    @Test
+    public void thePacketsForEachVilleinAreKeptTogether() throws Exception {
+        ResultCoalescer coalescer = new ResultCoalescer(100);
+        Job a = createJob("villein1@example.org", "a");
+        Job b = createJob("villein2@example.org", "b");
+        Job c = createJob("villein1@example.org", "c");
+
+        List<SubmitJob> packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "1"),
+                new JobResult(b, "2"),
+                new JobResult(c, new IllegalArgumentException("failed"))));
+
+        assertEquals(3, packets.size());
+        assertEquals("a", packets.get(0).getPacketID());
+        assertEquals("c", packets.get(1).getPacketID());
+        assertEquals(IQ.Type.ERROR, packets.get(1).getType());
+        assertEquals("b", packets.get(2).getPacketID());
+        assertEquals("villein2@example.org", packets.get(2).getTo());
+    }
+
+    @Test
+    public void outputIsSentAheadOfAnError() throws Exception {
+        ResultCoalescer coalescer = new ResultCoalescer(100);
+        Job a = createJob("villein@example.org", "a");
+
+        List<SubmitJob> packets = coalescer.coalesce(Arrays.asList(
+                new JobResult(a, "partial output", a.nextPartialResult()),
+                new JobResult(a, new IllegalArgumentException("failed"))));
+
+        assertEquals(2, packets.size());
+        assertEquals("partial output", packets.get(0).getExpression());
+        assertTrue(packets.get(0).isPartial());
+        assertEquals(IQ.Type.ERROR, packets.get(1).getType());
+    }
+
+    private Job createJob(final String villeinJid, final String jobId) {
+        return new Job("62F4E464", villeinJid, jobId, "1;");
+    }
+}
@@ -0,0 +1,152 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.linkedprocess.farm.os.Job;
+import org.linkedprocess.farm.os.JobResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class ResultDispatcherTest {
+
+    private final List<List<JobResult>> rounds = Collections.synchronizedList(new ArrayList<List<JobResult>>());
+
+    @Test
+    public void resultsWhichArriveTogetherAreSentInOneRound() throws Exception {
+        ResultDispatcher dispatcher = new ResultDispatcher(createSender(null), 100, 200);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(new JobResult(createJob("job" + i), "" + i));
+        }
+        assertTrue(dispatcher.shutdown(5000));
+
+        assertEquals(1, rounds.size());
+        assertEquals(5, rounds.get(0).size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("" + i, rounds.get(0).get(i).getExpression());
+        }
+        assertEquals(5, dispatcher.getResultsSent());
+        assertEquals(1, dispatcher.getRounds());
+    }
+
+    @Test
+    public void theDispatcherIsCongestedWhileTheSenderFallsBehind() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ResultDispatcher dispatcher = new ResultDispatcher(createSender(release), 3, 0);
+        dispatcher.dispatch(new JobResult(createJob("blocking"), "0"));
+        while (dispatcher.getBacklog() > 0) {
+            Thread.sleep(10);
+        }
+
+        // No result is turned away, but the producer is told to hold back.
+        for (int i = 1; i <= 3; i++) {
+            assertFalse(dispatcher.isCongested());
+            dispatcher.dispatch(new JobResult(createJob("job" + i), "" + i));
+        }
+        assertTrue(dispatcher.isCongested());
+        dispatcher.dispatch(new JobResult(createJob("job4"), "4"));
+        assertEquals(4, dispatcher.getBacklog());
+        assertEquals(1, dispatcher.getResultsQueuedWhileCongested());
+
+        release.countDown();
+        assertTrue(dispatcher.shutdown(5000));
+        assertFalse(dispatcher.isCongested());
+        assertEquals(5, dispatcher.getResultsSent());
+    }
+
+    @Test
+    public void aFailedRoundDoesNotStopTheDispatcher() throws Exception {
+        ResultDispatcher dispatcher = new ResultDispatcher(new ResultDispatcher.ResultSender() {
+            public void sendResults(List<JobResult> results) {
+                rounds.add(new ArrayList<JobResult>(results));
+                if (1 == rounds.size()) {
+                    throw new IllegalStateException("not connected");
+                }
+            }
+        }, 100, 0);
+        dispatcher.dispatch(new JobResult(createJob("a"), "1"));
+        while (rounds.isEmpty()) {
+            Thread.sleep(10);
+        }
+        dispatcher.dispatch(new JobResult(createJob("b"), "2"));
+        assertTrue(dispatcher.shutdown(5000));
+
+        assertEquals(2, rounds.size());
+        assertEquals("2", rounds.get(1).get(0).getExpression());
+    }
+
+    @Test
+    public void resultsAreDroppedOnceShutDown() throws Exception {
+        ResultDispatcher dispatcher = new ResultDispatcher(createSender(null), 100, 0);
+        assertTrue(dispatcher.shutdown(5000));
+
+        dispatcher.dispatch(new JobResult(createJob("late"), "1"));
+        assertEquals(1, dispatcher.getResultsDropped());
+        assertEquals(0, dispatcher.getResultsQueued());
+        assertTrue(rounds.isEmpty());
+    }
+
+    @Test
+    public void noResultIsLostWhileShuttingDown() throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            rounds.clear();
+            final ResultDispatcher dispatcher = new ResultDispatcher(createSender(null), 100, 0);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> producers = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int producer = t;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        for (int i = 0; i < 500; i++) {
+                            dispatcher.dispatch(new JobResult(createJob("job" + producer + "-" + i), "" + i));
+                        }
+                    }
+                });
+                thread.start();
+                producers.add(thread);
+            }
+
+            start.countDown();
+            assertTrue(dispatcher.shutdown(5000));
+            for (Thread thread : producers) {
+                thread.join();
+            }
+
+            // Each result is either sent or, having arrived too late, counted as dropped.
+            int sent = 0;
+            for (List<JobResult> round : rounds) {
+                sent += round.size();
+            }
+            assertEquals(dispatcher.getResultsQueued(), sent);
+            assertEquals(2000, sent + dispatcher.getResultsDropped());
+        }
+    }
+
+    private ResultDispatcher.ResultSender createSender(final CountDownLatch release) {
+        return new ResultDispatcher.ResultSender() {
+            public void sendResults(List<JobResult> results) {
+                if (null != release) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                rounds.add(new ArrayList<JobResult>(results));
+            }
+        };
+    }
+
+    private Job createJob(final String jobId) {
+        return new Job("62F4E464", "villein@example.org", jobId, "1;");
+    }
+}
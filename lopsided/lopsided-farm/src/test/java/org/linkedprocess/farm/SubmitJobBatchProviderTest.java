@@ -0,0 +1,111 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SubmitJobBatchProviderTest {
+
+    private SubmitJobBatchProvider sp;
+    private XmlPullParser parser;
+
+    @Before
+    public void setup() throws Exception {
+        sp = new SubmitJobBatchProvider();
+        parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    }
+
+    @Test
+    public void theJobsOfABatchAreReadInOrder() throws Exception {
+        SubmitJobBatch batch = new SubmitJobBatch();
+        batch.setVmId("62F4E464");
+        batch.addJob("a", "1 + 1;");
+        batch.addJob("b", "x < 2 && y > 3;");
+        batch.addJob("c", "");
+
+        SubmitJobBatch result = parse(batch.getChildElementXML());
+        assertEquals("62F4E464", result.getVmId());
+        assertNull(result.getSequence());
+        assertFalse(result.isPartial());
+        assertEquals(3, result.getJobs().size());
+        assertEquals("a", result.getJobs().get(0).getJobId());
+        assertEquals("1 + 1;", result.getJobs().get(0).getExpression());
+        assertEquals("b", result.getJobs().get(1).getJobId());
+        assertEquals("x < 2 && y > 3;", result.getJobs().get(1).getExpression());
+        assertEquals("c", result.getJobs().get(2).getJobId());
+        assertNull(result.getJobs().get(2).getLopError());
+    }
+
+    @Test
+    public void theErrorsOfABatchAreReadWithTheirJobs() throws Exception {
+        SubmitJobBatch reply = new SubmitJobBatch();
+        reply.setVmId("62F4E464");
+        reply.setSequence(2);
+        reply.setPartial(true);
+        reply.addJob("a", "2");
+        reply.addJob("b", new LopError(XMPPError.Condition.bad_request, LinkedProcess.LopErrorType.EVALUATION_ERROR, "missing ; before statement", "b"));
+        reply.addJob("c", new LopError(XMPPError.Condition.service_unavailable, LinkedProcess.LopErrorType.VM_IS_BUSY, null, "c"));
+
+        SubmitJobBatch result = parse(reply.getChildElementXML());
+        assertEquals(new Integer(2), result.getSequence());
+        assertTrue(result.isPartial());
+        assertEquals(3, result.getJobs().size());
+        assertEquals("2", result.getJobs().get(0).getExpression());
+
+        LopError error = result.getJobs().get(1).getLopError();
+        assertEquals("b", result.getJobs().get(1).getJobId());
+        assertNull(result.getJobs().get(1).getExpression());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, error.getErrorType());
+        assertEquals(XMPPError.Condition.bad_request.toString(), error.getCondition());
+        assertEquals("missing ; before statement", error.getMessage());
+
+        error = result.getJobs().get(2).getLopError();
+        assertEquals(LinkedProcess.LopErrorType.VM_IS_BUSY, error.getErrorType());
+        assertEquals(503, error.getCode());
+        assertNull(error.getMessage());
+    }
+
+    @Test
+    public void theDependenciesOfTheJobsOfAGraphAreRead() throws Exception {
+        SubmitJobBatch batch = new SubmitJobBatch();
+        batch.setVmId("62F4E464");
+        batch.addJob(new SubmitJobBatch.BatchJob("a", "1 + 1;", null, "8A1B2C3D", Collections.<String>emptyList(), "x"));
+        batch.addJob(new SubmitJobBatch.BatchJob("b", "2;", null, null, Collections.<String>emptyList(), null));
+        batch.addJob(new SubmitJobBatch.BatchJob("c", "x * 2;", null, null, Arrays.asList("a", "b"), null));
+
+        SubmitJobBatch result = parse(batch.getChildElementXML());
+        assertTrue(result.isGraph());
+        SubmitJobBatch.BatchJob a = result.getJobs().get(0);
+        assertEquals("8A1B2C3D", a.getVmId());
+        assertEquals("x", a.getResultBinding());
+        assertTrue(a.getDependencies().isEmpty());
+        SubmitJobBatch.BatchJob c = result.getJobs().get(2);
+        assertNull(c.getVmId());
+        assertNull(c.getResultBinding());
+        assertEquals(Arrays.asList("a", "b"), c.getDependencies());
+        assertEquals("x * 2;", c.getExpression());
+    }
+
+    private SubmitJobBatch parse(String submitJobBatch) throws Exception {
+        parser.setInput(new StringReader(submitJobBatch));
+        parser.next();
+
+        SubmitJobBatch result = (SubmitJobBatch) sp.parseIQ(parser);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.SUBMIT_JOB_BATCH_TAG, parser.getName());
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+package org.linkedprocess.farm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+public class SubmitJobProviderTest {
+
+    private SubmitJobProvider sp;
+    private XmlPullParser parser;
+
+    @Before
+    public void setup() throws Exception {
+        sp = new SubmitJobProvider();
+        parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    }
+
+    @Test
+    public void aWholeResultHasNoSequence() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setExpression("10");
+
+        SubmitJob result = parse(submitJob.getChildElementXML());
+        assertEquals("62F4E464", result.getVmId());
+        assertEquals("10", result.getExpression());
+        assertNull(result.getSequence());
+        assertFalse(result.isPartial());
+        assertFalse(result.isStream());
+    }
+
+    @Test
+    public void streamingIsAskedFor() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setExpression("print('hello')");
+        submitJob.setStream(true);
+
+        SubmitJob result = parse(submitJob.getChildElementXML());
+        assertTrue(result.isStream());
+        assertEquals("print('hello')", result.getExpression());
+    }
+
+    @Test
+    public void thePiecesOfAResultAreNumbered() throws Exception {
+        SubmitJob partial = new SubmitJob();
+        partial.setVmId("62F4E464");
+        partial.setExpression("line 1\n");
+        partial.setSequence(0);
+        partial.setPartial(true);
+
+        SubmitJob result = parse(partial.getChildElementXML());
+        assertEquals(new Integer(0), result.getSequence());
+        assertTrue(result.isPartial());
+        assertEquals("line 1\n", result.getExpression());
+
+        SubmitJob last = new SubmitJob();
+        last.setVmId("62F4E464");
+        last.setExpression("done");
+        last.setSequence(1);
+
+        result = parse(last.getChildElementXML());
+        assertEquals(new Integer(1), result.getSequence());
+        assertFalse(result.isPartial());
+        assertEquals("done", result.getExpression());
+    }
+
+    private SubmitJob parse(String submitJob) throws Exception {
+        parser.setInput(new StringReader(submitJob));
+        parser.next();
+
+        return (SubmitJob) sp.parseIQ(parser);
+    }
+}
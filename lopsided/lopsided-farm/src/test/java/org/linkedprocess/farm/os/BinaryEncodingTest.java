@@ -0,0 +1,275 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.jivesoftware.smack.packet.IQ;
+import org.linkedprocess.farm.ManageBindings;
+import org.linkedprocess.farm.ManageBindingsProvider;
+import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.SubmitJobProvider;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryEncodingTest extends TestCase {
+
+    public void testScalarsSurviveARoundTrip() throws Exception {
+        assertNull(roundTrip(null));
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(Boolean.FALSE, roundTrip(false));
+        assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+        assertEquals(-0.1, roundTrip(-0.1));
+        assertEquals(Double.NaN, roundTrip(Double.NaN));
+        assertEquals("", roundTrip(""));
+        assertEquals("<a href=\"x\">&amp;</a>\r\n\u00e9\ud834\udd1e", roundTrip("<a href=\"x\">&amp;</a>\r\n\u00e9\ud834\udd1e"));
+
+        // Narrower numbers are widened; anything else becomes its text.
+        assertEquals(7, roundTrip((short) 7));
+        assertEquals(0.5, roundTrip(0.5f));
+        assertEquals("x", roundTrip('x'));
+    }
+
+    public void testArraysSurviveARoundTrip() throws Exception {
+        byte[] bytes = {0, -1, 127, -128};
+        assertTrue(Arrays.equals(bytes, (byte[]) roundTrip(bytes)));
+        int[] ints = {0, -1, Integer.MAX_VALUE};
+        assertTrue(Arrays.equals(ints, (int[]) roundTrip(ints)));
+        long[] longs = {0, -1, Long.MIN_VALUE};
+        assertTrue(Arrays.equals(longs, (long[]) roundTrip(longs)));
+        double[] doubles = {0.0, -1.5, Double.MAX_VALUE, Double.NEGATIVE_INFINITY};
+        assertTrue(Arrays.equals(doubles, (double[]) roundTrip(doubles)));
+        assertEquals(0, ((double[]) roundTrip(new double[0])).length);
+
+        // Object arrays come back as lists.
+        assertEquals(Arrays.asList("a", 1, null), roundTrip(new Object[]{"a", 1, null}));
+    }
+
+    public void testNestedListsAndMapsSurviveARoundTrip() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("name", "x");
+        map.put("values", Arrays.asList(1, 2L, 3.0, true, null));
+        map.put("matrix", Arrays.asList(new double[]{1, 2}, new double[]{3, 4}));
+        Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("empty", new ArrayList<Object>());
+        map.put("inner", inner);
+
+        Map<?, ?> result = (Map<?, ?>) roundTrip(map);
+        assertEquals(Arrays.asList("name", "values", "matrix", "inner"), new ArrayList<Object>(result.keySet()));
+        assertEquals("x", result.get("name"));
+        assertEquals(map.get("values"), result.get("values"));
+        List<?> matrix = (List<?>) result.get("matrix");
+        assertTrue(Arrays.equals(new double[]{3, 4}, (double[]) matrix.get(1)));
+        assertEquals(inner, result.get("inner"));
+    }
+
+    public void testSelfReferenceIsRejected() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(list);
+        try {
+            BinaryEncoding.encode(list);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    public void testMalformedValuesAreRejected() throws Exception {
+        byte[] good = BinaryEncoding.encode(Arrays.asList("abc", new double[]{1, 2, 3}));
+
+        assertInvalid(new byte[0]);
+        // Cut short, at every length.
+        for (int i = 1; i < good.length; i++) {
+            assertInvalid(Arrays.copyOf(good, i));
+        }
+        // Trailing bytes.
+        assertInvalid(Arrays.copyOf(good, good.length + 1));
+        // An unknown version.
+        byte[] b = good.clone();
+        b[0] = 99;
+        assertInvalid(b);
+        // An unknown type.
+        b = good.clone();
+        b[1] = 99;
+        assertInvalid(b);
+        // A length far beyond the bytes there are, which must not be allocated.
+        assertInvalid(new byte[]{1, 9, 0x7f, -1, -1, -1});
+        assertInvalid(new byte[]{1, 9, -1, -1, -1, -1});
+
+        try {
+            BinaryEncoding.decodeBase64("!!!");
+            fail();
+        } catch (InvalidValueException e) {
+            // Good.
+        }
+    }
+
+    public void testBindingsAreExchangedBinaryEncoded() throws Exception {
+        ManageBindings manageBindings = new ManageBindings();
+        manageBindings.setVmId("62F4E464");
+        manageBindings.setType(IQ.Type.SET);
+        manageBindings.setBinary(true);
+        VmBindings bindings = new VmBindings();
+        bindings.put("xs", new double[]{1.5, 2.5});
+        bindings.put("s", "x < y && y > z");
+        bindings.put("n", 42);
+        bindings.put("none", null);
+        manageBindings.setBindings(bindings);
+
+        ManageBindings result = parseManageBindings(manageBindings.getChildElementXML());
+        assertTrue(result.isBinary());
+        assertNull(result.getInvalidValueMessage());
+        assertTrue(Arrays.equals(new double[]{1.5, 2.5}, (double[]) result.getBindings().get("xs")));
+        assertEquals("x < y && y > z", result.getBindings().get("s"));
+        assertEquals(42, result.getBindings().get("n"));
+        assertTrue(result.getBindings().containsKey("none"));
+        assertNull(result.getBindings().get("none"));
+    }
+
+    public void testTypedTextBindingsMayBeMixedWithBinaryOnes() throws Exception {
+        String xml = "<manage_bindings xmlns=\"http://linkedprocess.org/2009/06/Farm#\" vm_id=\"62F4E464\" encoding=\"binary\">"
+                + "<binding name=\"a\" value=\"1\" datatype=\"" + VmBindings.XMLSchemaDatatype.INTEGER.getURI() + "\"/>"
+                + "<binding name=\"b\" value=\"" + BinaryEncoding.encodeBase64(2L) + "\"/>"
+                + "<binding name=\"c\" value=\"AQk=\"/>"
+                + "</manage_bindings>";
+        ManageBindings result = parseManageBindings(xml);
+        assertEquals(1, result.getBindings().get("a"));
+        assertEquals(2L, result.getBindings().get("b"));
+        assertNotNull(result.getInvalidValueMessage());
+        assertTrue(result.getInvalidValueMessage().contains("c"));
+    }
+
+    public void testTextBindingsAreUnchanged() throws Exception {
+        ManageBindings manageBindings = new ManageBindings();
+        manageBindings.setVmId("62F4E464");
+        manageBindings.setType(IQ.Type.SET);
+        VmBindings bindings = new VmBindings();
+        bindings.put("n", 42);
+        manageBindings.setBindings(bindings);
+
+        String xml = manageBindings.getChildElementXML();
+        assertFalse(xml.contains("encoding"));
+        ManageBindings result = parseManageBindings(xml);
+        assertFalse(result.isBinary());
+        assertEquals(42, result.getBindings().get("n"));
+    }
+
+    public void testSubmitJobCarriesItsEncoding() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setExpression(BinaryEncoding.encodeBase64(new int[]{1, 2, 3}));
+        submitJob.setBinary(true);
+
+        SubmitJob result = parseSubmitJob(submitJob.getChildElementXML());
+        assertTrue(result.isBinary());
+        assertTrue(Arrays.equals(new int[]{1, 2, 3}, (int[]) BinaryEncoding.decodeBase64(result.getExpression())));
+
+        submitJob.setBinary(false);
+        assertFalse(parseSubmitJob(submitJob.getChildElementXML()).isBinary());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static Object roundTrip(final Object value) throws Exception {
+        Object result = BinaryEncoding.decode(BinaryEncoding.encode(value));
+        assertEquals(BinaryEncoding.encodeBase64(value), BinaryEncoding.encodeBase64(result));
+        return BinaryEncoding.decodeBase64(BinaryEncoding.encodeBase64(value));
+    }
+
+    private static void assertInvalid(final byte[] bytes) {
+        try {
+            BinaryEncoding.decode(bytes);
+            fail("decoded " + Arrays.toString(bytes));
+        } catch (InvalidValueException e) {
+            // Good.
+        }
+    }
+
+    private static ManageBindings parseManageBindings(final String xml) throws Exception {
+        return (ManageBindings) new ManageBindingsProvider().parseIQ(startParsing(xml));
+    }
+
+    private static SubmitJob parseSubmitJob(final String xml) throws Exception {
+        return (SubmitJob) new SubmitJobProvider().parseIQ(startParsing(xml));
+    }
+
+    private static XmlPullParser startParsing(final String xml) throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    // Compares the size of manage_bindings packets, and the time taken to
+    // write and read them, with bindings sent as typed text and binary-encoded.
+    public static void main(final String[] args) throws Exception {
+        VmBindings scalars = new VmBindings();
+        for (int i = 0; i < 100; i++) {
+            scalars.put("i" + i, i * 1000003);
+            scalars.put("d" + i, i / 7.0);
+        }
+        compareEncodings("200 numbers", scalars, scalars, 2000);
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            sb.append("<p class=\"x\">a & b</p>\n");
+        }
+        VmBindings markup = new VmBindings();
+        markup.put("s", sb.toString());
+        compareEncodings("100K of markup", markup, markup, 200);
+
+        // As text, an array can only be sent as a string, to be split and parsed by the script.
+        double[] xs = new double[10000];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = Math.sin(i);
+            text.append(i > 0 ? "," : "").append(xs[i]);
+        }
+        VmBindings array = new VmBindings();
+        array.put("xs", xs);
+        VmBindings arrayText = new VmBindings();
+        arrayText.put("xs", text.toString());
+        compareEncodings("10000 doubles", arrayText, array, 200);
+    }
+
+    private static void compareEncodings(final String name,
+                                         final VmBindings textBindings,
+                                         final VmBindings binaryBindings,
+                                         final int iterations) throws Exception {
+        String text = measure(textBindings, false, iterations);
+        String binary = measure(binaryBindings, true, iterations);
+        System.out.println(name + ": " + text + " as text, " + binary + " binary-encoded");
+    }
+
+    private static String measure(final VmBindings bindings,
+                                  final boolean binary,
+                                  final int iterations) throws Exception {
+        ManageBindings manageBindings = new ManageBindings();
+        manageBindings.setVmId("62F4E464");
+        manageBindings.setType(IQ.Type.SET);
+        manageBindings.setBinary(binary);
+        manageBindings.setBindings(bindings);
+
+        int size = 0;
+        long time = 0;
+        for (int round = 0; round < 2; round++) {
+            long before = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                String xml = manageBindings.getChildElementXML();
+                size = xml.length();
+                parseManageBindings(xml);
+            }
+            time = System.nanoTime() - before;
+        }
+        return size + " chars, " + (time / iterations / 1000) + " us to write and read";
+    }
+}
@@ -0,0 +1,175 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.LinkedProcessFarm;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompiledScriptCacheTest extends TestCase {
+    public static void main(final String[] args) throws Exception {
+        new CompiledScriptCacheTest().measureRepeatedJobs();
+    }
+
+    public void testRepeatedExpressionIsCompiledOnce() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(10);
+        ScriptEngine engine = createEngine();
+
+        CompiledScript s1 = cache.getCompiledScript("1 + 1;", engine);
+        CompiledScript s2 = cache.getCompiledScript("1 + 1;", engine);
+        assertNotNull(s1);
+        assertSame(s1, s2);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate());
+        assertEquals(2.0, ((Number) s1.eval()).doubleValue());
+    }
+
+    public void testScriptsAreNotSharedBetweenEngines() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(10);
+        ScriptEngine e1 = createEngine();
+        ScriptEngine e2 = createEngine();
+
+        CompiledScript s1 = cache.getCompiledScript("var x = 1;", e1);
+        CompiledScript s2 = cache.getCompiledScript("var x = 1;", e2);
+        assertNotSame(s1, s2);
+        assertSame(e1, s1.getEngine());
+        assertSame(e2, s2.getEngine());
+        assertEquals(2, cache.size());
+
+        cache.removeAll(e1);
+        assertEquals(1, cache.size());
+        assertSame(s2, cache.getCompiledScript("var x = 1;", e2));
+    }
+
+    public void testLeastRecentlyUsedScriptIsEvicted() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(2);
+        ScriptEngine engine = createEngine();
+
+        CompiledScript a = cache.getCompiledScript("'a';", engine);
+        cache.getCompiledScript("'b';", engine);
+        // Use "a" again, so that "b" is now the least recently used.
+        assertSame(a, cache.getCompiledScript("'a';", engine));
+        cache.getCompiledScript("'c';", engine);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, cache.getCompiledScript("'a';", engine));
+        long misses = cache.getMisses();
+        cache.getCompiledScript("'b';", engine);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    public void testInvalidExpressionIsNotCached() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(10);
+        try {
+            cache.getCompiledScript("1 ... 1;", createEngine());
+            fail();
+        } catch (ScriptException e) {
+            // Good.
+        }
+        assertEquals(0, cache.size());
+    }
+
+    public void testEngineWhichCannotCompile() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(10);
+        assertNull(cache.getCompiledScript("1 + 1;", new InterpretingEngine()));
+        assertEquals(0, cache.size());
+    }
+
+    public void testWorkerEvaluatesCompiledExpressions() throws Exception {
+        CompiledScriptCache cache = new CompiledScriptCache(10);
+        final Map<String, JobResult> results = new HashMap<String, JobResult>();
+        VmWorker w = createWorker(cache, results);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Job job = new Job(null, null, "job" + i, "var x = (typeof x == 'undefined') ? 1 : x + 1; 'x' + x;");
+                w.submitJob(job);
+                while (w.canWork()) {
+                    w.work(100);
+                }
+                assertEquals("x" + (i + 1), results.get(job.getJobId()).getExpression());
+            }
+            assertEquals(2, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        } finally {
+            w.terminate();
+        }
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Compares the rate at which a worker executes the same short job, with
+     * and without the cache.
+     */
+    public void measureRepeatedJobs() throws Exception {
+        String expression = "function f(n) { var s = 0; for (var i = 0; i < n; i++) { s += i * i; } return s; }"
+                + " var a = [1, 2, 3, 4, 5]; var t = 0;"
+                + " for (var j = 0; j < a.length; j++) { t += f(a[j]); } t;";
+        int iterations = 5000;
+
+        for (int k = 0; k < 2; k++) {
+            CompiledScriptCache cache = 0 == k ? null : new CompiledScriptCache(100);
+            Map<String, JobResult> results = new HashMap<String, JobResult>();
+            VmWorker w = createWorker(cache, results);
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                w.submitJob(new Job(null, null, "job" + i, expression));
+                while (w.canWork()) {
+                    w.work(100);
+                }
+            }
+            double jobsPerSecond = iterations / ((System.nanoTime() - startTime) / 1000000000.0);
+            w.terminate();
+
+            System.out.println((null == cache ? "without cache: " : "with cache: ") + jobsPerSecond + " jobs/s"
+                    + (null == cache ? "" : " (" + cache + ")"));
+        }
+    }
+
+    private ScriptEngine createEngine() {
+        return LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
+    }
+
+    private VmWorker createWorker(final CompiledScriptCache cache,
+                                  final Map<String, JobResult> results) {
+        VmScheduler.VmResultHandler handler = new VmScheduler.VmResultHandler() {
+            public void handleResult(final JobResult result) {
+                synchronized (results) {
+                    results.put(result.getJob().getJobId(), result);
+                }
+            }
+        };
+        return new VmWorker(createEngine(), handler, VmWorker.ExecutionMode.PREEMPTIVE, null, cache, null, null, -1);
+    }
+
+    private class InterpretingEngine extends AbstractScriptEngine {
+        public Object eval(final String script,
+                           final ScriptContext context) throws ScriptException {
+            return null;
+        }
+
+        public Object eval(final Reader reader,
+                           final ScriptContext context) throws ScriptException {
+            return null;
+        }
+
+        public Bindings createBindings() {
+            return null;
+        }
+
+        public ScriptEngineFactory getFactory() {
+            return createEngine().getFactory();
+        }
+    }
+}
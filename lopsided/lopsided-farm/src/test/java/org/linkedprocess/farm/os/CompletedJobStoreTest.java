@@ -0,0 +1,111 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+
+public class CompletedJobStoreTest extends TestCase {
+
+    public void testResultsAndErrorsAreRemembered() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(10, 1000000, 60000);
+        store.jobFinished(new JobResult(createJob("vm1", "a"), "42"));
+        store.jobFinished(new JobResult(createJob("vm1", "b"), new IllegalArgumentException("failed")));
+
+        CompletedJobStore.CompletedJob a = store.getCompletedJob("vm1", "a");
+        assertEquals("a", a.getJobId());
+        assertEquals("42", a.getExpression());
+        assertNull(a.getLopError());
+        assertEquals(0, a.getPartialResults());
+
+        CompletedJobStore.CompletedJob b = store.getCompletedJob("vm1", "b");
+        assertNull(b.getExpression());
+        assertEquals(LinkedProcess.LopErrorType.EVALUATION_ERROR, b.getLopError().getErrorType());
+        assertEquals("failed", b.getLopError().getMessage());
+
+        // Jobs are told apart by their VMs as well as their IDs.
+        assertNull(store.getCompletedJob("vm2", "a"));
+        assertNull(store.getCompletedJob("vm1a", ""));
+    }
+
+    public void testOldestJobsAreEvictedWhenFull() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(3, 1000000, 60000);
+        for (int i = 0; i < 5; i++) {
+            store.jobFinished(new JobResult(createJob("vm1", "job" + i), "" + i));
+        }
+
+        assertEquals(3, store.size());
+        assertEquals(2, store.getJobsEvicted());
+        assertNull(store.getCompletedJob("vm1", "job0"));
+        assertNull(store.getCompletedJob("vm1", "job1"));
+        for (int i = 2; i < 5; i++) {
+            assertEquals("" + i, store.getCompletedJob("vm1", "job" + i).getExpression());
+        }
+    }
+
+    public void testMemoryIsCapped() throws Exception {
+        String result = createString(1000);
+        CompletedJobStore store = new CompletedJobStore(100, 5000, 60000);
+        for (int i = 0; i < 5; i++) {
+            store.jobFinished(new JobResult(createJob("vm1", "job" + i), result));
+        }
+
+        assertTrue(store.getBytes() <= 5000);
+        assertEquals(2, store.size());
+        assertEquals(3, store.getJobsEvicted());
+        assertNotNull(store.getCompletedJob("vm1", "job4"));
+
+        // A result too large to be remembered takes nothing away from the rest.
+        store.jobFinished(new JobResult(createJob("vm1", "huge"), createString(10000)));
+        assertEquals(1, store.getJobsTooLarge());
+        assertEquals(2, store.size());
+        assertNull(store.getCompletedJob("vm1", "huge"));
+    }
+
+    public void testJobsExpire() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(10, 1000000, 50);
+        store.jobFinished(new JobResult(createJob("vm1", "a"), "1"));
+        assertNotNull(store.getCompletedJob("vm1", "a"));
+
+        Thread.sleep(100);
+        assertNull(store.getCompletedJob("vm1", "a"));
+        assertEquals(0, store.size());
+        assertEquals(1, store.getJobsExpired());
+        assertEquals(0, store.getJobsEvicted());
+    }
+
+    public void testAReusedJobIdSupersedesTheEarlierJob() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(2, 1000000, 60000);
+        store.jobFinished(new JobResult(createJob("vm1", "a"), "1"));
+        store.jobFinished(new JobResult(createJob("vm1", "a"), "2"));
+        assertEquals("2", store.getCompletedJob("vm1", "a").getExpression());
+
+        // The earlier job makes way first, without the later one being lost.
+        store.jobFinished(new JobResult(createJob("vm1", "b"), "3"));
+        assertEquals("2", store.getCompletedJob("vm1", "a").getExpression());
+        assertEquals("3", store.getCompletedJob("vm1", "b").getExpression());
+        assertEquals(0, store.getJobsEvicted());
+    }
+
+    public void testJobsSubmittedAgainAreToldApartByTheirExpressions() throws Exception {
+        CompletedJobStore store = new CompletedJobStore(10, 1000000, 60000);
+        store.jobFinished(new JobResult(new Job("vm1", "villein@example.org", "a", "'Aa';"), "Aa"));
+        CompletedJobStore.CompletedJob a = store.getCompletedJob("vm1", "a");
+
+        assertTrue(a.isSubmittedAgainAs(new Job("vm1", "villein@example.org", "a", "'Aa';")));
+        // The same hash code, but another expression.
+        assertEquals("'Aa';".hashCode(), "'BB';".hashCode());
+        assertFalse(a.isSubmittedAgainAs(new Job("vm1", "villein@example.org", "a", "'BB';")));
+        assertFalse(a.isSubmittedAgainAs(new Job("vm1", "other@example.org", "a", "'Aa';")));
+    }
+
+    private Job createJob(final String vmId, final String jobId) {
+        return new Job(vmId, "villein@example.org", jobId, "1;");
+    }
+
+    private String createString(final int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,272 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class JobOutputTest extends TestCase {
+    private final List<JobResult> partialResults = Collections.synchronizedList(new LinkedList<JobResult>());
+    private final Map<String, JobResult> resultsByID = Collections.synchronizedMap(new HashMap<String, JobResult>());
+    private final StringWriter otherOutput = new StringWriter();
+    private int jobCount = 0;
+
+    private final VmScheduler.VmPartialResultHandler partialResultHandler = new VmScheduler.VmPartialResultHandler() {
+        public void handlePartialResult(final JobResult result) {
+            partialResults.add(result);
+        }
+    };
+
+    private final VmScheduler.LopStatusEventHandler eventHandler = new VmScheduler.LopStatusEventHandler() {
+        public void schedulerStatusChanged(final LinkedProcess.Status newStatus) {
+        }
+
+        public void virtualMachineStatusChanged(final String vmId,
+                                                final LinkedProcess.Status newStatus) {
+        }
+    };
+
+    public void setUp() {
+        LinkedProcess.getConfiguration();
+        partialResults.clear();
+        resultsByID.clear();
+        otherOutput.getBuffer().setLength(0);
+    }
+
+    public void testOutputIsCutIntoChunks() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        output.begin(job);
+        Writer w = output.getWriter();
+        w.write("0123456789abcdefghij012");
+        output.end();
+
+        output.send(job, partialResultHandler);
+        assertPartialResults("0123456789", "abcdefghij", "012");
+        assertEquals(3, job.getPartialResults());
+    }
+
+    public void testFlushedOutputIsGathered() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        // As print would do it.
+        output.begin(job);
+        PrintWriter w = new PrintWriter(output.getWriter());
+        for (int i = 0; i < 5; i++) {
+            w.print("ab" + i);
+            w.flush();
+        }
+
+        // Small pieces are sent together, but no chunk is too long.
+        output.send(job, partialResultHandler);
+        assertPartialResults("ab0ab1ab2", "ab3ab4");
+        output.end();
+
+        // Nothing more has been written.
+        output.send(job, partialResultHandler);
+        assertEquals(2, partialResults.size());
+    }
+
+    public void testOutputOfOtherThreadsIsNotStreamed() throws Exception {
+        final JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        output.begin(job);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    output.getWriter().write("stray");
+                    output.getWriter().flush();
+                    output.end();
+                } catch (Exception e) {
+                    fail(e.toString());
+                }
+            }
+        };
+        t.start();
+        t.join();
+        output.getWriter().write("mine");
+        output.end();
+
+        output.send(job, partialResultHandler);
+        assertPartialResults("mine");
+        assertEquals("stray", otherOutput.toString());
+    }
+
+    public void testLongResultsAreSentInPieces() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        output.begin(job);
+        output.getWriter().write("out:");
+        output.end();
+
+        JobResult last = output.finish(new JobResult(job, "0123456789abcdefghij012"), partialResultHandler);
+        assertPartialResults("out:", "0123456789", "abcdefghij");
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, last.getType());
+        assertEquals("012", last.getExpression());
+
+        // The final piece follows the partial results.
+        assertEquals(new Integer(3), last.generateReturnSubmitJob().getSequence());
+        assertFalse(last.generateReturnSubmitJob().isPartial());
+        assertTrue(partialResults.get(1).generateReturnSubmitJob().isPartial());
+        assertEquals(new Integer(1), partialResults.get(1).generateReturnSubmitJob().getSequence());
+    }
+
+    public void testShortResultsAreSentWhole() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        JobResult result = new JobResult(job, "42");
+        assertSame(result, output.finish(result, partialResultHandler));
+        assertEquals(0, partialResults.size());
+        assertNull(result.generateReturnSubmitJob().getSequence());
+    }
+
+    public void testOutputOfFailedJobsIsDiscarded() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = createJob("vm@example.org", "");
+
+        output.begin(job);
+        output.getWriter().write("doomed");
+        output.end();
+
+        JobResult error = new JobResult(job, new IllegalStateException("failed"));
+        assertSame(error, output.finish(error, partialResultHandler));
+        assertEquals(0, partialResults.size());
+    }
+
+    public void testJobsAreOnlyStreamedWhenAskedTo() throws Exception {
+        JobOutput output = new JobOutput(10, otherOutput);
+        Job job = new Job("vm@example.org", "villein@example.org", "job" + ++jobCount, "");
+
+        output.begin(job);
+        output.getWriter().write("out:");
+        output.getWriter().flush();
+        output.end();
+
+        JobResult result = new JobResult(job, "0123456789abcdefghij012");
+        assertSame(result, output.finish(result, partialResultHandler));
+        assertEquals(0, partialResults.size());
+        assertEquals(0, job.getPartialResults());
+        assertEquals("out:", otherOutput.toString());
+    }
+
+    public void testSchedulerStreamsLongResults() throws Exception {
+        VmScheduler scheduler = createScheduler("100");
+        try {
+            String vm = "vm@example.org";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            Job job = createJob(vm, "var s = ''; for (i=0; i<1000; i++) {s += 'x';} s;");
+            scheduler.submitJob(vm, job);
+            scheduler.waitUntilFinished();
+
+            JobResult last = resultsByID.get(job.getJobId());
+            assertEquals(JobResult.ResultType.NORMAL_RESULT, last.getType());
+            assertEquals(9, partialResults.size());
+            assertEquals(9, job.getPartialResults());
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < partialResults.size(); i++) {
+                assertEquals(i, partialResults.get(i).getSequence());
+                assertEquals(100, partialResults.get(i).getExpression().length());
+                sb.append(partialResults.get(i).getExpression());
+            }
+            sb.append(last.getExpression());
+            assertEquals(1000, sb.length());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testSchedulerSendsResultsWholeUnlessAskedToStream() throws Exception {
+        VmScheduler scheduler = createScheduler("100");
+        try {
+            String vm = "vm@example.org";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            Job job = new Job(vm, "villein@example.org", "job" + ++jobCount, "var s = ''; for (i=0; i<1000; i++) {s += 'x';} s;");
+            scheduler.submitJob(vm, job);
+            scheduler.waitUntilFinished();
+
+            assertEquals(1000, resultsByID.get(job.getJobId()).getExpression().length());
+            assertEquals(0, partialResults.size());
+            assertEquals(0, job.getPartialResults());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testOutputIsNotStreamedToAHandlerWhichCannotTakeIt() throws Exception {
+        VmScheduler scheduler = new VmScheduler(new VmScheduler.VmResultHandler() {
+            public void handleResult(final JobResult result) {
+                resultsByID.put(result.getJob().getJobId(), result);
+            }
+        }, eventHandler);
+        try {
+            String vm = "vm@example.org";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            Job job = createJob(vm, "var s = ''; for (i=0; i<100000; i++) {s += 'x';} s;");
+            scheduler.submitJob(vm, job);
+            scheduler.waitUntilFinished();
+
+            assertEquals(100000, resultsByID.get(job.getJobId()).getExpression().length());
+            assertEquals(0, job.getPartialResults());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void assertPartialResults(final String... expected) {
+        assertEquals(expected.length, partialResults.size());
+        for (int i = 0; i < expected.length; i++) {
+            JobResult r = partialResults.get(i);
+            assertEquals(JobResult.ResultType.PARTIAL_RESULT, r.getType());
+            assertEquals(i, r.getSequence());
+            assertEquals(expected[i], r.getExpression());
+        }
+    }
+
+    private VmScheduler createScheduler(final String chunkSize) {
+        Properties conf = LinkedProcess.getConfiguration();
+        String previous = conf.getProperty(LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY);
+        conf.setProperty(LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY, chunkSize);
+        try {
+            return new VmScheduler(new ResultHandler(), eventHandler);
+        } finally {
+            if (null == previous) {
+                conf.remove(LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY);
+            } else {
+                conf.setProperty(LinkedProcess.JOB_OUTPUT_CHUNK_SIZE_PROPERTY, previous);
+            }
+        }
+    }
+
+    private Job createJob(final String vmId,
+                          final String expression) {
+        Job job = new Job(vmId, "villein@example.org", "job" + ++jobCount, expression);
+        job.setStreamed(true);
+        return job;
+    }
+
+    private class ResultHandler implements VmScheduler.VmResultHandler, VmScheduler.VmPartialResultHandler {
+        public void handleResult(final JobResult result) {
+            resultsByID.put(result.getJob().getJobId(), result);
+        }
+
+        public void handlePartialResult(final JobResult result) {
+            partialResults.add(result);
+        }
+    }
+}
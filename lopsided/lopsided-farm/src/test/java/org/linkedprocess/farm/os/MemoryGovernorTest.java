@@ -0,0 +1,255 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.os.errors.MemoryQuotaExceededException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+public class MemoryGovernorTest extends TestCase {
+    private static final long QUOTA = 10 * 1024 * 1024;
+
+    // Allocates without end, keeping everything in a local variable.
+    private static final String ALLOCATION_BOMB
+            = "(function() { var a = []; while (true) { a.push('xxxxxxxxxxxxxxxxxxxx' + a.length); } })();";
+
+    private final Map<String, JobResult> resultsByID = Collections.synchronizedMap(new HashMap<String, JobResult>());
+    private final List<String> terminatedVms = Collections.synchronizedList(new LinkedList<String>());
+    private int jobCount = 0;
+
+    public void setUp() {
+        LinkedProcess.getConfiguration();
+        resultsByID.clear();
+        terminatedVms.clear();
+    }
+
+    public void testEstimateSize() throws Exception {
+        Map<String, Object> bindings = new LinkedHashMap<String, Object>();
+        assertEquals(0, MemoryGovernor.estimateSize(bindings, -1));
+
+        bindings.put("s", "hello");
+        long small = MemoryGovernor.estimateSize(bindings, -1);
+        assertTrue(small > 0);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append('x');
+        }
+        bindings.put("t", sb.toString());
+        long large = MemoryGovernor.estimateSize(bindings, -1);
+        assertTrue(large - small >= 20000);
+
+        // An object bound twice is counted once.
+        Object[] array = new Object[]{"a", "b", sb.toString()};
+        bindings.put("a1", array);
+        long once = MemoryGovernor.estimateSize(bindings, -1);
+        bindings.put("a2", array);
+        long twice = MemoryGovernor.estimateSize(bindings, -1);
+        assertTrue(twice - once < 1000);
+
+        // The walk stops once the limit is passed.
+        assertTrue(MemoryGovernor.estimateSize(bindings, 1000) < MemoryGovernor.estimateSize(bindings, -1));
+    }
+
+    public void testAllocationBombIsAborted() throws Exception {
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "" + QUOTA,
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "-1");
+        try {
+            assertAllocationBombIsAborted(scheduler);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testAllocationBombIsAbortedOnACarrierThread() throws Exception {
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "" + QUOTA,
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "-1",
+                LinkedProcess.EXECUTION_MODE_PROPERTY, VmWorker.ExecutionMode.COOPERATIVE.toString(),
+                LinkedProcess.WORKER_THREAD_POOL_SIZE_PROPERTY, "2");
+        try {
+            assertAllocationBombIsAborted(scheduler);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testAllocationBombIsAbortedWithinATimeSlice() throws Exception {
+        // With a long time slice, the bomb is stopped by the checks within
+        // the slice, long before the slice expires.
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "" + QUOTA,
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "-1",
+                LinkedProcess.ROUND_ROBIN_QUANTUM_PROPERTY, "5000");
+        try {
+            long before = System.currentTimeMillis();
+            Job bomb = assertAllocationBombIsAborted(scheduler);
+            assertTrue(System.currentTimeMillis() - before < 5000);
+            assertTrue(bomb.getAllocatedBytes() < 10 * QUOTA);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testBindingsBombTerminatesVm() throws Exception {
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "-1",
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "" + (1024 * 1024));
+        try {
+            String vm = "vm@example.org";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+
+            // Well within the quota.
+            Job small = createJob(vm, "var small = []; for (i=0; i<100; i++) {small.push('x' + i);} small.length;");
+            scheduler.submitJob(vm, small);
+            scheduler.waitUntilFinished();
+            assertEquals(JobResult.ResultType.NORMAL_RESULT, resultsByID.get(small.getJobId()).getType());
+
+            // The job finishes, but leaves too much behind.
+            Job bomb = createJob(vm, "var big = []; for (i=0; i<100000; i++) {big.push('xxxxxxxxxx' + i);} big.length;");
+            scheduler.submitJob(vm, bomb);
+            scheduler.waitUntilFinished();
+            assertMemoryQuotaExceeded(bomb);
+
+            // The VM is terminated once its sequencer has let go of it.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!terminatedVms.contains(vm) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(terminatedVms.contains(vm));
+            assertEquals(LinkedProcess.Status.INACTIVE, scheduler.getVirtualMachineStatus(vm));
+            assertEquals(1, scheduler.getMemoryGovernor().getVmsTerminated());
+
+            // Other VMs carry on.
+            String other = "other@example.org";
+            scheduler.spawnVirtualMachine(other, LinkedProcess.JAVASCRIPT);
+            Job job = createJob(other, "1 + 1;");
+            scheduler.submitJob(other, job);
+            scheduler.waitUntilFinished();
+            assertEquals(JobResult.ResultType.NORMAL_RESULT, resultsByID.get(job.getJobId()).getType());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testBindingsAreMeasuredOnlyWhenTheyMayHaveOutgrownTheQuota() throws Exception {
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "-1",
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "" + QUOTA);
+        try {
+            String vm = "vm@example.org";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            for (int i = 0; i < 20; i++) {
+                scheduler.submitJob(vm, createJob(vm, "var x = " + i + ";"));
+            }
+            scheduler.waitUntilFinished();
+
+            if (ResourceAccountant.isAllocationSupported()) {
+                assertEquals(0, scheduler.getMemoryGovernor().getFootprintMeasurements());
+            }
+            assertEquals(0, scheduler.getMemoryGovernor().getVmsTerminated());
+            assertEquals(0, scheduler.getMemoryGovernor().getJobsAborted());
+            assertEquals(LinkedProcess.Status.ACTIVE, scheduler.getVirtualMachineStatus(vm));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testQuotasCanBeDisabled() throws Exception {
+        VmScheduler scheduler = createScheduler(
+                LinkedProcess.MAX_JOB_ALLOCATED_BYTES_PROPERTY, "-1",
+                LinkedProcess.MAX_VIRTUAL_MACHINE_FOOTPRINT_PROPERTY, "-1");
+        try {
+            assertNull(scheduler.getMemoryGovernor());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private Job assertAllocationBombIsAborted(final VmScheduler scheduler) throws Exception {
+        String vm = "vm@example.org";
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+
+        Job bomb = createJob(vm, ALLOCATION_BOMB);
+        scheduler.submitJob(vm, bomb);
+        scheduler.waitUntilFinished();
+        assertMemoryQuotaExceeded(bomb);
+        assertTrue(bomb.getAllocatedBytes() > QUOTA);
+        assertEquals(1, scheduler.getMemoryGovernor().getJobsAborted());
+
+        // The VM itself lives on.
+        Job job = createJob(vm, "1 + 1;");
+        scheduler.submitJob(vm, job);
+        scheduler.waitUntilFinished();
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, resultsByID.get(job.getJobId()).getType());
+
+        return bomb;
+    }
+
+    private void assertMemoryQuotaExceeded(final Job job) {
+        JobResult result = resultsByID.get(job.getJobId());
+        assertEquals(JobResult.ResultType.ERROR, result.getType());
+        assertTrue(result.getException() instanceof MemoryQuotaExceededException);
+
+        LopError error = (LopError) result.generateReturnSubmitJob().getError();
+        assertEquals(LinkedProcess.LopErrorType.MEMORY_QUOTA_EXCEEDED, error.getErrorType());
+    }
+
+    /**
+     * Creates a scheduler with the given configuration properties, which are
+     * restored as soon as the scheduler has been created.  Memory quotas
+     * require resource accounting, which is switched on.
+     */
+    private VmScheduler createScheduler(final String... namesAndValues) {
+        Properties conf = LinkedProcess.getConfiguration();
+        Map<String, String> previous = new HashMap<String, String>();
+        previous.put(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY, conf.getProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY));
+        conf.setProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY, "true");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            previous.put(namesAndValues[i], conf.getProperty(namesAndValues[i]));
+            conf.setProperty(namesAndValues[i], namesAndValues[i + 1]);
+        }
+
+        try {
+            return new VmScheduler(new VmScheduler.VmResultHandler() {
+                public void handleResult(final JobResult result) {
+                    resultsByID.put(result.getJob().getJobId(), result);
+                }
+            }, new VmScheduler.LopStatusEventHandler() {
+                public void schedulerStatusChanged(final LinkedProcess.Status newStatus) {
+                }
+
+                public void virtualMachineStatusChanged(final String vmId,
+                                                        final LinkedProcess.Status newStatus) {
+                    if (LinkedProcess.Status.INACTIVE == newStatus) {
+                        terminatedVms.add(vmId);
+                    }
+                }
+            });
+        } finally {
+            for (String name : previous.keySet()) {
+                String value = previous.get(name);
+                if (null == value) {
+                    conf.remove(name);
+                } else {
+                    conf.setProperty(name, value);
+                }
+            }
+        }
+    }
+
+    private Job createJob(final String vmId,
+                          final String expression) {
+        return new Job(vmId, "villein@example.org", "job" + ++jobCount, expression);
+    }
+}
@@ -0,0 +1,113 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+
+public class QuantumControllerTest extends TestCase {
+    private int jobCount = 0;
+
+    public void testFixedQuantum() throws Exception {
+        QuantumController c = new QuantumController(20);
+        QuantumController.History h = new QuantumController.History();
+        Job job = createJob();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(20, c.getQuantum(h, job));
+            c.timeSliceFinished(h, job, 20, 21000000, false);
+        }
+        c.timeSliceFinished(h, job, 20, 5000000, true);
+
+        assertFalse(c.isAdaptive());
+        assertEquals(6, c.getTimeSlices());
+        assertEquals(5, c.getContextSwitches());
+        assertEquals(1, c.getJobsFinished());
+        assertEquals(5000000, c.getOverheadTime());
+    }
+
+    public void testLongJobsMoveDown() throws Exception {
+        QuantumController c = new QuantumController(5, 100);
+        QuantumController.History h = new QuantumController.History();
+        Job job = createJob();
+
+        long[] expected = {5, 10, 20, 40, 80, 100, 100};
+        for (long q : expected) {
+            assertEquals(q, c.getQuantum(h, job));
+            job.increaseTimeSpent(q);
+            c.timeSliceFinished(h, job, q, q * 1000000, false);
+        }
+        assertTrue(c.isAdaptive());
+        assertEquals(expected.length, c.getContextSwitches());
+
+        // A new job starts over.
+        assertEquals(5, c.getQuantum(h, createJob()));
+    }
+
+    public void testNewJobsStartAtTheUsualLevel() throws Exception {
+        QuantumController c = new QuantumController(5, 320);
+        QuantumController.History h = new QuantumController.History();
+
+        // Jobs which take 30ms would fit in a 40ms slice.
+        for (int i = 0; i < 10; i++) {
+            runJob(c, h, 30);
+        }
+        assertEquals(40, c.getQuantum(h, createJob()));
+
+        // The history follows a change of workload.
+        for (int i = 0; i < 200; i++) {
+            runJob(c, h, 1);
+        }
+        assertEquals(5, c.getQuantum(h, createJob()));
+    }
+
+    public void testOccasionalLongJobsAreIgnored() throws Exception {
+        QuantumController c = new QuantumController(5, 320);
+        QuantumController.History h = new QuantumController.History();
+
+        for (int i = 0; i < 50; i++) {
+            runJob(c, h, 0 == i % 20 ? 300 : 8);
+        }
+        assertEquals(10, c.getQuantum(h, createJob()));
+    }
+
+    public void testBadQuanta() throws Exception {
+        try {
+            new QuantumController(0);
+            fail("a zero quantum should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+
+        try {
+            new QuantumController(20, 10);
+            fail("a maximum below the minimum should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Simulates a sequencer running a job which takes a given time.
+     */
+    private void runJob(final QuantumController c,
+                        final QuantumController.History h,
+                        final long runtime) {
+        Job job = createJob();
+        long remaining = runtime;
+        while (true) {
+            long q = c.getQuantum(h, job);
+            if (remaining <= q) {
+                c.timeSliceFinished(h, job, q, remaining * 1000000, true);
+                return;
+            }
+
+            remaining -= q;
+            job.increaseTimeSpent(q);
+            c.timeSliceFinished(h, job, q, q * 1000000, false);
+        }
+    }
+
+    private Job createJob() {
+        return new Job(null, null, "job" + ++jobCount, "42;");
+    }
+}
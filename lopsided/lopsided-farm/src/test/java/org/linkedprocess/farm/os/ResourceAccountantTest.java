@@ -0,0 +1,241 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.jivesoftware.smackx.FormField;
+import org.jivesoftware.smackx.packet.DataForm;
+import org.linkedprocess.LinkedProcess;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+public class ResourceAccountantTest extends TestCase {
+    private static final String
+            BUSY_EXPRESSION = "var p=1; for (i=0; i<300000; i++) {p *= 7; p /= 7;} p;",
+            ALLOCATING_EXPRESSION = "var a = []; for (i=0; i<20000; i++) {a.push('x' + i);} a.length;";
+
+    private final Map<String, JobResult> resultsByID = Collections.synchronizedMap(new HashMap<String, JobResult>());
+    private VmScheduler scheduler;
+    private ResourceAccountant accountant;
+    private int jobCount = 0;
+
+    public static void main(final String[] args) throws Exception {
+        ResourceAccountantTest t = new ResourceAccountantTest();
+        t.setUp();
+        t.measureAccountingOverhead();
+        t.tearDown();
+    }
+
+    public void setUp() {
+        LinkedProcess.getConfiguration();
+        resultsByID.clear();
+        scheduler = createScheduler(true);
+        accountant = scheduler.getResourceAccountant();
+    }
+
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    public void testAccountingCanBeDisabled() throws Exception {
+        VmScheduler s = createScheduler(false);
+        try {
+            assertNull(s.getResourceAccountant());
+            s.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+            s.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org/a", "1 + 1;"));
+            s.waitUntilFinished();
+            assertEquals(1, resultsByID.size());
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    public void testBusyVmsUseMoreCpuTime() throws Exception {
+        scheduler.spawnVirtualMachine("busy@example.org", LinkedProcess.JAVASCRIPT);
+        scheduler.spawnVirtualMachine("idle@example.org", LinkedProcess.JAVASCRIPT);
+
+        Job busy = createJob("busy@example.org", "villein@example.org/a", BUSY_EXPRESSION);
+        Job idle = createJob("idle@example.org", "villein@example.org/b", "1 + 1;");
+        scheduler.submitJob("busy@example.org", busy);
+        scheduler.submitJob("idle@example.org", idle);
+        scheduler.waitUntilFinished();
+
+        assertTrue(busy.getCpuTime() > 0);
+        assertTrue(busy.getCpuTime() > idle.getCpuTime());
+        assertTrue(busy.getRunTime() > 0);
+
+        ResourceAccountant.Usage busyUsage = accountant.getUsageByVm("busy@example.org");
+        ResourceAccountant.Usage idleUsage = accountant.getUsageByVm("idle@example.org");
+        assertEquals(1, busyUsage.getJobsCompleted());
+        assertEquals(1, idleUsage.getJobsCompleted());
+        assertTrue(busyUsage.getCpuTime() > idleUsage.getCpuTime());
+
+        // Both jobs are charged to the villein, whatever its resource.
+        ResourceAccountant.Usage villeinUsage = accountant.getUsageByVillein("villein@example.org");
+        assertEquals(2, villeinUsage.getJobsCompleted());
+        assertEquals(busyUsage.getCpuTime() + idleUsage.getCpuTime(), villeinUsage.getCpuTime());
+        assertEquals(2, accountant.getTotalUsage().getJobsCompleted());
+
+        String[] top = accountant.getTopVmsByCpuTime(5);
+        assertEquals(2, top.length);
+        assertTrue(top[0].startsWith("busy@example.org"));
+        assertEquals(1, accountant.getTopVmsByCpuTime(1).length);
+    }
+
+    public void testAllocatedBytes() throws Exception {
+        scheduler.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+        Job job = createJob("vm@example.org", "villein@example.org", ALLOCATING_EXPRESSION);
+        scheduler.submitJob("vm@example.org", job);
+        scheduler.waitUntilFinished();
+
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, resultsByID.get(job.getJobId()).getType());
+        // Twenty thousand strings take up far more than a hundred kilobytes.
+        assertTrue(job.getAllocatedBytes() > 100000);
+        assertEquals(job.getAllocatedBytes(), accountant.getUsageByVm("vm@example.org").getAllocatedBytes());
+    }
+
+    public void testQueueWaitTime() throws Exception {
+        scheduler.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", BUSY_EXPRESSION));
+        }
+        scheduler.waitUntilFinished();
+
+        // The second and third jobs wait for the first.
+        ResourceAccountant.Usage usage = accountant.getUsageByVm("vm@example.org");
+        assertEquals(3, usage.getJobsCompleted());
+        assertTrue(usage.getQueueWaitTime() > 0);
+        assertTrue(usage.getRunTime() > 0);
+    }
+
+    public void testTerminatedVmsAreForgotten() throws Exception {
+        scheduler.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+        scheduler.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", "1 + 1;"));
+        scheduler.waitUntilFinished();
+        assertNotNull(accountant.getUsageByVm("vm@example.org"));
+
+        scheduler.terminateVm("vm@example.org");
+        assertNull(accountant.getUsageByVm("vm@example.org"));
+
+        // The villein's and the farm's accounts remain.
+        assertEquals(1, accountant.getUsageByVillein("villein@example.org").getJobsCompleted());
+        assertEquals(1, accountant.getJobsCompleted());
+    }
+
+    public void testServiceDiscoveryFields() throws Exception {
+        DataForm form = new DataForm("result");
+        accountant.addFields(form);
+        assertEquals("0", getFieldValue(form, "jobs_completed"));
+        assertEquals("0", getFieldValue(form, "job_cpu_time"));
+
+        scheduler.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+        scheduler.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", BUSY_EXPRESSION));
+        scheduler.waitUntilFinished();
+
+        // The fields follow the accounts.
+        assertEquals("1", getFieldValue(form, "jobs_completed"));
+        assertTrue(Long.valueOf(getFieldValue(form, "job_run_time")) >= 0);
+        assertTrue(Long.valueOf(getFieldValue(form, "job_allocated_bytes")) > 0);
+        assertTrue(form.toXML().contains("var=\"job_queue_wait_time\""));
+    }
+
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.linkedprocess.farm:type=ResourceAccountant,name=test");
+        server.registerMBean(accountant, name);
+        try {
+            scheduler.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+            scheduler.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", "1 + 1;"));
+            scheduler.waitUntilFinished();
+
+            assertEquals(1L, server.getAttribute(name, "JobsCompleted"));
+            assertNotNull(server.getAttribute(name, "CpuTime"));
+            String usage = (String) server.invoke(name, "getVmUsage",
+                    new Object[]{"vm@example.org"}, new String[]{String.class.getName()});
+            assertTrue(usage.startsWith("1 jobs"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    public void measureAccountingOverhead() throws Exception {
+        int jobs = 2000;
+        for (boolean accounting : new boolean[]{false, true}) {
+            VmScheduler s = createScheduler(accounting);
+            try {
+                s.spawnVirtualMachine("vm@example.org", LinkedProcess.JAVASCRIPT);
+                // Warm up.
+                for (int i = 0; i < jobs / 10; i++) {
+                    s.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", "1 + 1;"));
+                }
+                s.waitUntilFinished();
+
+                long before = System.nanoTime();
+                for (int i = 0; i < jobs; i++) {
+                    s.submitJob("vm@example.org", createJob("vm@example.org", "villein@example.org", "1 + 1;"));
+                    s.waitUntilFinished();
+                }
+                long after = System.nanoTime();
+                System.out.println("accounting " + (accounting ? "on" : "off") + ": "
+                        + ((after - before) / (jobs * 1000)) + "us per job");
+            } finally {
+                s.shutdown();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private VmScheduler createScheduler(final boolean accounting) {
+        Properties conf = LinkedProcess.getConfiguration();
+        String previous = conf.getProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY);
+        conf.setProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY, "" + accounting);
+        try {
+            return new VmScheduler(new VmScheduler.VmResultHandler() {
+                public void handleResult(final JobResult result) {
+                    resultsByID.put(result.getJob().getJobId(), result);
+                }
+            }, new VmScheduler.LopStatusEventHandler() {
+                public void schedulerStatusChanged(final LinkedProcess.Status newStatus) {
+                }
+
+                public void virtualMachineStatusChanged(final String vmId,
+                                                        final LinkedProcess.Status newStatus) {
+                }
+            });
+        } finally {
+            if (null == previous) {
+                conf.remove(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY);
+            } else {
+                conf.setProperty(LinkedProcess.RESOURCE_ACCOUNTING_PROPERTY, previous);
+            }
+        }
+    }
+
+    private Job createJob(final String vmId,
+                          final String villeinJid,
+                          final String expression) {
+        return new Job(vmId, villeinJid, "job" + ++jobCount, expression);
+    }
+
+    private String getFieldValue(final DataForm form,
+                                 final String name) {
+        Iterator<FormField> fields = form.getFields();
+        while (fields.hasNext()) {
+            FormField f = fields.next();
+            if (name.equals(f.getVariable())) {
+                return f.getValues().next();
+            }
+        }
+
+        fail("no such field: " + name);
+        return null;
+    }
+}
@@ -0,0 +1,193 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.LinkedProcessFarm;
+
+import javax.script.ScriptEngine;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+public class SchedulingPolicyTest extends TestCase {
+    private static final long SLICE = 20000000;
+
+    private final VmScheduler.VmResultHandler nullHandler = new VmScheduler.VmResultHandler() {
+        public void handleResult(final JobResult result) {
+            // Ignore.
+        }
+    };
+
+    private final List<VmWorker> workers = new LinkedList<VmWorker>();
+    private int jobCount = 0;
+
+    public void tearDown() {
+        for (VmWorker w : workers) {
+            w.terminate();
+        }
+        workers.clear();
+    }
+
+    public void testFairShareIsProportionalToPriority() throws Exception {
+        SchedulingPolicy p = new FairSharePolicy(createPriorities(
+                "high@example.org", LinkedProcess.HIGHEST_PRIORITY,
+                "low@example.org", LinkedProcess.LOWEST_PRIORITY));
+        Job high = createJob("high@example.org/villein");
+        Job normal = createJob("normal@example.org/villein");
+        Job low = createJob("low@example.org/villein");
+
+        int[] slices = runSlices(p, 2570, high, normal, low);
+
+        // Shares of 256, 129 and 1.
+        assertEquals(256 / 386.0, slices[0] / 2570.0, 0.01);
+        assertEquals(129 / 386.0, slices[1] / 2570.0, 0.01);
+        assertTrue(slices[2] > 0);
+        assertTrue(slices[2] < 20);
+    }
+
+    public void testFairShareIsPerVillein() throws Exception {
+        SchedulingPolicy p = new FairSharePolicy(new Properties());
+
+        // One villein with three VMs gets no more than another with one.
+        Job a1 = createJob("a@example.org/1");
+        Job a2 = createJob("a@example.org/2");
+        Job a3 = createJob("a@example.org/3");
+        Job b = createJob("b@example.org/1");
+
+        int[] slices = runSlices(p, 1000, a1, a2, a3, b);
+        assertEquals(500, slices[0] + slices[1] + slices[2], 5);
+        assertEquals(500, slices[3], 5);
+    }
+
+    public void testIdleVilleinCannotBankTime() throws Exception {
+        SchedulingPolicy p = new FairSharePolicy(new Properties());
+        Job a = createJob("a@example.org");
+        Job b = createJob("b@example.org");
+
+        runSlices(p, 100, a);
+
+        // Having been idle, b does not monopolize the processor.
+        int[] slices = runSlices(p, 100, a, b);
+        assertEquals(50, slices[0], 2);
+        assertEquals(50, slices[1], 2);
+    }
+
+    public void testBadPrioritiesAreIgnored() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty(LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_1", "nopriority@example.org");
+        conf.setProperty(LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_2", "a@example.org high");
+        SchedulingPolicy p = new FairSharePolicy(conf);
+
+        int[] slices = runSlices(p, 100, createJob("a@example.org"), createJob("b@example.org"));
+        assertEquals(50, slices[0], 1);
+    }
+
+    public void testEarliestDeadlineFirst() throws Exception {
+        SchedulingPolicy p = new EarliestDeadlineFirstPolicy(1000);
+        Job first = createJob("a@example.org");
+        Thread.sleep(10);
+        Job second = createJob("b@example.org");
+
+        assertTrue(p.rank(first) < p.rank(second));
+        assertEquals(first.getTimeCreated() + 1000, p.rank(first));
+
+        // Time spent does not move the deadline.
+        p.charge(first, 500 * SLICE);
+        first.increaseTimeSpent(500);
+        assertTrue(p.rank(first) < p.rank(second));
+
+        assertEquals(Long.MAX_VALUE, p.rank(null));
+    }
+
+    public void testPriorityRunQueue() throws Exception {
+        PriorityRunQueue q = new PriorityRunQueue(new EarliestDeadlineFirstPolicy(1000));
+        VmWorker older = createWorker();
+        VmWorker newer = createWorker();
+        older.submitJob(createJob("a@example.org"));
+        Thread.sleep(10);
+        newer.submitJob(createJob("b@example.org"));
+
+        assertTrue(q.offerDistinct(newer, VmWorkerQueue.NO_SEQUENCER));
+        assertTrue(q.offerDistinct(older, VmWorkerQueue.NO_SEQUENCER));
+        assertFalse(q.offerDistinct(older, VmWorkerQueue.NO_SEQUENCER));
+        assertEquals(2, q.size());
+
+        // The sentinel goes before everything else.
+        q.offer(VmWorker.SCHEDULER_TERMINATED_SENTINEL);
+        assertSame(VmWorker.SCHEDULER_TERMINATED_SENTINEL, q.take(0));
+
+        assertSame(older, q.take(0));
+        assertTrue(q.offerDistinct(older, VmWorkerQueue.NO_SEQUENCER));
+        assertTrue(q.remove(newer));
+        assertFalse(q.remove(newer));
+        assertSame(older, q.take(0));
+
+        q.offerDistinct(older, VmWorkerQueue.NO_SEQUENCER);
+        q.offerDistinct(newer, VmWorkerQueue.NO_SEQUENCER);
+        q.clear();
+        assertEquals(0, q.size());
+        assertTrue(q.offerDistinct(older, VmWorkerQueue.NO_SEQUENCER));
+    }
+
+    public void testEqualRanksAreFirstInFirstOut() throws Exception {
+        PriorityRunQueue q = new PriorityRunQueue(new FairSharePolicy(new Properties()));
+        List<VmWorker> ws = new LinkedList<VmWorker>();
+        for (int i = 0; i < 5; i++) {
+            VmWorker w = createWorker();
+            w.submitJob(createJob("a@example.org"));
+            q.offerDistinct(w, VmWorkerQueue.NO_SEQUENCER);
+            ws.add(w);
+        }
+
+        for (VmWorker w : ws) {
+            assertSame(w, q.take(0));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Simulates a sequencer: repeatedly gives a slice to the best-ranked of
+     * the given jobs.
+     *
+     * @return the number of slices given to each job
+     */
+    private int[] runSlices(final SchedulingPolicy p,
+                            final int count,
+                            final Job... jobs) {
+        int[] slices = new int[jobs.length];
+        for (int n = 0; n < count; n++) {
+            int best = 0;
+            for (int i = 1; i < jobs.length; i++) {
+                if (p.rank(jobs[i]) < p.rank(jobs[best])) {
+                    best = i;
+                }
+            }
+
+            p.charge(jobs[best], SLICE);
+            slices[best]++;
+        }
+
+        return slices;
+    }
+
+    private Properties createPriorities(final Object... jidsAndPriorities) {
+        Properties conf = new Properties();
+        for (int i = 0; i < jidsAndPriorities.length; i += 2) {
+            conf.setProperty(LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_" + i,
+                    jidsAndPriorities[i] + " " + jidsAndPriorities[i + 1]);
+        }
+        return conf;
+    }
+
+    private Job createJob(final String villeinJid) {
+        return new Job(null, villeinJid, "job" + ++jobCount, "42;");
+    }
+
+    private VmWorker createWorker() {
+        ScriptEngine engine = LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
+        VmWorker w = new VmWorker(engine, nullHandler);
+        workers.add(w);
+        return w;
+    }
+}
@@ -0,0 +1,121 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.LinkedProcessFarm;
+import org.linkedprocess.farm.os.errors.UnsupportedScriptEngineException;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+public class ScriptEnginePoolTest extends TestCase {
+    private ScriptEnginePool pool;
+
+    public static void main(final String[] args) throws Exception {
+        new ScriptEnginePoolTest().measureTakeTime();
+    }
+
+    public void tearDown() {
+        if (null != pool) {
+            pool.shutdown();
+        }
+    }
+
+    public void testPoolIsFilledToHighWatermark() throws Exception {
+        pool = createPool(2, 5);
+        waitForAvailable(5);
+        assertEquals(5, pool.getAvailable(LinkedProcess.JAVASCRIPT));
+
+        // Language names are case-insensitive.
+        assertEquals(5, pool.getAvailable(LinkedProcess.JAVASCRIPT.toUpperCase()));
+    }
+
+    public void testPoolIsRefilledBelowLowWatermark() throws Exception {
+        pool = createPool(2, 5);
+        waitForAvailable(5);
+
+        for (int i = 0; i < 3; i++) {
+            pool.take(LinkedProcess.JAVASCRIPT);
+        }
+        assertEquals(3, pool.getHits());
+        assertEquals(0, pool.getMisses());
+
+        // Still at the low watermark, so no refill yet.
+        Thread.sleep(100);
+        assertEquals(2, pool.getAvailable(LinkedProcess.JAVASCRIPT));
+
+        pool.take(LinkedProcess.JAVASCRIPT);
+        waitForAvailable(5);
+    }
+
+    public void testEnginesAreNotShared() throws Exception {
+        pool = createPool(2, 5);
+        waitForAvailable(5);
+
+        ScriptEngine e1 = pool.take(LinkedProcess.JAVASCRIPT);
+        ScriptEngine e2 = pool.take(LinkedProcess.JAVASCRIPT);
+        assertNotSame(e1, e2);
+
+        e1.eval("var x = 1;");
+        assertNull(e2.getBindings(ScriptContext.ENGINE_SCOPE).get("x"));
+    }
+
+    public void testEmptyPoolCreatesEngines() throws Exception {
+        pool = createPool(0, 0);
+        assertNotNull(pool.take(LinkedProcess.JAVASCRIPT));
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.getAvailable(LinkedProcess.JAVASCRIPT));
+    }
+
+    public void testUnsupportedLanguage() throws Exception {
+        pool = createPool(2, 5);
+        try {
+            pool.take("COBOL");
+            fail();
+        } catch (UnsupportedScriptEngineException e) {
+            // Good.
+        }
+    }
+
+    public void testBadWatermarks() throws Exception {
+        try {
+            createPool(3, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    /**
+     * Compares the time taken to obtain an engine from a full pool with the
+     * time taken to create one.
+     */
+    public void measureTakeTime() throws Exception {
+        int iterations = 1000;
+        for (int high : new int[]{0, iterations}) {
+            pool = createPool(0, high);
+            waitForAvailable(high);
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                pool.take(LinkedProcess.JAVASCRIPT);
+            }
+            double time = (System.nanoTime() - startTime) / 1000.0 / iterations;
+            System.out.println("time to obtain a " + LinkedProcess.JAVASCRIPT + " engine"
+                    + (high > 0 ? " from the pool: " : " without a pool: ") + time + "us");
+            pool.shutdown();
+        }
+    }
+
+    private ScriptEnginePool createPool(final int low,
+                                        final int high) {
+        return new ScriptEnginePool(LinkedProcessFarm.getSupportedScriptEngineFactories(), low, high);
+    }
+
+    private void waitForAvailable(final int count) throws InterruptedException {
+        while (pool.getAvailable(LinkedProcess.JAVASCRIPT) < count) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.jivesoftware.smack.packet.IQ;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.FetchJob;
+import org.linkedprocess.farm.FetchJobProvider;
+import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.SubmitJobProvider;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Scriptable;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TypedXmlTest extends TestCase {
+
+    public void testScalarsKeepTheirTypes() throws Exception {
+        assertNull(roundTrip(null));
+        assertEquals(Boolean.TRUE, roundTrip(true));
+        assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+        assertEquals(-0.1, roundTrip(-0.1));
+        assertEquals(Double.NEGATIVE_INFINITY, roundTrip(Double.NEGATIVE_INFINITY));
+        assertEquals("", roundTrip(""));
+        assertEquals(" <a href=\"x\">&amp;</a>\r\n\t\u00e9 ", roundTrip(" <a href=\"x\">&amp;</a>\r\n\t\u00e9 "));
+
+        // Other numbers are widened; anything else becomes its text.
+        assertEquals(7, roundTrip((short) 7));
+        assertEquals(0.5, roundTrip(0.5f));
+        assertEquals(12L, roundTrip(BigInteger.valueOf(12)));
+        assertEquals("123456789012345678901234567890", roundTrip(new BigInteger("123456789012345678901234567890")));
+        assertEquals(1.25, roundTrip(new BigDecimal("1.25")));
+        assertEquals("x", roundTrip('x'));
+        assertEquals("a b", roundTrip(new StringBuilder("a b")));
+    }
+
+    public void testListsAndMapsKeepTheirStructure() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("name", "x");
+        map.put("values", Arrays.asList(1, 2L, 3.0, true, null, ""));
+        Map<String, Object> inner = new LinkedHashMap<String, Object>();
+        inner.put("empty", new ArrayList<Object>());
+        inner.put("a \"quoted\" name", new LinkedHashMap<String, Object>());
+        map.put("inner", inner);
+
+        Map<?, ?> result = (Map<?, ?>) roundTrip(map);
+        assertEquals(map, result);
+        assertEquals(Arrays.asList("name", "values", "inner"), new ArrayList<Object>(result.keySet()));
+
+        // Arrays come back as lists.
+        assertEquals(Arrays.asList(1, 2, 3), roundTrip(new int[]{1, 2, 3}));
+        assertEquals(Arrays.asList(0.5, null), roundTrip(new Object[]{0.5, null}));
+    }
+
+    public void testTheXmlIsReadable() throws Exception {
+        assertEquals("<value datatype=\"xsd:integer\">2</value>", TypedXml.toXml(2));
+        assertEquals("<list><value datatype=\"xsd:boolean\">true</value><value /></list>", TypedXml.toXml(Arrays.asList(true, null)));
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("s", "a<b");
+        assertEquals("<map><value name=\"s\" datatype=\"xsd:string\">a&lt;b</value></map>", TypedXml.toXml(map));
+
+        // Lists of numbers or booleans of one type are written as XML Schema lists.
+        assertEquals("<list datatype=\"xsd:integer\">2 3 5</list>", TypedXml.toXml(Arrays.asList(2, 3, 5)));
+        assertEquals("<list datatype=\"xsd:double\">0.5 -1.0 NaN</list>", TypedXml.toXml(new double[]{0.5, -1, Double.NaN}));
+        assertEquals(Arrays.asList(true, false), read("<list datatype=\"xsd:boolean\">\n  true\tfalse </list>"));
+        assertEquals(new ArrayList<Object>(), read("<list datatype=\"xsd:long\"></list>"));
+        assertEquals(Arrays.asList(1, 2L), roundTrip(Arrays.asList(1, 2L)));
+
+        // Full datatype URIs are read as well as their abbreviations.
+        assertEquals(3L, read("<value datatype=\"" + VmBindings.XMLSchemaDatatype.LONG.getURI() + "\">3</value>"));
+    }
+
+    public void testSelfReferenceIsRejected() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(list);
+        try {
+            TypedXml.toXml(list);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+        try {
+            ResultMarshaller.toJava(list);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    public void testMalformedValuesAreRejected() throws Exception {
+        assertInvalid("<value datatype=\"xsd:integer\">two</value>");
+        assertInvalid("<value datatype=\"xsd:date\">2009-09-16</value>");
+        assertInvalid("<map><value datatype=\"xsd:integer\">1</value></map>");
+        assertInvalid("<set />");
+        assertInvalid("<list datatype=\"xsd:integer\">1 2.5</list>");
+    }
+
+    public void testJavaScriptValuesBecomeListsAndMaps() throws Exception {
+        Context context = ContextFactory.getGlobal().enterContext();
+        try {
+            Scriptable scope = context.initStandardObjects();
+            Object value = context.evaluateString(scope,
+                    "var a = [1, 'two', true, null, undefined, [3.5]]; a[7] = 8; ({list: a, map: {x: 1, 2: 'y'}, f: function() {}})",
+                    "test", 1, null);
+
+            Map<?, ?> result = (Map<?, ?>) roundTrip(ResultMarshaller.toJava(value));
+            List<?> list = (List<?>) result.get("list");
+            assertEquals(8, list.size());
+            assertEquals(1.0, ((Number) list.get(0)).doubleValue());
+            assertEquals("two", list.get(1));
+            assertEquals(true, list.get(2));
+            assertNull(list.get(3));
+            assertNull(list.get(4));
+            assertEquals(3.5, ((List<?>) list.get(5)).get(0));
+            // A hole in the array.
+            assertNull(list.get(6));
+
+            Map<?, ?> map = (Map<?, ?>) result.get("map");
+            assertEquals(1.0, ((Number) map.get("x")).doubleValue());
+            assertEquals("y", map.get("2"));
+
+            // A function is left as its text.
+            assertTrue(result.get("f") instanceof String);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    public void testJavaValuesAreConvertedThroughout() throws Exception {
+        Context context = ContextFactory.getGlobal().enterContext();
+        try {
+            Scriptable scope = context.initStandardObjects();
+            Object array = context.evaluateString(scope, "[1, 2]", "test", 1, null);
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("array", array);
+            map.put("ints", new int[]{3});
+            Map<?, ?> result = (Map<?, ?>) ((List<?>) ResultMarshaller.toJava(Arrays.asList(map))).get(0);
+            assertEquals(2, ((List<?>) result.get("array")).size());
+            assertTrue(result.get("ints") instanceof int[]);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    public void testSubmitJobCarriesATypedResult() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setType(IQ.Type.RESULT);
+        submitJob.setEncoding(LinkedProcess.TYPED_ENCODING);
+        submitJob.setExpression(TypedXml.toXml(Arrays.asList(2, 3, 5, 7)));
+
+        SubmitJob result = parseSubmitJob(submitJob.getChildElementXML());
+        assertTrue(result.isTyped());
+        assertNull(result.getExpression());
+        assertEquals(Arrays.asList(2, 3, 5, 7), result.getValue());
+
+        // A typed null.
+        submitJob.setExpression(TypedXml.toXml(null));
+        result = parseSubmitJob(submitJob.getChildElementXML());
+        assertTrue(result.isTyped());
+        assertNull(result.getValue());
+    }
+
+    public void testARequestForATypedResultCarriesItsExpression() throws Exception {
+        SubmitJob submitJob = new SubmitJob();
+        submitJob.setVmId("62F4E464");
+        submitJob.setType(IQ.Type.GET);
+        submitJob.setEncoding(LinkedProcess.TYPED_ENCODING);
+        submitJob.setExpression("[1, 2] < [3];");
+
+        SubmitJob result = parseSubmitJob(submitJob.getChildElementXML());
+        assertTrue(result.isTyped());
+        assertEquals("[1, 2] < [3];", result.getExpression());
+    }
+
+    public void testFetchJobCarriesATypedResult() throws Exception {
+        FetchJob fetchJob = new FetchJob();
+        fetchJob.setVmId("62F4E464");
+        fetchJob.setJobId("wxyz-1");
+        fetchJob.setStatus(LinkedProcess.JobStatus.COMPLETED);
+        fetchJob.setType(IQ.Type.RESULT);
+        fetchJob.setEncoding(LinkedProcess.TYPED_ENCODING);
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("n", 1);
+        fetchJob.setExpression(TypedXml.toXml(map));
+
+        XmlPullParser parser = startParsing(fetchJob.getChildElementXML());
+        FetchJob result = (FetchJob) new FetchJobProvider().parseIQ(parser);
+        assertTrue(result.isTyped());
+        assertEquals("wxyz-1", result.getJobId());
+        assertEquals(map, result.getValue());
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(LinkedProcess.FETCH_JOB_TAG, parser.getName());
+
+        // Text results are as they were.
+        fetchJob.setEncoding(null);
+        fetchJob.setExpression("a < b");
+        result = (FetchJob) new FetchJobProvider().parseIQ(startParsing(fetchJob.getChildElementXML()));
+        assertFalse(result.isTyped());
+        assertEquals("a < b", result.getExpression());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private static Object roundTrip(final Object value) throws Exception {
+        return read(TypedXml.toXml(value));
+    }
+
+    private static Object read(final String xml) throws Exception {
+        XmlPullParser parser = startParsing(xml);
+        Object value = TypedXml.read(parser);
+        assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+        assertEquals(1, parser.getDepth());
+        return value;
+    }
+
+    private static void assertInvalid(final String xml) throws Exception {
+        try {
+            read(xml);
+            fail("read " + xml);
+        } catch (InvalidValueException e) {
+            // Good.
+        }
+    }
+
+    private static SubmitJob parseSubmitJob(final String xml) throws Exception {
+        return (SubmitJob) new SubmitJobProvider().parseIQ(startParsing(xml));
+    }
+
+    private static XmlPullParser startParsing(final String xml) throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    // Compares the size of a submit_job result carrying a list of numbers, and
+    // the time taken to write and read it, as text, as typed XML and
+    // binary-encoded.  Reading the text includes parsing it into a list, as
+    // the villein must.
+    public static void main(final String[] args) throws Exception {
+        List<Integer> primes = new ArrayList<Integer>();
+        for (int i = 2; primes.size() < 1000; i++) {
+            boolean prime = true;
+            for (int p : primes) {
+                if (i % p == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime) {
+                primes.add(i);
+            }
+        }
+
+        int iterations = 2000;
+        for (int round = 0; round < 2; round++) {
+            String[] results = new String[3];
+            long[] times = new long[3];
+            for (int encoding = 0; encoding < 3; encoding++) {
+                long before = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    SubmitJob submitJob = new SubmitJob();
+                    submitJob.setVmId("62F4E464");
+                    submitJob.setType(IQ.Type.RESULT);
+                    if (0 == encoding) {
+                        submitJob.setExpression(primes.toString());
+                    } else if (1 == encoding) {
+                        submitJob.setEncoding(LinkedProcess.TYPED_ENCODING);
+                        submitJob.setExpression(TypedXml.toXml(primes));
+                    } else {
+                        submitJob.setEncoding(LinkedProcess.BINARY_ENCODING);
+                        submitJob.setExpression(BinaryEncoding.encodeBase64(primes));
+                    }
+                    results[encoding] = submitJob.getChildElementXML();
+
+                    SubmitJob result = parseSubmitJob(results[encoding]);
+                    if (0 == encoding) {
+                        List<Integer> list = new ArrayList<Integer>();
+                        for (String s : result.getExpression().replace("[", "").replace("]", "").split(",")) {
+                            list.add(Integer.valueOf(s.trim()));
+                        }
+                    } else if (2 == encoding) {
+                        BinaryEncoding.decodeBase64(result.getExpression());
+                    }
+                }
+                times[encoding] = System.nanoTime() - before;
+            }
+            if (round > 0) {
+                System.out.println("1000 integers: "
+                        + results[0].length() + " chars, " + (times[0] / iterations / 1000) + " us as text; "
+                        + results[1].length() + " chars, " + (times[1] / iterations / 1000) + " us as typed XML; "
+                        + results[2].length() + " chars, " + (times[2] / iterations / 1000) + " us binary-encoded");
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.LinkedProcessFarm;
+
+import javax.script.ScriptEngine;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+public class VmRunQueueTest extends TestCase {
+    private final VmScheduler.VmResultHandler nullHandler = new VmScheduler.VmResultHandler() {
+        public void handleResult(final JobResult result) {
+            // Ignore.
+        }
+    };
+
+    private final List<VmWorker> workers = new LinkedList<VmWorker>();
+
+    public static void main(final String[] args) throws Exception {
+        VmRunQueueTest t = new VmRunQueueTest();
+        try {
+            t.compareQueues();
+        } finally {
+            t.tearDown();
+        }
+    }
+
+    public void tearDown() {
+        for (VmWorker w : workers) {
+            w.terminate();
+        }
+        workers.clear();
+    }
+
+    public void testOfferDistinct() throws Exception {
+        VmRunQueue q = new VmRunQueue();
+        VmWorker w1 = createWorker();
+        VmWorker w2 = createWorker();
+
+        assertTrue(q.offerDistinct(w1));
+        assertFalse(q.offerDistinct(w1));
+        assertTrue(q.offerDistinct(w2));
+        assertEquals(2, q.size());
+        assertTrue(q.contains(w1));
+
+        assertSame(w1, q.take());
+        assertFalse(q.contains(w1));
+
+        // Once taken, a worker may be added again.
+        assertTrue(q.offerDistinct(w1));
+        assertSame(w2, q.take());
+        assertSame(w1, q.take());
+        assertEquals(0, q.size());
+    }
+
+    public void testRemoveAndClear() throws Exception {
+        VmRunQueue q = new VmRunQueue();
+        VmWorker w1 = createWorker();
+        VmWorker w2 = createWorker();
+
+        q.offerDistinct(w1);
+        q.offerDistinct(w2);
+        assertTrue(q.remove(w1));
+        assertFalse(q.remove(w1));
+        assertFalse(q.contains(w1));
+        assertSame(w2, q.take());
+
+        q.offerDistinct(w1);
+        q.offerDistinct(w2);
+        q.clear();
+        assertEquals(0, q.size());
+        assertTrue(q.offerDistinct(w1));
+        assertSame(w1, q.take());
+    }
+
+    public void testConcurrentConsumers() throws Exception {
+        final VmRunQueue q = new VmRunQueue();
+        int consumers = 4;
+        int count = 20;
+
+        final Set<VmWorker> taken = Collections.synchronizedSet(new HashSet<VmWorker>());
+        List<Thread> threads = new LinkedList<Thread>();
+        for (int i = 0; i < consumers; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            VmWorker w = q.take();
+                            if (VmWorker.SCHEDULER_TERMINATED_SENTINEL == w) {
+                                return;
+                            }
+                            assertTrue(taken.add(w));
+                        }
+                    } catch (InterruptedException e) {
+                        // Fall through.
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        for (int i = 0; i < count; i++) {
+            q.offerDistinct(createWorker());
+        }
+        for (int i = 0; i < consumers; i++) {
+            q.offer(VmWorker.SCHEDULER_TERMINATED_SENTINEL);
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+
+        assertEquals(count, taken.size());
+        assertEquals(0, q.size());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compares the hand-off throughput and wake-up latency of VmRunQueue with
+     * those of SimpleBlockingQueue, the queue it replaces in VmScheduler.
+     */
+    public void compareQueues() throws Exception {
+        int numberOfWorkers = 100;
+        int numberOfConsumers = 4;
+        int operations = 200000;
+        int wakeups = 50;
+
+        for (int i = 0; i < numberOfWorkers; i++) {
+            createWorker();
+        }
+
+        final SimpleBlockingQueue<VmWorker> simple = new SimpleBlockingQueue<VmWorker>();
+        final VmRunQueue runQueue = new VmRunQueue();
+
+        BenchmarkQueue simpleAdapter = new BenchmarkQueue() {
+            public VmWorker take() throws InterruptedException {
+                return simple.take();
+            }
+
+            public void offer(final VmWorker w) {
+                simple.offer(w);
+            }
+
+            public void offerDistinct(final VmWorker w) {
+                simple.offerDistinct(w);
+            }
+
+            public void clear() {
+                simple.clear();
+            }
+        };
+        BenchmarkQueue runQueueAdapter = new BenchmarkQueue() {
+            public VmWorker take() throws InterruptedException {
+                return runQueue.take();
+            }
+
+            public void offer(final VmWorker w) {
+                runQueue.offer(w);
+            }
+
+            public void offerDistinct(final VmWorker w) {
+                runQueue.offerDistinct(w);
+            }
+
+            public void clear() {
+                runQueue.clear();
+            }
+        };
+
+        // Warm up.
+        measureThroughput(simpleAdapter, numberOfConsumers, operations / 10);
+        measureThroughput(runQueueAdapter, numberOfConsumers, operations / 10);
+
+        System.out.println("hand-offs per second (" + numberOfWorkers + " workers, "
+                + numberOfConsumers + " consumers, " + operations + " operations):");
+        System.out.println("\tSimpleBlockingQueue: " + measureThroughput(simpleAdapter, numberOfConsumers, operations));
+        System.out.println("\tVmRunQueue:          " + measureThroughput(runQueueAdapter, numberOfConsumers, operations));
+
+        System.out.println("mean wake-up latency in ms (" + wakeups + " wake-ups):");
+        System.out.println("\tSimpleBlockingQueue: " + measureWakeupLatency(simpleAdapter, wakeups));
+        System.out.println("\tVmRunQueue:          " + measureWakeupLatency(runQueueAdapter, wakeups));
+    }
+
+    private double measureThroughput(final BenchmarkQueue q,
+                                     final int numberOfConsumers,
+                                     final int operations) throws Exception {
+        final Object counterMonitor = "";
+        final int[] remaining = {operations};
+
+        for (VmWorker w : workers) {
+            q.offerDistinct(w);
+        }
+
+        List<Thread> threads = new LinkedList<Thread>();
+        for (int i = 0; i < numberOfConsumers; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            VmWorker w = q.take();
+                            if (VmWorker.SCHEDULER_TERMINATED_SENTINEL == w) {
+                                return;
+                            }
+
+                            boolean done;
+                            synchronized (counterMonitor) {
+                                done = 0 >= --remaining[0];
+                            }
+
+                            if (done) {
+                                for (int j = 0; j < numberOfConsumers; j++) {
+                                    q.offer(VmWorker.SCHEDULER_TERMINATED_SENTINEL);
+                                }
+                            } else {
+                                // Put the worker back, as a sequencer would.
+                                q.offerDistinct(w);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Fall through.
+                    }
+                }
+            }));
+        }
+
+        long startTime = System.currentTimeMillis();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long endTime = System.currentTimeMillis();
+
+        // Drain anything left over for the next run.
+        q.clear();
+
+        return operations * 1000.0 / Math.max(1, endTime - startTime);
+    }
+
+    private double measureWakeupLatency(final BenchmarkQueue q,
+                                        final int wakeups) throws Exception {
+        final long[] takenAt = new long[1];
+        long total = 0;
+        VmWorker w = workers.get(0);
+
+        for (int i = 0; i < wakeups; i++) {
+            Thread consumer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        q.take();
+                        takenAt[0] = System.nanoTime();
+                    } catch (InterruptedException e) {
+                        // Fall through.
+                    }
+                }
+            });
+            consumer.start();
+
+            // Let the consumer block on the empty queue.
+            Thread.sleep(5);
+
+            long offeredAt = System.nanoTime();
+            q.offerDistinct(w);
+            consumer.join();
+            total += takenAt[0] - offeredAt;
+        }
+
+        return total / (wakeups * 1000000.0);
+    }
+
+    private interface BenchmarkQueue {
+        VmWorker take() throws InterruptedException;
+
+        void offer(VmWorker w);
+
+        void offerDistinct(VmWorker w);
+
+        void clear();
+    }
+
+    private VmWorker createWorker() {
+        ScriptEngine engine = LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
+        VmWorker w = new VmWorker(engine, nullHandler);
+        workers.add(w);
+        return w;
+    }
+}
@@ -2,12 +2,17 @@ package org.linkedprocess.farm.os;
 
 import junit.framework.TestCase;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.errors.DuplicateJobException;
 import org.linkedprocess.farm.os.errors.JobAlreadyExistsException;
 import org.linkedprocess.farm.os.errors.JobNotFoundException;
+import org.linkedprocess.farm.os.errors.SchedulerException;
 import org.linkedprocess.farm.os.errors.VmAlreadyExistsException;
+import org.linkedprocess.farm.os.errors.VmIsFullException;
 import org.linkedprocess.farm.os.errors.VmNotFoundException;
+import org.linkedprocess.farm.os.errors.VmSchedulerIsFullException;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Author: josh
@@ -19,13 +24,24 @@ public class VmSchedulerTest extends TestCase {
 
     private final VmScheduler.VmResultHandler resultHandler = createResultHandler();
     private final VmScheduler.LopStatusEventHandler eventHandler = createEventHandler();
-    private final Map<String, JobResult> resultsByID = new HashMap<String, JobResult>();
+    private final Map<String, JobResult> resultsByID = Collections.synchronizedMap(new HashMap<String, JobResult>());
     private final List<LinkedProcess.Status> farmStatusEvents = new LinkedList<LinkedProcess.Status>();
     private final List<String> vmStatusEventJIDs = new LinkedList<String>();
     private final List<LinkedProcess.Status> vmStatusEventTypes = new LinkedList<LinkedProcess.Status>();
     private VmScheduler scheduler;
     private Random random = new Random();
 
+    public static void main(final String[] args) throws Exception {
+        VmSchedulerTest t = new VmSchedulerTest();
+        t.setUp();
+        t.measureContention();
+        t.measureSpawnStorm();
+        t.measureTailLatency();
+        t.measureMixedWorkload();
+        t.measureShutdownLatency();
+        t.measureHibernation();
+    }
+
     public void setUp() {
         // Note: calling a LinkedProcess method simply ensures that its static initializer (part of whose job is
         //       to pre-load classes for scheduler threads) has already executed.
@@ -246,6 +262,546 @@ public class VmSchedulerTest extends TestCase {
         scheduler.shutdown();
     }
 
+    public void testMultipleVmsWithWorkStealing() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.SCHEDULING_MODE_PROPERTY, VmScheduler.SchedulingMode.WORK_STEALING.toString());
+
+        List<Job> jobs = new LinkedList<Job>();
+        for (int i = 0; i < 10; i++) {
+            String vm = randomJID();
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            for (int j = 0; j < 3; j++) {
+                Job job = randomLongRunningJob(vm);
+                scheduler.submitJob(vm, job);
+                jobs.add(job);
+            }
+        }
+        scheduler.waitUntilFinished();
+        assertEquals(jobs.size(), resultsByID.size());
+        for (Job job : jobs) {
+            assertNormalResult(job);
+        }
+        scheduler.shutdown();
+    }
+
+    public void testMultipleVmsWithSchedulingPolicies() throws Exception {
+        for (VmScheduler.SchedulingPolicyType policy : VmScheduler.SchedulingPolicyType.values()) {
+            resultsByID.clear();
+            scheduler = createScheduler(
+                    LinkedProcess.SCHEDULING_POLICY_PROPERTY, policy.toString(),
+                    LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_test", "high@example.org 100");
+
+            List<Job> jobs = new LinkedList<Job>();
+            for (int i = 0; i < 10; i++) {
+                String vm = randomJID();
+                scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+                for (int j = 0; j < 3; j++) {
+                    Job job = new Job(vm, 0 == i % 2 ? "high@example.org/villein" : "other@example.org/villein",
+                            "job" + random.nextInt(MAX_RANDOM_INT),
+                            "var p=1; for (i=0; i<100000; i++) {p *= 7; p /= 7;} p;");
+                    scheduler.submitJob(vm, job);
+                    jobs.add(job);
+                }
+            }
+            scheduler.waitUntilFinished();
+            assertEquals(jobs.size(), resultsByID.size());
+            for (Job job : jobs) {
+                assertNormalResult(job);
+            }
+            scheduler.shutdown();
+        }
+    }
+
+    public void testUnknownSchedulingPolicy() throws Exception {
+        try {
+            createScheduler(LinkedProcess.SCHEDULING_POLICY_PROPERTY, "no_such_policy");
+            fail("an unknown scheduling policy should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    public void testIdleVmsExpireWithoutBeingAccessed() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY, "200");
+
+        String neverUsed = randomJID();
+        scheduler.spawnVirtualMachine(neverUsed, LinkedProcess.JAVASCRIPT);
+        String used = randomJID();
+        scheduler.spawnVirtualMachine(used, LinkedProcess.JAVASCRIPT);
+        Job job = randomShortRunningJob(used);
+        scheduler.submitJob(used, job);
+        scheduler.waitUntilFinished();
+
+        // Nothing else is asked of the scheduler.
+        long startTime = System.currentTimeMillis();
+        while (LinkedProcess.Status.ACTIVE == scheduler.getVirtualMachineStatus(neverUsed)
+                || LinkedProcess.Status.ACTIVE == scheduler.getVirtualMachineStatus(used)) {
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+            Thread.sleep(10);
+        }
+        assertNormalResult(job);
+        scheduler.shutdown();
+    }
+
+    public void testBusyVmsDoNotExpire() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY, "200");
+
+        String vm = randomJID();
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+        Job infinite = randomInfiniteJob(vm);
+        scheduler.submitJob(vm, infinite);
+        Thread.sleep(1000);
+        assertEquals(LinkedProcess.Status.ACTIVE, scheduler.getVirtualMachineStatus(vm));
+
+        // Once it has nothing left to do, the VM expires.
+        scheduler.abortJob(vm, infinite.getJobId());
+        scheduler.waitUntilFinished();
+        assertAbortedResult(infinite);
+        long startTime = System.currentTimeMillis();
+        while (LinkedProcess.Status.ACTIVE == scheduler.getVirtualMachineStatus(vm)) {
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+            Thread.sleep(10);
+        }
+        scheduler.shutdown();
+    }
+
+    public void testAwaitTermination() throws Exception {
+        scheduler = createScheduler();
+        assertTrue(scheduler.getRunningSequencerCount() > 0);
+
+        List<Job> jobs = new LinkedList<Job>();
+        for (int i = 0; i < 5; i++) {
+            String vm = randomJID();
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            for (int j = 0; j < 3; j++) {
+                Job job = randomInfiniteJob(vm);
+                scheduler.submitJob(vm, job);
+                jobs.add(job);
+            }
+        }
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5000));
+
+        // Every job has been cancelled, and the scheduler's sequencers have stopped.
+        for (Job job : jobs) {
+            assertAbortedResult(job);
+        }
+        assertEquals(0, scheduler.getRunningSequencerCount());
+    }
+
+    public void testRejectedJobsAreNotWaitedFor() throws Exception {
+        scheduler = createScheduler();
+        try {
+            scheduler.submitJob("nosuchvm@example.com", randomShortRunningJob("nosuchvm@example.com"));
+            fail("a job for a missing VM should be rejected");
+        } catch (VmNotFoundException e) {
+            // Good.
+        }
+
+        // There is no result to wait for.
+        scheduler.waitUntilFinished();
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5000));
+    }
+
+    public void testSubmitJobs() throws Exception {
+        scheduler = createScheduler();
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+            int capacity = new Integer(LinkedProcess.getConfiguration().getProperty(
+                    LinkedProcess.JOB_QUEUE_CAPACITY_PROPERTY));
+
+            // The VM is not scheduled until the whole batch has been
+            // submitted, so its queue fills up.
+            List<Job> jobs = new LinkedList<Job>();
+            Job first = randomLongRunningJob(vm1);
+            jobs.add(first);
+            Job duplicate = new Job(vm1, "?", first.getJobId(), "2 + 2;");
+            jobs.add(duplicate);
+            for (int i = 1; i < capacity; i++) {
+                jobs.add(new Job(vm1, "?", "batch" + i, "'r" + i + "';"));
+            }
+            Job overflow = new Job(vm1, "?", "overflow", "1 + 0;");
+            jobs.add(overflow);
+
+            Map<Job, SchedulerException> rejected = scheduler.submitJobs(vm1, jobs);
+            assertEquals(2, rejected.size());
+            assertTrue(rejected.get(duplicate) instanceof JobAlreadyExistsException);
+            assertTrue(rejected.get(overflow) instanceof VmIsFullException);
+
+            scheduler.waitUntilFinished();
+            assertEquals(capacity, resultsByID.size());
+            assertNormalResult(first);
+            for (int i = 1; i < capacity; i++) {
+                assertEquals("r" + i, resultsByID.get("batch" + i).getExpression());
+            }
+            assertNull(resultsByID.get(overflow.getJobId()));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testBatchesSubmittedAgainAreNotRunTwice() throws Exception {
+        scheduler = createScheduler(LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "10",
+                LinkedProcess.DUPLICATE_JOB_WINDOW_PROPERTY, "60000");
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+
+            // The batch is submitted again while its first job is in progress.
+            Job infinite = randomInfiniteJob(vm1);
+            Job pending = new Job(vm1, infinite.getVilleinJid(), "pending", "'p';");
+            assertTrue(scheduler.submitJobs(vm1, Arrays.asList(infinite, pending)).isEmpty());
+            Map<Job, SchedulerException> rejected = scheduler.submitJobs(vm1, Arrays.asList(
+                    new Job(vm1, infinite.getVilleinJid(), infinite.getJobId(), infinite.getExpression()),
+                    new Job(vm1, infinite.getVilleinJid(), pending.getJobId(), pending.getExpression())));
+            assertEquals(2, rejected.size());
+            for (SchedulerException e : rejected.values()) {
+                assertNull(((DuplicateJobException) e).getCompletedJob());
+            }
+            scheduler.abortJob(vm1, infinite.getJobId());
+            scheduler.waitUntilFinished();
+            assertEquals(2, resultsByID.size());
+            resultsByID.clear();
+
+            // The batch is submitted again after it has finished.
+            List<Job> jobs = new LinkedList<Job>();
+            for (int i = 0; i < 3; i++) {
+                jobs.add(new Job(vm1, "?", "again" + i, "'r" + i + "';"));
+            }
+            assertTrue(scheduler.submitJobs(vm1, jobs).isEmpty());
+            scheduler.waitUntilFinished();
+            assertEquals(3, resultsByID.size());
+            resultsByID.clear();
+
+            List<Job> resubmitted = new LinkedList<Job>();
+            for (Job job : jobs) {
+                resubmitted.add(new Job(vm1, job.getVilleinJid(), job.getJobId(), job.getExpression()));
+            }
+            rejected = scheduler.submitJobs(vm1, resubmitted);
+            assertEquals(3, rejected.size());
+            for (int i = 0; i < 3; i++) {
+                DuplicateJobException e = (DuplicateJobException) rejected.get(resubmitted.get(i));
+                assertEquals("r" + i, e.getCompletedJob().getExpression());
+            }
+            scheduler.waitUntilFinished();
+            assertEquals(0, resultsByID.size());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testSubmitJobsToMissingVm() throws Exception {
+        scheduler = createScheduler();
+        try {
+            scheduler.submitJobs("nosuchvm@example.com", Arrays.asList(randomShortRunningJob("nosuchvm@example.com")));
+            fail("a batch for a missing VM should be rejected");
+        } catch (VmNotFoundException e) {
+            // Good.
+        }
+
+        // There is no result to wait for.
+        scheduler.waitUntilFinished();
+        scheduler.shutdown();
+    }
+
+    public void testJobsAreTurnedAwayWhileResultsBackUp() throws Exception {
+        final AtomicBoolean congested = new AtomicBoolean(true);
+        class CongestedResultHandler implements VmScheduler.VmResultHandler, VmScheduler.VmResultBackpressure {
+            public void handleResult(JobResult result) {
+                resultHandler.handleResult(result);
+            }
+
+            public boolean isCongested() {
+                return congested.get();
+            }
+        }
+        scheduler = new VmScheduler(new CongestedResultHandler(), eventHandler);
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+
+            Job job = randomShortRunningJob(vm1);
+            try {
+                scheduler.submitJob(vm1, job);
+                fail("a job should be turned away while results are backing up");
+            } catch (VmIsFullException e) {
+                // Good.
+            }
+            Map<Job, SchedulerException> rejected = scheduler.submitJobs(vm1, Arrays.asList(job));
+            assertTrue(rejected.get(job) instanceof VmIsFullException);
+            // There is no result to wait for.
+            scheduler.waitUntilFinished();
+
+            // A job which the farm releases itself is let through.
+            Job released = randomShortRunningJob(vm1);
+            scheduler.submitReleasedJob(vm1, released);
+            scheduler.waitUntilFinished();
+            assertNormalResult(released);
+
+            congested.set(false);
+            scheduler.submitJob(vm1, job);
+            scheduler.waitUntilFinished();
+            assertNormalResult(job);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testIdleVmsAreHibernatedAndWokenUp() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, "100");
+        VmSnapshotStore store = scheduler.getSnapshotStore();
+
+        String vm = randomJID();
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+        VmBindings bindings = new VmBindings();
+        bindings.put("x", 41);
+        scheduler.setBindings(vm, bindings);
+        scheduler.submitJob(vm, randomJob(vm, "var y = 'one';"));
+        scheduler.waitUntilFinished();
+
+        waitForHibernation(store, vm);
+        assertEquals(LinkedProcess.Status.ACTIVE, scheduler.getVirtualMachineStatus(vm));
+        assertFalse(vmStatusEventTypes.contains(LinkedProcess.Status.INACTIVE));
+        try {
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            fail("a hibernated VM should still exist");
+        } catch (VmAlreadyExistsException e) {
+            // Good.
+        }
+
+        // The next job wakes the VM up, with its bindings intact.
+        Job job = randomJob(vm, "x + 1 + y;");
+        scheduler.submitJob(vm, job);
+        scheduler.waitUntilFinished();
+        assertEquals("42one", resultsByID.get(job.getJobId()).getExpression());
+        assertFalse(store.contains(vm));
+        assertEquals(1, store.getRehydrations());
+
+        // And so do bindings.
+        waitForHibernation(store, vm);
+        Set<String> names = new HashSet<String>();
+        names.add("y");
+        assertEquals("one", scheduler.getBindings(vm, names).get("y"));
+        assertEquals(2, store.getRehydrations());
+        scheduler.shutdown();
+    }
+
+    public void testVmsWithUnstorableBindingsAreNotHibernated() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, "50");
+
+        String vm = randomJID();
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+        scheduler.submitJob(vm, randomJob(vm, "function f() {return 1;}"));
+        scheduler.waitUntilFinished();
+
+        Thread.sleep(500);
+        assertFalse(scheduler.getSnapshotStore().contains(vm));
+        Job job = randomJob(vm, "f();");
+        scheduler.submitJob(vm, job);
+        scheduler.waitUntilFinished();
+        assertNormalResult(job);
+        scheduler.shutdown();
+    }
+
+    public void testHibernatedVmsExpire() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, "50",
+                LinkedProcess.VIRTUAL_MACHINE_TIME_TO_LIVE_PROPERTY, "400");
+        VmSnapshotStore store = scheduler.getSnapshotStore();
+
+        String vm = randomJID();
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+        waitForHibernation(store, vm);
+
+        long startTime = System.currentTimeMillis();
+        while (LinkedProcess.Status.ACTIVE == scheduler.getVirtualMachineStatus(vm)) {
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+            Thread.sleep(10);
+        }
+        assertFalse(store.contains(vm));
+        assertEquals(LinkedProcess.Status.INACTIVE, vmStatusEventTypes.get(vmStatusEventTypes.size() - 1));
+        try {
+            scheduler.submitJob(vm, randomShortRunningJob(vm));
+            fail("an expired VM should not be found");
+        } catch (VmNotFoundException e) {
+            // Good.
+        }
+        scheduler.shutdown();
+    }
+
+    public void testTerminateHibernatedVm() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, "50");
+        VmSnapshotStore store = scheduler.getSnapshotStore();
+
+        String vm = randomJID();
+        scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+        waitForHibernation(store, vm);
+
+        // Neither of these wakes the VM up.
+        assertEquals(LinkedProcess.Status.ACTIVE, scheduler.getVirtualMachineStatus(vm));
+        try {
+            scheduler.getJobStatus(vm, "nosuchjob");
+            fail("a hibernated VM should have no jobs");
+        } catch (JobNotFoundException e) {
+            // Good.
+        }
+        assertTrue(store.contains(vm));
+
+        scheduler.terminateVm(vm);
+        assertFalse(store.contains(vm));
+        assertEquals(LinkedProcess.Status.INACTIVE, scheduler.getVirtualMachineStatus(vm));
+        assertEquals(0, store.getRehydrations());
+        scheduler.shutdown();
+    }
+
+    public void testMultipleVmsOnThreadPool() throws Exception {
+        scheduler = createScheduler(
+                LinkedProcess.EXECUTION_MODE_PROPERTY, VmWorker.ExecutionMode.COOPERATIVE.toString(),
+                LinkedProcess.WORKER_THREAD_POOL_SIZE_PROPERTY, "2");
+
+        // A job which never finishes holds on to one of the two threads...
+        String busyVm = randomJID();
+        scheduler.spawnVirtualMachine(busyVm, LinkedProcess.JAVASCRIPT);
+        Job infinite = randomInfiniteJob(busyVm);
+        scheduler.submitJob(busyVm, infinite);
+
+        // ...while the other VMs take turns with the other.
+        List<Job> jobs = new LinkedList<Job>();
+        for (int i = 0; i < 10; i++) {
+            String vm = randomJID();
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            for (int j = 0; j < 3; j++) {
+                Job job = randomLongRunningJob(vm);
+                scheduler.submitJob(vm, job);
+                jobs.add(job);
+            }
+        }
+        for (VmWorker w : scheduler.getWorkers()) {
+            assertFalse(w.hasOwnThread());
+        }
+
+        while (resultsByID.size() < jobs.size()) {
+            Thread.sleep(10);
+        }
+        for (Job job : jobs) {
+            assertNormalResult(job);
+        }
+        assertTrue(scheduler.getCarrierPool().getLargestThreadCount() <= 3);
+
+        // The abort may be deferred to the end of the current time slice.
+        scheduler.abortJob(busyVm, infinite.getJobId());
+        while (!resultsByID.containsKey(infinite.getJobId())) {
+            Thread.sleep(10);
+        }
+        assertAbortedResult(infinite);
+        scheduler.shutdown();
+    }
+
+    public void testConcurrentJobSubmission() throws Exception {
+        scheduler = new VmScheduler(resultHandler, eventHandler);
+        final String vm1 = randomJID();
+        scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+
+        int submitters = 4;
+        final int jobsPerSubmitter = 20;
+        final List<Job> jobs = Collections.synchronizedList(new LinkedList<Job>());
+        List<Thread> threads = new LinkedList<Thread>();
+        for (int i = 0; i < submitters; i++) {
+            final int submitter = i;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < jobsPerSubmitter; j++) {
+                            Job job = new Job(vm1, "?", "job" + submitter + "-" + j, "1 + 0;");
+                            scheduler.submitJob(vm1, job);
+                            jobs.add(job);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        scheduler.waitUntilFinished();
+        assertEquals(submitters * jobsPerSubmitter, jobs.size());
+        assertEquals(submitters * jobsPerSubmitter, resultsByID.size());
+        for (Job job : jobs) {
+            assertNormalResult(job);
+        }
+
+        // Once a job has produced its result, its ID may be used again (by
+        // another job: the same job would be recognized as submitted again).
+        Job job = new Job(vm1, jobs.get(0).getVilleinJid(), jobs.get(0).getJobId(), "0 + 1;");
+        resultsByID.clear();
+        scheduler.submitJob(vm1, job);
+        scheduler.waitUntilFinished();
+        assertNormalResult(job);
+
+        scheduler.shutdown();
+    }
+
+    public void testVmIsAccessibleDuringTimeSlice() throws Exception {
+        scheduler = new VmScheduler(resultHandler, eventHandler);
+        String vm1 = randomJID();
+        scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+
+        VmBindings bindings = new VmBindings();
+        bindings.put("a", 42);
+        scheduler.setBindings(vm1, bindings);
+
+        Job job = randomInfiniteJob(vm1);
+        scheduler.submitJob(vm1, job);
+        Object o = "";
+        synchronized (o) {
+            o.wait(100);
+        }
+
+        // None of these calls should have to wait for the end of a time slice.
+        int calls = 100;
+        long quantum = new Long(LinkedProcess.getConfiguration().getProperty(
+                LinkedProcess.ROUND_ROBIN_QUANTUM_PROPERTY));
+        Set<String> names = new HashSet<String>();
+        names.add("a");
+        names.add("b");
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < calls; i++) {
+            assertEquals(LinkedProcess.JobStatus.IN_PROGRESS, scheduler.getJobStatus(vm1, job.getJobId()));
+            assertEquals(42, scheduler.getBindings(vm1, names).get("a"));
+        }
+        long after = System.currentTimeMillis();
+        assertTrue(after - before < calls * quantum / 4);
+
+        // Bindings set while the job is running are visible right away.
+        bindings = new VmBindings();
+        bindings.put("b", 7);
+        scheduler.setBindings(vm1, bindings);
+        assertEquals(7, scheduler.getBindings(vm1, names).get("b"));
+
+        scheduler.abortJob(vm1, job.getJobId());
+        scheduler.waitUntilFinished();
+        assertAbortedResult(job);
+
+        // ...and they are applied to the VM itself.
+        assertEquals(7, scheduler.getAllBindings(vm1).get("b"));
+
+        scheduler.shutdown();
+    }
+
     public void testSchedulerAndVmStatus() throws Exception {
         String[] vmJIDs = new String[VmScheduler.MAX_VM];
 
@@ -316,6 +872,137 @@ public class VmSchedulerTest extends TestCase {
         scheduler.shutdown();
     }
 
+    public void testFinishedJobsAreRemembered() throws Exception {
+        scheduler = createScheduler(LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "10");
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+            Job job = randomShortRunningJob(vm1);
+            scheduler.submitJob(vm1, job);
+            scheduler.waitUntilFinished();
+
+            assertEquals(LinkedProcess.JobStatus.COMPLETED, scheduler.getJobStatus(vm1, job.getJobId()));
+            CompletedJobStore.CompletedJob completed = scheduler.getCompletedJob(vm1, job.getJobId());
+            assertEquals(resultsByID.get(job.getJobId()).getExpression(), completed.getExpression());
+            assertNull(completed.getLopError());
+
+            try {
+                scheduler.getCompletedJob(vm1, "nosuchjob");
+                fail("a job which has never been submitted should not be found");
+            } catch (JobNotFoundException e) {
+                // Good.
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+
+        scheduler = createScheduler(LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "0");
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+            Job job = randomShortRunningJob(vm1);
+            scheduler.submitJob(vm1, job);
+            scheduler.waitUntilFinished();
+
+            try {
+                scheduler.getJobStatus(vm1, job.getJobId());
+                fail("a finished job should be forgotten");
+            } catch (JobNotFoundException e) {
+                // Good.
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public void testJobsSubmittedAgainAreNotRunTwice() throws Exception {
+        scheduler = createScheduler(LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "10",
+                LinkedProcess.DUPLICATE_JOB_WINDOW_PROPERTY, "60000");
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+
+            // A job submitted again while it is in progress is attached to it.
+            Job job = randomInfiniteJob(vm1);
+            scheduler.submitJob(vm1, job);
+            try {
+                scheduler.submitJob(vm1, new Job(vm1, job.getVilleinJid(), job.getJobId(), job.getExpression()));
+                fail("a job in progress should not be run twice");
+            } catch (DuplicateJobException e) {
+                assertNull(e.getCompletedJob());
+            }
+            // ...but another job which re-uses its ID is turned away as usual.
+            try {
+                scheduler.submitJob(vm1, new Job(vm1, job.getVilleinJid(), job.getJobId(), "1 + 1;"));
+                fail("a job ID in use should not be accepted");
+            } catch (JobAlreadyExistsException e) {
+                assertFalse(e instanceof DuplicateJobException);
+            }
+            scheduler.abortJob(vm1, job.getJobId());
+            scheduler.waitUntilFinished();
+            assertEquals(1, resultsByID.size());
+
+            // A job without a villein is told apart just the same.
+            Job anonymous = new Job(vm1, null, job.getJobId() + "x", job.getExpression());
+            scheduler.submitJob(vm1, anonymous);
+            try {
+                scheduler.submitJob(vm1, new Job(vm1, null, anonymous.getJobId(), job.getExpression()));
+                fail("a job in progress should not be run twice");
+            } catch (DuplicateJobException e) {
+                assertNull(e.getCompletedJob());
+            }
+            try {
+                scheduler.submitJob(vm1, new Job(vm1, job.getVilleinJid(), anonymous.getJobId(), job.getExpression()));
+                fail("a job ID in use should not be accepted");
+            } catch (JobAlreadyExistsException e) {
+                assertFalse(e instanceof DuplicateJobException);
+            }
+            scheduler.abortJob(vm1, anonymous.getJobId());
+            scheduler.waitUntilFinished();
+            resultsByID.clear();
+
+            // A job submitted again after it has finished is answered with its result.
+            job = randomShortRunningJob(vm1);
+            scheduler.submitJob(vm1, job);
+            scheduler.waitUntilFinished();
+            resultsByID.clear();
+            try {
+                scheduler.submitJob(vm1, new Job(vm1, job.getVilleinJid(), job.getJobId(), job.getExpression()));
+                fail("a finished job should not be run twice");
+            } catch (DuplicateJobException e) {
+                assertEquals("1.0", e.getCompletedJob().getExpression());
+                assertNull(e.getCompletedJob().getLopError());
+            }
+            scheduler.waitUntilFinished();
+            assertEquals(0, resultsByID.size());
+
+            // A different job which re-uses the ID of a finished job is run.
+            Job other = new Job(vm1, job.getVilleinJid(), job.getJobId(), "2 + 0;");
+            scheduler.submitJob(vm1, other);
+            scheduler.waitUntilFinished();
+            assertEquals("2.0", resultsByID.get(job.getJobId()).getExpression());
+        } finally {
+            scheduler.shutdown();
+        }
+
+        // Without a window, a finished job is simply run again.
+        scheduler = createScheduler(LinkedProcess.COMPLETED_JOB_STORE_SIZE_PROPERTY, "10",
+                LinkedProcess.DUPLICATE_JOB_WINDOW_PROPERTY, "0");
+        try {
+            String vm1 = randomJID();
+            scheduler.spawnVirtualMachine(vm1, LinkedProcess.JAVASCRIPT);
+            Job job = randomShortRunningJob(vm1);
+            scheduler.submitJob(vm1, job);
+            scheduler.waitUntilFinished();
+            resultsByID.clear();
+            scheduler.submitJob(vm1, new Job(vm1, job.getVilleinJid(), job.getJobId(), job.getExpression()));
+            scheduler.waitUntilFinished();
+            assertNormalResult(job);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
     public void testStatusErrors() throws Exception {
         scheduler = new VmScheduler(resultHandler, eventHandler);
         String vm1 = randomJID();
@@ -400,6 +1087,411 @@ public class VmSchedulerTest extends TestCase {
 
 ////////////////////////////////////////////////////////////////////////////
 
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Measures the rate at which requests addressed to one idle VM are served
+     * while clients poll an increasing number of busy VMs (each running an
+     * infinite job) with requests of their own.  Apart from the share of the
+     * CPU taken by the busy VMs themselves, the rate should not depend on the
+     * number of busy VMs.
+     */
+    public void measureContention() throws Exception {
+        int[] busyVmCounts = {0, 1, 4, 16, 32};
+        long duration = 2000;
+
+        System.out.println("requests per second to an idle VM, by number of busy VMs:");
+        for (int busyVms : busyVmCounts) {
+            System.out.println("\t" + busyVms + ":\t" + measureIdleVmThroughput(busyVms, duration));
+        }
+    }
+
+    private double measureIdleVmThroughput(final int busyVms,
+                                           final long duration) throws Exception {
+        scheduler = new VmScheduler(resultHandler, eventHandler);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        List<Thread> clients = new LinkedList<Thread>();
+        for (int i = 0; i < busyVms; i++) {
+            final String vm = randomJID();
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            final Job job = randomInfiniteJob(vm);
+            scheduler.submitJob(vm, job);
+
+            clients.add(new Thread(new Runnable() {
+                public void run() {
+                    Set<String> names = new HashSet<String>();
+                    names.add("x");
+                    try {
+                        while (!stopped.get()) {
+                            scheduler.getJobStatus(vm, job.getJobId());
+                            scheduler.getBindings(vm, names);
+                            // Poll, rather than spin, so as to compete for locks rather than for the CPU.
+                            Thread.sleep(1);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+        }
+
+        String idleVm = randomJID();
+        scheduler.spawnVirtualMachine(idleVm, LinkedProcess.JAVASCRIPT);
+        VmBindings bindings = new VmBindings();
+        bindings.put("a", 1);
+        Set<String> names = bindings.keySet();
+
+        for (Thread t : clients) {
+            t.start();
+        }
+
+        // Let the busy VMs get going.
+        Thread.sleep(200);
+
+        long requests = 0;
+        long startTime = System.currentTimeMillis();
+        long endTime;
+        do {
+            scheduler.setBindings(idleVm, bindings);
+            scheduler.getBindings(idleVm, names);
+            scheduler.getVirtualMachineStatus(idleVm);
+            requests += 3;
+            endTime = System.currentTimeMillis();
+        } while (endTime - startTime < duration);
+
+        stopped.set(true);
+        for (Thread t : clients) {
+            t.join();
+        }
+        scheduler.shutdown();
+
+        return requests * 1000.0 / (endTime - startTime);
+    }
+
+    /**
+     * Measures the cost of spawning VMs en masse, of keeping them idle, and
+     * of running one short job on each, with a thread per VM and with a
+     * shared pool of threads.
+     */
+    public void measureSpawnStorm() throws Exception {
+        int rounds = 20;
+        int vms = VmScheduler.MAX_VM - 1;
+
+        System.out.println("spawn storm (" + rounds + " rounds of " + vms + " VMs):");
+        measureSpawnStorm("thread per VM", rounds, vms,
+                createScheduler(LinkedProcess.EXECUTION_MODE_PROPERTY, VmWorker.ExecutionMode.PREEMPTIVE.toString()));
+        measureSpawnStorm("shared pool", rounds, vms,
+                createScheduler(LinkedProcess.EXECUTION_MODE_PROPERTY, VmWorker.ExecutionMode.COOPERATIVE.toString(),
+                        LinkedProcess.WORKER_THREAD_POOL_SIZE_PROPERTY, "4"));
+    }
+
+    private void measureSpawnStorm(final String description,
+                                   final int rounds,
+                                   final int vms,
+                                   final VmScheduler scheduler) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        long spawnTime = 0;
+        long jobTime = 0;
+        int idleThreads = 0;
+        long idleMemory = 0;
+
+        for (int r = 0; r < rounds; r++) {
+            int threadsBefore = Thread.activeCount();
+            System.gc();
+            long memoryBefore = runtime.totalMemory() - runtime.freeMemory();
+
+            List<String> ids = new LinkedList<String>();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < vms; i++) {
+                String vm = "storm" + i + "@example.com";
+                scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+                ids.add(vm);
+            }
+            spawnTime += System.nanoTime() - startTime;
+
+            idleThreads += Thread.activeCount() - threadsBefore;
+            System.gc();
+            idleMemory += runtime.totalMemory() - runtime.freeMemory() - memoryBefore;
+
+            startTime = System.nanoTime();
+            for (String vm : ids) {
+                scheduler.submitJob(vm, randomShortRunningJob(vm));
+            }
+            while (resultsByID.size() < vms) {
+                Thread.sleep(1);
+            }
+            jobTime += System.nanoTime() - startTime;
+            resultsByID.clear();
+
+            for (String vm : ids) {
+                scheduler.terminateVm(vm);
+            }
+        }
+        scheduler.shutdown();
+
+        System.out.println("\t" + description + ":\t"
+                + (spawnTime / 1000.0 / rounds / vms) + " us per spawn, "
+                + ((double) idleThreads / rounds / vms) + " threads and "
+                + (idleMemory / rounds / vms / 1024) + " KB heap per idle VM, "
+                + (jobTime / 1000000.0 / rounds) + " ms to run one job on every VM");
+    }
+
+    /**
+     * Measures the time taken by the short jobs of an interactive villein to
+     * complete while a batch villein keeps several VMs busy, under each
+     * scheduling policy.
+     */
+    public void measureTailLatency() throws Exception {
+        int batchVms = 8;
+        int samples = 100;
+
+        System.out.println("interactive job latency (" + batchVms + " busy batch VMs, "
+                + samples + " interactive jobs):");
+        for (VmScheduler.SchedulingPolicyType policy : VmScheduler.SchedulingPolicyType.values()) {
+            VmScheduler scheduler = createScheduler(
+                    LinkedProcess.SCHEDULING_POLICY_PROPERTY, policy.toString(),
+                    LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_interactive", "interactive@example.org 127",
+                    LinkedProcess.VILLEIN_PRIORITY_PROPERTY + "_batch", "batch@example.org -128");
+
+            List<String> vms = new LinkedList<String>();
+            for (int i = 0; i < batchVms; i++) {
+                String vm = "batch" + i + "@example.com";
+                scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+                for (int j = 0; j < 20; j++) {
+                    scheduler.submitJob(vm, new Job(vm, "batch@example.org/villein", "batch" + i + "-" + j,
+                            "var p=1; for (i=0; i<1000000; i++) {p *= 7; p /= 7;} p;"));
+                }
+                vms.add(vm);
+            }
+            String interactiveVm = "interactive@example.com";
+            scheduler.spawnVirtualMachine(interactiveVm, LinkedProcess.JAVASCRIPT);
+
+            long[] latencies = new long[samples];
+            for (int i = 0; i < samples; i++) {
+                Job job = new Job(interactiveVm, "interactive@example.org/villein", "interactive" + i, "1 + 1;");
+                long startTime = System.nanoTime();
+                scheduler.submitJob(interactiveVm, job);
+                while (!resultsByID.containsKey(job.getJobId())) {
+                    Thread.sleep(1);
+                }
+                latencies[i] = System.nanoTime() - startTime;
+                Thread.sleep(5);
+            }
+            scheduler.shutdown();
+            resultsByID.clear();
+
+            Arrays.sort(latencies);
+            System.out.println("\t" + policy + ":\t"
+                    + "median " + (latencies[samples / 2] / 1000000.0) + " ms, "
+                    + "99th percentile " + (latencies[samples * 99 / 100] / 1000000.0) + " ms, "
+                    + "max " + (latencies[samples - 1] / 1000000.0) + " ms");
+        }
+    }
+
+    /**
+     * Measures the throughput of a mix of short, medium and long jobs, and the
+     * number of context switches and the overhead they cost, with a fixed and
+     * with an adaptive quantum.
+     */
+    public void measureMixedWorkload() throws Exception {
+        String[] expressions = {
+                "1 + 1;",
+                "var p=1; for (i=0; i<20000; i++) {p *= 7; p /= 7;} p;",
+                "var p=1; for (i=0; i<200000; i++) {p *= 7; p /= 7;} p;"};
+        int vmsPerKind = 3;
+        int jobsPerVm = 20;
+
+        System.out.println("mixed workload (" + vmsPerKind + " VMs each of short, medium and long jobs, "
+                + jobsPerVm + " jobs per VM):");
+        for (boolean adaptive : new boolean[]{false, true}) {
+            VmScheduler scheduler = createScheduler(
+                    LinkedProcess.ADAPTIVE_QUANTUM_PROPERTY, "" + adaptive);
+            resultsByID.clear();
+
+            List<String> vms = new LinkedList<String>();
+            for (int i = 0; i < vmsPerKind * expressions.length; i++) {
+                String vm = "mixed" + i + "@example.com";
+                scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+                vms.add(vm);
+            }
+
+            long startTime = System.nanoTime();
+            for (int j = 0; j < jobsPerVm; j++) {
+                int i = 0;
+                for (String vm : vms) {
+                    scheduler.submitJob(vm, new Job(vm, "?", "job" + j, expressions[i++ % expressions.length]));
+                }
+            }
+            scheduler.waitUntilFinished();
+            double time = (System.nanoTime() - startTime) / 1000000000.0;
+
+            QuantumController c = scheduler.getQuantumController();
+            System.out.println("\t" + (adaptive ? "adaptive" : "fixed") + " quantum:\t"
+                    + (resultsByID.size() / time) + " jobs/s, "
+                    + c.getTimeSlices() + " time slices, "
+                    + c.getContextSwitches() + " context switches, "
+                    + (c.getOverheadTime() / 1000000.0) + " ms overhead");
+            scheduler.shutdown();
+            resultsByID.clear();
+        }
+    }
+
+    /**
+     * Measures the time taken to learn that a job has finished, to terminate
+     * a busy VM, and to shut down a busy scheduler completely.
+     */
+    public void measureShutdownLatency() throws Exception {
+        int rounds = 20;
+        long finishTime = 0;
+        long terminateTime = 0;
+        long shutdownTime = 0;
+
+        for (int r = 0; r < rounds; r++) {
+            resultsByID.clear();
+            VmScheduler scheduler = createScheduler();
+
+            // From the result of a job to the return of waitUntilFinished.
+            String vm = "shutdown@example.com";
+            scheduler.spawnVirtualMachine(vm, LinkedProcess.JAVASCRIPT);
+            Job job = randomShortRunningJob(vm);
+            scheduler.submitJob(vm, job);
+            while (!resultsByID.containsKey(job.getJobId())) {
+                Thread.yield();
+            }
+            long startTime = System.nanoTime();
+            scheduler.waitUntilFinished();
+            finishTime += System.nanoTime() - startTime;
+
+            // Termination of a VM with queued jobs.
+            for (int i = 0; i < 10; i++) {
+                scheduler.submitJob(vm, randomJob(vm, "while (true) {var x = " + i + ";}"));
+            }
+            startTime = System.nanoTime();
+            scheduler.terminateVm(vm);
+            scheduler.waitUntilFinished();
+            terminateTime += System.nanoTime() - startTime;
+
+            // Shutdown of a scheduler whose VMs are all busy.
+            for (int i = 0; i < 10; i++) {
+                String busyVm = "busy" + i + "@example.com";
+                scheduler.spawnVirtualMachine(busyVm, LinkedProcess.JAVASCRIPT);
+                scheduler.submitJob(busyVm, randomInfiniteJob(busyVm));
+            }
+            Thread.sleep(100);
+            startTime = System.nanoTime();
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10000));
+            shutdownTime += System.nanoTime() - startTime;
+        }
+
+        System.out.println("lifecycle latency (" + rounds + " rounds): "
+                + (finishTime / 1000.0 / rounds) + " us to learn that jobs have finished, "
+                + (terminateTime / 1000.0 / rounds) + " us to terminate a VM, "
+                + (shutdownTime / 1000000.0 / rounds) + " ms to shut down a busy scheduler");
+    }
+
+    /**
+     * Measures the memory taken by idle VMs, awake and hibernated, and the
+     * time taken to wake a VM up.
+     */
+    public void measureHibernation() throws Exception {
+        int vms = 200;
+        Runtime rt = Runtime.getRuntime();
+
+        for (boolean hibernate : new boolean[]{true, false}) {
+            collectGarbage();
+            long before = rt.totalMemory() - rt.freeMemory();
+            VmScheduler scheduler = createScheduler(
+                    LinkedProcess.VIRTUAL_MACHINE_HIBERNATION_TIMEOUT_PROPERTY, hibernate ? "0" : "-1",
+                    LinkedProcess.SCRIPT_ENGINE_POOL_HIGH_WATERMARK_PROPERTY, "0",
+                    LinkedProcess.SCRIPT_ENGINE_POOL_LOW_WATERMARK_PROPERTY, "0");
+            // Note: the scheduler only holds MAX_VM VMs at a time, unless
+            // they are hibernated.
+            int held = hibernate ? vms : Math.min(vms, VmScheduler.MAX_VM);
+            String[] jids = new String[held];
+            for (int i = 0; i < held; i++) {
+                jids[i] = "idle" + i + "@example.com";
+                while (true) {
+                    try {
+                        scheduler.spawnVirtualMachine(jids[i], LinkedProcess.JAVASCRIPT);
+                        break;
+                    } catch (VmSchedulerIsFullException e) {
+                        // Wait for a VM to be hibernated.
+                        Thread.sleep(1);
+                    }
+                }
+                scheduler.submitJob(jids[i], randomJob(jids[i], "var counter = " + i + ";"));
+            }
+            scheduler.waitUntilFinished();
+            if (hibernate) {
+                while (scheduler.getSnapshotStore().size() < held) {
+                    Thread.sleep(10);
+                }
+            }
+            collectGarbage();
+            long after = rt.totalMemory() - rt.freeMemory();
+            System.out.println((hibernate ? "hibernated" : "awake") + " VMs: "
+                    + held + " VMs, " + ((after - before) / 1024 / held) + " KB per VM");
+
+            if (hibernate) {
+                long startTime = System.nanoTime();
+                for (int i = 0; i < 20; i++) {
+                    Job job = randomJob(jids[i], "counter;");
+                    scheduler.submitJob(jids[i], job);
+                }
+                scheduler.waitUntilFinished();
+                System.out.println("waking up and running a job: "
+                        + ((System.nanoTime() - startTime) / 1000000.0 / 20) + " ms per VM");
+            }
+            scheduler.shutdown();
+            scheduler.awaitTermination(10000);
+        }
+    }
+
+    /**
+     * Creates a scheduler with the given configuration properties, which are
+     * restored as soon as the scheduler has been created.
+     */
+    private VmScheduler createScheduler(final String... namesAndValues) {
+        Properties conf = LinkedProcess.getConfiguration();
+        Map<String, String> previous = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            previous.put(namesAndValues[i], conf.getProperty(namesAndValues[i]));
+            conf.setProperty(namesAndValues[i], namesAndValues[i + 1]);
+        }
+
+        try {
+            return new VmScheduler(resultHandler, eventHandler);
+        } finally {
+            for (String name : previous.keySet()) {
+                String value = previous.get(name);
+                if (null == value) {
+                    conf.remove(name);
+                } else {
+                    conf.setProperty(name, value);
+                }
+            }
+        }
+    }
+
+    private void collectGarbage() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private void waitForHibernation(final VmSnapshotStore store,
+                                    final String vm) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (!store.contains(vm)) {
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+            Thread.sleep(10);
+        }
+    }
+
+
     private VmScheduler.VmResultHandler createResultHandler() {
         return new VmScheduler.VmResultHandler() {
 
@@ -0,0 +1,108 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class VmSnapshotStoreTest extends TestCase {
+    private File directory;
+
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "lop-snapshot-test-" + System.nanoTime());
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        VmSnapshotStore store = new VmSnapshotStore(null, 10);
+        VmBindings bindings = createBindings();
+
+        store.put("vm@example.org", "JavaScript", bindings, 1234);
+        assertTrue(store.contains("vm@example.org"));
+        assertEquals("JavaScript", store.get("vm@example.org").getLanguage());
+        assertEquals(1234, store.get("vm@example.org").getTimeLastActive());
+
+        assertEquals(bindings, store.restore("vm@example.org"));
+        assertFalse(store.contains("vm@example.org"));
+        assertNull(store.restore("vm@example.org"));
+        assertEquals(1, store.getHibernations());
+        assertEquals(1, store.getRehydrations());
+    }
+
+    public void testSnapshotsInFiles() throws Exception {
+        VmSnapshotStore store = new VmSnapshotStore(directory, 10);
+        VmBindings bindings = createBindings();
+
+        store.put("a@example.org", "JavaScript", bindings, 0);
+        store.put("b@example.org", "JavaScript", new VmBindings(), 0);
+        assertEquals(2, directory.listFiles().length);
+
+        assertEquals(bindings, store.restore("a@example.org"));
+        assertTrue(store.remove("b@example.org"));
+        assertFalse(store.remove("b@example.org"));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testReplacedSnapshotsAreDiscarded() throws Exception {
+        VmSnapshotStore store = new VmSnapshotStore(directory, 10);
+
+        store.put("a@example.org", "JavaScript", createBindings(), 0);
+        store.put("a@example.org", "JavaScript", new VmBindings(), 1);
+        assertEquals(1, directory.listFiles().length);
+        assertEquals(new VmBindings(), store.restore("a@example.org"));
+
+        store.put("a@example.org", "JavaScript", createBindings(), 2);
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    public void testCapacity() throws Exception {
+        VmSnapshotStore store = new VmSnapshotStore(null, 2);
+
+        store.put("a@example.org", "JavaScript", new VmBindings(), 0);
+        assertFalse(store.isFull());
+        store.put("b@example.org", "JavaScript", new VmBindings(), 0);
+        assertTrue(store.isFull());
+        store.remove("a@example.org");
+        assertFalse(store.isFull());
+    }
+
+    public void testOnlyTypedValuesAreStorable() throws Exception {
+        VmBindings bindings = createBindings();
+        assertTrue(VmSnapshotStore.isStorable(bindings));
+
+        bindings.put("list", Arrays.asList(1, 2, 3));
+        assertFalse(VmSnapshotStore.isStorable(bindings));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private VmBindings createBindings() {
+        VmBindings bindings = new VmBindings();
+        bindings.put("boolean", true);
+        bindings.put("double", 2.5);
+        bindings.put("integer", 42);
+        bindings.put("long", 1L << 40);
+        bindings.put("string", "café");
+        bindings.put("null", null);
+
+        // Longer than writeUTF allows.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        bindings.put("long string", sb.toString());
+
+        return bindings;
+    }
+}
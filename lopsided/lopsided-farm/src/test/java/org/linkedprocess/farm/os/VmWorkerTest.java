@@ -3,8 +3,22 @@ package org.linkedprocess.farm.os;
 import junit.framework.TestCase;
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.LinkedProcessFarm;
+import org.linkedprocess.farm.SubmitJob;
+import org.linkedprocess.farm.SubmitJobProvider;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
 
 import javax.script.ScriptEngine;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 /**
  * Author: josh
@@ -12,14 +26,245 @@ import javax.script.ScriptEngine;
  * Time: 11:53:03 AM
  */
 public class VmWorkerTest extends TestCase {
+    private static final String WORKER_THREAD_NAME_PREFIX = "LoP VM worker thread";
+
+    private final Map<String, JobResult> resultsByID
+            = new HashMap<String, JobResult>();
+    private final VmScheduler.VmResultHandler resultHandler = new VmScheduler.VmResultHandler() {
+        public void handleResult(final JobResult result) {
+            synchronized (resultsByID) {
+                resultsByID.put(result.getJob().getJobId(), result);
+            }
+        }
+    };
+
+    private final List<VmWorker> workers = new LinkedList<VmWorker>();
+    private String executionMode;
+    private String jobTimeout;
+    private int jobCount = 0;
+
     public static void main(final String[] args) throws Exception {
         new VmWorkerTest().findContextSwitchingTime();
+        new VmWorkerTest().compareExecutionModes();
+    }
+
+    public void setUp() {
+        Properties conf = LinkedProcess.getConfiguration();
+        executionMode = conf.getProperty(LinkedProcess.EXECUTION_MODE_PROPERTY);
+        jobTimeout = conf.getProperty(LinkedProcess.JOB_TIMEOUT_PROPERTY);
+    }
+
+    public void tearDown() {
+        for (VmWorker w : workers) {
+            if (VmWorker.Status.TERMINATED != w.status) {
+                w.terminate();
+            }
+        }
+        workers.clear();
+
+        restoreProperty(LinkedProcess.EXECUTION_MODE_PROPERTY, executionMode);
+        restoreProperty(LinkedProcess.JOB_TIMEOUT_PROPERTY, jobTimeout);
     }
 
     public void testNothing() {
         // This will pass!
     }
 
+    public void testCooperativeJobsAreTimeSliced() throws Exception {
+        setExecutionMode(VmWorker.ExecutionMode.COOPERATIVE);
+
+        VmWorker busy = createWorker();
+        Job infinite = submit(busy, "while (true) {}");
+        for (int i = 0; i < 5; i++) {
+            assertFalse(busy.work(10));
+        }
+
+        // The paused job does not prevent other workers from completing theirs.
+        VmWorker w = createWorker();
+        Job job = submit(w, "'forty' + 'two';");
+        workUntilFinished(w, job);
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, getResult(job).getType());
+        assertEquals("fortytwo", getResult(job).getExpression());
+
+        // The paused job can be resumed.
+        assertFalse(busy.work(10));
+        assertNull(getResult(infinite));
+    }
+
+    public void testBinaryResultsAreEncoded() throws Exception {
+        VmWorker w = createWorker();
+        w.setBindings(createBindings("xs", new double[]{0.5, 1.5, 2.5}));
+
+        Job job = new Job(null, null, "job" + ++jobCount, "xs[1] * 2;");
+        job.setBinaryResult(true);
+        assertTrue(w.submitJob(job));
+        workUntilFinished(w, job);
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, getResult(job).getType());
+        assertEquals(3.0, BinaryEncoding.decodeBase64(getResult(job).getExpression()));
+        assertTrue(getResult(job).generateReturnSubmitJob().isBinary());
+
+        // A Java array comes back as it is.
+        job = new Job(null, null, "job" + ++jobCount, "xs;");
+        job.setBinaryResult(true);
+        assertTrue(w.submitJob(job));
+        workUntilFinished(w, job);
+        double[] xs = (double[]) BinaryEncoding.decodeBase64(getResult(job).getExpression());
+        assertEquals(3, xs.length);
+        assertEquals(2.5, xs[2]);
+
+        // Other jobs are unaffected.
+        job = submit(w, "xs[1] * 2;");
+        workUntilFinished(w, job);
+        assertEquals("3", getResult(job).getExpression().replace(".0", ""));
+        assertFalse(getResult(job).generateReturnSubmitJob().isBinary());
+    }
+
+    public void testTypedResultsKeepTheirStructure() throws Exception {
+        VmWorker w = createWorker();
+
+        Job job = new Job(null, null, "job" + ++jobCount, "({primes: [2, 3, 5], done: true, name: 'p'});");
+        job.setResultEncoding(LinkedProcess.TYPED_ENCODING);
+        assertTrue(w.submitJob(job));
+        workUntilFinished(w, job);
+        assertEquals(JobResult.ResultType.NORMAL_RESULT, getResult(job).getType());
+        SubmitJob submitJob = getResult(job).generateReturnSubmitJob();
+        assertTrue(submitJob.isTyped());
+
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(submitJob.getChildElementXML()));
+        parser.next();
+        Map<?, ?> value = (Map<?, ?>) ((SubmitJob) new SubmitJobProvider().parseIQ(parser)).getValue();
+        assertEquals(3, ((List<?>) value.get("primes")).size());
+        assertEquals(5, ((Number) ((List<?>) value.get("primes")).get(2)).intValue());
+        assertEquals(true, value.get("done"));
+        assertEquals("p", value.get("name"));
+
+        // A JavaScript array is sent as a list when binary-encoded, too.
+        job = new Job(null, null, "job" + ++jobCount, "[1, 'a'];");
+        job.setBinaryResult(true);
+        assertTrue(w.submitJob(job));
+        workUntilFinished(w, job);
+        List<?> list = (List<?>) BinaryEncoding.decodeBase64(getResult(job).getExpression());
+        assertEquals("a", list.get(1));
+
+        // A value which contains itself can not be sent, and fails the job.
+        job = new Job(null, null, "job" + ++jobCount, "var o = {}; o.self = o; o;");
+        job.setResultEncoding(LinkedProcess.TYPED_ENCODING);
+        assertTrue(w.submitJob(job));
+        workUntilFinished(w, job);
+        assertEquals(JobResult.ResultType.ERROR, getResult(job).getType());
+    }
+
+    public void testBindingsAreVersioned() throws Exception {
+        VmBindings bindings = new VmBindings();
+        bindings.put("a", 1);
+        long v = bindings.getVersion();
+        assertEquals(v, bindings.getVersion("a"));
+        bindings.put("a", 1);
+        bindings.put("xs", new double[]{1, 2});
+        bindings.put("xs", new double[]{1, 2});
+        assertEquals(v, bindings.getVersion("a"));
+        assertEquals(Collections.singleton("xs"), bindings.getNamesChangedSince(v));
+        bindings.remove("a");
+        assertEquals(2, bindings.getNamesChangedSince(v).size());
+        assertTrue(bindings.getNamesChangedSince(bindings.getVersion()).isEmpty());
+        assertEquals(0, bindings.getVersion("b"));
+    }
+
+    public void testOnlyChangedBindingsAreReturned() throws Exception {
+        VmWorker w = createWorker();
+        Set<String> all = new HashSet<String>();
+        workUntilFinished(w, submit(w, "var meter = 0; var xs = [1, 2]; var s = 'a';"));
+
+        VmBindings changed = w.getBindingsChangedSince(all, 0);
+        assertTrue(changed.keySet().containsAll(Arrays.asList("meter", "xs", "s")));
+        long version = changed.getVersion();
+        assertTrue(version > 0);
+        assertTrue(w.getBindingsChangedSince(all, version).isEmpty());
+        assertEquals(version, w.getBindingsChangedSince(all, version).getVersion());
+
+        // An array changed in place is found, as is a binding set by a villein.
+        workUntilFinished(w, submit(w, "meter = 10; xs[1] = 3; s = 'a';"));
+        w.setBindings(createBindings("t", "b"));
+        changed = w.getBindingsChangedSince(all, version);
+        assertEquals(new HashSet<String>(Arrays.asList("meter", "xs", "t")), changed.keySet());
+        assertEquals(10, ((Number) changed.get("meter")).intValue());
+        assertTrue(changed.getVersion() > version);
+
+        // Only the names asked for are returned, and a name never bound is not.
+        version = changed.getVersion();
+        workUntilFinished(w, submit(w, "meter = 20; s = 'b';"));
+        changed = w.getBindingsChangedSince(new HashSet<String>(Arrays.asList("meter", "nothing")), version);
+        assertEquals(Collections.singleton("meter"), changed.keySet());
+        assertEquals(1, w.getBindingsChangedSince(Collections.singleton("s"), version).size());
+    }
+
+    public void testBindingsStampChangesWhenBindingsMayHave() throws Exception {
+        VmWorker w = createWorker();
+        long stamp = w.getBindingsStamp();
+        assertEquals(stamp, w.getBindingsStamp());
+
+        workUntilFinished(w, submit(w, "var meter = 1;"));
+        assertTrue(stamp != w.getBindingsStamp());
+
+        stamp = w.getBindingsStamp();
+        w.setBindings(createBindings("t", "b"));
+        assertTrue(stamp != w.getBindingsStamp());
+
+        // Reading the bindings does not change them.
+        stamp = w.getBindingsStamp();
+        w.getBindingsChangedSince(new HashSet<String>(), 0);
+        assertEquals(stamp, w.getBindingsStamp());
+    }
+
+    public void testCooperativeAbortReusesWorkerThread() throws Exception {
+        setExecutionMode(VmWorker.ExecutionMode.COOPERATIVE);
+
+        VmWorker w = createWorker();
+        int threads = countWorkerThreads();
+        for (int i = 0; i < 5; i++) {
+            Job infinite = submit(w, "while (true) {}");
+            assertFalse(w.work(10));
+            w.abortJob(infinite.getJobId());
+            assertEquals(JobResult.ResultType.ABORTED, getResult(infinite).getType());
+
+            Job job = submit(w, "1 + " + i + ";");
+            workUntilFinished(w, job);
+            assertEquals(JobResult.ResultType.NORMAL_RESULT, getResult(job).getType());
+        }
+        assertEquals(threads, countWorkerThreads());
+    }
+
+    public void testCooperativeTimeoutReusesWorkerThread() throws Exception {
+        setExecutionMode(VmWorker.ExecutionMode.COOPERATIVE);
+        LinkedProcess.getConfiguration().setProperty(LinkedProcess.JOB_TIMEOUT_PROPERTY, "50");
+
+        VmWorker w = createWorker();
+        int threads = countWorkerThreads();
+        for (int i = 0; i < 3; i++) {
+            Job infinite = submit(w, "while (true) {}");
+            workUntilFinished(w, infinite);
+            assertEquals(JobResult.ResultType.TIMED_OUT, getResult(infinite).getType());
+        }
+
+        Job job = submit(w, "'still' + ' alive';");
+        workUntilFinished(w, job);
+        assertEquals("still alive", getResult(job).getExpression());
+        assertEquals(threads, countWorkerThreads());
+    }
+
+    public void testCooperativeTermination() throws Exception {
+        setExecutionMode(VmWorker.ExecutionMode.COOPERATIVE);
+
+        VmWorker w = createWorker();
+        Job infinite = submit(w, "while (true) {}");
+        assertFalse(w.work(10));
+        w.terminate();
+        assertEquals(JobResult.ResultType.ABORTED, getResult(infinite).getType());
+        assertEquals(VmWorker.Status.TERMINATED, w.status);
+    }
+
     public void findContextSwitchingTime() throws Exception {
         ScriptEngine engine = LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
         VmScheduler.VmResultHandler handler = new VmScheduler.VmResultHandler() {
@@ -30,11 +275,11 @@ public class VmWorkerTest extends TestCase {
         VmWorker w = new VmWorker(engine, handler);
         String shortProgram = "42;";
         String infiniteProgram = "while (true) {}";
-        Job job = new Job(null, null, null, shortProgram);
+        Job job = new Job(null, null, "short", shortProgram);
         w.submitJob(job);
         w.work(1000);
 
-        job = new Job(null, null, null, infiniteProgram);
+        job = new Job(null, null, "infinite", infiniteProgram);
         w.submitJob(job);
 
         // Load job initially.  Any overhead after this point is context-switching overhead.
@@ -51,5 +296,128 @@ public class VmWorkerTest extends TestCase {
         double contextSwitchingTime = ((endTime - startTime) / (double) iterations) - waitTime;
 
         System.out.println("context switching time (using " + iterations + " iterations): " + contextSwitchingTime);
+        w.terminate();
+    }
+
+    /**
+     * Compares the per-slice overhead, the cost of aborting a job, and the
+     * throughput of short jobs, in each execution mode.
+     */
+    public void compareExecutionModes() throws Exception {
+        setUp();
+        try {
+            for (VmWorker.ExecutionMode mode : VmWorker.ExecutionMode.values()) {
+                setExecutionMode(mode);
+                VmWorker w = createWorker();
+
+                // Per-slice overhead.
+                Job infinite = submit(w, "while (true) {}");
+                w.work(500);
+                int iterations = 1000;
+                long waitTime = 5;
+                long startTime = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    w.work(waitTime);
+                }
+                double overhead = ((System.nanoTime() - startTime) / 1000000.0 / iterations) - waitTime;
+                w.abortJob(infinite.getJobId());
+
+                // Abort cost, including that of the following job.
+                iterations = 200;
+                startTime = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    infinite = submit(w, "while (true) {}");
+                    w.work(1);
+                    w.abortJob(infinite.getJobId());
+                    workUntilFinished(w, submit(w, "1;"));
+                }
+                double abortTime = (System.nanoTime() - startTime) / 1000000.0 / iterations;
+
+                // Short job throughput.
+                iterations = 2000;
+                startTime = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    workUntilFinished(w, submit(w, "1 + 1;"));
+                }
+                double jobsPerSecond = iterations / ((System.nanoTime() - startTime) / 1000000000.0);
+
+                System.out.println(mode + " execution mode: "
+                        + "slice overhead " + overhead + "ms, "
+                        + "abort+job " + abortTime + "ms, "
+                        + jobsPerSecond + " short jobs/s, "
+                        + countWorkerThreads() + " worker threads alive");
+                w.terminate();
+                workers.clear();
+            }
+        } finally {
+            tearDown();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void setExecutionMode(final VmWorker.ExecutionMode mode) {
+        LinkedProcess.getConfiguration().setProperty(LinkedProcess.EXECUTION_MODE_PROPERTY, mode.toString());
+    }
+
+    private void restoreProperty(final String name,
+                                 final String value) {
+        Properties conf = LinkedProcess.getConfiguration();
+        if (null == value) {
+            conf.remove(name);
+        } else {
+            conf.setProperty(name, value);
+        }
+    }
+
+    private VmWorker createWorker() {
+        ScriptEngine engine = LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
+        VmWorker w = new VmWorker(engine, resultHandler);
+        workers.add(w);
+        return w;
+    }
+
+    private VmBindings createBindings(final String name,
+                                      final Object value) {
+        VmBindings bindings = new VmBindings();
+        bindings.put(name, value);
+        return bindings;
+    }
+
+    private Job submit(final VmWorker w,
+                       final String expression) throws Exception {
+        Job job = new Job(null, null, "job" + ++jobCount, expression);
+        assertTrue(w.submitJob(job));
+        return job;
+    }
+
+    private void workUntilFinished(final VmWorker w,
+                                   final Job job) {
+        while (null == getResult(job)) {
+            w.work(10);
+        }
+    }
+
+    private JobResult getResult(final Job job) {
+        synchronized (resultsByID) {
+            return resultsByID.get(job.getJobId());
+        }
+    }
+
+    private int countWorkerThreads() {
+        // Threads which are still unwinding are given a moment to finish.
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            // Ignore.
+        }
+
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.getName().startsWith(WORKER_THREAD_NAME_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
     }
 }
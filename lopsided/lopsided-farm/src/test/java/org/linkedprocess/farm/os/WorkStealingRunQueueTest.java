@@ -0,0 +1,121 @@
+package org.linkedprocess.farm.os;
+
+import junit.framework.TestCase;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.LinkedProcessFarm;
+
+import javax.script.ScriptEngine;
+import java.util.LinkedList;
+import java.util.List;
+
+public class WorkStealingRunQueueTest extends TestCase {
+    private final VmScheduler.VmResultHandler nullHandler = new VmScheduler.VmResultHandler() {
+        public void handleResult(final JobResult result) {
+            // Ignore.
+        }
+    };
+
+    private final List<VmWorker> workers = new LinkedList<VmWorker>();
+
+    public void tearDown() {
+        for (VmWorker w : workers) {
+            w.terminate();
+        }
+        workers.clear();
+    }
+
+    public void testLocalQueueIsFifo() throws Exception {
+        WorkStealingRunQueue q = new WorkStealingRunQueue(2);
+        VmWorker w1 = createWorker();
+        VmWorker w2 = createWorker();
+
+        q.offerDistinct(w1, 0);
+        q.offerDistinct(w2, 0);
+        assertEquals(2, q.size());
+        assertSame(w1, q.take(0));
+        assertSame(w2, q.take(0));
+        assertEquals(0, q.size());
+    }
+
+    public void testIdleSequencerSteals() throws Exception {
+        WorkStealingRunQueue q = new WorkStealingRunQueue(2);
+        VmWorker w1 = createWorker();
+        VmWorker w2 = createWorker();
+
+        q.offerDistinct(w1, 0);
+        q.offerDistinct(w2, 0);
+
+        // Sequencer 1 has nothing of its own, so it steals from the tail of sequencer 0's queue.
+        assertSame(w2, q.take(1));
+        assertSame(w1, q.take(0));
+    }
+
+    public void testWorkerIsQueuedAtMostOnce() throws Exception {
+        WorkStealingRunQueue q = new WorkStealingRunQueue(4);
+        VmWorker w = createWorker();
+
+        assertTrue(q.offerDistinct(w, 0));
+        assertFalse(q.offerDistinct(w, 1));
+        assertFalse(q.offerDistinct(w, VmWorkerQueue.NO_SEQUENCER));
+        assertEquals(1, q.size());
+
+        assertSame(w, q.take(3));
+        assertTrue(q.offerDistinct(w, 2));
+        assertTrue(q.remove(w));
+        assertEquals(0, q.size());
+        assertTrue(q.offerDistinct(w, 2));
+    }
+
+    public void testRemovedWorkerDoesNotBlockOthers() throws Exception {
+        WorkStealingRunQueue q = new WorkStealingRunQueue(2);
+        VmWorker w1 = createWorker();
+        VmWorker w2 = createWorker();
+
+        q.offerDistinct(w1, 0);
+        q.remove(w1);
+        q.offerDistinct(w2, VmWorkerQueue.NO_SEQUENCER);
+        assertSame(w2, q.take(1));
+        assertEquals(0, q.size());
+    }
+
+    public void testIdleSequencerWaitsUntilAWorkerIsOffered() throws Exception {
+        final WorkStealingRunQueue q = new WorkStealingRunQueue(2);
+        VmWorker w = createWorker();
+        final VmWorker[] taken = new VmWorker[1];
+
+        // The permit of a removed worker is not left behind.
+        q.offerDistinct(w, 0);
+        q.remove(w);
+        Thread sequencer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    taken[0] = q.take(1);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        });
+        sequencer.start();
+
+        // The sequencer blocks, rather than spinning, while there is nothing to take.
+        long timeout = System.currentTimeMillis() + 5000;
+        while (Thread.State.WAITING != sequencer.getState()) {
+            assertTrue("sequencer does not wait", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(Thread.State.WAITING, sequencer.getState());
+
+        q.offerDistinct(w, 0);
+        sequencer.join(5000);
+        assertSame(w, taken[0]);
+        assertEquals(0, q.size());
+    }
+
+    private VmWorker createWorker() {
+        ScriptEngine engine = LinkedProcessFarm.getScriptEngineManager().getEngineByName(LinkedProcess.JAVASCRIPT);
+        VmWorker w = new VmWorker(engine, nullHandler);
+        workers.add(w);
+        return w;
+    }
+}
@@ -13,7 +13,6 @@ import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.linkedprocess.Jid;
 import org.linkedprocess.LopPacketListener;
-import org.jdom.Document;
 
 /**
  * @author Marko A. Rodriguez (http://markorodriguez.com)
@@ -33,8 +32,8 @@ public class PresencePacketListener extends RegistryPacketListener {
         Registry.LOGGER.info(presence.toXML());
 
         if (presence.isAvailable()) {
-            Document discoInfoDocument = this.getDiscoInfoDocument(presenceJid);
-            if (LopPacketListener.isFarm(discoInfoDocument)) {
+            DiscoverInfo discoverInfo = this.getDiscoInfo(presenceJid);
+            if (LopPacketListener.isFarm(discoverInfo)) {
                 Registry.LOGGER.info("Registering farm: " + packet.getFrom());
                 this.getRegistry().addActiveFarm(new Jid(packet.getFrom()));
             }
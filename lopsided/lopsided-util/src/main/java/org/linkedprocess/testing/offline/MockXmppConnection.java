@@ -156,7 +156,10 @@ public class MockXmppConnection extends XmppConnectionWrapper {
 	@Override
 	public void sendPacket(Packet packet) {
 		logger.info(id + ": adding " + packet.toXML());
-		sentPackets.add(packet);
+		// Results are sent by the farm's scheduler threads.
+		synchronized (sentPackets) {
+			sentPackets.add(packet);
+		}
 
 	}
 
@@ -166,7 +169,9 @@ public class MockXmppConnection extends XmppConnectionWrapper {
 	}
 
 	public void clearPackets() {
-		sentPackets.clear();
+		synchronized (sentPackets) {
+			sentPackets.clear();
+		}
 		logger.fine(id + "clearing packets");
 	}
 
@@ -54,6 +54,8 @@ public class PrimeFinder {
 
         Map<VmProxy, JobProxy> vmJobMap = new HashMap<VmProxy, JobProxy>();
         for (ResultHolder<VmProxy> vmProxyResult : vmProxies) {
+            // Have the lists of primes come back as lists of integers, rather than as text to be parsed.
+            vmProxyResult.getSuccess().setTypedResults(true);
             JobProxy jobProxy = new JobProxy();
             jobProxy.setExpression(LinkedProcess.convertStreamToString(PrimeFinder.class.getResourceAsStream("FindPrimes.groovy")));
             vmJobMap.put(vmProxyResult.getSuccess(), jobProxy);
@@ -96,9 +98,16 @@ public class PrimeFinder {
         ArrayList<Integer> primes = new ArrayList<Integer>();
         for (JobProxy jobProxy : vmJobMap.values()) {
             if (jobProxy.wasSuccessful()) {
-                for (String primeString : jobProxy.getResult().replace("[", "").replace("]", "").split(",")) {
-                    if (!primeString.trim().equals(""))
-                        primes.add(Integer.valueOf(primeString.trim()));
+                if (jobProxy.isResultTyped()) {
+                    for (Object prime : jobProxy.getResultList()) {
+                        primes.add(prime instanceof Integer ? (Integer) prime : Integer.valueOf(prime.toString()));
+                    }
+                } else {
+                    // From a farm which does not support typed results.
+                    for (String primeString : jobProxy.getResult().replace("[", "").replace("]", "").split(",")) {
+                        if (!primeString.trim().equals(""))
+                            primes.add(Integer.valueOf(primeString.trim()));
+                    }
                 }
             } else {
                 System.out.println("Job " + jobProxy.getJobId() + " was unsuccessful.");
@@ -17,22 +17,28 @@ import org.linkedprocess.villein.commands.*;
  */
 public class Dispatcher {
     private final PingJobCommand pingJobCommand;
+    private final FetchJobCommand fetchJobCommand;
     private final SpawnVmCommand spawnVmCommand;
     private final SubmitJobCommand submitJobCommand;
+    private final SubmitJobBatchCommand submitJobBatchCommand;
     private final AbortJobCommand abortJobCommand;
     private final TerminateVmCommand terminateVmCommand;
     private final GetBindingsCommand getBindingsCommand;
     private final SetBindingsCommand setBindingsCommand;
+    private final WatchBindingsCommand watchBindingsCommand;
     protected final ServiceDiscoveryManager discoManager;
 
     public Dispatcher(Villein villein) {
         this.pingJobCommand = new PingJobCommand(villein);
+        this.fetchJobCommand = new FetchJobCommand(villein);
         this.spawnVmCommand = new SpawnVmCommand(villein);
         this.submitJobCommand = new SubmitJobCommand(villein);
+        this.submitJobBatchCommand = new SubmitJobBatchCommand(villein);
         this.abortJobCommand = new AbortJobCommand(villein);
         this.terminateVmCommand = new TerminateVmCommand(villein);
         this.getBindingsCommand = new GetBindingsCommand(villein);
         this.setBindingsCommand = new SetBindingsCommand(villein);
+        this.watchBindingsCommand = new WatchBindingsCommand(villein);
         this.discoManager = villein.getDiscoManager();
     }
 
@@ -40,6 +46,10 @@ public class Dispatcher {
         return this.pingJobCommand;
     }
 
+    public FetchJobCommand getFetchJobCommand() {
+        return this.fetchJobCommand;
+    }
+
     public SpawnVmCommand getSpawnVmCommand() {
         return this.spawnVmCommand;
     }
@@ -48,6 +58,10 @@ public class Dispatcher {
         return this.submitJobCommand;
     }
 
+    public SubmitJobBatchCommand getSubmitJobBatchCommand() {
+        return this.submitJobBatchCommand;
+    }
+
     public AbortJobCommand getAbortJobCommand() {
         return this.abortJobCommand;
     }
@@ -64,6 +78,10 @@ public class Dispatcher {
         return this.setBindingsCommand;
     }
 
+    public WatchBindingsCommand getWatchBindingsCommand() {
+        return this.watchBindingsCommand;
+    }
+
     public ServiceDiscoveryManager getServiceDiscoveryManager() {
         return this.discoManager;
     }
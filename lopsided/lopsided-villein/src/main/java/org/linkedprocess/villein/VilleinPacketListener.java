@@ -48,6 +48,13 @@ class VilleinPacketListener extends LopPacketListener {
             } else if (submitJob.getType() == IQ.Type.ERROR) {
                 this.getVillein().getDispatcher().getSubmitJobCommand().receiveError(submitJob);
             }
+        } else if (packet instanceof SubmitJobBatch) {
+            SubmitJobBatch submitJobBatch = (SubmitJobBatch) packet;
+            if (submitJobBatch.getType() == IQ.Type.RESULT) {
+                this.getVillein().getDispatcher().getSubmitJobBatchCommand().receiveSuccess(submitJobBatch);
+            } else if (submitJobBatch.getType() == IQ.Type.ERROR) {
+                this.getVillein().getDispatcher().getSubmitJobBatchCommand().receiveError(submitJobBatch);
+            }
         } else if (packet instanceof PingJob) {
             PingJob pingJob = (PingJob) packet;
             if (pingJob.getType() == IQ.Type.RESULT) {
@@ -55,6 +62,13 @@ class VilleinPacketListener extends LopPacketListener {
             } else if (pingJob.getType() == IQ.Type.ERROR) {
                 this.getVillein().getDispatcher().getPingJobCommand().receiveError(pingJob);
             }
+        } else if (packet instanceof FetchJob) {
+            FetchJob fetchJob = (FetchJob) packet;
+            if (fetchJob.getType() == IQ.Type.RESULT) {
+                this.getVillein().getDispatcher().getFetchJobCommand().receiveSuccess(fetchJob);
+            } else if (fetchJob.getType() == IQ.Type.ERROR) {
+                this.getVillein().getDispatcher().getFetchJobCommand().receiveError(fetchJob);
+            }
         } else if (packet instanceof AbortJob) {
             AbortJob abortJob = (AbortJob) packet;
             if (abortJob.getType() == IQ.Type.RESULT) {
@@ -65,7 +79,14 @@ class VilleinPacketListener extends LopPacketListener {
         } else if (packet instanceof ManageBindings) {
             ManageBindings manageBindings = (ManageBindings) packet;
             // TODO: NOT GUARENTEED SET/GET DETERMINANT
-            if (manageBindings.getBindings().isEmpty()) {
+            // A get of changed bindings has a version, even if none have changed.
+            if (this.getVillein().getDispatcher().getWatchBindingsCommand().isWatching(manageBindings.getPacketID())) {
+                if (manageBindings.getType() == IQ.Type.RESULT) {
+                    this.getVillein().getDispatcher().getWatchBindingsCommand().receiveSuccess(manageBindings);
+                } else if (manageBindings.getType() == IQ.Type.ERROR) {
+                    this.getVillein().getDispatcher().getWatchBindingsCommand().receiveError(manageBindings);
+                }
+            } else if (manageBindings.getBindings().isEmpty() && null == manageBindings.getVersion()) {
                 if (manageBindings.getType() == IQ.Type.RESULT) {
                     this.getVillein().getDispatcher().getSetBindingsCommand().receiveSuccess(manageBindings);
                 } else if (manageBindings.getType() == IQ.Type.ERROR) {
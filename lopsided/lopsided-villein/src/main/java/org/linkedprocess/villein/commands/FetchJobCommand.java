@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.villein.commands;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.FetchJob;
+import org.linkedprocess.villein.Handler;
+import org.linkedprocess.villein.Villein;
+import org.linkedprocess.villein.proxies.JobProxy;
+import org.linkedprocess.villein.proxies.VmProxy;
+
+/**
+ * The proxy by which a fetch_job is sent to a virtual machine, to recover the result of a job which has already finished.
+ * The job is returned to the provided result handler: complete with its result if it has finished, or incomplete if it is still in progress.
+ * Any error of the command, including the error of a job which has failed, is returned to the provided error handler.
+ *
+ * @version LoPSideD 0.1
+ */
+public class FetchJobCommand extends Command {
+    private final HandlerSet<JobProxy> successHandlers;
+    private final HandlerSet<LopError> errorHandlers;
+
+    public FetchJobCommand(Villein xmppVillein) {
+        super(xmppVillein);
+        this.successHandlers = new HandlerSet<JobProxy>();
+        this.errorHandlers = new HandlerSet<LopError>();
+    }
+
+    public void send(VmProxy vmProxy, JobProxy jobProxy, final Handler<JobProxy> successHandler, final Handler<LopError> errorHandler) {
+
+        String id = Packet.nextID();
+        FetchJob fetchJob = new FetchJob();
+        fetchJob.setTo(vmProxy.getFarmProxy().getJid().toString());
+        fetchJob.setFrom(this.villein.getJid().toString());
+        fetchJob.setJobId(jobProxy.getJobId());
+        fetchJob.setVmId(vmProxy.getVmId());
+        fetchJob.setType(IQ.Type.GET);
+        fetchJob.setPacketID(id);
+
+        this.successHandlers.addHandler(id, successHandler);
+        this.errorHandlers.addHandler(id, errorHandler);
+
+        villein.getConnection().sendPacket(fetchJob);
+    }
+
+    public void receiveSuccess(final FetchJob fetchJob) {
+        try {
+            JobProxy jobProxy = new JobProxy();
+            jobProxy.setJobId(fetchJob.getJobId());
+            if (LinkedProcess.JobStatus.COMPLETED == fetchJob.getStatus()) {
+                if (fetchJob.isBinary()) {
+                    jobProxy.setBinaryResult(fetchJob.getExpression());
+                } else if (fetchJob.isTyped()) {
+                    jobProxy.setTypedResult(fetchJob.getValue());
+                } else {
+                    jobProxy.setResult(fetchJob.getExpression());
+                }
+                jobProxy.setComplete(true);
+            }
+            successHandlers.handle(fetchJob.getPacketID(), jobProxy);
+        } finally {
+            successHandlers.removeHandler(fetchJob.getPacketID());
+            errorHandlers.removeHandler(fetchJob.getPacketID());
+        }
+    }
+
+    public void receiveError(final FetchJob fetchJob) {
+        try {
+            errorHandlers.handle(fetchJob.getPacketID(), fetchJob.getLopError());
+        } finally {
+            successHandlers.removeHandler(fetchJob.getPacketID());
+            errorHandlers.removeHandler(fetchJob.getPacketID());
+        }
+    }
+}
@@ -38,6 +38,10 @@ public class GetBindingsCommand extends Command {
     }
 
     public void send(VmProxy vmProxy, Set<String> bindingNames, final Handler<VmBindings> successHandler, final Handler<LopError> errorHandler) {
+        this.send(vmProxy, bindingNames, null, successHandler, errorHandler);
+    }
+
+    public void send(VmProxy vmProxy, Set<String> bindingNames, Long since, final Handler<VmBindings> successHandler, final Handler<LopError> errorHandler) {
 
         String id = Packet.nextID();
         ManageBindings manageBindings = new ManageBindings();
@@ -45,6 +49,8 @@ public class GetBindingsCommand extends Command {
         manageBindings.setFrom(villein.getJid().toString());
         manageBindings.setType(IQ.Type.GET);
         manageBindings.setVmId(vmProxy.getVmId());
+        manageBindings.setBinary(vmProxy.usesBinaryEncoding());
+        manageBindings.setSince(since);
         manageBindings.setPacketID(id);
         VmBindings vmBindings = new VmBindings();
         for (String bindingName : bindingNames) {
@@ -46,6 +46,10 @@ public class HandlerSet<T> {
                 : r.getHandler();
     }
 
+    public boolean hasHandler(final String id) {
+        return handlerRecords.containsKey(id);
+    }
+
     public void handle(final String id, final T t) {
         HandlerRecord r = handlerRecords.get(id);
         if (null != r) {
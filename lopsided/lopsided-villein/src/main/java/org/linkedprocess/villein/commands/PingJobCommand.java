@@ -54,7 +54,7 @@ public class PingJobCommand extends Command {
 
     public void receiveSuccess(final PingJob pingJob) {
         try {
-            successHandlers.handle(pingJob.getPacketID(), LinkedProcess.JobStatus.valueOf(pingJob.getStatus()));
+            successHandlers.handle(pingJob.getPacketID(), LinkedProcess.JobStatus.getJobStatus(pingJob.getStatus()));
         } finally {
             successHandlers.removeHandler(pingJob.getPacketID());
             errorHandlers.removeHandler(pingJob.getPacketID());
@@ -42,6 +42,7 @@ public class SetBindingsCommand extends Command {
         manageBindings.setFrom(villein.getJid().toString());
         manageBindings.setType(IQ.Type.SET);
         manageBindings.setVmId(vmProxy.getVmId());
+        manageBindings.setBinary(vmProxy.usesBinaryEncoding());
         manageBindings.setBindings(vmBindings);
         manageBindings.setPacketID(id);
 
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.villein.commands;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.linkedprocess.farm.SubmitJobBatch;
+import org.linkedprocess.villein.Handler;
+import org.linkedprocess.villein.Villein;
+import org.linkedprocess.villein.proxies.JobProxy;
+import org.linkedprocess.villein.proxies.VmProxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The proxy by which many jobs are sent to a virtual machine in a single submit_job_batch.
+ * The result of each job is returned to the provided result handler, and the error of each job which fails to the provided error handler.
+ * The results arrive in one or more coalesced replies, in the order in which the jobs finish.
+ * Jobs may depend on other jobs of the same batch (see JobProxy.addDependency), in which case the farm runs each job once its dependencies have succeeded, so that a multi-stage computation needs a single round trip.
+ * If the batch as a whole is turned down (e.g. because the virtual machine does not exist), every job of the batch is returned to the error handler.
+ *
+ * @version LoPSideD 0.1
+ */
+public class SubmitJobBatchCommand extends Command {
+
+    private final HandlerSet<JobProxy> successHandlers;
+    private final HandlerSet<JobProxy> errorHandlers;
+    // The jobs of each batch which have yet to return, by batch id and then job id.
+    private final Map<String, Map<String, JobProxy>> batches;
+
+    public SubmitJobBatchCommand(Villein xmppVillein) {
+        super(xmppVillein);
+        this.successHandlers = new HandlerSet<JobProxy>();
+        this.errorHandlers = new HandlerSet<JobProxy>();
+        this.batches = new HashMap<String, Map<String, JobProxy>>();
+    }
+
+    /**
+     * Send many jobs at once.
+     *
+     * @param vmProxy        the virtual machine to send the jobs to
+     * @param jobProxies     the jobs to send (each requires at least an expression)
+     * @param successHandler the handler called with each job whose result has arrived
+     * @param errorHandler   the handler called with each job which has failed
+     * @return the id of the batch
+     */
+    public String send(final VmProxy vmProxy, final List<JobProxy> jobProxies, final Handler<JobProxy> successHandler, final Handler<JobProxy> errorHandler) {
+
+        String batchId = JobProxy.generateRandomId();
+
+        SubmitJobBatch submitJobBatch = new SubmitJobBatch();
+        submitJobBatch.setTo(vmProxy.getFarmProxy().getJid().toString());
+        submitJobBatch.setFrom(villein.getJid().toString());
+        submitJobBatch.setVmId(vmProxy.getVmId());
+        submitJobBatch.setType(IQ.Type.GET);
+        submitJobBatch.setPacketID(batchId);
+
+        for (JobProxy jobProxy : jobProxies) {
+            if (null == jobProxy.getJobId())
+                jobProxy.setJobId(JobProxy.generateRandomId());
+        }
+
+        Map<String, JobProxy> jobs = new LinkedHashMap<String, JobProxy>();
+        for (JobProxy jobProxy : jobProxies) {
+            List<String> dependencies = new ArrayList<String>();
+            for (JobProxy dependency : jobProxy.getDependencies()) {
+                dependencies.add(dependency.getJobId());
+            }
+            submitJobBatch.addJob(new SubmitJobBatch.BatchJob(jobProxy.getJobId(), jobProxy.getExpression(), null,
+                    jobProxy.getVmId(), dependencies, jobProxy.getResultBinding()));
+            jobs.put(jobProxy.getJobId(), jobProxy);
+        }
+
+        this.batches.put(batchId, jobs);
+        this.successHandlers.addHandler(batchId, successHandler);
+        this.errorHandlers.addHandler(batchId, errorHandler);
+
+        villein.getConnection().sendPacket(submitJobBatch);
+        return batchId;
+    }
+
+    public void receiveSuccess(final SubmitJobBatch submitJobBatch) {
+        String batchId = submitJobBatch.getPacketID();
+        Map<String, JobProxy> jobs = this.batches.get(batchId);
+
+        try {
+            for (SubmitJobBatch.BatchJob batchJob : submitJobBatch.getJobs()) {
+                JobProxy jobProxy = null == jobs ? null : jobs.remove(batchJob.getJobId());
+                if (null == jobProxy) {
+                    jobProxy = new JobProxy();
+                    jobProxy.setJobId(batchJob.getJobId());
+                }
+                jobProxy.setComplete(true);
+
+                if (null != batchJob.getLopError()) {
+                    jobProxy.setLopError(batchJob.getLopError());
+                    errorHandlers.handle(batchId, jobProxy);
+                } else {
+                    jobProxy.setResult(batchJob.getExpression());
+                    successHandlers.handle(batchId, jobProxy);
+                }
+            }
+        } finally {
+            if (!submitJobBatch.isPartial()) {
+                this.removeHandlers(batchId);
+            }
+        }
+    }
+
+    public void receiveError(final SubmitJobBatch submitJobBatch) {
+        String batchId = submitJobBatch.getPacketID();
+        Map<String, JobProxy> jobs = this.batches.get(batchId);
+
+        try {
+            if (null != jobs) {
+                for (JobProxy jobProxy : jobs.values()) {
+                    jobProxy.setLopError(submitJobBatch.getLopError());
+                    jobProxy.setComplete(true);
+                    errorHandlers.handle(batchId, jobProxy);
+                }
+            }
+        } finally {
+            this.removeHandlers(batchId);
+        }
+    }
+
+    private void removeHandlers(final String batchId) {
+        successHandlers.removeHandler(batchId);
+        errorHandlers.removeHandler(batchId);
+        batches.remove(batchId);
+    }
+}
@@ -14,10 +14,14 @@ import org.linkedprocess.villein.Villein;
 import org.linkedprocess.villein.proxies.JobProxy;
 import org.linkedprocess.villein.proxies.VmProxy;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The proxy by which an submit_job is sent to a virtual machine.
  * Any result of the command is returned to the provided result handler.
  * Any error of the command is returned to the provided error handler.
+ * A result which arrives in pieces is put back together before it is returned, and each piece may be passed on to a partial result handler as it arrives.
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
@@ -26,14 +30,32 @@ public class SubmitJobCommand extends Command {
 
     private final HandlerSet<JobProxy> successHandlers;
     private final HandlerSet<JobProxy> errorHandlers;
+    private final HandlerSet<JobProxy> partialResultHandlers;
+    // The jobs whose results are arriving in pieces, by job id.
+    private final Map<String, JobProxy> streamedJobs;
 
     public SubmitJobCommand(Villein xmppVillein) {
         super(xmppVillein);
         this.successHandlers = new HandlerSet<JobProxy>();
         this.errorHandlers = new HandlerSet<JobProxy>();
+        this.partialResultHandlers = new HandlerSet<JobProxy>();
+        this.streamedJobs = new HashMap<String, JobProxy>();
     }
 
     public void send(final VmProxy vmProxy, final JobProxy jobProxy, final Handler<JobProxy> successHandler, final Handler<JobProxy> errorHandler) {
+        this.send(vmProxy, jobProxy, successHandler, errorHandler, null);
+    }
+
+    /**
+     * Send a job, following its result as it arrives.
+     *
+     * @param vmProxy               the virtual machine to send the job to
+     * @param jobProxy              the job to send
+     * @param successHandler        the handler called when the complete result has arrived
+     * @param errorHandler          the handler called when an error result has occurred
+     * @param partialResultHandler  the handler called each time more of a result which is sent in pieces has arrived (may be null, in which case the result is not streamed)
+     */
+    public void send(final VmProxy vmProxy, final JobProxy jobProxy, final Handler<JobProxy> successHandler, final Handler<JobProxy> errorHandler, final Handler<JobProxy> partialResultHandler) {
 
         if (null == jobProxy.getJobId())
             jobProxy.setJobId(JobProxy.generateRandomId());
@@ -45,26 +67,76 @@ public class SubmitJobCommand extends Command {
         submitJob.setVmId(vmProxy.getVmId());
         submitJob.setType(IQ.Type.GET);
         submitJob.setPacketID(jobProxy.getJobId());
+        submitJob.setEncoding(vmProxy.getResultEncoding());
+        // Only a villein which follows the result as it arrives can take it in pieces.
+        submitJob.setStream(null != partialResultHandler && vmProxy.getFarmProxy().supportsStreaming());
 
         this.successHandlers.addHandler(jobProxy.getJobId(), successHandler);
         this.errorHandlers.addHandler(jobProxy.getJobId(), errorHandler);
+        this.partialResultHandlers.addHandler(jobProxy.getJobId(), partialResultHandler);
 
         villein.getConnection().sendPacket(submitJob);
     }
 
     public void receiveSuccess(final SubmitJob submitJob) {
+        if (null != submitJob.getSequence()) {
+            this.receivePiece(submitJob);
+            return;
+        }
+
         try {
             JobProxy jobProxy = new JobProxy();
             jobProxy.setJobId(submitJob.getPacketID());
-            jobProxy.setResult(submitJob.getExpression());
+            if (submitJob.isBinary()) {
+                jobProxy.setBinaryResult(submitJob.getExpression());
+            } else if (submitJob.isTyped()) {
+                jobProxy.setTypedResult(submitJob.getValue());
+            } else {
+                jobProxy.setResult(submitJob.getExpression());
+            }
             jobProxy.setComplete(true);
             successHandlers.handle(submitJob.getPacketID(), jobProxy);
         } finally {
-            successHandlers.removeHandler(submitJob.getPacketID());
-            errorHandlers.removeHandler(submitJob.getPacketID());
+            this.removeHandlers(submitJob.getPacketID());
         }
     }
 
+    private void receivePiece(final SubmitJob submitJob) {
+        String jobId = submitJob.getPacketID();
+        JobProxy jobProxy = streamedJobs.get(jobId);
+        if (null == jobProxy) {
+            jobProxy = new JobProxy();
+            jobProxy.setJobId(jobId);
+            streamedJobs.put(jobId, jobProxy);
+        }
+
+        // A binary-encoded or typed result is never split: it comes whole, after the output of the job.
+        String piece = submitJob.getExpression();
+        if (submitJob.isBinary()) {
+            jobProxy.setBinaryResult(piece);
+            piece = null;
+        } else if (submitJob.isTyped() && !submitJob.isPartial()) {
+            jobProxy.setTypedResult(submitJob.getValue());
+        }
+        boolean grown = jobProxy.addResultPiece(submitJob.getSequence(), piece, !submitJob.isPartial());
+        if (jobProxy.isComplete()) {
+            try {
+                successHandlers.handle(jobId, jobProxy);
+            } finally {
+                this.removeHandlers(jobId);
+            }
+        } else if (grown && partialResultHandlers.hasHandler(jobId)) {
+            partialResultHandlers.handle(jobId, jobProxy);
+        }
+    }
+
+    private void removeHandlers(final String jobId) {
+        successHandlers.removeHandler(jobId);
+        errorHandlers.removeHandler(jobId);
+        partialResultHandlers.removeHandler(jobId);
+        streamedJobs.remove(jobId);
+    }
+
     public void receiveError(final SubmitJob submitJob) {
         try {
             JobProxy jobProxy = new JobProxy();
@@ -73,8 +145,7 @@ public class SubmitJobCommand extends Command {
             jobProxy.setComplete(true);
             errorHandlers.handle(submitJob.getPacketID(), jobProxy);
         } finally {
-            successHandlers.removeHandler(submitJob.getPacketID());
-            errorHandlers.removeHandler(submitJob.getPacketID());
+            this.removeHandlers(submitJob.getPacketID());
         }
     }
 }
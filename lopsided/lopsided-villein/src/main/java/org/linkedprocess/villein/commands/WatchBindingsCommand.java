@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2009. The LoPSideD implementation of the Linked Process
+ * protocol is an open-source project founded at the Center for Nonlinear Studies
+ * at the Los Alamos National Laboratory in Los Alamos, New Mexico. Please visit
+ * http://linkedprocess.org and LICENSE.txt for more information.
+ */
+
+package org.linkedprocess.villein.commands;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.linkedprocess.LopError;
+import org.linkedprocess.farm.ManageBindings;
+import org.linkedprocess.farm.os.VmBindings;
+import org.linkedprocess.villein.Handler;
+import org.linkedprocess.villein.Villein;
+import org.linkedprocess.villein.proxies.VmProxy;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The proxy by which the bindings of a virtual machine are watched, rather than polled.
+ * A manage_bindings of type get with a watch interval is sent to the virtual machine, and the farm replies with the watched bindings,
+ * and then with those which have changed, at most once per interval, until the watch is cancelled or the virtual machine is gone.
+ * Each set of changed bindings is returned to the provided change handler.
+ * Any error of the command, which ends the watch, is returned to the provided error handler.
+ *
+ * @version LoPSideD 0.1
+ */
+public class WatchBindingsCommand extends Command {
+
+    private final HandlerSet<VmBindings> changeHandlers;
+    private final HandlerSet<LopError> errorHandlers;
+    // The packet ID of the watch of each virtual machine.
+    private final Map<String, String> watchIds;
+    // The packet IDs of the cancellations which are yet to be acknowledged.
+    private final Set<String> cancelIds;
+
+    public WatchBindingsCommand(Villein xmppVillein) {
+        super(xmppVillein);
+        this.changeHandlers = new HandlerSet<VmBindings>();
+        this.errorHandlers = new HandlerSet<LopError>();
+        this.watchIds = new HashMap<String, String>();
+        this.cancelIds = new HashSet<String>();
+    }
+
+    /**
+     * Watch the bindings of a virtual machine, in place of any earlier watch of it.
+     *
+     * @param vmProxy       the virtual machine whose bindings are watched
+     * @param bindingNames  the names of the bindings to watch, or an empty set for all bindings
+     * @param interval      the least number of milliseconds between two sets of changes
+     * @param changeHandler the handler called with the watched bindings, and then with each set of changed bindings
+     * @param errorHandler  the handler called if the watch fails or ends (may be null)
+     */
+    public synchronized void send(VmProxy vmProxy, Set<String> bindingNames, long interval, final Handler<VmBindings> changeHandler, final Handler<LopError> errorHandler) {
+
+        String id = Packet.nextID();
+        ManageBindings manageBindings = this.createManageBindings(vmProxy, id);
+        manageBindings.setSince(0L);
+        manageBindings.setWatch(interval);
+        VmBindings vmBindings = new VmBindings();
+        for (String bindingName : bindingNames) {
+            vmBindings.put(bindingName, null);
+        }
+        manageBindings.setBindings(vmBindings);
+
+        // The farm replaces the earlier watch, whose results are no longer of interest.
+        this.removeHandlers(this.watchIds.put(vmProxy.getVmId(), id));
+        this.changeHandlers.addHandler(id, changeHandler);
+        this.errorHandlers.addHandler(id, errorHandler);
+
+        villein.getConnection().sendPacket(manageBindings);
+    }
+
+    /**
+     * Stop watching the bindings of a virtual machine.
+     *
+     * @param vmProxy the virtual machine whose bindings are watched
+     */
+    public synchronized void cancel(VmProxy vmProxy) {
+        String watchId = this.watchIds.remove(vmProxy.getVmId());
+        if (null == watchId) {
+            return;
+        }
+        this.removeHandlers(watchId);
+
+        String id = Packet.nextID();
+        ManageBindings manageBindings = this.createManageBindings(vmProxy, id);
+        manageBindings.setWatch(0L);
+        manageBindings.setBindings(new VmBindings());
+        this.cancelIds.add(id);
+
+        villein.getConnection().sendPacket(manageBindings);
+    }
+
+    /**
+     * @param packetId the ID of a manage_bindings packet
+     * @return whether the packet belongs to a watch (or to the cancellation of one)
+     */
+    public synchronized boolean isWatching(String packetId) {
+        return this.changeHandlers.hasHandler(packetId)
+                || this.errorHandlers.hasHandler(packetId)
+                || this.cancelIds.contains(packetId);
+    }
+
+    public synchronized void receiveSuccess(final ManageBindings manageBindings) {
+        String id = manageBindings.getPacketID();
+        if (this.cancelIds.remove(id)) {
+            return;
+        }
+        try {
+            if (this.changeHandlers.hasHandler(id)) {
+                this.changeHandlers.handle(id, manageBindings.getBindings());
+            }
+        } finally {
+            if (!manageBindings.isPartial()) {
+                // The farm is no longer watching.
+                this.removeWatch(id);
+            }
+        }
+    }
+
+    public synchronized void receiveError(final ManageBindings manageBindings) {
+        String id = manageBindings.getPacketID();
+        if (this.cancelIds.remove(id)) {
+            return;
+        }
+        try {
+            if (this.errorHandlers.hasHandler(id)) {
+                this.errorHandlers.handle(id, manageBindings.getLopError());
+            }
+        } finally {
+            this.removeWatch(id);
+        }
+    }
+
+    private ManageBindings createManageBindings(VmProxy vmProxy, String id) {
+        ManageBindings manageBindings = new ManageBindings();
+        manageBindings.setTo(vmProxy.getFarmProxy().getJid().toString());
+        manageBindings.setFrom(villein.getJid().toString());
+        manageBindings.setType(IQ.Type.GET);
+        manageBindings.setVmId(vmProxy.getVmId());
+        manageBindings.setBinary(vmProxy.usesBinaryEncoding());
+        manageBindings.setPacketID(id);
+        return manageBindings;
+    }
+
+    private void removeWatch(String id) {
+        this.watchIds.values().remove(id);
+        this.removeHandlers(id);
+    }
+
+    private void removeHandlers(String id) {
+        if (null != id) {
+            this.changeHandlers.removeHandler(id);
+            this.errorHandlers.removeHandler(id);
+        }
+    }
+}
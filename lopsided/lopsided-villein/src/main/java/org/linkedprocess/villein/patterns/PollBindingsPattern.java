@@ -20,6 +20,9 @@ import java.util.logging.Logger;
  * The PollBindingsPattern allows you to monitor the state of the bindings of a particular virtual machine.
  * When the actual state of the virtul machine's bindings reach some desired bindings state (as defined by an equivalence relation),
  * then a result handler is called. This is generally useful when a job is executing and the state of that job must be monitored.
+ * Where the farm versions its bindings, each poll asks only for the bindings changed since the last one,
+ * and the bindings are only checked again when some have changed.
+ * Where the farm can watch bindings, they are not polled for at all: the farm pushes their changes, at most once per polling interval.
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
@@ -69,13 +72,24 @@ public class PollBindingsPattern implements Runnable {
      * This initiates the polling thread. Note that a thread is created and started in the constructor of this class.
      */
     public void run() {
+        if (null != vmProxy.getFarmProxy() && vmProxy.getFarmProxy().supportsBindingsWatch()) {
+            this.watch();
+            return;
+        }
+
         Object monitor = new Object();
 
+        boolean versioned = null != vmProxy.getFarmProxy() && vmProxy.getFarmProxy().supportsVersionedBindings();
+        // Where the farm versions its bindings: the bindings as of the last poll, and their version.
+        VmBindings currentBindings = null;
+        long version = 0;
 
         while (true) {
             ResultHolder<VmBindings> resultBindings = null;
             try {
-                resultBindings = SynchronousPattern.getBindings(vmProxy, this.desiredBindings.keySet(), TIMEOUT);
+                resultBindings = versioned
+                        ? SynchronousPattern.getBindingsChangedSince(vmProxy, this.desiredBindings.keySet(), version, TIMEOUT)
+                        : SynchronousPattern.getBindings(vmProxy, this.desiredBindings.keySet(), TIMEOUT);
             } catch (TimeoutException e) {
                 LOGGER.warning(e.getMessage());
             }
@@ -85,8 +99,22 @@ public class PollBindingsPattern implements Runnable {
                     this.errorHandler.handle(resultBindings.getLopError());
                     break;
                 } else {
-                    if (this.bindingsChecker.areEquivalent(resultBindings.getSuccess(), this.desiredBindings)) {
-                        successHandler.handle(resultBindings.getSuccess());
+                    VmBindings bindings = resultBindings.getSuccess();
+                    boolean changed = true;
+                    if (versioned) {
+                        changed = null == currentBindings || !bindings.isEmpty();
+                        version = bindings.getVersion();
+                        if (null == currentBindings) {
+                            currentBindings = new VmBindings();
+                            for (String bindingName : this.desiredBindings.keySet()) {
+                                currentBindings.put(bindingName, null);
+                            }
+                        }
+                        currentBindings.putAll(bindings);
+                        bindings = currentBindings;
+                    }
+                    if (changed && this.bindingsChecker.areEquivalent(bindings, this.desiredBindings)) {
+                        successHandler.handle(bindings);
                         break;
                     } else {
                         monitorSleep(monitor, this.pollingInterval);
@@ -97,4 +125,49 @@ public class PollBindingsPattern implements Runnable {
 
 
     }
+
+    private void watch() {
+        final Object monitor = new Object();
+        // The bindings as of the last change, and the outcome of the watch, guarded by the monitor.
+        final VmBindings currentBindings = new VmBindings();
+        for (String bindingName : this.desiredBindings.keySet()) {
+            currentBindings.put(bindingName, null);
+        }
+        final ResultHolder<VmBindings> outcome = new ResultHolder<VmBindings>();
+
+        Handler<VmBindings> changeHandler = new Handler<VmBindings>() {
+            public void handle(VmBindings changed) {
+                synchronized (monitor) {
+                    currentBindings.putAll(changed);
+                    if (outcome.isEmpty() && bindingsChecker.areEquivalent(currentBindings, desiredBindings)) {
+                        outcome.setSuccess(currentBindings);
+                        monitor.notify();
+                    }
+                }
+            }
+        };
+        Handler<LopError> watchErrorHandler = new Handler<LopError>() {
+            public void handle(LopError lopError) {
+                synchronized (monitor) {
+                    if (outcome.isEmpty()) {
+                        outcome.setLopError(lopError);
+                        monitor.notify();
+                    }
+                }
+            }
+        };
+
+        this.vmProxy.watchBindings(this.desiredBindings.keySet(), this.pollingInterval, changeHandler, watchErrorHandler);
+        synchronized (monitor) {
+            while (outcome.isEmpty()) {
+                monitorSleep(monitor, -1);
+            }
+        }
+        if (outcome.wasSuccessful()) {
+            this.vmProxy.unwatchBindings();
+            this.successHandler.handle(outcome.getSuccess());
+        } else {
+            this.errorHandler.handle(outcome.getLopError());
+        }
+    }
 }
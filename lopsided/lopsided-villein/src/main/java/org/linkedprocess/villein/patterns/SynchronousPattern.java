@@ -267,6 +267,44 @@ public class SynchronousPattern {
 
     }
 
+    /**
+     * @param vmProxy      the virtual machine on which to execute the command
+     * @param bindingNames the name of the bindings of interest, or an empty set for all bindings
+     * @param version      the version returned by the last such get, or 0 for the first
+     * @param timeout      the number of milliseconds to spend on this command before a TimeoutException is thrown (use -1 to wait indefinately)
+     * @return the result of the command: the bindings changed since the version, with the version to ask for changes since the next time
+     * @throws TimeoutException is thrown when the command takes longer than the provided timeout in milliseconds
+     */
+    public static ResultHolder<VmBindings> getBindingsChangedSince(final VmProxy vmProxy, Set<String> bindingNames, final long version, final long timeout) throws TimeoutException {
+        final Object monitor = new Object();
+        final ResultHolder<VmBindings> resultHolder = new ResultHolder<VmBindings>();
+
+        Handler<VmBindings> resultHandler = new Handler<VmBindings>() {
+            public void handle(VmBindings vmBindings) {
+                resultHolder.setSuccess(vmBindings);
+                synchronized (monitor) {
+                    monitor.notify();
+                }
+            }
+        };
+        Handler<LopError> errorHandler = new Handler<LopError>() {
+            public void handle(LopError lopError) {
+                resultHolder.setLopError(lopError);
+                synchronized (monitor) {
+                    monitor.notify();
+                }
+            }
+        };
+        vmProxy.getBindingsChangedSince(bindingNames, version, resultHandler, errorHandler);
+
+        SynchronousPattern.monitorSleep(monitor, timeout);
+        if (resultHolder.isEmpty())
+            throw new TimeoutException("get manage_bindings timedout after " + timeout + "ms.");
+
+        return resultHolder;
+
+    }
+
     /**
      * @param vmProxy the virtual machine on which to execute the command
      * @param timeout the number of milliseconds to spend on this command before a TimeoutException is thrown (use -1 to wait indefinately)
@@ -160,6 +160,56 @@ public class FarmProxy extends XmppProxy {
         }
     }
 
+    /**
+     * Determines whether the farm accepts (and, when asked, replies with) binary-encoded bindings and job results.
+     * This information is lifted from the disco#info of the farm.
+     *
+     * @return whether the farm supports binary encoding
+     */
+    public boolean supportsBinaryEncoding() {
+        return this.hasFeature(LinkedProcess.LOP_FARM_BINARY_FEATURE);
+    }
+
+    /**
+     * Determines whether the farm replies, when asked, with job results as typed XML, which keeps the structure and types of the values of jobs.
+     * This information is lifted from the disco#info of the farm.
+     *
+     * @return whether the farm supports typed results
+     */
+    public boolean supportsTypedResults() {
+        return this.hasFeature(LinkedProcess.LOP_FARM_TYPED_FEATURE);
+    }
+
+    /**
+     * Determines whether the farm versions the bindings of its virtual machines, and so can be asked for only those bindings changed since a version.
+     * This information is lifted from the disco#info of the farm.
+     *
+     * @return whether the farm supports versioned bindings
+     */
+    public boolean supportsVersionedBindings() {
+        return this.hasFeature(LinkedProcess.LOP_FARM_VERSIONED_FEATURE);
+    }
+
+    /**
+     * Whether the farm pushes the changes of watched bindings to the villein, so that they need not be polled for.
+     * This information is lifted from the disco#info of the farm.
+     *
+     * @return whether the farm supports the watching of bindings
+     */
+    public boolean supportsBindingsWatch() {
+        return this.hasFeature(LinkedProcess.LOP_FARM_WATCH_FEATURE);
+    }
+
+    /**
+     * Determines whether the farm streams, when asked, the output of a job and a long result in pieces, as they come.
+     * This information is lifted from the disco#info of the farm.
+     *
+     * @return whether the farm supports streamed results
+     */
+    public boolean supportsStreaming() {
+        return this.hasFeature(LinkedProcess.LOP_FARM_STREAM_FEATURE);
+    }
+
     /**
      * The number of milliseconds before a virtual machine is shutdown by a farm.
      * This information is lifted from the disco#info of the farm.
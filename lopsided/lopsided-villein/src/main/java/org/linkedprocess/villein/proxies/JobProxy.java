@@ -10,15 +10,24 @@ package org.linkedprocess.villein.proxies;
 import org.jivesoftware.smack.packet.Packet;
 import org.linkedprocess.LopError;
 import org.linkedprocess.LinkedProcess;
+import org.linkedprocess.farm.os.BinaryEncoding;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * A JobProxy is a data structure representing a job. A job is submitted to and returned by a virtual machine.
  * A submitted job does not have a result or error. However, a submitted job should have an expression.
  * The expression is a code fragement that is to be executed by the virtual machine and must be in the language of the virtual machine species.
  * When a JobProxy is returned by a submit_job call, the result or error may be set along with the complete flag.
+ * A long result, or the output of a job which writes as it runs, may arrive in sequenced pieces, which the JobProxy puts back together in order.
+ * A result which has arrived binary-encoded or as typed XML keeps the structure and types of the value of the job, and is read with getResultValue().
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  * @version LoPSideD 0.1
@@ -29,6 +38,22 @@ public class JobProxy {
     protected String expression;
     protected LopError error;
     protected boolean complete = false;
+    // Only used when the job is submitted in a batch along with the jobs it depends on.
+    protected final List<JobProxy> dependencies = new ArrayList<JobProxy>();
+    protected String resultBinding;
+    protected String vmId;
+    // The base64 text of the result, if it has arrived binary-encoded.
+    protected String binaryResult;
+    // The value of the result, if it has arrived as typed XML.
+    protected Object typedResult;
+    protected boolean resultTyped = false;
+
+    // The pieces of the result which have arrived in order.
+    protected final StringBuilder partialResult = new StringBuilder();
+    // Pieces which have arrived ahead of an earlier piece, by position.
+    protected final SortedMap<Integer, String> pendingPieces = new TreeMap<Integer, String>();
+    protected int nextPiece = 0;
+    protected int lastPiece = -1;
 
     /**
      * Get the identifier of the job.
@@ -66,6 +91,128 @@ public class JobProxy {
         this.result = result;
     }
 
+    /**
+     * Set the result of a successfully executed/evaluated expression, which has arrived binary-encoded (see BinaryEncoding).
+     *
+     * @param binaryResult the base64 text of the binary-encoded result
+     */
+    public void setBinaryResult(final String binaryResult) {
+        this.binaryResult = binaryResult;
+    }
+
+    /**
+     * Determine whether the result has arrived binary-encoded, in which case it is read with getResultValue().
+     * The output written by such a job (if it has been sent in pieces) is still read with getResult().
+     *
+     * @return whether the result has arrived binary-encoded
+     */
+    public boolean isResultBinary() {
+        return null != this.binaryResult;
+    }
+
+    /**
+     * Set the result of a successfully executed/evaluated expression, which has arrived as typed XML (see TypedXml).
+     *
+     * @param typedResult the value of the result, as read from its typed XML
+     */
+    public void setTypedResult(final Object typedResult) {
+        this.typedResult = typedResult;
+        this.resultTyped = true;
+    }
+
+    /**
+     * Determine whether the result has arrived as typed XML, in which case it is read with getResultValue().
+     * The output written by such a job (if it has been sent in pieces) is still read with getResult().
+     *
+     * @return whether the result has arrived as typed XML
+     */
+    public boolean isResultTyped() {
+        return this.resultTyped;
+    }
+
+    /**
+     * Get the value of the result of a successfully executed/evaluated expression.
+     * A binary-encoded result is decoded into a Boolean, Integer, Long, Double, String, array, List or Map.
+     * A typed result is a Boolean, Integer, Long, Double, String, List or Map, as the value of the job was in the language of the virtual machine.
+     * Any other result is its text, as returned by getResult().
+     *
+     * @return the value of the result
+     * @throws InvalidValueException if a binary-encoded result can not be decoded
+     */
+    public Object getResultValue() throws InvalidValueException {
+        if (this.resultTyped) {
+            return this.typedResult;
+        }
+        return null == this.binaryResult ? this.result : BinaryEncoding.decodeBase64(this.binaryResult);
+    }
+
+    /**
+     * Get the value of the result as a list, as for a job whose value is a list (or array) in the language of the virtual machine.
+     * Only a result which has arrived typed or binary-encoded keeps its structure: a result which has arrived as text (e.g. from a farm which does not support typed results) is not taken apart, as there is no telling how its items were written.
+     *
+     * @return the value of the result as a list
+     * @throws InvalidValueException if the result is not a list, or has arrived as text
+     */
+    public List<?> getResultList() throws InvalidValueException {
+        Object value = this.getResultValue();
+        if (value instanceof List) {
+            return (List<?>) value;
+        } else if (null != value && value.getClass().isArray()) {
+            // A binary-encoded array.
+            List<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < Array.getLength(value); i++) {
+                list.add(Array.get(value, i));
+            }
+            return list;
+        } else if (!this.resultTyped && null == this.binaryResult) {
+            throw new InvalidValueException("result has arrived as text, and can not be read as a list: ask for typed results");
+        } else {
+            throw new InvalidValueException("result is not a list: " + value);
+        }
+    }
+
+    /**
+     * Get as much of the result as has arrived in order, if the result is sent in pieces.
+     *
+     * @return the result so far
+     */
+    public String getPartialResult() {
+        return this.partialResult.toString();
+    }
+
+    /**
+     * Add a piece of a result which is sent in pieces.
+     * Once all of the pieces up to and including the last have arrived, the result is set and the job is complete.
+     *
+     * @param sequence the position of the piece, counting from zero
+     * @param piece    the piece of the result
+     * @param last     whether this is the last piece
+     * @return whether the result so far has grown
+     */
+    public boolean addResultPiece(final int sequence, final String piece, final boolean last) {
+        if (last) {
+            this.lastPiece = sequence;
+        }
+        if (sequence < this.nextPiece) {
+            // A duplicate.
+            return false;
+        }
+
+        this.pendingPieces.put(sequence, null == piece ? "" : piece);
+        boolean grown = false;
+        while (!this.pendingPieces.isEmpty() && this.pendingPieces.firstKey() == this.nextPiece) {
+            this.partialResult.append(this.pendingPieces.remove(this.nextPiece));
+            this.nextPiece++;
+            grown = true;
+        }
+
+        if (this.lastPiece >= 0 && this.nextPiece > this.lastPiece) {
+            this.result = this.partialResult.toString();
+            this.complete = true;
+        }
+        return grown;
+    }
+
     /**
      * Get the error that occured during an execution/evaulation.
      *
@@ -148,6 +295,61 @@ public class JobProxy {
         return (this.complete && null == this.error);
     }
 
+    /**
+     * Have the job wait for another job of the same batch to finish before it is run.
+     * If the other job fails, this job is not run, and fails with a dependency_failed error.
+     *
+     * @param jobProxy the job which is to finish first
+     */
+    public void addDependency(final JobProxy jobProxy) {
+        this.dependencies.add(jobProxy);
+    }
+
+    /**
+     * Get the jobs of the same batch which are to finish before this job is run.
+     *
+     * @return the jobs which this job depends on
+     */
+    public List<JobProxy> getDependencies() {
+        return this.dependencies;
+    }
+
+    /**
+     * Set the name under which the result of the job is bound, as a string, in the virtual machines of the jobs which depend on it, before they are run.
+     *
+     * @param resultBinding the name of the binding
+     */
+    public void setResultBinding(final String resultBinding) {
+        this.resultBinding = resultBinding;
+    }
+
+    /**
+     * Get the name under which the result of the job is bound for the jobs which depend on it.
+     *
+     * @return the name of the binding (null if the result is not bound)
+     */
+    public String getResultBinding() {
+        return this.resultBinding;
+    }
+
+    /**
+     * Set the virtual machine which the job is to run on, when it is submitted in a batch to another virtual machine of the same farm.
+     *
+     * @param vmId the identifier of the virtual machine
+     */
+    public void setVmId(final String vmId) {
+        this.vmId = vmId;
+    }
+
+    /**
+     * Get the virtual machine which the job is to run on, if it is not the one it is submitted to.
+     *
+     * @return the identifier of the virtual machine (null for the one the job is submitted to)
+     */
+    public String getVmId() {
+        return this.vmId;
+    }
+
     /**
      * Generate a random job identifier (guaranted to be unique)
      *
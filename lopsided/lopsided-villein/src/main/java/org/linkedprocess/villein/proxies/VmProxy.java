@@ -10,11 +10,10 @@ package org.linkedprocess.villein.proxies;
 import org.linkedprocess.LopError;
 import org.linkedprocess.LinkedProcess;
 import org.linkedprocess.farm.os.VmBindings;
-import org.linkedprocess.farm.os.errors.InvalidValueException;
 import org.linkedprocess.villein.Dispatcher;
 import org.linkedprocess.villein.Handler;
-import org.linkedprocess.villein.Villein;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -47,6 +46,10 @@ public class VmProxy {
      * virtual machine and to design around these constriants appropriately.
      */
     private VmBindings vmBindings = new VmBindings();
+    // Whether bindings and results are to be binary-encoded, where the farm supports it.
+    protected boolean binaryEncoding = false;
+    // Whether job results are to be sent as typed XML, where the farm supports it.
+    protected boolean typedResults = false;
 
     public VmProxy(final FarmProxy farmProxy, final String vmId, final Dispatcher dispatcher) {
         this.farmProxy = farmProxy;
@@ -65,6 +68,32 @@ public class VmProxy {
         dispatcher.getSubmitJobCommand().send(this, jobProxy, successHandler, errorHandler);
     }
 
+    /**
+     * Submit a job to the virtual machine for execution, following its result as it arrives.
+     * If the farm supports streaming, a long result, or the output of a job which writes as it runs, arrives in pieces.
+     *
+     * @param jobProxy             the job to submit (requires at least an expression)
+     * @param successHandler       the handler called when the complete result has arrived
+     * @param errorHandler         the handler called when an error result has occurred
+     * @param partialResultHandler the handler called each time more of the result has arrived (see JobProxy.getPartialResult())
+     */
+    public void submitJob(final JobProxy jobProxy, final Handler<JobProxy> successHandler, final Handler<JobProxy> errorHandler, final Handler<JobProxy> partialResultHandler) {
+        dispatcher.getSubmitJobCommand().send(this, jobProxy, successHandler, errorHandler, partialResultHandler);
+    }
+
+    /**
+     * Submit many jobs to the virtual machine at once, in a single packet.
+     * The results of the jobs arrive together, in one or more replies.
+     * The jobs may depend on one another, and may run on other virtual machines of the same farm, in which case the farm runs them as a graph.
+     *
+     * @param jobProxies     the jobs to submit (each requires at least an expression)
+     * @param successHandler the handler called with each job whose result has arrived
+     * @param errorHandler   the handler called with each job which has failed
+     */
+    public void submitJobs(final List<JobProxy> jobProxies, final Handler<JobProxy> successHandler, final Handler<JobProxy> errorHandler) {
+        dispatcher.getSubmitJobBatchCommand().send(this, jobProxies, successHandler, errorHandler);
+    }
+
     /**
      * Ping a job that is being executed by the virtual machine to determine its status.
      *
@@ -76,6 +105,19 @@ public class VmProxy {
         dispatcher.getPingJobCommand().send(this, jobProxy, successHandler, errorHandler);
     }
 
+    /**
+     * Fetch the result of a job which has finished, e.g. because its result has been missed.
+     * The farm only remembers the results of jobs for a while.
+     * If the result of the job has been sent in pieces, only the last piece is fetched.
+     *
+     * @param jobProxy       the job to fetch (requires at least the job id)
+     * @param successHandler the handler called with the job, which is complete if it has finished
+     * @param errorHandler   the handler called when an error result has occurred, including the error of a job which has failed
+     */
+    public void fetchJob(final JobProxy jobProxy, final Handler<JobProxy> successHandler, final Handler<LopError> errorHandler) {
+        dispatcher.getFetchJobCommand().send(this, jobProxy, successHandler, errorHandler);
+    }
+
     /**
      * Abort a job that is being executed by the virtual machine.
      *
@@ -98,6 +140,43 @@ public class VmProxy {
         dispatcher.getGetBindingsCommand().send(this, bindingNames, successHandler, errorHandler);
     }
 
+    /**
+     * Get the binding values at the virtual machine which have changed since a version, where the farm supports it (see FarmProxy.supportsVersionedBindings()).
+     * The bindings returned carry, as VmBindings.getVersion(), the version to ask for changes since the next time.
+     * A binding which has since been unbound is returned with a null value.
+     *
+     * @param bindingNames   the name of the bindings of interest, or an empty set for all bindings
+     * @param version        the version returned by the last such get, or 0 for the first
+     * @param successHandler the handler called when a sucessful result has occurred
+     * @param errorHandler   the handler called when an error result has occurred
+     */
+    public void getBindingsChangedSince(final Set<String> bindingNames, final long version, final Handler<VmBindings> successHandler, final Handler<LopError> errorHandler) {
+        dispatcher.getGetBindingsCommand().send(this, bindingNames, version, successHandler, errorHandler);
+    }
+
+    /**
+     * Watch the binding values at the virtual machine, where the farm supports it (see FarmProxy.supportsBindingsWatch()).
+     * The change handler is first called with the bindings as they are, and then, each time some of them change, with those which have changed, at most once per interval.
+     * A binding which has since been unbound is returned with a null value.
+     * The watch lasts until it is cancelled with unwatchBindings(), or until the virtual machine is gone, which is returned to the error handler.
+     * A farm may watch at a longer interval than the one asked for.
+     *
+     * @param bindingNames  the name of the bindings of interest, or an empty set for all bindings
+     * @param interval      the least number of milliseconds between two calls of the change handler
+     * @param changeHandler the handler called with the bindings which have changed
+     * @param errorHandler  the handler called when an error result has occurred
+     */
+    public void watchBindings(final Set<String> bindingNames, final long interval, final Handler<VmBindings> changeHandler, final Handler<LopError> errorHandler) {
+        dispatcher.getWatchBindingsCommand().send(this, bindingNames, interval, changeHandler, errorHandler);
+    }
+
+    /**
+     * Stop watching the binding values at the virtual machine.
+     */
+    public void unwatchBindings() {
+        dispatcher.getWatchBindingsCommand().cancel(this);
+    }
+
     /**
      * Set values to bindings at the virtual machine.
      *
@@ -128,6 +207,54 @@ public class VmProxy {
         return this.farmProxy;
     }
 
+    /**
+     * Set whether the bindings and job results exchanged with this virtual machine are to be binary-encoded (see BinaryEncoding) rather than sent as typed text.
+     * Binary encoding carries large values (e.g. long strings, arrays of numbers, lists and maps) more compactly.
+     * It is only used if the farm supports it: otherwise bindings and results are sent as text, as usual.
+     * A binary-encoded job result is read with JobProxy.getResultValue().
+     *
+     * @param binaryEncoding whether to use binary encoding where the farm supports it
+     */
+    public void setBinaryEncoding(final boolean binaryEncoding) {
+        this.binaryEncoding = binaryEncoding;
+    }
+
+    /**
+     * Determine whether the bindings and job results exchanged with this virtual machine are binary-encoded.
+     *
+     * @return whether binary encoding has been asked for and the farm supports it
+     */
+    public boolean usesBinaryEncoding() {
+        return this.binaryEncoding && null != this.farmProxy && this.farmProxy.supportsBinaryEncoding();
+    }
+
+    /**
+     * Set whether the results of jobs run on this virtual machine are to be sent as typed XML (see TypedXml) rather than as the text of the values of jobs.
+     * A typed result keeps the structure and types of the value of a job: its lists, maps, numbers, booleans and strings, whatever the language of the virtual machine.
+     * It is only used if the farm supports it (and binary encoding, which also keeps them, is not used): otherwise results are sent as text, as usual.
+     * A typed job result is read with JobProxy.getResultValue().
+     *
+     * @param typedResults whether to ask for typed results where the farm supports them
+     */
+    public void setTypedResults(final boolean typedResults) {
+        this.typedResults = typedResults;
+    }
+
+    /**
+     * Get the encoding in which the results of jobs run on this virtual machine are to be sent.
+     *
+     * @return the encoding of job results (null for text)
+     */
+    public String getResultEncoding() {
+        if (this.usesBinaryEncoding()) {
+            return LinkedProcess.BINARY_ENCODING;
+        } else if (this.typedResults && null != this.farmProxy && this.farmProxy.supportsTypedResults()) {
+            return LinkedProcess.TYPED_ENCODING;
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Set the virtual machine identifier (vm_id) of this virtual machine.
      *
@@ -171,13 +298,8 @@ public class VmProxy {
      * @param bindings the bindings to add to the local virtual machine proxy bindings
      */
     public void addVmBindings(VmBindings bindings) {
-        try {
-            for (String bindingName : bindings.keySet()) {
-                this.vmBindings.putTyped(bindingName, bindings.getTyped(bindingName));
-            }
-        } catch (InvalidValueException e) {
-            Villein.LOGGER.warning(e.getMessage());
-        }
+        // Note: the values are already typed (binary-encoded values may be arrays, lists or maps, which have no typed text).
+        this.vmBindings.putAll(bindings);
     }
 
     /**
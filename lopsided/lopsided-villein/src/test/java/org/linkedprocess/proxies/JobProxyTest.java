@@ -1,8 +1,11 @@
 package org.linkedprocess.proxies;
 
 import junit.framework.TestCase;
+import org.linkedprocess.farm.os.BinaryEncoding;
+import org.linkedprocess.farm.os.errors.InvalidValueException;
 import org.linkedprocess.villein.proxies.JobProxy;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -32,4 +35,66 @@ public class JobProxyTest extends TestCase {
         }
         assertEquals(jobProxies.size(), 1);
     }
+
+    public void testResultPiecesInOrder() {
+        JobProxy job = new JobProxy();
+        assertTrue(job.addResultPiece(0, "ab", false));
+        assertEquals("ab", job.getPartialResult());
+        assertFalse(job.isComplete());
+        assertTrue(job.addResultPiece(1, "cd", false));
+        assertTrue(job.addResultPiece(2, "e", true));
+        assertTrue(job.isComplete());
+        assertEquals("abcde", job.getResult());
+    }
+
+    public void testResultPiecesOutOfOrder() {
+        JobProxy job = new JobProxy();
+        assertFalse(job.addResultPiece(2, "e", true));
+        assertFalse(job.addResultPiece(1, "cd", false));
+        assertEquals("", job.getPartialResult());
+        assertFalse(job.isComplete());
+
+        assertTrue(job.addResultPiece(0, "ab", false));
+        assertTrue(job.isComplete());
+        assertEquals("abcde", job.getResult());
+    }
+
+    public void testDuplicateResultPiecesAreIgnored() {
+        JobProxy job = new JobProxy();
+        assertTrue(job.addResultPiece(0, "ab", false));
+        assertFalse(job.addResultPiece(0, "ab", false));
+        assertTrue(job.addResultPiece(1, "c", true));
+        assertEquals("abc", job.getResult());
+    }
+
+    public void testTypedResultValues() throws Exception {
+        JobProxy job = new JobProxy();
+        job.setTypedResult(Arrays.asList(2, 3, 5));
+        assertTrue(job.isResultTyped());
+        assertEquals(Arrays.asList(2, 3, 5), job.getResultValue());
+        assertEquals(Arrays.asList(2, 3, 5), job.getResultList());
+
+        // A typed null is still typed.
+        job = new JobProxy();
+        job.setTypedResult(null);
+        assertTrue(job.isResultTyped());
+        assertNull(job.getResultValue());
+    }
+
+    public void testTextResultsAreNotTakenForLists() throws Exception {
+        JobProxy job = new JobProxy();
+        // E.g. a list with a comma in one of its strings.
+        job.setResult("[a, b,c]");
+        assertFalse(job.isResultTyped());
+        try {
+            job.getResultList();
+            fail("a text result should not be read as a list");
+        } catch (InvalidValueException e) {
+            // Good.
+        }
+
+        job = new JobProxy();
+        job.setBinaryResult(BinaryEncoding.encodeBase64(new int[]{2, 3}));
+        assertEquals(Arrays.asList(2, 3), job.getResultList());
+    }
 }